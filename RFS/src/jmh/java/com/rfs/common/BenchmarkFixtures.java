@@ -0,0 +1,175 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ * Builds the synthetic data the benchmarks run against, so that they need neither a snapshot nor a cluster.  The data
+ * is generated from a fixed seed, so every run (and every branch being compared) sees the same bytes.
+ */
+public class BenchmarkFixtures {
+    private static final long SEED = 42;
+
+    public static byte[] encodeUtf8Id(String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[idBytes.length + 1];
+        encoded[0] = (byte) Uid.UTF8;
+        System.arraycopy(idBytes, 0, encoded, 1, idBytes.length);
+        return encoded;
+    }
+
+    /*
+     * A JSON source of roughly the given size, with a mix of field types like a typical log or catalogue document
+     */
+    public static String source(Random random, int approxSizeBytes) {
+        StringBuilder source = new StringBuilder(approxSizeBytes + 64);
+        source.append("{\"timestamp\":").append(1700000000000L + random.nextInt(1_000_000))
+            .append(",\"count\":").append(random.nextInt(10_000))
+            .append(",\"active\":").append(random.nextBoolean())
+            .append(",\"message\":\"");
+        while (source.length() < approxSizeBytes) {
+            source.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(8) == 0) {
+                source.append(' ');
+            }
+        }
+        return source.append("\"}").toString();
+    }
+
+    public static List<BulkDocSection> bulkSections(int numDocs, int approxSourceSizeBytes) {
+        Random random = new Random(SEED);
+        List<BulkDocSection> sections = new ArrayList<>(numDocs);
+        for (int i = 0; i < numDocs; i++) {
+            sections.add(new BulkDocSection("doc-" + i, new BytesRef(source(random, approxSourceSizeBytes))));
+        }
+        return sections;
+    }
+
+    /*
+     * Writes a Lucene index of the documents to <basePath>/<indexName>/<shardId>, laid out the way
+     * SnapshotShardUnpacker leaves a shard, with the documents split evenly between the segments
+     */
+    public static void writeLuceneIndex(Path basePath, String indexName, int shardId, int numDocs, int numSegments, int approxSourceSizeBytes) throws IOException {
+        Random random = new Random(SEED);
+        Path indexDir = basePath.resolve(indexName).resolve(String.valueOf(shardId));
+        Files.createDirectories(indexDir);
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            int docsPerSegment = Math.max(1, numDocs / numSegments);
+            for (int i = 0; i < numDocs; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("_id", new BytesRef(encodeUtf8Id("doc-" + i)), Field.Store.YES));
+                doc.add(new StoredField("_source", new BytesRef(source(random, approxSourceSizeBytes))));
+                writer.addDocument(doc);
+                if ((i + 1) % docsPerSegment == 0) {
+                    writer.commit();
+                }
+            }
+            writer.commit();
+        }
+    }
+
+    /*
+     * Writes a shard's worth of random blob files into a FileSystemRepo rooted at repoDir, each split into parts the
+     * way a snapshot splits large files, and returns the shard's metadata
+     */
+    public static ShardMetadata.Data writeBlobFiles(Path repoDir, String indexId, int shardId, int numFiles, long fileSizeBytes, long partSizeBytes) throws IOException {
+        Random random = new Random(SEED);
+        Path shardDir = repoDir.resolve("indices").resolve(indexId).resolve(String.valueOf(shardId));
+        Files.createDirectories(shardDir);
+        byte[] chunk = new byte[64 * 1024];
+        List<ShardMetadata.FileInfo> files = new ArrayList<>();
+        for (int f = 0; f < numFiles; f++) {
+            SyntheticFileInfo fileInfo = new SyntheticFileInfo("__" + f, "_" + f + ".cfs", fileSizeBytes, partSizeBytes);
+            for (long part = 0; part < fileInfo.getNumberOfParts(); part++) {
+                long partLength = Math.min(partSizeBytes, fileSizeBytes - part * partSizeBytes);
+                try (OutputStream out = Files.newOutputStream(shardDir.resolve(fileInfo.partName(part)))) {
+                    for (long written = 0; written < partLength; written += chunk.length) {
+                        random.nextBytes(chunk);
+                        out.write(chunk, 0, (int) Math.min(chunk.length, partLength - written));
+                    }
+                }
+            }
+            files.add(fileInfo);
+        }
+        return new SyntheticShard(indexId, shardId, files);
+    }
+
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    public static class SyntheticFileInfo implements ShardMetadata.FileInfo {
+        private final String name;
+        private final String physicalName;
+        private final long length;
+        private final long partSize;
+
+        public SyntheticFileInfo(String name, String physicalName, long length, long partSize) {
+            this.name = name;
+            this.physicalName = physicalName;
+            this.length = length;
+            this.partSize = partSize;
+        }
+
+        public String getName() { return name; }
+        public String getPhysicalName() { return physicalName; }
+        public long getLength() { return length; }
+        public String getChecksum() { return null; }
+        public long getPartSize() { return partSize; }
+        public String getWrittenBy() { return null; }
+        public BytesRef getMetaHash() { return null; }
+        public long getNumberOfParts() { return (length + partSize - 1) / partSize; }
+        public String partName(long part) { return name + ".part" + part; }
+    }
+
+    public static class SyntheticShard implements ShardMetadata.Data {
+        private final String indexId;
+        private final int shardId;
+        private final List<ShardMetadata.FileInfo> files;
+
+        public SyntheticShard(String indexId, int shardId, List<ShardMetadata.FileInfo> files) {
+            this.indexId = indexId;
+            this.shardId = shardId;
+            this.files = files;
+        }
+
+        public String getSnapshotName() { return "benchmark"; }
+        public String getIndexName() { return indexId; }
+        public String getIndexId() { return indexId; }
+        public int getShardId() { return shardId; }
+        public int getIndexVersion() { return 0; }
+        public long getStartTime() { return 0; }
+        public long getTime() { return 0; }
+        public int getNumberOfFiles() { return files.size(); }
+        public long getTotalSize() { return files.stream().mapToLong(ShardMetadata.FileInfo::getLength).sum(); }
+        public List<ShardMetadata.FileInfo> getFiles() { return files; }
+    }
+}
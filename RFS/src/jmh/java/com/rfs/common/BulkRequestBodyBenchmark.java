@@ -0,0 +1,72 @@
+package com.rfs.common;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import reactor.core.publisher.Flux;
+
+/*
+ * What DocumentReindexer does to each batch before it hits the network: cutting the batches, assembling the bulk
+ * request body, and (optionally) gzipping it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class BulkRequestBodyBenchmark {
+    @Param({"1000"})
+    public int numDocs;
+
+    @Param({"1024"})
+    public int sourceSizeBytes;
+
+    private List<BulkDocSection> sections;
+    private BulkSizeController bulkSizeController;
+
+    @Setup
+    public void setUp() {
+        sections = BenchmarkFixtures.bulkSections(numDocs, sourceSizeBytes);
+        bulkSizeController = BulkSizeController.fixed(BulkSizeController.DEFAULT_MAX_DOCS, BulkSizeController.DEFAULT_MAX_BYTES);
+    }
+
+    @Benchmark
+    public int toBulkRequestBody() {
+        ByteBuf body = BulkDocSection.toBulkRequestBody(sections, ByteBufAllocator.DEFAULT);
+        try {
+            // Walk the composite the way the transport would when writing it out
+            return body.nioBuffers().length + body.readableBytes();
+        } finally {
+            body.release();
+        }
+    }
+
+    @Benchmark
+    public int toBulkRequestBodyGzipped() {
+        ByteBuf body = BulkDocSection.toBulkRequestBody(sections, ByteBufAllocator.DEFAULT);
+        try {
+            ByteBuf compressed = RestClient.gzip(body, 1);
+            try {
+                return compressed.readableBytes();
+            } finally {
+                compressed.release();
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    @Benchmark
+    public long toBatches() {
+        return bulkSizeController.toBatches(Flux.fromIterable(sections)).count().block();
+    }
+}
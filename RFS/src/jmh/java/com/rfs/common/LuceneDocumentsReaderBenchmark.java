@@ -0,0 +1,66 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * Reads every document out of a generated shard, i.e. the source side of the pipeline with no target involved
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class LuceneDocumentsReaderBenchmark {
+    private static final String INDEX_NAME = "benchmark_index";
+
+    @Param({"20000"})
+    public int numDocs;
+
+    @Param({"8"})
+    public int numSegments;
+
+    @Param({"1024"})
+    public int sourceSizeBytes;
+
+    @Param({"1", "4"})
+    public int segmentParallelism;
+
+    private Path luceneDir;
+    private LuceneDocumentsReader reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        luceneDir = Files.createTempDirectory("rfs-jmh-lucene");
+        BenchmarkFixtures.writeLuceneIndex(luceneDir, INDEX_NAME, 0, numDocs, numSegments, sourceSizeBytes);
+        reader = new LuceneDocumentsReader(segmentParallelism);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkFixtures.deleteRecursively(luceneDir);
+    }
+
+    @Benchmark
+    public long readDocuments() {
+        return reader.readDocuments(luceneDir, INDEX_NAME, 0).count().block();
+    }
+
+    @Benchmark
+    public long readDocumentsIntoBulkSections() {
+        return reader.readDocuments(luceneDir, INDEX_NAME, 0)
+            .map(BulkDocSection::fromLuceneDocument)
+            .count()
+            .block();
+    }
+}
@@ -0,0 +1,91 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rfs.version_es_7_10.ElasticsearchConstants_ES_7_10;
+
+/*
+ * Turning a shard's blob files back into its Lucene files, from a local FileSystemRepo so that only our side of the
+ * copy is measured.  Both benchmarks move the same bytes, so their throughputs can be compared directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SnapshotShardUnpackerBenchmark {
+    private static final String INDEX_ID = "benchmark_index";
+
+    @Param({"8"})
+    public int numFiles;
+
+    @Param({"16"})
+    public int fileSizeMb;
+
+    @Param({"4"})
+    public int partSizeMb;
+
+    @Param({"1", "4"})
+    public int maxConcurrentFileWrites;
+
+    private Path repoDir;
+    private Path luceneDir;
+    private SourceRepo repo;
+    private ShardMetadata.Data shardMetadata;
+    private SnapshotShardUnpacker unpacker;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        repoDir = Files.createTempDirectory("rfs-jmh-repo");
+        luceneDir = Files.createTempDirectory("rfs-jmh-unpacked");
+        repo = new FileSystemRepo(repoDir);
+        shardMetadata = BenchmarkFixtures.writeBlobFiles(repoDir, INDEX_ID, 0, numFiles, fileSizeMb * 1024L * 1024, partSizeMb * 1024L * 1024);
+        unpacker = new SnapshotShardUnpacker(repo, luceneDir, ElasticsearchConstants_ES_7_10.BUFFER_SIZE_IN_BYTES, 1, maxConcurrentFileWrites, new UnpackMetrics());
+        buffer = new byte[ElasticsearchConstants_ES_7_10.BUFFER_SIZE_IN_BYTES];
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteUnpackedFiles() throws IOException {
+        BenchmarkFixtures.deleteRecursively(luceneDir.resolve(shardMetadata.getIndexName()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        unpacker.close();
+        BenchmarkFixtures.deleteRecursively(repoDir);
+        BenchmarkFixtures.deleteRecursively(luceneDir);
+    }
+
+    @Benchmark
+    public void unpack() {
+        unpacker.unpack(shardMetadata).block();
+    }
+
+    @Benchmark
+    public long readPartSliceStreams() throws IOException {
+        long total = 0;
+        for (ShardMetadata.FileInfo fileInfo : shardMetadata.getFiles()) {
+            try (InputStream stream = new PartSliceStream(repo, fileInfo, INDEX_ID, 0)) {
+                int length;
+                while ((length = stream.read(buffer)) > 0) {
+                    total += length;
+                }
+            }
+        }
+        return total;
+    }
+}
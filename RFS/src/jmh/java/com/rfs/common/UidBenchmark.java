@@ -0,0 +1,50 @@
+package com.rfs.common;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Decoding each document's _id is on the per-document hot path, so covers the three ways ES encodes ids
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class UidBenchmark {
+    private byte[] utf8Id;
+    private byte[] numericId;
+    private byte[] base64Id;
+
+    @Setup
+    public void setUp() {
+        utf8Id = BenchmarkFixtures.encodeUtf8Id("customer-0012345-order-67890");
+
+        // "1234567890123": the NUMERIC marker then two digits per byte, padded with 0xf
+        numericId = new byte[] {(byte) Uid.NUMERIC, 0x12, 0x34, 0x56, 0x78, (byte) 0x90, 0x12, 0x3f};
+
+        // Auto-generated ids are URL-safe base64, stored as the decoded bytes
+        base64Id = Base64.getUrlDecoder().decode("Zq3NhY4BpXcQvGZ8K2mJ");
+    }
+
+    @Benchmark
+    public String decodeUtf8Id() {
+        return Uid.decodeId(utf8Id);
+    }
+
+    @Benchmark
+    public String decodeNumericId() {
+        return Uid.decodeId(numericId);
+    }
+
+    @Benchmark
+    public String decodeBase64Id() {
+        return Uid.decodeId(base64Id);
+    }
+}
@@ -2,18 +2,28 @@ package com.rfs;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.apache.lucene.document.Document;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import com.rfs.common.*;
 import com.rfs.transformers.*;
@@ -23,11 +33,15 @@ import com.rfs.version_os_2_11.*;
 
 public class ReindexFromSnapshot {
     private static final Logger logger = LogManager.getLogger(ReindexFromSnapshot.class);
+    private static final int METADATA_READ_PARALLELISM = 16; // Arbitrarily chosen
 
     public static class Args {
         @Parameter(names = {"-n", "--snapshot-name"}, description = "The name of the snapshot to migrate", required = true)
         public String snapshotName;
 
+        @Parameter(names = {"--previous-snapshot-name"}, description = "The name of an earlier snapshot in the same repo whose documents have already been migrated; if given, only the documents added, updated, or deleted since it are migrated, read in place from the snapshots.  Default: none", required = false)
+        public String previousSnapshotName = null;
+
         @Parameter(names = {"--snapshot-dir"}, description = "The absolute path to the existing source snapshot directory on local disk", required = false)
         public String snapshotDirPath = null;
 
@@ -43,6 +57,21 @@ public class ReindexFromSnapshot {
         @Parameter(names = {"--s3-region"}, description = "The AWS Region the S3 bucket is in, like: us-east-2", required = false)
         public String s3Region = null;
 
+        @Parameter(names = {"--s3-stream-blob-files"}, description = "If enabled, a shard's blob files are streamed from S3 straight into its Lucene files rather than first being downloaded to --s3-local-dir, so each shard only touches the disk once.  Default: false", arity=0, required = false)
+        public boolean s3StreamBlobFiles;
+
+        @Parameter(names = {"--s3-prefetch-memory-mb"}, description = "When streaming blob files from S3, the most memory (in MiB) to use for reading ahead of the files being unpacked, shared between all of them.  Default: 256", required = false)
+        public long s3PrefetchMemoryMb = S3Repo.DEFAULT_PREFETCH_MEMORY_BYTES / (1024 * 1024);
+
+        @Parameter(names = {"--read-from-snapshot"}, description = "If enabled, each shard's documents are read in place from its snapshot blob files instead of the shard first being unpacked into --lucene-dir.  Default: false", arity=0, required = false)
+        public boolean readFromSnapshot;
+
+        @Parameter(names = {"--max-shard-slice-mb"}, description = "With --read-from-snapshot, shards bigger than this (in MiB) are split into slices of their documents no bigger than it, with each slice read and reindexed as its own piece of work, so that a giant shard is worked on by several slots at once.  0 means shards aren't split.  Default: 0", required = false)
+        public long maxShardSliceMb = 0;
+
+        @Parameter(names = {"--keep-unpacked-shards"}, description = "If enabled, each shard's unpacked Lucene files are left in --lucene-dir after it has been reindexed, rather than being deleted.  Default: false", arity=0, required = false)
+        public boolean keepUnpackedShards;
+
         @Parameter(names = {"-l", "--lucene-dir"}, description = "The absolute path to the directory where we'll put the Lucene docs", required = true)
         public String luceneDirPath;
 
@@ -64,6 +93,30 @@ public class ReindexFromSnapshot {
         @Parameter(names = {"--target-password"}, description = "The target password; if not provided, will assume no auth on target", required = false)
         public String targetPass = null;
 
+        @Parameter(names = {"--target-compression-level"}, description = "The gzip level (1-9) to compress bulk requests to the target with, which also asks the target for compressed responses; 0 disables compression.  Default: 0", required = false)
+        public int targetCompressionLevel = ConnectionDetails.NO_COMPRESSION;
+
+        @Parameter(names = {"--max-connections"}, description = "The maximum number of HTTP connections to each cluster, shared by everything talking to it.  Default: 64", required = false)
+        public int maxConnections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+        @Parameter(names = {"--max-pending-connection-acquires"}, description = "The maximum number of requests that can be queued waiting for a connection to a cluster once all are in use.  Default: 1024", required = false)
+        public int maxPendingConnectionAcquires = ConnectionPool.DEFAULT_MAX_PENDING_ACQUIRES;
+
+        @Parameter(names = {"--connection-max-idle-seconds"}, description = "How long a pooled connection can sit idle before it's closed.  Default: 30", required = false)
+        public long connectionMaxIdleSeconds = ConnectionPool.DEFAULT_MAX_IDLE_TIME.getSeconds();
+
+        @Parameter(names = {"--http-event-loop-threads"}, description = "The number of event loop threads handling HTTP connections.  Default: the number of available processors (minimum 4)", required = false)
+        public int httpEventLoopThreads = ConnectionPool.DEFAULT_EVENT_LOOP_THREADS;
+
+        @Parameter(names = {"--dead-letter-file"}, description = "The path of a file to append the documents the target permanently refuses to, as lines of JSON with the reason; if not provided, they're only logged.  Default: none", required = false)
+        public String deadLetterFilePath = null;
+
+        @Parameter(names = {"--otel-collector-endpoint"}, description = "The endpoint (e.g. http://localhost:4317) of the OpenTelemetry Collector to send metrics and traces to; if not provided, none are sent.  Default: none", required = false)
+        public String otelCollectorEndpoint = null;
+
+        @Parameter(names = {"--route-bulks-to-primaries"}, description = "If enabled, each bulk is split up by the target node holding the primary of each document's shard and sent straight to that node, rather than to the target host for it to forward; the nodes' published HTTP addresses must be reachable from here.  Default: false", arity=0, required = false)
+        public boolean routeBulksToPrimaries;
+
         @Parameter(names = {"-s", "--source-version"}, description = "The source cluster's version (e.g. 'es_6_8')", required = true, converter = ClusterVersion.ArgsConverter.class)
         public ClusterVersion sourceVersion;
 
@@ -91,6 +144,39 @@ public class ReindexFromSnapshot {
 
         @Parameter(names = {"--index_suffix"}, description = "An optional suffix to add to index names as they're transfered. Default: none", required = false)
         public String indexSuffix = "";
+
+        @Parameter(names = {"--max-concurrent-metadata-requests"}, description = "The maximum number of template or index creation requests in flight against the target at once.  Default: 8", required = false)
+        public int maxConcurrentMetadataRequests = GlobalMetadataCreator_OS_2_11.DEFAULT_MAX_CONCURRENT_REQUESTS;
+
+        @Parameter(names = {"--bulk-load-mode"}, description = "If enabled, indices are created without replicas, refreshes, or a synchronous translog so the target spends its effort on indexing; once their documents are migrated, their intended settings are restored and they're refreshed and force merged.  Default: false", arity=0, required = false)
+        public boolean bulkLoadMode;
+
+        @Parameter(names = {"--shard-parallelism"}, description = "The number of shards to unpack and reindex concurrently; this also caps the number of unpacked shards on local disk at once.  Default: 1", required = false)
+        public int shardParallelism = 1;
+
+        @Parameter(names = {"--max-concurrent-downloads"}, description = "The maximum number of shards whose blob files are being prepped (e.g. downloaded from S3) at once while unpacking.  Default: 2", required = false)
+        public int maxConcurrentDownloads = 2;
+
+        @Parameter(names = {"--max-concurrent-file-writes"}, description = "The maximum number of Lucene files being written to disk at once while unpacking, across all shards.  Default: 4", required = false)
+        public int maxConcurrentFileWrites = 4;
+
+        @Parameter(names = {"--segment-parallelism"}, description = "The number of Lucene segments to read concurrently within each shard being reindexed.  Default: 4", required = false)
+        public int segmentParallelism = 4;
+
+        @Parameter(names = {"--max-in-flight-bulks"}, description = "The maximum number of bulk requests in flight against the target at any one time, shared between all the shards being reindexed concurrently.  Default: 8", required = false)
+        public int maxInFlightBulks = 8;
+
+        @Parameter(names = {"--max-bulk-docs"}, description = "The maximum number of documents in a single bulk request.  Default: 1000", required = false)
+        public int maxBulkDocs = BulkSizeController.DEFAULT_MAX_DOCS;
+
+        @Parameter(names = {"--max-bulk-bytes"}, description = "The maximum size, in bytes, of a single bulk request's payload; a single document larger than this is sent on its own.  Default: 10485760 (10 MiB)", required = false)
+        public long maxBulkBytes = BulkSizeController.DEFAULT_MAX_BYTES;
+
+        @Parameter(names = {"--adaptive-bulk-sizing"}, description = "If enabled, the bulk payload size limit is tuned between a small floor and --max-bulk-bytes based on the target's bulk latency and any rejections (HTTP 429).  Default: false", arity=0, required = false)
+        public boolean adaptiveBulkSizing;
+
+        @Parameter(names = {"--target-bulk-latency-ms"}, description = "With --adaptive-bulk-sizing, the bulk latency we try to stay under; bulks are grown while responses come back faster than this and shrunk when slower.  Default: 1000", required = false)
+        public long targetBulkLatencyMs = 1000;
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -101,19 +187,51 @@ public class ReindexFromSnapshot {
             .build()
             .parse(args);
 
+        try {
+            run(arguments);
+        } catch (IllegalArgumentException e) {
+            // Bad arguments, or a snapshot we can't migrate; there's nothing to retry, so fail outright
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // Optional temporary persistent runtime flag to continue Java process after steps have completed. This should get
+        // replaced as this app develops and becomes aware of determining work to be completed
+        if (arguments.enablePersistentRun) {
+            while (true) {
+                logger.info("Process is in idle mode, to retry migration please restart this app.");
+                Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+            }
+        }
+    }
+
+    public static void run(Args arguments) throws Exception {
         String snapshotName = arguments.snapshotName;
+        String previousSnapshotName = arguments.previousSnapshotName;
         Path snapshotDirPath = (arguments.snapshotDirPath != null) ? Paths.get(arguments.snapshotDirPath) : null;
         Path snapshotLocalRepoDirPath = (arguments.snapshotLocalRepoDirPath != null) ? Paths.get(arguments.snapshotLocalRepoDirPath) : null;
         Path s3LocalDirPath = (arguments.s3LocalDirPath != null) ? Paths.get(arguments.s3LocalDirPath) : null;
         String s3RepoUri = arguments.s3RepoUri;
         String s3Region = arguments.s3Region;
+        boolean s3StreamBlobFiles = arguments.s3StreamBlobFiles;
+        long s3PrefetchMemoryBytes = arguments.s3PrefetchMemoryMb * 1024 * 1024;
         Path luceneDirPath = Paths.get(arguments.luceneDirPath);
+        boolean readFromSnapshot = arguments.readFromSnapshot;
+        boolean keepUnpackedShards = arguments.keepUnpackedShards;
+        long maxShardSliceBytes = arguments.maxShardSliceMb * 1024 * 1024;
         String sourceHost = arguments.sourceHost;
         String sourceUser = arguments.sourceUser;
         String sourcePass = arguments.sourcePass;
         String targetHost = arguments.targetHost;
         String targetUser = arguments.targetUser;
         String targetPass = arguments.targetPass;
+        int targetCompressionLevel = arguments.targetCompressionLevel;
+        boolean routeBulksToPrimaries = arguments.routeBulksToPrimaries;
+        RfsTelemetry telemetry = RfsTelemetry.forCollectorOrNoop(arguments.otelCollectorEndpoint, "reindexFromSnapshot");
+        Path deadLetterFilePath = (arguments.deadLetterFilePath != null) ? Paths.get(arguments.deadLetterFilePath) : null;
+        ConnectionPool connectionPool = new ConnectionPool(arguments.maxConnections, arguments.maxPendingConnectionAcquires,
+            Duration.ofSeconds(arguments.connectionMaxIdleSeconds), arguments.httpEventLoopThreads);
         int awarenessDimensionality = arguments.minNumberOfReplicas + 1;
         ClusterVersion sourceVersion = arguments.sourceVersion;
         ClusterVersion targetVersion = arguments.targetVersion;
@@ -122,11 +240,22 @@ public class ReindexFromSnapshot {
         MovementType movementType = arguments.movementType;
         Level logLevel = arguments.logLevel;
         String indexSuffix = arguments.indexSuffix;
+        int maxConcurrentMetadataRequests = arguments.maxConcurrentMetadataRequests;
+        boolean bulkLoadMode = arguments.bulkLoadMode;
+        int shardParallelism = arguments.shardParallelism;
+        int maxConcurrentDownloads = arguments.maxConcurrentDownloads;
+        int maxConcurrentFileWrites = arguments.maxConcurrentFileWrites;
+        int segmentParallelism = arguments.segmentParallelism;
+        int maxInFlightBulks = arguments.maxInFlightBulks;
+        int maxBulkDocs = arguments.maxBulkDocs;
+        long maxBulkBytes = arguments.maxBulkBytes;
+        boolean adaptiveBulkSizing = arguments.adaptiveBulkSizing;
+        Duration targetBulkLatency = Duration.ofMillis(arguments.targetBulkLatencyMs);
 
         Logging.setLevel(logLevel);
 
         ConnectionDetails sourceConnection = new ConnectionDetails(sourceHost, sourceUser, sourcePass);        
-        ConnectionDetails targetConnection = new ConnectionDetails(targetHost, targetUser, targetPass);
+        ConnectionDetails targetConnection = new ConnectionDetails(targetHost, targetUser, targetPass, targetCompressionLevel);
 
         // Sanity checks
         if (!((sourceVersion == ClusterVersion.ES_6_8) || (sourceVersion == ClusterVersion.ES_7_10))) {
@@ -137,6 +266,30 @@ public class ReindexFromSnapshot {
             throw new IllegalArgumentException("Unsupported target version: " + sourceVersion);
         }
 
+        if (shardParallelism < 1) {
+            throw new IllegalArgumentException("Shard parallelism must be at least 1");
+        }
+
+        if (maxConcurrentDownloads < 1 || maxConcurrentFileWrites < 1) {
+            throw new IllegalArgumentException("The max concurrent downloads and file writes must each be at least 1");
+        }
+        if (maxConcurrentMetadataRequests < 1) {
+            throw new IllegalArgumentException("The max concurrent metadata requests must be at least 1");
+        }
+
+        if (segmentParallelism < 1) {
+            throw new IllegalArgumentException("Segment parallelism must be at least 1");
+        }
+
+        if (maxInFlightBulks < 1) {
+            throw new IllegalArgumentException("Max in-flight bulks must be at least 1");
+        }
+
+        if (maxShardSliceBytes > 0 && !readFromSnapshot && previousSnapshotName == null) {
+            // Each slice would need its own unpacked copy of the shard
+            throw new IllegalArgumentException("Shards can only be split into slices when reading them in place with --read-from-snapshot");
+        }
+
         /*
          * You have three options for providing the snapshot data
          * 1. A local snapshot directory
@@ -163,7 +316,7 @@ public class ReindexFromSnapshot {
         if (snapshotDirPath != null) {
             repo = new FileSystemRepo(snapshotDirPath);
         } else if (s3RepoUri != null && s3Region != null && s3LocalDirPath != null) {
-            repo = S3Repo.create(s3LocalDirPath, new S3Uri(s3RepoUri), s3Region);
+            repo = S3Repo.create(s3LocalDirPath, new S3Uri(s3RepoUri), s3Region, s3StreamBlobFiles, s3PrefetchMemoryBytes);
         } else if (snapshotLocalRepoDirPath != null) {
             repo = new FileSystemRepo(snapshotLocalRepoDirPath);
         } else {
@@ -173,221 +326,340 @@ public class ReindexFromSnapshot {
         // Set the transformer
         Transformer transformer = TransformFunctions.getTransformer(sourceVersion, targetVersion, awarenessDimensionality);
 
-        try {
-
-            if (sourceHost != null) {
-                // ==========================================================================================================
-                // Create the snapshot if necessary
-                // ==========================================================================================================            
-                logger.info("==================================================================");
-                logger.info("Attempting to create the snapshot...");
-                OpenSearchClient sourceClient = new OpenSearchClient(sourceConnection);
-                SnapshotCreator snapshotCreator = repo instanceof S3Repo
-                    ? new S3SnapshotCreator(snapshotName, sourceClient, s3RepoUri, s3Region)
-                    : new FileSystemSnapshotCreator(snapshotName, sourceClient, snapshotLocalRepoDirPath.toString());
-                snapshotCreator.registerRepo();
-                snapshotCreator.createSnapshot();
-                while (!snapshotCreator.isSnapshotFinished()) {
-                    logger.info("Snapshot not finished yet; sleeping for 5 seconds...");
-                    Thread.sleep(5000);
-                }
-                logger.info("Snapshot created successfully");
-            }
-
-            // ==========================================================================================================
-            // Read the Repo data file
+        if (sourceHost != null) {
             // ==========================================================================================================
+            // Create the snapshot if necessary
+            // ==========================================================================================================            
             logger.info("==================================================================");
-            logger.info("Attempting to read Repo data file...");
-            SnapshotRepo.Provider repoDataProvider;
-            if (sourceVersion == ClusterVersion.ES_6_8) {
-                repoDataProvider = new SnapshotRepoProvider_ES_6_8(repo);
-            } else {
-                repoDataProvider = new SnapshotRepoProvider_ES_7_10(repo);
+            logger.info("Attempting to create the snapshot...");
+            OpenSearchClient sourceClient = new OpenSearchClient(sourceConnection, connectionPool);
+            SnapshotCreator snapshotCreator = repo instanceof S3Repo
+                ? new S3SnapshotCreator(snapshotName, sourceClient, s3RepoUri, s3Region)
+                : new FileSystemSnapshotCreator(snapshotName, sourceClient, snapshotLocalRepoDirPath.toString());
+            snapshotCreator.registerRepo();
+            snapshotCreator.createSnapshot();
+            while (!snapshotCreator.isSnapshotFinished()) {
+                logger.info("Snapshot not finished yet; sleeping for 5 seconds...");
+                Thread.sleep(5000);
             }
+            logger.info("Snapshot created successfully");
+        }
 
-            if (repoDataProvider.getSnapshots().size() > 1){
-                // Avoid having to deal with things like incremental snapshots
-                throw new IllegalArgumentException("Only repos with a single snapshot are supported at this time");
-            }
+        // ==========================================================================================================
+        // Read the Repo data file
+        // ==========================================================================================================
+        logger.info("==================================================================");
+        logger.info("Attempting to read Repo data file...");
+        SnapshotRepo.Provider repoDataProvider;
+        if (sourceVersion == ClusterVersion.ES_6_8) {
+            repoDataProvider = new SnapshotRepoProvider_ES_6_8(repo);
+        } else {
+            repoDataProvider = new SnapshotRepoProvider_ES_7_10(repo);
+        }
+
+        if (previousSnapshotName == null && repoDataProvider.getSnapshots().size() > 1){
+            // Avoid having to deal with things like incremental snapshots; working out the changes between two snapshots
+            // of the same repo is exactly what delta mode is for, though
+            throw new IllegalArgumentException("Only repos with a single snapshot are supported at this time, unless --previous-snapshot-name is given");
+        }
 
-            logger.info("Repo data read successfully");
+        logger.info("Repo data read successfully");
 
+        // ==========================================================================================================
+        // Read the Snapshot details
+        // ==========================================================================================================
+        logger.info("==================================================================");
+        logger.info("Attempting to read Snapshot details...");
+        String snapshotIdString = repoDataProvider.getSnapshotId(snapshotName);
+
+        if (snapshotIdString == null) {
+            logger.error("Snapshot not found");
+            return;
+        }
+        if (previousSnapshotName != null && repoDataProvider.getSnapshotId(previousSnapshotName) == null) {
+            logger.error("Previous snapshot not found");
+            return;
+        }
+        SnapshotMetadata.Data snapshotMetadata;
+        if (sourceVersion == ClusterVersion.ES_6_8) {
+            snapshotMetadata = new SnapshotMetadataFactory_ES_6_8().fromRepo(repo, repoDataProvider, snapshotName);
+        } else {
+            snapshotMetadata = new SnapshotMetadataFactory_ES_7_10().fromRepo(repo, repoDataProvider, snapshotName);
+        }
+        logger.info("Snapshot data read successfully");
+
+        if (!snapshotMetadata.isIncludeGlobalState() && ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA))){
+            throw new IllegalArgumentException("Snapshot does not include global state, so we can't move metadata");
+        }
+
+        if (!snapshotMetadata.isSuccessful()){
+            throw new IllegalArgumentException("Snapshot must be successful; its actual state is " + snapshotMetadata.getState());
+        }
+
+        // We might not actually get this far if the snapshot is the wrong version; we'll probably have failed to
+        // parse one of the previous metadata files
+        if (sourceVersion != ClusterVersion.fromInt(snapshotMetadata.getVersionId())){
+            throw new IllegalArgumentException("Snapshot version is " + snapshotMetadata.getVersionId() + ", but source version is " + sourceVersion);
+        }
+
+        if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA)){
             // ==========================================================================================================
-            // Read the Snapshot details
+            // Read the Global Metadata
             // ==========================================================================================================
             logger.info("==================================================================");
-            logger.info("Attempting to read Snapshot details...");
-            String snapshotIdString = repoDataProvider.getSnapshotId(snapshotName);
-
-            if (snapshotIdString == null) {
-                logger.error("Snapshot not found");
-                return;
-            }
-            SnapshotMetadata.Data snapshotMetadata;
+            logger.info("Attempting to read Global Metadata details...");
+            GlobalMetadata.Data globalMetadata;
             if (sourceVersion == ClusterVersion.ES_6_8) {
-                snapshotMetadata = new SnapshotMetadataFactory_ES_6_8().fromRepo(repo, repoDataProvider, snapshotName);
+                globalMetadata = new GlobalMetadataFactory_ES_6_8(repoDataProvider).fromRepo(snapshotName);
             } else {
-                snapshotMetadata = new SnapshotMetadataFactory_ES_7_10().fromRepo(repo, repoDataProvider, snapshotName);
-            }
-            logger.info("Snapshot data read successfully");
-
-            if (!snapshotMetadata.isIncludeGlobalState() && ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA))){
-                throw new IllegalArgumentException("Snapshot does not include global state, so we can't move metadata");
+                globalMetadata = new GlobalMetadataFactory_ES_7_10(repoDataProvider).fromRepo(snapshotName);
             }
+            logger.info("Global Metadata read successfully");
 
-            if (!snapshotMetadata.isSuccessful()){
-                throw new IllegalArgumentException("Snapshot must be successful; its actual state is " + snapshotMetadata.getState());
-            }
+            // ==========================================================================================================
+            // Recreate the Global Metadata
+            // ==========================================================================================================
+            logger.info("==================================================================");
+            logger.info("Attempting to recreate the Global Metadata...");
 
-            // We might not actually get this far if the snapshot is the wrong version; we'll probably have failed to
-            // parse one of the previous metadata files
-            if (sourceVersion != ClusterVersion.fromInt(snapshotMetadata.getVersionId())){
-                throw new IllegalArgumentException("Snapshot version is " + snapshotMetadata.getVersionId() + ", but source version is " + sourceVersion);
+            OpenSearchClient targetClient = new OpenSearchClient(targetConnection, connectionPool);
+            if (sourceVersion == ClusterVersion.ES_6_8) {
+                GlobalMetadataCreator_OS_2_11 metadataCreator = new GlobalMetadataCreator_OS_2_11(targetClient, templateWhitelist, componentTemplateWhitelist, List.of(), maxConcurrentMetadataRequests);
+                ObjectNode root = globalMetadata.toObjectNode();
+                ObjectNode transformedRoot = transformer.transformGlobalMetadata(root);
+                metadataCreator.create(transformedRoot);
+            } else if (sourceVersion == ClusterVersion.ES_7_10) {
+                GlobalMetadataCreator_OS_2_11 metadataCreator = new GlobalMetadataCreator_OS_2_11(targetClient, List.of(), componentTemplateWhitelist, templateWhitelist, maxConcurrentMetadataRequests);
+                ObjectNode root = globalMetadata.toObjectNode();
+                ObjectNode transformedRoot = transformer.transformGlobalMetadata(root);
+                metadataCreator.create(transformedRoot);
             }
+        }
 
-            if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA)){
-                // ==========================================================================================================
-                // Read the Global Metadata
-                // ==========================================================================================================
-                logger.info("==================================================================");
-                logger.info("Attempting to read Global Metadata details...");
-                GlobalMetadata.Data globalMetadata;
-                if (sourceVersion == ClusterVersion.ES_6_8) {
-                    globalMetadata = new GlobalMetadataFactory_ES_6_8(repoDataProvider).fromRepo(snapshotName);
-                } else {
-                    globalMetadata = new GlobalMetadataFactory_ES_7_10(repoDataProvider).fromRepo(snapshotName);
-                }
-                logger.info("Global Metadata read successfully");
-
-                // ==========================================================================================================
-                // Recreate the Global Metadata
-                // ==========================================================================================================
-                logger.info("==================================================================");
-                logger.info("Attempting to recreate the Global Metadata...");
-
-                OpenSearchClient targetClient = new OpenSearchClient(targetConnection);
-                if (sourceVersion == ClusterVersion.ES_6_8) {
-                    GlobalMetadataCreator_OS_2_11 metadataCreator = new GlobalMetadataCreator_OS_2_11(targetClient, templateWhitelist, componentTemplateWhitelist, List.of());
-                    ObjectNode root = globalMetadata.toObjectNode();
-                    ObjectNode transformedRoot = transformer.transformGlobalMetadata(root);
-                    metadataCreator.create(transformedRoot);
-                } else if (sourceVersion == ClusterVersion.ES_7_10) {
-                    GlobalMetadataCreator_OS_2_11 metadataCreator = new GlobalMetadataCreator_OS_2_11(targetClient, List.of(), componentTemplateWhitelist, templateWhitelist);
-                    ObjectNode root = globalMetadata.toObjectNode();
-                    ObjectNode transformedRoot = transformer.transformGlobalMetadata(root);
-                    metadataCreator.create(transformedRoot);
-                }
-            }
+        // ==========================================================================================================
+        // Read all the Index Metadata
+        // ==========================================================================================================
+        logger.info("==================================================================");
+        logger.info("Attempting to read Index Metadata...");
+        IndexMetadata.Factory indexMetadataFactory = new IndexMetadata.CachingFactory(sourceVersion == ClusterVersion.ES_6_8
+            ? new IndexMetadataFactory_ES_6_8()
+            : new IndexMetadataFactory_ES_7_10());
+        List<IndexMetadata.Data> indexMetadatas = Flux.fromIterable(repoDataProvider.getIndicesInSnapshot(snapshotName))
+            .flatMapSequential(index -> Mono.fromCallable(() -> {
+                logger.info("Reading Index Metadata for index: " + index.getName());
+                return indexMetadataFactory.fromRepo(repo, repoDataProvider, snapshotName, index.getName());
+            }).subscribeOn(Schedulers.boundedElastic()), METADATA_READ_PARALLELISM)
+            .collectList()
+            .block();
+        logger.info("Index Metadata read successfully");
 
+        if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA)){
             // ==========================================================================================================
-            // Read all the Index Metadata
+            // Recreate the Indices
             // ==========================================================================================================
             logger.info("==================================================================");
-            logger.info("Attempting to read Index Metadata...");
-            List<IndexMetadata.Data> indexMetadatas = new ArrayList<>();
-            for (SnapshotRepo.Index index : repoDataProvider.getIndicesInSnapshot(snapshotName)) {
-                logger.info("Reading Index Metadata for index: " + index.getName());
-                IndexMetadata.Data indexMetadata;
-                if (sourceVersion == ClusterVersion.ES_6_8) {
-                    indexMetadata = new IndexMetadataFactory_ES_6_8().fromRepo(repo, repoDataProvider, snapshotName, index.getName());
-                } else {
-                    indexMetadata = new IndexMetadataFactory_ES_7_10().fromRepo(repo, repoDataProvider, snapshotName, index.getName());
-                }
-                indexMetadatas.add(indexMetadata);
-            }
-            logger.info("Index Metadata read successfully");
-
-            if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.METADATA)){
-                // ==========================================================================================================
-                // Recreate the Indices
-                // ==========================================================================================================
-                logger.info("==================================================================");
-                logger.info("Attempting to recreate the indices...");
-                OpenSearchClient targetClient = new OpenSearchClient(targetConnection);
-                for (IndexMetadata.Data indexMetadata : indexMetadatas) {
+            logger.info("Attempting to recreate the indices...");
+            OpenSearchClient targetClient = new OpenSearchClient(targetConnection, connectionPool);
+            // The templates (if any) were all created above, so they'll apply to the indices created here
+            long numIndicesCreated = Flux.fromIterable(indexMetadatas)
+                .flatMapDelayError(indexMetadata -> {
                     String reindexName = indexMetadata.getName() + indexSuffix;
                     logger.info("Recreating index " + indexMetadata.getName() + " as " + reindexName + " on target...");
 
                     ObjectNode root = indexMetadata.toObjectNode();
                     ObjectNode transformedRoot = transformer.transformIndexMetadata(root);
                     IndexMetadataData_OS_2_11 indexMetadataOS211 = new IndexMetadataData_OS_2_11(transformedRoot, indexMetadata.getId(), reindexName);
-                    IndexCreator_OS_2_11.create(reindexName, indexMetadataOS211, targetClient);
+                    if (bulkLoadMode) {
+                        BulkLoadSettings_OS_2_11.applyBulkLoadSettings(indexMetadataOS211.getSettings());
+                    }
+                    return IndexCreator_OS_2_11.createAsync(reindexName, indexMetadataOS211, targetClient);
+                }, maxConcurrentMetadataRequests, 1)
+                .filter(created -> created)
+                .count()
+                .block();
+            logger.info("Created " + numIndicesCreated + " of " + indexMetadatas.size() + " indices; the rest already existed");
+        }
+
+        if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.DATA)){
+            // ==========================================================================================================
+            // Unpack the snapshot blobs and reindex the documents
+            // ==========================================================================================================
+            logger.info("==================================================================");
+            logger.info("Reading shard metadata...");
+
+            ShardMetadata.Factory shardMetadataFactory = new ShardMetadata.CachingFactory(sourceVersion == ClusterVersion.ES_6_8
+                ? new ShardMetadataFactory_ES_6_8()
+                : new ShardMetadataFactory_ES_7_10());
+            List<ShardWorkScheduler.ShardWorkItem> workItems = new ArrayList<>();
+            for (IndexMetadata.Data indexMetadata : indexMetadatas) {
+                for (int shardId = 0; shardId < indexMetadata.getNumberOfShards(); shardId++) {
+                    workItems.add(new ShardWorkScheduler.ShardWorkItem(indexMetadata.getName(), shardId));
                 }
             }
 
-            if ((movementType == MovementType.EVERYTHING) || (movementType == MovementType.DATA)){
-                // ==========================================================================================================
-                // Unpack the snapshot blobs
-                // ==========================================================================================================
-                logger.info("==================================================================");
-                logger.info("Unpacking blob files to disk...");
-
-                for (IndexMetadata.Data indexMetadata : indexMetadatas) {
-                    logger.info("Processing index: " + indexMetadata.getName());
-                    for (int shardId = 0; shardId < indexMetadata.getNumberOfShards(); shardId++) {
-                        logger.info("=== Shard ID: " + shardId + " ===");
-
-                        // Get the shard metadata
-                        ShardMetadata.Data shardMetadata;
-                        if (sourceVersion == ClusterVersion.ES_6_8) {
-                            shardMetadata = new ShardMetadataFactory_ES_6_8().fromRepo(repo, repoDataProvider, snapshotName, indexMetadata.getName(), shardId);
-                        } else {
-                            shardMetadata = new ShardMetadataFactory_ES_7_10().fromRepo(repo, repoDataProvider, snapshotName, indexMetadata.getName(), shardId);
-                        }
-
-                        // Unpack the shard
-                        int bufferSize;
-                        if (sourceVersion == ClusterVersion.ES_6_8) {
-                            bufferSize = ElasticsearchConstants_ES_6_8.BUFFER_SIZE_IN_BYTES;
-                        } else {
-                            bufferSize = ElasticsearchConstants_ES_7_10.BUFFER_SIZE_IN_BYTES;
-                        }
-
-                        SnapshotShardUnpacker.unpack(repo, shardMetadata, luceneDirPath, bufferSize);
-                    }
-                }
+            // Each shard's metadata is its own (small) file, so with many shards it pays to fetch and parse them in parallel
+            Map<String, ShardMetadata.Data> shardMetadatas = new HashMap<>(); // Keyed by "<index name>/<shard id>"
+            Flux.fromIterable(workItems)
+                .flatMap(workItem -> Mono.fromCallable(() ->
+                    shardMetadataFactory.fromRepo(repo, repoDataProvider, snapshotName, workItem.indexName, workItem.shardId)
+                ).subscribeOn(Schedulers.boundedElastic()), METADATA_READ_PARALLELISM)
+                .doOnNext(shardMetadata -> shardMetadatas.put(shardMetadata.getIndexName() + "/" + shardMetadata.getShardId(), shardMetadata))
+                .blockLast();
+            logger.info("Read the metadata of " + shardMetadatas.size() + " shards");
+
+            // Shards of indices that aren't in the previous snapshot are migrated in full
+            Set<String> previousIndices = (previousSnapshotName == null) ? Set.of()
+                : repoDataProvider.getIndicesInSnapshot(previousSnapshotName).stream().map(SnapshotRepo.Index::getName).collect(Collectors.toSet());
+
+            // Split the big shards that are read in full into slices that can be worked on at the same time; the
+            // changes in a shard since the previous snapshot are worked out across the whole shard, so aren't split
+            if (maxShardSliceBytes > 0) {
+                workItems = workItems.stream()
+                    .flatMap(workItem -> previousIndices.contains(workItem.indexName)
+                        ? Stream.of(workItem)
+                        : ShardSlice.split(shardMetadatas.get(workItem.indexName + "/" + workItem.shardId).getTotalSize(), maxShardSliceBytes).stream()
+                            .map(slice -> new ShardWorkScheduler.ShardWorkItem(workItem.indexName, workItem.shardId, slice)))
+                    .collect(Collectors.toList());
+                logger.info("Split the shards bigger than " + arguments.maxShardSliceMb + " MiB into slices, for " + workItems.size() + " work items in all");
+            }
 
-                logger.info("Blob files unpacked successfully");
+            // With shards worked on in parallel, starting the biggest first keeps one big shard from holding up the end
+            workItems = ShardWorkScheduler.largestFirst(workItems,
+                workItem -> shardMetadatas.get(workItem.indexName + "/" + workItem.shardId).getTotalSize() / workItem.slice.numSlices);
+
+            logger.info("==================================================================");
+            if (previousSnapshotName != null) {
+                logger.info("Reindexing the changes since snapshot " + previousSnapshotName + ", reading the shards in place from the snapshots...");
+            } else {
+                logger.info(readFromSnapshot
+                    ? "Reindexing the documents, reading the shards in place from the snapshot..."
+                    : "Unpacking and reindexing the documents, one shard at a time per slot...");
+            }
 
-                // ==========================================================================================================
-                // Reindex the documents
-                // ==========================================================================================================
-                logger.info("==================================================================");
-                logger.info("Reindexing the documents...");
+            int bufferSize;
+            if (sourceVersion == ClusterVersion.ES_6_8) {
+                bufferSize = ElasticsearchConstants_ES_6_8.BUFFER_SIZE_IN_BYTES;
+            } else {
+                bufferSize = ElasticsearchConstants_ES_7_10.BUFFER_SIZE_IN_BYTES;
+            }
 
-                for (IndexMetadata.Data indexMetadata : indexMetadatas) {
-                    for (int shardId = 0; shardId < indexMetadata.getNumberOfShards(); shardId++) {
-                        logger.info("=== Index Id: " + indexMetadata.getName() + ", Shard ID: " + shardId + " ===");
+            ReindexMetrics reindexMetrics = new ReindexMetrics(telemetry);
+            UnpackMetrics unpackMetrics = new UnpackMetrics(telemetry);
+            BulkSizeController bulkSizeController = adaptiveBulkSizing
+                ? BulkSizeController.adaptive(maxBulkDocs, maxBulkBytes, targetBulkLatency)
+                : BulkSizeController.fixed(maxBulkDocs, maxBulkBytes);
+            OpenSearchClient reindexClient = new OpenSearchClient(targetConnection, connectionPool);
+            TargetShardRouter router = routeBulksToPrimaries ? new TargetShardRouter(reindexClient, connectionPool) : null;
+            DeadLetterSink deadLetterSink = (deadLetterFilePath != null) ? DeadLetterSink.toFile(deadLetterFilePath) : DeadLetterSink.logging();
+            DocumentReindexer reindexer = new DocumentReindexer(reindexClient, maxInFlightBulks, bulkSizeController, reindexMetrics, router, deadLetterSink);
+            ShardWorkScheduler shardScheduler = new ShardWorkScheduler(shardParallelism, telemetry);
+            LuceneDocumentsReader documentsReader = new LuceneDocumentsReader(segmentParallelism);
+            SnapshotDeltaReader deltaReader = new SnapshotDeltaReader(documentsReader, segmentParallelism);
+
+            // A shard read in place may have had its blob files downloaded to do so; they're deleted once the last of
+            // its work items (i.e. its slices) is done with them, whether or not they succeeded
+            Map<String, AtomicInteger> workItemsLeftByShard = new ConcurrentHashMap<>();
+            for (ShardWorkScheduler.ShardWorkItem workItem : workItems) {
+                workItemsLeftByShard.computeIfAbsent(workItem.indexName + "/" + workItem.shardId, key -> new AtomicInteger()).incrementAndGet();
+            }
 
-                        Flux<Document> documents = new LuceneDocumentsReader().readDocuments(luceneDirPath, indexMetadata.getName(), shardId);
-                        String targetIndex = indexMetadata.getName() + indexSuffix;
+            Disposable metricsReporter = reindexMetrics.startReporting(ReindexMetrics.DEFAULT_REPORT_INTERVAL);
+            Disposable connectionPoolReporter = connectionPool.startReporting(ConnectionPool.DEFAULT_REPORT_INTERVAL);
+            Disposable unpackMetricsReporter = (readFromSnapshot || previousSnapshotName != null) ? null : unpackMetrics.startReporting(UnpackMetrics.DEFAULT_REPORT_INTERVAL);
+            List<ShardWorkScheduler.ShardResult> results;
+            try (SnapshotShardUnpacker unpacker = new SnapshotShardUnpacker(repo, luceneDirPath, bufferSize, maxConcurrentDownloads, maxConcurrentFileWrites, unpackMetrics)) {
+                // Each shard moves straight on to being reindexed once it's unpacked, and its local files are
+                // deleted once it's reindexed, so that unpacking and indexing overlap across the shards being
+                // worked on and at most shardParallelism shards are on local disk at once
+                results = shardScheduler.run(workItems, workItem -> {
+                    String shardKey = workItem.indexName + "/" + workItem.shardId;
+                    ShardMetadata.Data shardMetadata = shardMetadatas.get(shardKey);
+                    String targetIndex = workItem.indexName + indexSuffix;
+
+                    if (previousSnapshotName != null && previousIndices.contains(workItem.indexName)) {
+                        return Mono.fromCallable(() ->
+                                shardMetadataFactory.fromRepo(repo, repoDataProvider, previousSnapshotName, workItem.indexName, workItem.shardId)
+                            )
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .flatMap(previousShardMetadata -> Mono.usingWhen(Mono.just(List.of(previousShardMetadata, shardMetadata)),
+                                shards -> reindexer.reindexSections(targetIndex, deltaReader.readChanges(repo, previousShardMetadata, shardMetadata)),
+                                shards -> cleanUpBlobFiles(repo, shards),
+                                (shards, error) -> cleanUpBlobFiles(repo, shards),
+                                shards -> cleanUpBlobFiles(repo, shards)));
+                    }
+                    if (readFromSnapshot || previousSnapshotName != null) {
+                        Mono<Void> reindexSlice = reindexer.reindex(targetIndex, documentsReader.readDocuments(repo, shardMetadata, workItem.slice));
+                        return Mono.usingWhen(Mono.just(workItemsLeftByShard.get(shardKey)),
+                            workItemsLeft -> reindexSlice,
+                            workItemsLeft -> cleanUpBlobFilesIfLast(repo, shardMetadata, workItemsLeft),
+                            (workItemsLeft, error) -> cleanUpBlobFilesIfLast(repo, shardMetadata, workItemsLeft),
+                            workItemsLeft -> cleanUpBlobFilesIfLast(repo, shardMetadata, workItemsLeft));
+                    }
 
-                        final int finalShardId = shardId; // Define in local context for the lambda
-                        DocumentReindexer.reindex(targetIndex, documents, targetConnection)
-                            .doOnError(error -> logger.error("Error during reindexing: " + error))
-                            .doOnSuccess(done -> logger.info("Reindexing completed for index " + targetIndex + ", shard " + finalShardId))
-                            // Wait for the shard reindexing to complete before proceeding; fine in this demo script, but
-                            // shouldn't be done quite this way in the real RFS Worker.
-                            .block();
+                    Mono<Void> reindexShard = unpacker.unpack(shardMetadata)
+                        .then(Mono.defer(() -> reindexer.reindex(targetIndex, documentsReader.readDocuments(luceneDirPath, workItem.indexName, workItem.shardId))));
+                    if (keepUnpackedShards) {
+                        return reindexShard;
                     }
+                    // A shard that failed part way is cleaned up too, so that it doesn't hold on to its share of the disk
+                    return Mono.usingWhen(Mono.just(shardMetadata),
+                        shard -> reindexShard,
+                        unpacker::cleanUp,
+                        (shard, error) -> unpacker.cleanUp(shard),
+                        unpacker::cleanUp);
+                });
+            } finally {
+                deadLetterSink.close();
+                if (unpackMetricsReporter != null) {
+                    unpackMetricsReporter.dispose();
+                    logger.info("Final unpacking metrics - " + unpackMetrics.reportAndReset());
                 }
+                metricsReporter.dispose();
+                connectionPoolReporter.dispose();
+                logger.info("Final connection pool metrics - " + connectionPool.report());
+                logger.info("Final reindexing metrics - " + reindexMetrics.reportAndReset());
+
+                if (bulkLoadMode) {
+                    // Done even if some shards failed, or the reindexing didn't finish, so that no index is left without
+                    // its replicas
+                    logger.info("Restoring the intended settings of the bulk-loaded indices");
+                    OpenSearchClient targetClient = new OpenSearchClient(targetConnection, connectionPool);
+                    Flux.fromIterable(indexMetadatas)
+                        .flatMapDelayError(indexMetadata -> {
+                            ObjectNode transformedRoot = transformer.transformIndexMetadata(indexMetadata.toObjectNode());
+                            ObjectNode intendedSettings = BulkLoadSettings_OS_2_11.getIntendedSettings((ObjectNode) transformedRoot.get("settings"));
+                            return BulkLoadSettings_OS_2_11.restoreIntendedSettings(indexMetadata.getName() + indexSuffix, intendedSettings, targetClient);
+                        }, maxConcurrentMetadataRequests, 1)
+                        .blockLast();
+                    logger.info("Intended settings restored");
+                }
+            }
+            List<ShardWorkScheduler.ShardResult> failedResults = results.stream()
+                .filter(result -> !result.isSuccessful())
+                .collect(Collectors.toList());
+
+            if (!bulkLoadMode) {
                 logger.info("Refreshing target cluster to reflect newly added documents");
-                DocumentReindexer.refreshAllDocuments(targetConnection);
+                DocumentReindexer.refreshAllDocuments(new OpenSearchClient(targetConnection, connectionPool));
                 logger.info("Refresh complete");
             }
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
 
-        // Optional temporary persistent runtime flag to continue Java process after steps have completed. This should get
-        // replaced as this app develops and becomes aware of determining work to be completed
-        if (arguments.enablePersistentRun) {
-            while (true) {
-                logger.info("Process is in idle mode, to retry migration please restart this app.");
-                Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+            if (!failedResults.isEmpty()) {
+                throw new ShardWorkScheduler.ShardWorkFailed(failedResults);
             }
         }
     }
+
+    /*
+     * Deletes any local copies of the shards' blob files the repo made, e.g. downloads to read them in place
+     */
+    private static Mono<Void> cleanUpBlobFiles(SourceRepo repo, List<ShardMetadata.Data> shardMetadatas) {
+        // Deleting files is blocking
+        return Mono.<Void>fromRunnable(() -> shardMetadatas.forEach(repo::cleanUpBlobFiles))
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static Mono<Void> cleanUpBlobFilesIfLast(SourceRepo repo, ShardMetadata.Data shardMetadata, AtomicInteger workItemsLeft) {
+        return (workItemsLeft.decrementAndGet() > 0) ? Mono.empty() : cleanUpBlobFiles(repo, List.of(shardMetadata));
+    }
 }
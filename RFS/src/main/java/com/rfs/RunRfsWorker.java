@@ -5,6 +5,7 @@ import com.beust.jcommander.Parameter;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
 
 import org.apache.logging.log4j.Level;
@@ -15,21 +16,37 @@ import org.apache.logging.log4j.LogManager;
 import com.rfs.cms.CmsClient;
 import com.rfs.cms.OpenSearchCmsClient;
 import com.rfs.common.ClusterVersion;
+import com.rfs.common.BulkSizeController;
 import com.rfs.common.ConnectionDetails;
+import com.rfs.common.ConnectionPool;
+import com.rfs.common.DeadLetterSink;
+import com.rfs.common.DocumentReindexer;
 import com.rfs.common.GlobalMetadata;
+import com.rfs.common.IndexMetadata;
 import com.rfs.common.Logging;
+import com.rfs.common.LuceneDocumentsReader;
 import com.rfs.common.OpenSearchClient;
+import com.rfs.common.ReindexMetrics;
+import com.rfs.common.RfsTelemetry;
 import com.rfs.common.S3Uri;
 import com.rfs.common.S3Repo;
+import com.rfs.common.ShardMetadata;
 import com.rfs.common.SnapshotCreator;
 import com.rfs.common.SourceRepo;
 import com.rfs.common.S3SnapshotCreator;
 import com.rfs.common.SnapshotRepo;
+import com.rfs.common.SnapshotShardUnpacker;
+import com.rfs.common.TargetShardRouter;
+import com.rfs.common.UnpackMetrics;
 import com.rfs.transformers.TransformFunctions;
 import com.rfs.transformers.Transformer;
+import com.rfs.version_es_7_10.ElasticsearchConstants_ES_7_10;
 import com.rfs.version_es_7_10.GlobalMetadataFactory_ES_7_10;
+import com.rfs.version_es_7_10.IndexMetadataFactory_ES_7_10;
+import com.rfs.version_es_7_10.ShardMetadataFactory_ES_7_10;
 import com.rfs.version_es_7_10.SnapshotRepoProvider_ES_7_10;
 import com.rfs.version_os_2_11.GlobalMetadataCreator_OS_2_11;
+import com.rfs.worker.DocumentsRunner;
 import com.rfs.worker.GlobalState;
 import com.rfs.worker.MetadataRunner;
 import com.rfs.worker.SnapshotRunner;
@@ -44,6 +61,9 @@ public class RunRfsWorker {
         @Parameter(names = {"--s3-local-dir"}, description = "The absolute path to the directory on local disk to download S3 files to", required = true)
         public String s3LocalDirPath;
 
+        @Parameter(names = {"--lucene-dir"}, description = "The absolute path to the directory where we'll unpack the Lucene files of the shard being migrated", required = true)
+        public String luceneDirPath;
+
         @Parameter(names = {"--s3-repo-uri"}, description = "The S3 URI of the snapshot repo, like: s3://my-bucket/dir1/dir2", required = true)
         public String s3RepoUri;
 
@@ -68,6 +88,30 @@ public class RunRfsWorker {
         @Parameter(names = {"--target-password"}, description = "Optional.  The target password; if not provided, will assume no auth on target", required = false)
         public String targetPass = null;
 
+        @Parameter(names = {"--target-compression-level"}, description = "Optional.  The gzip level (1-9) to compress bulk requests to the target with, which also asks the target for compressed responses; 0 disables compression.  Default: 0", required = false)
+        public int targetCompressionLevel = ConnectionDetails.NO_COMPRESSION;
+
+        @Parameter(names = {"--max-connections"}, description = "Optional.  The maximum number of HTTP connections to each cluster, shared by everything talking to it.  Default: 64", required = false)
+        public int maxConnections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+        @Parameter(names = {"--max-pending-connection-acquires"}, description = "Optional.  The maximum number of requests that can be queued waiting for a connection to a cluster once all are in use.  Default: 1024", required = false)
+        public int maxPendingConnectionAcquires = ConnectionPool.DEFAULT_MAX_PENDING_ACQUIRES;
+
+        @Parameter(names = {"--connection-max-idle-seconds"}, description = "Optional.  How long a pooled connection can sit idle before it's closed.  Default: 30", required = false)
+        public long connectionMaxIdleSeconds = ConnectionPool.DEFAULT_MAX_IDLE_TIME.getSeconds();
+
+        @Parameter(names = {"--http-event-loop-threads"}, description = "Optional.  The number of event loop threads handling HTTP connections.  Default: the number of available processors (minimum 4)", required = false)
+        public int httpEventLoopThreads = ConnectionPool.DEFAULT_EVENT_LOOP_THREADS;
+
+        @Parameter(names = {"--dead-letter-file"}, description = "Optional.  The path of a file to append the documents the target permanently refuses to, as lines of JSON with the reason; if not provided, they're only logged.  Default: none", required = false)
+        public String deadLetterFilePath = null;
+
+        @Parameter(names = {"--otel-collector-endpoint"}, description = "Optional.  The endpoint (e.g. http://localhost:4317) of the OpenTelemetry Collector to send metrics and traces to; if not provided, none are sent.  Default: none", required = false)
+        public String otelCollectorEndpoint = null;
+
+        @Parameter(names = {"--route-bulks-to-primaries"}, description = "Optional.  If enabled, each bulk is split up by the target node holding the primary of each document's shard and sent straight to that node, rather than to the target host for it to forward; the nodes' published HTTP addresses must be reachable from here.  Default: false", arity=0, required = false)
+        public boolean routeBulksToPrimaries = false;
+
         @Parameter(names = {"--index-template-whitelist"}, description = ("Optional.  List of template names to migrate"
             + " (e.g. 'posts_index_template1, posts_index_template2').  Default: empty list"), required = false)
         public List<String> indexTemplateWhitelist = List.of();
@@ -82,6 +126,15 @@ public class RunRfsWorker {
             , required = false)
         public int minNumberOfReplicas = 0;
 
+        @Parameter(names = {"--max-in-flight-bulks"}, description = "The maximum number of bulk requests this worker sends to the target at once.  Default: 8", required = false)
+        public int maxInFlightBulks = 8;
+
+        @Parameter(names = {"--segment-parallelism"}, description = "The number of Lucene segments of the shard being migrated to read concurrently.  Default: 4", required = false)
+        public int segmentParallelism = 4;
+
+        @Parameter(names = {"--max-shard-slice-mb"}, description = "Optional.  Shards bigger than this (in MiB) are split into slices of their documents no bigger than it, each its own work item with its own lease and checkpoint, so that several workers can migrate a giant shard at once.  Only the worker setting up the Documents Migration uses it.  0 means shards aren't split.  Default: 0", required = false)
+        public long maxShardSliceMb = 0;
+
         @Parameter(names = {"--log-level"}, description = "What log level you want.  Default: 'info'", required = false, converter = Logging.ArgsConverter.class)
         public Level logLevel = Level.INFO;
     }
@@ -96,6 +149,7 @@ public class RunRfsWorker {
 
         String snapshotName = arguments.snapshotName;
         Path s3LocalDirPath = Paths.get(arguments.s3LocalDirPath);
+        Path luceneDirPath = Paths.get(arguments.luceneDirPath);
         String s3RepoUri = arguments.s3RepoUri;
         String s3Region = arguments.s3Region;
         String sourceHost = arguments.sourceHost;
@@ -104,21 +158,30 @@ public class RunRfsWorker {
         String targetHost = arguments.targetHost;
         String targetUser = arguments.targetUser;
         String targetPass = arguments.targetPass;
+        int targetCompressionLevel = arguments.targetCompressionLevel;
+        boolean routeBulksToPrimaries = arguments.routeBulksToPrimaries;
+        RfsTelemetry telemetry = RfsTelemetry.forCollectorOrNoop(arguments.otelCollectorEndpoint, "rfsWorker");
+        Path deadLetterFilePath = (arguments.deadLetterFilePath != null) ? Paths.get(arguments.deadLetterFilePath) : null;
+        ConnectionPool connectionPool = new ConnectionPool(arguments.maxConnections, arguments.maxPendingConnectionAcquires,
+            Duration.ofSeconds(arguments.connectionMaxIdleSeconds), arguments.httpEventLoopThreads);
         List<String> indexTemplateWhitelist = arguments.indexTemplateWhitelist;
         List<String> componentTemplateWhitelist = arguments.componentTemplateWhitelist;
         int awarenessDimensionality = arguments.minNumberOfReplicas + 1;
+        int maxInFlightBulks = arguments.maxInFlightBulks;
+        int segmentParallelism = arguments.segmentParallelism;
+        long maxShardSliceBytes = arguments.maxShardSliceMb * 1024 * 1024;
         Level logLevel = arguments.logLevel;
 
         Logging.setLevel(logLevel);
 
         ConnectionDetails sourceConnection = new ConnectionDetails(sourceHost, sourceUser, sourcePass);
-        ConnectionDetails targetConnection = new ConnectionDetails(targetHost, targetUser, targetPass);
+        ConnectionDetails targetConnection = new ConnectionDetails(targetHost, targetUser, targetPass, targetCompressionLevel);
 
         try {
             logger.info("Running RfsWorker");
             GlobalState globalState = GlobalState.getInstance();
-            OpenSearchClient sourceClient = new OpenSearchClient(sourceConnection);
-            OpenSearchClient targetClient = new OpenSearchClient(targetConnection);
+            OpenSearchClient sourceClient = new OpenSearchClient(sourceConnection, connectionPool);
+            OpenSearchClient targetClient = new OpenSearchClient(targetConnection, connectionPool);
             CmsClient cmsClient = new OpenSearchCmsClient(targetClient);
 
             SnapshotCreator snapshotCreator = new S3SnapshotCreator(snapshotName, sourceClient, s3RepoUri, s3Region);
@@ -132,7 +195,22 @@ public class RunRfsWorker {
             Transformer transformer = TransformFunctions.getTransformer(ClusterVersion.ES_7_10, ClusterVersion.OS_2_11, awarenessDimensionality);
             MetadataRunner metadataWorker = new MetadataRunner(globalState, cmsClient, snapshotName, metadataFactory, metadataCreator, transformer);
             metadataWorker.run();
-            
+
+            IndexMetadata.Factory indexMetadataFactory = new IndexMetadata.CachingFactory(new IndexMetadataFactory_ES_7_10());
+            ShardMetadata.Factory shardMetadataFactory = new ShardMetadata.CachingFactory(new ShardMetadataFactory_ES_7_10());
+            LuceneDocumentsReader reader = new LuceneDocumentsReader(segmentParallelism);
+            TargetShardRouter router = routeBulksToPrimaries ? new TargetShardRouter(targetClient, connectionPool) : null;
+            // Each worker migrates one shard at a time, so a couple of download and write threads are plenty
+            try (DeadLetterSink deadLetterSink = (deadLetterFilePath != null) ? DeadLetterSink.toFile(deadLetterFilePath) : DeadLetterSink.logging();
+                    SnapshotShardUnpacker unpacker = new SnapshotShardUnpacker(sourceRepo, luceneDirPath, ElasticsearchConstants_ES_7_10.BUFFER_SIZE_IN_BYTES,
+                    2, 4, new UnpackMetrics(telemetry))) {
+                DocumentReindexer reindexer = new DocumentReindexer(targetClient, maxInFlightBulks,
+                    BulkSizeController.fixed(BulkSizeController.DEFAULT_MAX_DOCS, BulkSizeController.DEFAULT_MAX_BYTES), new ReindexMetrics(telemetry), router, deadLetterSink);
+                DocumentsRunner documentsWorker = new DocumentsRunner(globalState, cmsClient, snapshotName, repoDataProvider,
+                    indexMetadataFactory, shardMetadataFactory, unpacker, reader, reindexer, luceneDirPath, maxShardSliceBytes);
+                documentsWorker.run();
+            }
+
         } catch (Exception e) {
             logger.error("Error running RfsWorker", e);
             throw e;
@@ -1,5 +1,10 @@
 package com.rfs.cms;
 
+import java.util.List;
+
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardSlice;
+
 /*
  * Client to connect to and work with the Coordinating Metadata Store.  The CMS could be implemented by any reasonable
  * data store option (Postgres, AWS DynamoDB, Elasticsearch/Opensearch, etc).
@@ -43,4 +48,65 @@ public interface CmsClient {
      * false if something else updated it before we could
      */
     public boolean updateMetadataEntry(CmsEntry.MetadataStatus status, String leaseExpiry, Integer numAttempts);
+
+    /*
+     * Creates a new entry in the CMS for the Documents Migration's progress.  Returns true if we created the entry, and
+     * false if the entry already exists.
+     */
+    public boolean createDocumentsEntry();
+
+    /*
+     * Attempt to retrieve the Documents Migration entry from the CMS, if it exists; null if it doesn't currently exist
+     */
+    public CmsEntry.Documents getDocumentsEntry();
+
+    /*
+     * Updates just the status field of the Documents Migration entry in the CMS.  Returns true if the update was
+     * successful, and false if something else updated it before we could
+     */
+    public boolean setDocumentsMigrationStatus(CmsEntry.DocumentsStatus status);
+
+    /*
+     * Updates all fields of the Documents Migration entry in the CMS, but only if nothing else has updated it since the
+     * caller retrieved existingEntry.  Returns the updated entry if the update was successful, and null if something
+     * else updated it before we could.
+     */
+    public CmsEntry.Documents updateDocumentsEntry(CmsEntry.Documents existingEntry, CmsEntry.DocumentsStatus status, String leaseExpiry,
+            Integer numAttempts);
+
+    /*
+     * Creates a new work item in the CMS for migrating the documents in a slice of a single shard (which may be the whole
+     * shard), whose share of the shard's files in the snapshot is about sizeInBytes.  Returns true if we created the
+     * work item, and false if it already exists.
+     */
+    public boolean createShardWorkItem(String indexName, int shardId, ShardSlice slice, long sizeInBytes);
+
+    /*
+     * Returns up to maxItems of the work items that are still NOT_STARTED, largest first so that the biggest
+     * shards are started early rather than holding up the end of the migration.  Items of the same size come in a
+     * random order, so that workers looking at the same time tend to pick different ones.  Some of them may currently
+     * be leased by another worker; it's up to the caller to check.  An empty list means every work item has been
+     * either completed or failed.
+     */
+    public List<CmsEntry.ShardWorkItem> getAvailableShardWorkItems(int maxItems);
+
+    /*
+     * Returns true if any work item has been marked FAILED, i.e. some shard's documents could not be migrated
+     */
+    public boolean hasFailedShardWorkItems();
+
+    /*
+     * Updates a work item, but only if nothing else has updated it since the caller retrieved existingItem.  Returns
+     * the updated work item if the update was successful, and null if something else updated it before we could.
+     */
+    public CmsEntry.ShardWorkItem updateShardWorkItem(CmsEntry.ShardWorkItem existingItem, CmsEntry.ShardWorkItemStatus status,
+            String leaseExpiry, Integer numAttempts);
+
+    /*
+     * Records the progress made on a work item and sets its lease expiry (renewing the lease, if it's later than the
+     * current one), but only if nothing else has updated it since the caller retrieved existingItem.  Returns the
+     * updated work item if the update was successful, and null if something else updated it before we could (e.g.
+     * because our lease expired and another worker took it).
+     */
+    public CmsEntry.ShardWorkItem updateShardCheckpoint(CmsEntry.ShardWorkItem existingItem, ShardCheckpoint checkpoint, String leaseExpiry);
 }
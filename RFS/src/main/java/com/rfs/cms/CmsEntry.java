@@ -1,6 +1,8 @@
 package com.rfs.cms;
 
 import com.rfs.common.RfsException;
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardSlice;
 
 public class CmsEntry {
     public static enum SnapshotStatus {
@@ -26,23 +28,37 @@ public class CmsEntry {
         FAILED,
     }
 
-    public static class Metadata {
-        public static final int METADATA_LEASE_MS = 1 * 60 * 1000; // 1 minute, arbitrarily chosen
-        public static final int MAX_ATTEMPTS = 3; // arbitrarily chosen
-
-        public static int getLeaseDurationMs(int numAttempts) {
-            if (numAttempts > MAX_ATTEMPTS) {
-                throw new CouldNotFindNextLeaseDuration("numAttempts=" + numAttempts + " is greater than MAX_ATTEMPTS=" + MAX_ATTEMPTS);
+    /*
+     * Leases get longer with each attempt, so that work which keeps running out of time gets more of it on the next
+     * try.  Shared by every entry type that carries a lease; each passes its own base duration and attempt limit.
+     */
+    public static class Lease {
+        public static int getDurationMs(int baseLeaseMs, int maxAttempts, int numAttempts) {
+            if (numAttempts > maxAttempts) {
+                throw new CouldNotFindNextLeaseDuration("numAttempts=" + numAttempts + " is greater than MAX_ATTEMPTS=" + maxAttempts);
             } else if (numAttempts < 1) {
                 throw new CouldNotFindNextLeaseDuration("numAttempts=" + numAttempts + " is less than 1");
             }
-            return METADATA_LEASE_MS * numAttempts; // Arbitratily chosen algorithm
+            return baseLeaseMs * numAttempts; // Arbitrarily chosen algorithm
         }
 
         // TODO: We should be ideally setting the lease expiry using the server's clock, but it's unclear on the best
         // way to do this.  For now, we'll just use the client's clock.
+        public static String getExpiry(long currentTime, int baseLeaseMs, int maxAttempts, int numAttempts) {
+            return Long.toString(currentTime + getDurationMs(baseLeaseMs, maxAttempts, numAttempts));
+        }
+    }
+
+    public static class Metadata {
+        public static final int METADATA_LEASE_MS = 1 * 60 * 1000; // 1 minute, arbitrarily chosen
+        public static final int MAX_ATTEMPTS = 3; // arbitrarily chosen
+
+        public static int getLeaseDurationMs(int numAttempts) {
+            return Lease.getDurationMs(METADATA_LEASE_MS, MAX_ATTEMPTS, numAttempts);
+        }
+
         public static String getLeaseExpiry(long currentTime, int numAttempts) {
-            return Long.toString(currentTime + getLeaseDurationMs(numAttempts));
+            return Lease.getExpiry(currentTime, METADATA_LEASE_MS, MAX_ATTEMPTS, numAttempts);
         }
 
         public final MetadataStatus status;
@@ -56,6 +72,99 @@ public class CmsEntry {
         }
     }
 
+    public static enum DocumentsStatus {
+        SETUP,
+        IN_PROGRESS,
+        COMPLETED,
+        FAILED,
+    }
+
+    /*
+     * Tracks the Documents Migration as a whole.  The lease only covers the SETUP status, during which a single worker
+     * creates a work item for every shard in the snapshot; once that's done, the work items carry their own leases.
+     */
+    public static class Documents {
+        public static final int SETUP_LEASE_MS = 1 * 60 * 1000; // 1 minute, arbitrarily chosen
+        public static final int MAX_ATTEMPTS = 3; // arbitrarily chosen
+
+        public static int getLeaseDurationMs(int numAttempts) {
+            return Lease.getDurationMs(SETUP_LEASE_MS, MAX_ATTEMPTS, numAttempts);
+        }
+
+        public static String getLeaseExpiry(long currentTime, int numAttempts) {
+            return Lease.getExpiry(currentTime, SETUP_LEASE_MS, MAX_ATTEMPTS, numAttempts);
+        }
+
+        public final DocumentsStatus status;
+        public final String leaseExpiry;
+        public final Integer numAttempts;
+
+        public Documents(DocumentsStatus status, String leaseExpiry, int numAttempts) {
+            this.status = status;
+            this.leaseExpiry = leaseExpiry;
+            this.numAttempts = numAttempts;
+        }
+    }
+
+    public static enum ShardWorkItemStatus {
+        NOT_STARTED,
+        COMPLETED,
+        FAILED,
+    }
+
+    /*
+     * A single shard's worth of documents to migrate, or a slice of them if the shard was big enough to be split up.
+     * Any worker can pick up a NOT_STARTED work item whose lease has expired (or was never set); the lease is long
+     * because it has to cover unpacking the whole shard and reindexing its slice.  The lease holder periodically records
+     * its progress through the slice in the checkpoint, so that if it dies, the next worker to lease the work item can
+     * pick up from there.
+     */
+    public static class ShardWorkItem {
+        public static final int SHARD_LEASE_MS = 20 * 60 * 1000; // 20 minutes, arbitrarily chosen
+        public static final int MAX_ATTEMPTS = 3; // arbitrarily chosen
+
+        public static int getLeaseDurationMs(int numAttempts) {
+            return Lease.getDurationMs(SHARD_LEASE_MS, MAX_ATTEMPTS, numAttempts);
+        }
+
+        public static String getLeaseExpiry(long currentTime, int numAttempts) {
+            return Lease.getExpiry(currentTime, SHARD_LEASE_MS, MAX_ATTEMPTS, numAttempts);
+        }
+
+        public final String indexName;
+        public final Integer shardId;
+        public final ShardSlice slice;
+        public final ShardWorkItemStatus status;
+        public final String leaseExpiry;
+        public final Integer numAttempts;
+        public final ShardCheckpoint checkpoint; // null if no progress has been recorded yet
+
+        public ShardWorkItem(String indexName, int shardId, ShardWorkItemStatus status, String leaseExpiry, int numAttempts) {
+            this(indexName, shardId, status, leaseExpiry, numAttempts, null);
+        }
+
+        public ShardWorkItem(String indexName, int shardId, ShardWorkItemStatus status, String leaseExpiry, int numAttempts,
+                ShardCheckpoint checkpoint) {
+            this(indexName, shardId, ShardSlice.WHOLE_SHARD, status, leaseExpiry, numAttempts, checkpoint);
+        }
+
+        public ShardWorkItem(String indexName, int shardId, ShardSlice slice, ShardWorkItemStatus status, String leaseExpiry,
+                int numAttempts, ShardCheckpoint checkpoint) {
+            this.indexName = indexName;
+            this.shardId = shardId;
+            this.slice = slice;
+            this.status = status;
+            this.leaseExpiry = leaseExpiry;
+            this.numAttempts = numAttempts;
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + shardId + " of index " + indexName + (slice.isWholeShard() ? "" : " (slice " + slice + ")");
+        }
+    }
+
     public static class CouldNotFindNextLeaseDuration extends RfsException {
         public CouldNotFindNextLeaseDuration(String message) {
             super("Could not find next lease duration.  Reason: " + message);
@@ -1,11 +1,17 @@
 package com.rfs.cms;
 
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.rfs.common.OpenSearchClient;
 import com.rfs.common.RestClient;
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardSlice;
 
 public class OpenSearchCmsClient implements CmsClient {
     private static final ObjectMapper objectMapper = new ObjectMapper();
@@ -13,6 +19,7 @@ public class OpenSearchCmsClient implements CmsClient {
     public static final String CMS_INDEX_NAME = "cms-reindex-from-snapshot";
     public static final String CMS_SNAPSHOT_DOC_ID = "snapshot_status";
     public static final String CMS_METADATA_DOC_ID = "metadata_status";
+    public static final String CMS_DOCUMENTS_DOC_ID = "documents_status";
 
     private final OpenSearchClient client;
 
@@ -70,5 +77,158 @@ public class OpenSearchCmsClient implements CmsClient {
         OpenSearchCmsEntry.Metadata metadata = new OpenSearchCmsEntry.Metadata(status, leaseExpiry, numAttempts);
         return client.updateDocument(CMS_INDEX_NAME, CMS_METADATA_DOC_ID, metadata.toJson());
     }
-    
+
+    @Override
+    public boolean createDocumentsEntry() {
+        ObjectNode documentsDoc = OpenSearchCmsEntry.Documents.getInitial();
+        return client.createDocument(CMS_INDEX_NAME, CMS_DOCUMENTS_DOC_ID, documentsDoc);
+    }
+
+    @Override
+    public CmsEntry.Documents getDocumentsEntry() {
+        RestClient.Response response = client.getDocument(CMS_INDEX_NAME, CMS_DOCUMENTS_DOC_ID);
+
+        if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        return OpenSearchCmsEntry.Documents.fromJsonString(response.body);
+    }
+
+    @Override
+    public boolean setDocumentsMigrationStatus(CmsEntry.DocumentsStatus status) {
+        ObjectNode statusUpdate = objectMapper.createObjectNode();
+        statusUpdate.put(OpenSearchCmsEntry.Documents.FIELD_STATUS, status.toString());
+        return client.updateDocument(CMS_INDEX_NAME, CMS_DOCUMENTS_DOC_ID, statusUpdate);
+    }
+
+    @Override
+    public CmsEntry.Documents updateDocumentsEntry(CmsEntry.Documents existingEntry, CmsEntry.DocumentsStatus status, String leaseExpiry,
+            Integer numAttempts) {
+        // As with the work items, the entry always comes from this client, so it knows the version it was read at
+        OpenSearchCmsEntry.Documents existing = (OpenSearchCmsEntry.Documents) existingEntry;
+        OpenSearchCmsEntry.Documents updated = new OpenSearchCmsEntry.Documents(
+            status, leaseExpiry, numAttempts, existing.seqNo, existing.primaryTerm
+        );
+
+        RestClient.Response response = client.updateDocument(CMS_INDEX_NAME, CMS_DOCUMENTS_DOC_ID, updated.toJson(),
+            existing.seqNo, existing.primaryTerm);
+        if (response.code != HttpURLConnection.HTTP_OK) {
+            // The only response code that can end up here is HTTP_CONFLICT
+            return null;
+        }
+
+        try {
+            JsonNode responseNode = objectMapper.readTree(response.body);
+            return new OpenSearchCmsEntry.Documents(status, leaseExpiry, numAttempts,
+                responseNode.get("_seq_no").asLong(), responseNode.get("_primary_term").asLong());
+        } catch (Exception e) {
+            throw new OpenSearchCmsEntry.CantParseCmsEntryFromJson(OpenSearchCmsEntry.Documents.class, response.body, e);
+        }
+    }
+
+    @Override
+    public boolean createShardWorkItem(String indexName, int shardId, ShardSlice slice, long sizeInBytes) {
+        ObjectNode workItemDoc = OpenSearchCmsEntry.ShardWorkItem.getInitial(indexName, shardId, slice, sizeInBytes);
+        return client.createDocument(CMS_INDEX_NAME, OpenSearchCmsEntry.ShardWorkItem.getDocId(indexName, shardId, slice), workItemDoc);
+    }
+
+    @Override
+    public List<CmsEntry.ShardWorkItem> getAvailableShardWorkItems(int maxItems) {
+        // Searches only see what's been refreshed, so refresh first; otherwise, we might miss work items that were just
+        // created and conclude there's nothing left to do.  The CMS index is tiny, so this is cheap.
+        client.refresh(CMS_INDEX_NAME);
+
+        // The fields are dynamically mapped, so we use match queries rather than relying on them being keywords
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("size", maxItems);
+        body.put("seq_no_primary_term", true);
+        ObjectNode functionScore = body.putObject("query").putObject("function_score");
+        ArrayNode filters = functionScore.putObject("query").putObject("bool").putArray("filter");
+        filters.addObject().putObject("match").put(OpenSearchCmsEntry.ShardWorkItem.FIELD_TYPE, OpenSearchCmsEntry.ShardWorkItem.TYPE);
+        filters.addObject().putObject("match").put(OpenSearchCmsEntry.ShardWorkItem.FIELD_STATUS, CmsEntry.ShardWorkItemStatus.NOT_STARTED.toString());
+        functionScore.putObject("random_score");
+        // The random score breaks ties between shards of the same size
+        ArrayNode sort = body.putArray("sort");
+        sort.addObject().putObject(OpenSearchCmsEntry.ShardWorkItem.FIELD_SIZE_IN_BYTES)
+            .put("order", "desc")
+            .put("unmapped_type", "long");
+        sort.add("_score");
+
+        RestClient.Response response = client.searchDocuments(CMS_INDEX_NAME, body);
+        List<CmsEntry.ShardWorkItem> workItems = new ArrayList<>();
+        if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return workItems;
+        }
+
+        try {
+            JsonNode hits = objectMapper.readTree(response.body).path("hits").path("hits");
+            for (JsonNode hit : hits) {
+                workItems.add(OpenSearchCmsEntry.ShardWorkItem.fromJsonNode((ObjectNode) hit));
+            }
+        } catch (OpenSearchCmsEntry.CantParseCmsEntryFromJson e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OpenSearchCmsEntry.CantParseCmsEntryFromJson(OpenSearchCmsEntry.ShardWorkItem.class, response.body, e);
+        }
+        return workItems;
+    }
+
+    @Override
+    public boolean hasFailedShardWorkItems() {
+        client.refresh(CMS_INDEX_NAME);
+
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("size", 0);
+        ArrayNode filters = body.putObject("query").putObject("bool").putArray("filter");
+        filters.addObject().putObject("match").put(OpenSearchCmsEntry.ShardWorkItem.FIELD_TYPE, OpenSearchCmsEntry.ShardWorkItem.TYPE);
+        filters.addObject().putObject("match").put(OpenSearchCmsEntry.ShardWorkItem.FIELD_STATUS, CmsEntry.ShardWorkItemStatus.FAILED.toString());
+
+        RestClient.Response response = client.searchDocuments(CMS_INDEX_NAME, body);
+        if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return false;
+        }
+
+        try {
+            return objectMapper.readTree(response.body).path("hits").path("total").path("value").asLong() > 0;
+        } catch (Exception e) {
+            throw new OpenSearchCmsEntry.CantParseCmsEntryFromJson(OpenSearchCmsEntry.ShardWorkItem.class, response.body, e);
+        }
+    }
+
+    @Override
+    public CmsEntry.ShardWorkItem updateShardWorkItem(CmsEntry.ShardWorkItem existingItem, CmsEntry.ShardWorkItemStatus status,
+            String leaseExpiry, Integer numAttempts) {
+        return updateShardWorkItemIfUnchanged(existingItem, status, leaseExpiry, numAttempts, existingItem.checkpoint);
+    }
+
+    @Override
+    public CmsEntry.ShardWorkItem updateShardCheckpoint(CmsEntry.ShardWorkItem existingItem, ShardCheckpoint checkpoint, String leaseExpiry) {
+        return updateShardWorkItemIfUnchanged(existingItem, existingItem.status, leaseExpiry, existingItem.numAttempts, checkpoint);
+    }
+
+    private CmsEntry.ShardWorkItem updateShardWorkItemIfUnchanged(CmsEntry.ShardWorkItem existingItem, CmsEntry.ShardWorkItemStatus status,
+            String leaseExpiry, Integer numAttempts, ShardCheckpoint checkpoint) {
+        // Work items only ever come from this client, so they always know the version they were read at
+        OpenSearchCmsEntry.ShardWorkItem existing = (OpenSearchCmsEntry.ShardWorkItem) existingItem;
+        OpenSearchCmsEntry.ShardWorkItem updated = new OpenSearchCmsEntry.ShardWorkItem(
+            existing.indexName, existing.shardId, existing.slice, status, leaseExpiry, numAttempts, checkpoint, existing.seqNo, existing.primaryTerm
+        );
+
+        String docId = OpenSearchCmsEntry.ShardWorkItem.getDocId(existing.indexName, existing.shardId, existing.slice);
+        RestClient.Response response = client.updateDocument(CMS_INDEX_NAME, docId, updated.toJson(), existing.seqNo, existing.primaryTerm);
+        if (response.code != HttpURLConnection.HTTP_OK) {
+            // The only response code that can end up here is HTTP_CONFLICT
+            return null;
+        }
+
+        try {
+            JsonNode responseNode = objectMapper.readTree(response.body);
+            return new OpenSearchCmsEntry.ShardWorkItem(
+                existing.indexName, existing.shardId, existing.slice, status, leaseExpiry, numAttempts, checkpoint,
+                responseNode.get("_seq_no").asLong(), responseNode.get("_primary_term").asLong()
+            );
+        } catch (Exception e) {
+            throw new OpenSearchCmsEntry.CantParseCmsEntryFromJson(OpenSearchCmsEntry.ShardWorkItem.class, response.body, e);
+        }
+    }
 }
@@ -5,6 +5,8 @@ import java.time.Instant;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.rfs.common.RfsException;
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardSlice;
 
 public class OpenSearchCmsEntry {
     private static final ObjectMapper objectMapper = new ObjectMapper();
@@ -91,6 +93,179 @@ public class OpenSearchCmsEntry {
         }
     }
 
+    /*
+     * Remembers the sequence number and primary term of the document it was read from, so that it can only be updated
+     * if nothing else has updated it in the meantime.
+     */
+    public static class Documents extends CmsEntry.Documents {
+        public static final String FIELD_STATUS = "status";
+        public static final String FIELD_LEASE_EXPIRY = "leaseExpiry";
+        public static final String FIELD_NUM_ATTEMPTS = "numAttempts";
+
+        public static ObjectNode getInitial() {
+            ObjectNode documentsDoc = objectMapper.createObjectNode();
+            documentsDoc.put(FIELD_STATUS, CmsEntry.DocumentsStatus.SETUP.toString());
+            documentsDoc.put(FIELD_NUM_ATTEMPTS, 1);
+
+            // TODO: We should be ideally setting the lease using the server's clock, but it's unclear on the best way
+            // to do this.  For now, we'll just use the client's clock.
+            documentsDoc.put(FIELD_LEASE_EXPIRY, CmsEntry.Documents.getLeaseExpiry(Instant.now().toEpochMilli(), 1));
+
+            return documentsDoc;
+        }
+
+        public static Documents fromJsonString(String json) {
+            try {
+                ObjectNode node = objectMapper.readValue(json, ObjectNode.class);
+                ObjectNode sourceNode = (ObjectNode) node.get("_source");
+
+                return new Documents(
+                    CmsEntry.DocumentsStatus.valueOf(sourceNode.get(FIELD_STATUS).asText()),
+                    sourceNode.get(FIELD_LEASE_EXPIRY).asText(),
+                    sourceNode.get(FIELD_NUM_ATTEMPTS).asInt(),
+                    node.get("_seq_no").asLong(),
+                    node.get("_primary_term").asLong()
+                );
+            } catch (Exception e) {
+                throw new CantParseCmsEntryFromJson(Documents.class, json, e);
+            }
+        }
+
+        public final long seqNo;
+        public final long primaryTerm;
+
+        public Documents(CmsEntry.DocumentsStatus status, String leaseExpiry, Integer numAttempts, long seqNo, long primaryTerm) {
+            super(status, leaseExpiry, numAttempts);
+            this.seqNo = seqNo;
+            this.primaryTerm = primaryTerm;
+        }
+
+        public ObjectNode toJson() {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put(FIELD_STATUS, status.toString());
+            node.put(FIELD_LEASE_EXPIRY, leaseExpiry);
+            node.put(FIELD_NUM_ATTEMPTS, numAttempts);
+            return node;
+        }
+    }
+
+    /*
+     * Remembers the sequence number and primary term of the document it was read from, so that it can only be updated
+     * if nothing else has updated it in the meantime.
+     */
+    public static class ShardWorkItem extends CmsEntry.ShardWorkItem {
+        public static final String TYPE = "shard_work_item";
+        public static final String FIELD_TYPE = "type";
+        public static final String FIELD_INDEX_NAME = "indexName";
+        public static final String FIELD_SHARD_ID = "shardId";
+        // Absent for a work item covering the whole shard
+        public static final String FIELD_SLICE_ID = "sliceId";
+        public static final String FIELD_NUM_SLICES = "numSlices";
+        public static final String FIELD_STATUS = "status";
+        public static final String FIELD_LEASE_EXPIRY = "leaseExpiry";
+        public static final String FIELD_NUM_ATTEMPTS = "numAttempts";
+        // Only used to order the work items; updates merge into the document, so it's kept without being round-tripped
+        public static final String FIELD_SIZE_IN_BYTES = "sizeInBytes";
+        // Stored as a JSON string, so that the segment names don't each become a field in the CMS index's mapping
+        public static final String FIELD_CHECKPOINT = "checkpoint";
+
+        public static String getDocId(String indexName, int shardId) {
+            return TYPE + "_" + indexName + "_" + shardId;
+        }
+
+        /*
+         * Each slice of a split shard is its own document, so that it has its own lease and checkpoint
+         */
+        public static String getDocId(String indexName, int shardId, ShardSlice slice) {
+            if (slice.isWholeShard()) {
+                return getDocId(indexName, shardId);
+            }
+            return getDocId(indexName, shardId) + "_slice_" + slice.sliceId + "_of_" + slice.numSlices;
+        }
+
+        public static ObjectNode getInitial(String indexName, int shardId, ShardSlice slice, long sizeInBytes) {
+            ObjectNode workItemDoc = objectMapper.createObjectNode();
+            workItemDoc.put(FIELD_TYPE, TYPE);
+            workItemDoc.put(FIELD_INDEX_NAME, indexName);
+            workItemDoc.put(FIELD_SHARD_ID, shardId);
+            putSlice(workItemDoc, slice);
+            workItemDoc.put(FIELD_STATUS, CmsEntry.ShardWorkItemStatus.NOT_STARTED.toString());
+            workItemDoc.put(FIELD_LEASE_EXPIRY, "0"); // No one holds the lease yet
+            workItemDoc.put(FIELD_NUM_ATTEMPTS, 0);
+            workItemDoc.put(FIELD_SIZE_IN_BYTES, sizeInBytes);
+            return workItemDoc;
+        }
+
+        public static ShardWorkItem fromJsonString(String json) {
+            try {
+                return fromJsonNode(objectMapper.readValue(json, ObjectNode.class));
+            } catch (Exception e) {
+                throw new CantParseCmsEntryFromJson(ShardWorkItem.class, json, e);
+            }
+        }
+
+        /*
+         * Parses either a GET response or a search hit, both of which have the same shape
+         */
+        public static ShardWorkItem fromJsonNode(ObjectNode node) {
+            try {
+                ObjectNode sourceNode = (ObjectNode) node.get("_source");
+                ShardCheckpoint checkpoint = sourceNode.hasNonNull(FIELD_CHECKPOINT)
+                    ? ShardCheckpoint.fromJsonString(sourceNode.get(FIELD_CHECKPOINT).asText())
+                    : null;
+                ShardSlice slice = sourceNode.hasNonNull(FIELD_SLICE_ID)
+                    ? new ShardSlice(sourceNode.get(FIELD_SLICE_ID).asInt(), sourceNode.get(FIELD_NUM_SLICES).asInt())
+                    : ShardSlice.WHOLE_SHARD;
+
+                return new ShardWorkItem(
+                    sourceNode.get(FIELD_INDEX_NAME).asText(),
+                    sourceNode.get(FIELD_SHARD_ID).asInt(),
+                    slice,
+                    CmsEntry.ShardWorkItemStatus.valueOf(sourceNode.get(FIELD_STATUS).asText()),
+                    sourceNode.get(FIELD_LEASE_EXPIRY).asText(),
+                    sourceNode.get(FIELD_NUM_ATTEMPTS).asInt(),
+                    checkpoint,
+                    node.get("_seq_no").asLong(),
+                    node.get("_primary_term").asLong()
+                );
+            } catch (Exception e) {
+                throw new CantParseCmsEntryFromJson(ShardWorkItem.class, node.toString(), e);
+            }
+        }
+
+        public final long seqNo;
+        public final long primaryTerm;
+
+        public ShardWorkItem(String indexName, int shardId, ShardSlice slice, CmsEntry.ShardWorkItemStatus status, String leaseExpiry,
+                int numAttempts, ShardCheckpoint checkpoint, long seqNo, long primaryTerm) {
+            super(indexName, shardId, slice, status, leaseExpiry, numAttempts, checkpoint);
+            this.seqNo = seqNo;
+            this.primaryTerm = primaryTerm;
+        }
+
+        public ObjectNode toJson() {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put(FIELD_TYPE, TYPE);
+            node.put(FIELD_INDEX_NAME, indexName);
+            node.put(FIELD_SHARD_ID, shardId);
+            putSlice(node, slice);
+            node.put(FIELD_STATUS, status.toString());
+            node.put(FIELD_LEASE_EXPIRY, leaseExpiry);
+            node.put(FIELD_NUM_ATTEMPTS, numAttempts);
+            if (checkpoint != null) {
+                node.put(FIELD_CHECKPOINT, checkpoint.toJsonString());
+            }
+            return node;
+        }
+
+        private static void putSlice(ObjectNode node, ShardSlice slice) {
+            if (!slice.isWholeShard()) {
+                node.put(FIELD_SLICE_ID, slice.sliceId);
+                node.put(FIELD_NUM_SLICES, slice.numSlices);
+            }
+        }
+    }
+
     public static class CantParseCmsEntryFromJson extends RfsException {
         public CantParseCmsEntryFromJson(Class<?> entryClass, String json, Exception e) {
             super("Failed to parse CMS entry of type " + entryClass.getName() + " from JSON: " + json, e);
@@ -0,0 +1,104 @@
+package com.rfs.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.util.BytesRef;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/*
+ * A single document's portion of a bulk request body (the action line plus the document source), along with its size
+ * so that bulk requests can be batched by payload size rather than just by document count.
+ *
+ * The source is kept as the raw bytes read from Lucene rather than being decoded into a String, so that assembling a
+ * bulk request body doesn't need to copy it at all.
+ */
+public class BulkDocSection {
+    private static final byte[] NEWLINE = new byte[] {'\n'};
+
+    public final String docId;
+    public final String routing; // The custom routing the document was indexed with, if any; else null
+    private final byte[] actionLine; // Includes the trailing newline
+    private final BytesRef source; // Null for a delete
+    public final long sizeInBytes;
+    public final ShardCheckpoint.Position position; // Where the document was read from, if we're tracking that; else null
+
+    public BulkDocSection(String docId, BytesRef source) {
+        this(docId, null, source);
+    }
+
+    /*
+     * The routing should be supplied for documents that were indexed with custom routing on the source, so that they
+     * land on the same target shard as the rest of their group; a null routing uses the default (the document id).
+     */
+    public BulkDocSection(String docId, String routing, BytesRef source) {
+        this(docId, routing, source, null);
+    }
+
+    public BulkDocSection(String docId, String routing, BytesRef source, ShardCheckpoint.Position position) {
+        this("index", docId, routing, source, position);
+    }
+
+    private BulkDocSection(String action, String docId, String routing, BytesRef source, ShardCheckpoint.Position position) {
+        this.docId = docId;
+        this.routing = routing;
+        this.position = position;
+        String routingField = (routing == null) ? "" : ", \"routing\": \"" + escape(routing) + "\"";
+        this.actionLine = ("{\"" + action + "\": {\"_id\": \"" + escape(docId) + "\"" + routingField + "}}\n")
+            .getBytes(StandardCharsets.UTF_8);
+        this.source = source;
+        this.sizeInBytes = actionLine.length + ((source == null) ? 0 : source.length + NEWLINE.length);
+    }
+
+    /*
+     * A section deleting the document, which (unlike an index) is just the action line.  The routing must be the one
+     * the document was indexed with, if it had one.
+     */
+    public static BulkDocSection forDelete(String docId, String routing) {
+        return new BulkDocSection("delete", docId, routing, null, null);
+    }
+
+    /*
+     * The document's source, e.g. for reporting it; null for a delete
+     */
+    public String getSourceAsString() {
+        return (source == null) ? null : source.utf8ToString();
+    }
+
+    public static BulkDocSection fromLuceneDocument(Document document) {
+        return fromLuceneDocument(document, null);
+    }
+
+    public static BulkDocSection fromLuceneDocument(Document document, ShardCheckpoint.Position position) {
+        String id = Uid.decodeId(document.getBinaryValue("_id").bytes);
+        String routing = document.get("_routing"); // Only present if the document was indexed with custom routing
+        return new BulkDocSection(id, routing, document.getBinaryValue("_source"), position);
+    }
+
+    private static String escape(String value) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+    }
+
+    /*
+     * Assembles the bulk request body for the sections as a composite buffer whose components wrap the action lines
+     * and sources in place.  The caller owns the returned buffer and is responsible for releasing it.
+     */
+    public static ByteBuf toBulkRequestBody(List<BulkDocSection> sections, ByteBufAllocator allocator) {
+        CompositeByteBuf body = allocator.compositeBuffer(Math.max(1, sections.size() * 3));
+        for (BulkDocSection section : sections) {
+            body.addComponent(true, Unpooled.wrappedBuffer(section.actionLine));
+            if (section.source != null) {
+                body.addComponent(true, Unpooled.wrappedBuffer(section.source.bytes, section.source.offset, section.source.length));
+                body.addComponent(true, Unpooled.wrappedBuffer(NEWLINE));
+            }
+        }
+        return body;
+    }
+}
@@ -0,0 +1,127 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import reactor.core.publisher.Flux;
+
+/*
+ * Decides how many documents go into each bulk request.  A bulk is cut when adding the next document would take it
+ * over either the document count cap or the byte size limit, whichever comes first; a document larger than the byte
+ * size limit is sent in a bulk on its own.
+ *
+ * When adaptive sizing is enabled, the byte size limit is tuned using additive-increase/multiplicative-decrease based
+ * on how the target is responding: it grows a step at a time while bulks come back within the target latency, shrinks
+ * a little when they come back slower than that, and is cut in half when the target rejects our requests (HTTP 429).
+ * A single instance is intended to be shared between all the shards being reindexed against the same target.
+ */
+public class BulkSizeController {
+    private static final Logger logger = LogManager.getLogger(BulkSizeController.class);
+
+    public static final int DEFAULT_MAX_DOCS = 1000; // Arbitrarily chosen
+    public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024; // Arbitrarily chosen
+    public static final long MIN_ADAPTIVE_BYTES = 256L * 1024; // Arbitrarily chosen
+    private static final int ADAPTIVE_STEPS = 16; // The number of additive steps between the min and max byte limits
+    private static final double SLOW_RESPONSE_DECREASE_FACTOR = 0.8; // Arbitrarily chosen
+    private static final double REJECTION_DECREASE_FACTOR = 0.5; // Arbitrarily chosen
+
+    private final int maxDocs;
+    private final long maxBytes;
+    private final long minBytes;
+    private final boolean adaptive;
+    private final Duration targetLatency;
+    private final AtomicLong currentMaxBytes;
+
+    private BulkSizeController(int maxDocs, long maxBytes, boolean adaptive, Duration targetLatency) {
+        if (maxDocs < 1) {
+            throw new IllegalArgumentException("maxDocs must be at least 1, but was " + maxDocs);
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1, but was " + maxBytes);
+        }
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.minBytes = Math.min(MIN_ADAPTIVE_BYTES, maxBytes);
+        this.adaptive = adaptive;
+        this.targetLatency = targetLatency;
+
+        // Start adaptive sizing low and let it work its way up, rather than opening with the largest bulks possible
+        long initialBytes = adaptive ? Math.max(minBytes, maxBytes / 4) : maxBytes;
+        this.currentMaxBytes = new AtomicLong(initialBytes);
+    }
+
+    public static BulkSizeController fixed(int maxDocs, long maxBytes) {
+        return new BulkSizeController(maxDocs, maxBytes, false, null);
+    }
+
+    public static BulkSizeController adaptive(int maxDocs, long maxBytes, Duration targetLatency) {
+        return new BulkSizeController(maxDocs, maxBytes, true, targetLatency);
+    }
+
+    public int getMaxDocs() {
+        return maxDocs;
+    }
+
+    public long getMaxBytes() {
+        return currentMaxBytes.get();
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void onBulkSucceeded(Duration latency) {
+        if (!adaptive) {
+            return;
+        }
+
+        if (latency.compareTo(targetLatency) <= 0) {
+            long step = Math.max(1, (maxBytes - minBytes) / ADAPTIVE_STEPS);
+            currentMaxBytes.updateAndGet(current -> Math.min(maxBytes, current + step));
+        } else {
+            long newMaxBytes = currentMaxBytes.updateAndGet(current -> Math.max(minBytes, (long) (current * SLOW_RESPONSE_DECREASE_FACTOR)));
+            logger.debug("Bulk took " + latency.toMillis() + " ms, over the target of " + targetLatency.toMillis() + " ms; bulk size limit now " + newMaxBytes + " bytes");
+        }
+    }
+
+    public void onBulkRejected() {
+        if (!adaptive) {
+            return;
+        }
+
+        long newMaxBytes = currentMaxBytes.updateAndGet(current -> Math.max(minBytes, (long) (current * REJECTION_DECREASE_FACTOR)));
+        logger.info("Target rejected a bulk request; bulk size limit now " + newMaxBytes + " bytes");
+    }
+
+    /*
+     * Groups the sections into bulks.  The limits are checked as each bulk is assembled, so adjustments made by the
+     * adaptive sizing apply from the next bulk onwards.
+     */
+    public Flux<List<BulkDocSection>> toBatches(Flux<BulkDocSection> sections) {
+        return Flux.defer(() -> {
+            // Each subscription gets its own state, so that retries start from a clean slate
+            BatchState state = new BatchState();
+            return sections.bufferUntil(section -> state.startsNewBatch(section, getMaxDocs(), getMaxBytes()), true);
+        });
+    }
+
+    private static class BatchState {
+        private int numDocs = 0;
+        private long numBytes = 0;
+
+        boolean startsNewBatch(BulkDocSection section, int maxDocs, long maxBytes) {
+            boolean startsNewBatch = numDocs > 0 && (numDocs >= maxDocs || numBytes + section.sizeInBytes > maxBytes);
+            if (startsNewBatch) {
+                numDocs = 0;
+                numBytes = 0;
+            }
+            numDocs++;
+            numBytes += section.sizeInBytes;
+            return startsNewBatch;
+        }
+    }
+}
@@ -24,10 +24,22 @@ public class ConnectionDetails {
     public final String username;
     public final String password;
     public final AuthType authType;
+    public final int compressionLevel; // The gzip level to compress bulk request bodies with; NO_COMPRESSION disables it
+
+    public static final int NO_COMPRESSION = 0;
 
     public ConnectionDetails(String url, String username, String password) {
+        this(url, username, password, NO_COMPRESSION);
+    }
+
+    public ConnectionDetails(String url, String username, String password, int compressionLevel) {
         this.url = url; // http://localhost:9200
 
+        if (compressionLevel < NO_COMPRESSION || compressionLevel > 9) {
+            throw new IllegalArgumentException("The compression level must be between 0 (disabled) and 9");
+        }
+        this.compressionLevel = compressionLevel;
+
         // If the username is provided, the password must be as well, and vice versa
         if ((username == null && password != null) || (username != null && password == null)) {
             throw new IllegalArgumentException("Both username and password must be provided, or neither");
@@ -0,0 +1,103 @@
+package com.rfs.common;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+/*
+ * The connection pool and event loops shared by every RestClient built with it, so that connections to a cluster (and
+ * the TLS handshakes behind them) are set up once and kept alive for reuse by all the clients talking to it, rather
+ * than each client paying for its own.  Connections are pooled per remote address; the limits apply to each.
+ *
+ * The pool's utilization is tracked so that it can be reported alongside the reindexing metrics; a pool that's
+ * always fully acquired with acquires pending means the bulk concurrency is outrunning the connections.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+    public static final int DEFAULT_MAX_CONNECTIONS = 64; // Arbitrarily chosen
+    public static final int DEFAULT_MAX_PENDING_ACQUIRES = 1024; // Arbitrarily chosen
+    public static final Duration DEFAULT_MAX_IDLE_TIME = Duration.ofSeconds(30); // Below typical LB idle timeouts
+    public static final int DEFAULT_EVENT_LOOP_THREADS = LoopResources.DEFAULT_IO_WORKER_COUNT;
+    public static final Duration DEFAULT_REPORT_INTERVAL = Duration.ofSeconds(30); // Arbitrarily chosen
+
+    private static ConnectionPool defaultPool;
+
+    public final ConnectionProvider connectionProvider;
+    public final LoopResources loopResources;
+    private final Map<String, ConnectionPoolMetrics> poolMetrics = new ConcurrentHashMap<>(); // Keyed by remote address
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PENDING_ACQUIRES, DEFAULT_MAX_IDLE_TIME, DEFAULT_EVENT_LOOP_THREADS);
+    }
+
+    public ConnectionPool(int maxConnections, int maxPendingAcquires, Duration maxIdleTime, int eventLoopThreads) {
+        if (maxConnections < 1 || maxPendingAcquires < 1 || eventLoopThreads < 1) {
+            throw new IllegalArgumentException("The max connections, max pending acquires, and event loop threads must each be at least 1");
+        }
+
+        this.connectionProvider = ConnectionProvider.builder("rfs")
+            .maxConnections(maxConnections)
+            .pendingAcquireMaxCount(maxPendingAcquires)
+            .maxIdleTime(maxIdleTime)
+            .evictInBackground(maxIdleTime)
+            .metrics(true, () -> new ConnectionProvider.MeterRegistrar() {
+                @Override
+                public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+                    poolMetrics.put(remoteAddress.toString(), metrics);
+                }
+
+                @Override
+                public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+                    poolMetrics.remove(remoteAddress.toString());
+                }
+            })
+            .build();
+        this.loopResources = LoopResources.create("rfs-http", eventLoopThreads, true);
+    }
+
+    /*
+     * The pool used by clients that aren't given one explicitly; created with the default limits on first use
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ConnectionPool();
+        }
+        return defaultPool;
+    }
+
+    public String report() {
+        if (poolMetrics.isEmpty()) {
+            return "No connections opened";
+        }
+        return poolMetrics.entrySet().stream()
+            .map(entry -> {
+                ConnectionPoolMetrics metrics = entry.getValue();
+                return String.format("%s: %d/%d connections (%d acquired, %d idle), %d acquires pending",
+                    entry.getKey(), metrics.allocatedSize(), metrics.maxAllocatedSize(), metrics.acquiredSize(),
+                    metrics.idleSize(), metrics.pendingAcquireSize());
+            })
+            .collect(Collectors.joining("; "));
+    }
+
+    public Disposable startReporting(Duration interval) {
+        return Flux.interval(interval, interval)
+            .subscribe(tick -> logger.info("Connection pool metrics - " + report()));
+    }
+
+    @Override
+    public void close() {
+        connectionProvider.dispose();
+        loopResources.dispose();
+    }
+}
@@ -0,0 +1,93 @@
+package com.rfs.common;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+
+/*
+ * Where the documents the target permanently refused (e.g. because they don't fit the index's mappings, or stayed
+ * rejected through every retry) are sent, so that a handful of bad documents doesn't hold up the rest of the migration
+ * and they can be looked at, fixed, and replayed afterwards.
+ */
+public interface DeadLetterSink extends AutoCloseable {
+    void accept(String indexName, BulkDocSection section, OpenSearchClient.ItemResult result);
+
+    @Override
+    default void close() {}
+
+    /*
+     * Just logs each document's id and failure
+     */
+    public static DeadLetterSink logging() {
+        return new LoggingSink();
+    }
+
+    /*
+     * Appends each document, with its failure, to the file as a line of JSON:
+     * {"index": ..., "_id": ..., "routing": ..., "status": ..., "error": {...}, "source": {...}}
+     */
+    public static DeadLetterSink toFile(Path filePath) throws IOException {
+        return new FileSink(filePath);
+    }
+
+    public static class LoggingSink implements DeadLetterSink {
+        private static final Logger logger = LogManager.getLogger(LoggingSink.class);
+
+        @Override
+        public void accept(String indexName, BulkDocSection section, OpenSearchClient.ItemResult result) {
+            logger.error("Document " + section.docId + " of index " + indexName + " failed with status " + result.status + ": " + result.error);
+        }
+    }
+
+    public static class FileSink implements DeadLetterSink {
+        private static final Logger logger = LogManager.getLogger(FileSink.class);
+        private static final ObjectMapper objectMapper = new ObjectMapper();
+
+        private final BufferedWriter writer;
+
+        public FileSink(Path filePath) throws IOException {
+            this.writer = Files.newBufferedWriter(filePath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public synchronized void accept(String indexName, BulkDocSection section, OpenSearchClient.ItemResult result) {
+            ObjectNode line = objectMapper.createObjectNode();
+            line.put("index", indexName);
+            line.put("_id", section.docId);
+            line.put("routing", section.routing);
+            line.put("status", result.status);
+            line.set("error", result.error);
+            String source = section.getSourceAsString();
+            if (source != null) {
+                line.putRawValue("source", new RawValue(source)); // Already JSON, so there's no need to parse it
+            }
+
+            try {
+                writer.write(objectMapper.writeValueAsString(line));
+                writer.newLine();
+                writer.flush(); // There should be few enough of these that it's worth not losing any
+            } catch (IOException e) {
+                logger.error("Failed to write document " + section.docId + " of index " + indexName + " to the dead-letter file", e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.error("Failed to close the dead-letter file", e);
+            }
+        }
+    }
+}
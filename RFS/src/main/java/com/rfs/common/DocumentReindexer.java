@@ -1,57 +1,283 @@
 package com.rfs.common;
 
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.document.Document;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.util.retry.Retry;
+import reactor.core.scheduler.Schedulers;
 
 
+/*
+ * Sends documents to the target in bulk requests.  When only some of the operations in a bulk fail, just those are
+ * dealt with: ones the target was too busy for are resent (with backoff) in a smaller bulk of their own, and ones it
+ * permanently refused, or that were still failing after every retry, go to the dead-letter sink.  Dead-lettered
+ * documents count as done when checkpointing, since sending them again wouldn't help.
+ *
+ * A bulk that fails as a whole (e.g. the target couldn't be reached, even after the client's retries) says nothing
+ * about its documents, so rather than dead-lettering them it fails the reindexing with a BulkFailed.  Its documents are
+ * never acknowledged, so the shard can be retried from its last checkpoint.  The exception is a routed bulk whose
+ * target node couldn't be connected to, which is resent through the coordinator instead.  An error reading or routing
+ * the documents fails the reindexing in the same way, rather than starting the stream over and resending every
+ * document already sent.
+ */
 public class DocumentReindexer {
     private static final Logger logger = LogManager.getLogger(DocumentReindexer.class);
-    private static final int MAX_BATCH_SIZE = 1000; // Arbitrarily chosen
-
-    public static Mono<Void> reindex(String indexName, Flux<Document> documentStream, ConnectionDetails targetConnection) throws Exception {   
-        OpenSearchClient client = new OpenSearchClient(targetConnection);
-
-        return documentStream
-            .map(DocumentReindexer::convertDocumentToBulkSection)  // Convert each Document to part of a bulk operation
-            .buffer(MAX_BATCH_SIZE) // Collect until you hit the batch size
-            .doOnNext(bulk -> logger.info(bulk.size() + " documents in current bulk request"))
-            .map(DocumentReindexer::convertToBulkRequestBody)  // Assemble the bulk request body from the parts
-            .flatMap(bulkJson -> client.sendBulkRequest(indexName, bulkJson) // Send the request
-                .doOnSuccess(unused -> logger.debug("Batch succeeded"))
-                .doOnError(error -> logger.error("Batch failed", error))
-                .onErrorResume(e -> Mono.empty()) // Prevent the error from stopping the entire stream
-            )
-            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(5)))
+    public static final int MAX_ITEM_RETRIES = 3; // Arbitrarily chosen
+    private static final Duration MIN_ITEM_RETRY_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_ITEM_RETRY_BACKOFF = Duration.ofSeconds(5);
+
+    private final OpenSearchClient client;
+    private final int maxInFlightBulks;
+    private final InFlightLimiter bulkSlots;
+    private final BulkSizeController bulkSizeController;
+    private final ReindexMetrics metrics;
+    private final TargetShardRouter router; // Null unless bulks should be sent to the nodes holding their primaries
+    private final DeadLetterSink deadLetterSink;
+
+    /*
+     * maxInFlightBulks is shared between all the calls to reindex() on this reindexer, so several shards reindexed
+     * concurrently draw on the same budget, and a shard that's the last one running can use all of it.
+     */
+    public DocumentReindexer(ConnectionDetails targetConnection, int maxInFlightBulks, BulkSizeController bulkSizeController, ReindexMetrics metrics) {
+        this(new OpenSearchClient(targetConnection), maxInFlightBulks, bulkSizeController, metrics);
+    }
+
+    public DocumentReindexer(OpenSearchClient targetClient, int maxInFlightBulks, BulkSizeController bulkSizeController, ReindexMetrics metrics) {
+        this(targetClient, maxInFlightBulks, bulkSizeController, metrics, null);
+    }
+
+    /*
+     * With a router, each batch is split up by the target node holding the primary of each document's shard, and the
+     * pieces are sent straight to those nodes, each piece taking one of the maxInFlightBulks slots.  This saves the
+     * target a hop per document, at the cost of smaller bulks when there are many primaries per node.
+     */
+    public DocumentReindexer(OpenSearchClient targetClient, int maxInFlightBulks, BulkSizeController bulkSizeController, ReindexMetrics metrics, TargetShardRouter router) {
+        this(targetClient, maxInFlightBulks, bulkSizeController, metrics, router, DeadLetterSink.logging());
+    }
+
+    public DocumentReindexer(OpenSearchClient targetClient, int maxInFlightBulks, BulkSizeController bulkSizeController, ReindexMetrics metrics, TargetShardRouter router, DeadLetterSink deadLetterSink) {
+        if (maxInFlightBulks < 1) {
+            throw new IllegalArgumentException("maxInFlightBulks must be at least 1, but was " + maxInFlightBulks);
+        }
+        this.client = targetClient;
+        this.maxInFlightBulks = maxInFlightBulks;
+        this.bulkSlots = new InFlightLimiter(maxInFlightBulks);
+        this.bulkSizeController = bulkSizeController;
+        this.metrics = metrics;
+        this.router = router;
+        this.deadLetterSink = deadLetterSink;
+    }
+
+    /*
+     * Reindexes the documents into the target index.  Documents are only pulled from the documentStream as bulks are
+     * sent, so at most (maxInFlightBulks + 1) bulks' worth of documents (one more with a router) will have been read
+     * ahead of what the target cluster has acknowledged.  That counts bulks still waiting for a slot that another
+     * shard is using.
+     */
+    public Mono<Void> reindex(String indexName, Flux<Document> documentStream) {
+        return reindexSections(indexName, documentStream.map(BulkDocSection::fromLuceneDocument), null);
+    }
+
+    /*
+     * As above, but also tells the tracker which documents the target has acknowledged, so that it can checkpoint the
+     * shard's progress.  Documents in bulks that fail are never reported as acknowledged.
+     */
+    public Mono<Void> reindex(String indexName, Flux<ShardCheckpoint.PositionedDocument> documentStream, ShardCheckpoint.Tracker tracker) {
+        return reindexSections(indexName, documentStream.map(doc -> BulkDocSection.fromLuceneDocument(doc.document, doc.position)), tracker);
+    }
+
+    /*
+     * As above, but for sections that have already been assembled, such as the mix of deletes and documents that make
+     * up the changes between two snapshots
+     */
+    public Mono<Void> reindexSections(String indexName, Flux<BulkDocSection> sectionStream) {
+        return reindexSections(indexName, sectionStream, null);
+    }
+
+    private Mono<Void> reindexSections(String indexName, Flux<BulkDocSection> sectionStream, ShardCheckpoint.Tracker tracker) {
+        Flux<BulkDocSection> sections = sectionStream
+            .doOnNext(section -> metrics.recordDocumentRead());
+
+        Flux<List<BulkDocSection>> batches = bulkSizeController.toBatches(sections) // Collect until you hit the batch size limits
+            .doOnNext(bulk -> logger.debug(bulk.size() + " documents in current bulk request"));
+        // With a router, a batch becomes a bulk per target node, which count against maxInFlightBulks individually.  One
+        // batch at a time is split, so no more than one extra batch is read ahead.
+        Flux<Map.Entry<OpenSearchClient, List<BulkDocSection>>> bulks = (router == null)
+            ? batches.map(bulk -> Map.entry(client, bulk))
+            : batches.concatMap(bulk -> routeBulk(indexName, bulk), 1);
+
+        return bulks
+            // Assemble and send the bulk requests, each once it gets one of the slots shared with any other shards
+            // being reindexed.  flatMap only requests another bulk from upstream when one of its own maxInFlightBulks
+            // finishes, which is what propagates the backpressure back to the reader.
+            .flatMap(bulk -> bulkSlots.withSlot(sendBulk(indexName, bulk.getKey(), bulk.getValue(), tracker)), maxInFlightBulks)
             .doOnComplete(() -> logger.debug("All batches processed"))
             .then();
     }
 
-    private static String convertDocumentToBulkSection(Document document) {
-        String id = Uid.decodeId(document.getBinaryValue("_id").bytes);
-        String source = document.getBinaryValue("_source").utf8ToString();
-        String action = "{\"index\": {\"_id\": \"" + id + "\"}}";
+    /*
+     * Splits the batch into a bulk for each target node holding the primaries of its documents
+     */
+    private Flux<Map.Entry<OpenSearchClient, List<BulkDocSection>>> routeBulk(String indexName, List<BulkDocSection> bulkSections) {
+        // Working out the routing may mean (blocking) calls to the target to discover its shard allocation
+        return Mono.fromCallable(() -> {
+                Map<OpenSearchClient, List<BulkDocSection>> sectionsByNode = new LinkedHashMap<>();
+                for (BulkDocSection section : bulkSections) {
+                    sectionsByNode.computeIfAbsent(router.getClientFor(indexName, section), node -> new ArrayList<>()).add(section);
+                }
+                return sectionsByNode;
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMapIterable(Map::entrySet);
+    }
+
+    private Mono<Void> sendBulk(String indexName, OpenSearchClient client, List<BulkDocSection> bulkSections, ShardCheckpoint.Tracker tracker) {
+        return sendBulk(indexName, client, bulkSections, tracker, 0);
+    }
+
+    private Mono<Void> sendBulk(String indexName, OpenSearchClient client, List<BulkDocSection> bulkSections, ShardCheckpoint.Tracker tracker, int attempt) {
+        return Mono.defer(() -> {
+            Instant startTime = Instant.now();
+            metrics.recordBulkStarted();
+
+            return Mono.using(
+                    () -> BulkDocSection.toBulkRequestBody(bulkSections, ByteBufAllocator.DEFAULT),
+                    body -> {
+                        metrics.recordBulkSent(bulkSections.size(), body.readableBytes());
+                        return client.sendBulkRequest(indexName, body); // Send the request
+                    },
+                    ByteBuf::release
+                )
+                .flatMap(response -> {
+                    Duration latency = Duration.between(startTime, Instant.now());
+                    if (response.hasFailedOperations()) {
+                        return handleFailedOperations(indexName, client, bulkSections, response, latency, tracker, attempt);
+                    }
+                    logger.debug("Batch succeeded");
+                    metrics.recordBulkSucceeded(bulkSections.size(), latency);
+                    bulkSizeController.onBulkSucceeded(latency);
+                    acknowledge(bulkSections, tracker);
+                    return Mono.<Void>empty();
+                })
+                .onErrorResume(error -> !(error instanceof BulkFailed), error -> {
+                    logger.error("Batch failed", error);
+                    metrics.recordBulkFailed(bulkSections.size(), Duration.between(startTime, Instant.now()));
+                    if (isRejection(error)) {
+                        bulkSizeController.onBulkRejected();
+                    }
+                    if (client != this.client && isConnectionFailure(error)) {
+                        // The node may not be reachable from here; the coordinator will forward the documents to it
+                        router.onNodeUnreachable(client);
+                        return sendBulk(indexName, this.client, bulkSections, tracker, attempt);
+                    }
+                    return Mono.error(new BulkFailed(indexName, bulkSections.size(), error));
+                });
+        });
+    }
+
+    private Mono<Void> handleFailedOperations(String indexName, OpenSearchClient client, List<BulkDocSection> bulkSections,
+            OpenSearchClient.BulkResponse response, Duration latency, ShardCheckpoint.Tracker tracker, int attempt) {
+        List<OpenSearchClient.ItemResult> items = response.getItems();
+        if (items.size() != bulkSections.size()) {
+            return Mono.error(new OpenSearchClient.OperationFailed("The bulk response has " + items.size() + " items for "
+                + bulkSections.size() + " operations.  Response body: " + response.body, response));
+        }
+
+        List<BulkDocSection> done = new ArrayList<>(); // Succeeded or dead-lettered
+        List<BulkDocSection> toRetry = new ArrayList<>();
+        int numSucceeded = 0;
+        boolean rejected = false;
+        for (int i = 0; i < items.size(); i++) {
+            OpenSearchClient.ItemResult item = items.get(i);
+            BulkDocSection section = bulkSections.get(i);
+            rejected |= (item.status == OpenSearchClient.BulkResponse.HTTP_TOO_MANY_REQUESTS);
+            if (item.isSuccessful()) {
+                numSucceeded++;
+                done.add(section);
+            } else if (item.isRetryable() && attempt < MAX_ITEM_RETRIES) {
+                toRetry.add(section);
+            } else {
+                deadLetterSink.accept(indexName, section, item);
+                done.add(section);
+            }
+        }
+
+        int numDeadLettered = done.size() - numSucceeded;
+        logger.warn((toRetry.size() + numDeadLettered) + " of " + bulkSections.size() + " operations in a bulk to index " + indexName
+            + " failed; resending " + toRetry.size() + " and dead-lettering " + numDeadLettered);
+        metrics.recordBulkPartiallySucceeded(numSucceeded, toRetry.size(), numDeadLettered, latency);
+        if (rejected) {
+            bulkSizeController.onBulkRejected();
+        } else {
+            bulkSizeController.onBulkSucceeded(latency);
+        }
+        acknowledge(done, tracker);
+
+        if (toRetry.isEmpty()) {
+            return Mono.empty();
+        }
+        return Mono.delay(getItemRetryBackoff(attempt))
+            .then(sendBulk(indexName, client, toRetry, tracker, attempt + 1));
+    }
 
-        return action + "\n" + source;
+    private static Duration getItemRetryBackoff(int attempt) {
+        Duration backoff = MIN_ITEM_RETRY_BACKOFF.multipliedBy(1L << attempt);
+        return backoff.compareTo(MAX_ITEM_RETRY_BACKOFF) > 0 ? MAX_ITEM_RETRY_BACKOFF : backoff;
     }
 
-    private static String convertToBulkRequestBody(List<String> bulkSections) {
-        StringBuilder builder = new StringBuilder();
-        for (String section : bulkSections) {
-            builder.append(section).append("\n");
+    private static void acknowledge(List<BulkDocSection> sections, ShardCheckpoint.Tracker tracker) {
+        if (tracker != null && !sections.isEmpty()) {
+            tracker.onDocumentsAcknowledged(sections.stream().map(section -> section.position).collect(Collectors.toList()));
         }
-        return builder.toString();
+    }
+
+    private static boolean isRejection(Throwable error) {
+        // The client retries failed bulks itself, so what we see here is usually the exhausted-retries wrapper
+        Throwable cause = Exceptions.isRetryExhausted(error) ? error.getCause() : error;
+        if (cause instanceof OpenSearchClient.OperationFailed) {
+            RestClient.Response response = ((OpenSearchClient.OperationFailed) cause).response;
+            return response instanceof OpenSearchClient.BulkResponse && ((OpenSearchClient.BulkResponse) response).isRejected();
+        }
+        return false;
+    }
+
+    private static boolean isConnectionFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public static void refreshAllDocuments(ConnectionDetails targetConnection) throws Exception {
+        refreshAllDocuments(new OpenSearchClient(targetConnection));
+    }
+
+    public static void refreshAllDocuments(OpenSearchClient targetClient) throws Exception {
         // Send the request
-        OpenSearchClient client = new OpenSearchClient(targetConnection);
-        client.refresh();
+        targetClient.refresh();
+    }
+
+    public static class BulkFailed extends RfsException {
+        public BulkFailed(String indexName, int numDocs, Throwable cause) {
+            super("A bulk request of " + numDocs + " documents to index " + indexName + " failed", cause);
+        }
     }
 }
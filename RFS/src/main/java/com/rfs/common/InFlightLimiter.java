@@ -0,0 +1,114 @@
+package com.rfs.common;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/*
+ * A fixed pool of slots shared between any number of concurrent streams of work, such as the shards being reindexed
+ * against the same target.  Work waits for a slot without blocking a thread, and a freed slot goes to whichever piece
+ * of work has been waiting longest, so a stream that's running on its own can use every slot while busier times see
+ * them spread between all the streams that want them.
+ */
+public class InFlightLimiter {
+    private enum WaiterState {
+        PENDING,
+        WAITING,
+        GRANTED,
+        CANCELLED,
+    }
+
+    private static class Waiter {
+        final MonoSink<Void> sink;
+        WaiterState state = WaiterState.PENDING;
+
+        Waiter(MonoSink<Void> sink) {
+            this.sink = sink;
+        }
+    }
+
+    private final Queue<Waiter> waiting = new ArrayDeque<>();
+    private int available;
+
+    public InFlightLimiter(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, but was " + maxInFlight);
+        }
+        this.available = maxInFlight;
+    }
+
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    /*
+     * Runs the work once a slot is free, and frees the slot again however the work ends, including if it's cancelled
+     * (whether while running or while still waiting for a slot)
+     */
+    public <T> Mono<T> withSlot(Mono<T> work) {
+        return Mono.usingWhen(acquire(),
+            slot -> work,
+            slot -> release(),
+            (slot, error) -> release(),
+            slot -> release());
+    }
+
+    private Mono<Boolean> acquire() {
+        return Mono.<Void>create(sink -> {
+                Waiter waiter = new Waiter(sink);
+                sink.onCancel(() -> onCancelled(waiter));
+                boolean granted = false;
+                synchronized (this) {
+                    if (waiter.state == WaiterState.CANCELLED) {
+                        return;
+                    } else if (available > 0) {
+                        available--;
+                        waiter.state = WaiterState.GRANTED;
+                        granted = true;
+                    } else {
+                        waiter.state = WaiterState.WAITING;
+                        waiting.add(waiter);
+                    }
+                }
+                if (granted) {
+                    sink.success();
+                }
+            })
+            .thenReturn(true);
+    }
+
+    private Mono<Void> release() {
+        return Mono.fromRunnable(this::releaseSlot);
+    }
+
+    private void releaseSlot() {
+        Waiter next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+            next.state = WaiterState.GRANTED;
+        }
+        // The slot passes straight to the longest waiting piece of work
+        next.sink.success();
+    }
+
+    private void onCancelled(Waiter waiter) {
+        boolean wasGranted;
+        synchronized (this) {
+            wasGranted = (waiter.state == WaiterState.GRANTED);
+            if (waiter.state == WaiterState.WAITING) {
+                waiting.remove(waiter);
+            }
+            waiter.state = WaiterState.CANCELLED;
+        }
+        if (wasGranted) {
+            // The slot was handed over just as the work was cancelled, so it was never used; pass it on
+            releaseSlot();
+        }
+    }
+}
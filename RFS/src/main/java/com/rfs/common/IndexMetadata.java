@@ -6,13 +6,19 @@ import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
+import lombok.Lombok;
+
 public class IndexMetadata {
+    // Thread-safe once configured, so shared by every read rather than built per file
+    private static final ObjectMapper objectMapper = new ObjectMapper();
 
     /**
     * Defines the behavior required to read a snapshot's index metadata as JSON and convert it into a Data object
@@ -31,8 +37,9 @@ public class IndexMetadata {
                 int filePointer = (int) indexInput.getFilePointer();
                 InputStream bis = new ByteArrayInputStream(bytes, filePointer, bytes.length - filePointer);
 
-                ObjectMapper smileMapper = new ObjectMapper(smileFactory);
-                return smileMapper.readTree(bis);
+                try (JsonParser parser = smileFactory.createParser(bis)) {
+                    return objectMapper.readTree(parser);
+                }
             }
         }
 
@@ -48,6 +55,46 @@ public class IndexMetadata {
         public String getIndexFileId(SnapshotRepo.Provider repoDataProvider, String snapshotName, String indexName);
     }
 
+    /**
+    * Wraps another Factory so that each index's metadata is only read and parsed from the repo once, however many
+    * times (and from however many threads) it's asked for.  Keyed by snapshot and index.
+    */
+    public static class CachingFactory implements Factory {
+        private final Factory delegate;
+        private final ConcurrentHashMap<String, Data> cache = new ConcurrentHashMap<>();
+
+        public CachingFactory(Factory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Data fromRepo(SourceRepo repo, SnapshotRepo.Provider repoDataProvider, String snapshotName, String indexName) throws Exception {
+            String key = snapshotName + "/" + indexName;
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return delegate.fromRepo(repo, repoDataProvider, snapshotName, indexName);
+                } catch (Exception e) {
+                    throw Lombok.sneakyThrow(e);
+                }
+            });
+        }
+
+        @Override
+        public Data fromJsonNode(JsonNode root, String indexId, String indexName) throws Exception {
+            return delegate.fromJsonNode(root, indexId, indexName);
+        }
+
+        @Override
+        public SmileFactory getSmileFactory() {
+            return delegate.getSmileFactory();
+        }
+
+        @Override
+        public String getIndexFileId(SnapshotRepo.Provider repoDataProvider, String snapshotName, String indexName) {
+            return delegate.getIndexFileId(repoDataProvider, snapshotName, indexName);
+        }
+    }
+
     /**
     * Defines the behavior expected of an object that will surface the metadata of an index stored in a snapshot
     * See: https://github.com/elastic/elasticsearch/blob/v7.10.2/server/src/main/java/org/elasticsearch/cluster/metadata/IndexMetadata.java#L1475
@@ -2,37 +2,115 @@ package com.rfs.common;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SoftDeletesDirectoryReaderWrapper;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
 import lombok.Lombok;
 import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
 
 
+/*
+ * Reads the Documents out of a shard's unpacked Lucene index.  Each segment (leaf) of the index is read independently,
+ * and up to segmentParallelism segments are read at once on the bounded elastic scheduler, with their Documents merged
+ * into a single output stream.  When reading more than one segment at a time, the order of the output is not defined.
+ * A big shard can instead be read as several ShardSlices, each reading only its range of the shard's documents.
+ *
+ * Elasticsearch 7 soft-deletes documents (on update as well as delete) by marking them in a doc values field rather
+ * than in the segment's deletion bits, so the index is always read through a SoftDeletesDirectoryReaderWrapper, which
+ * folds those marks into the live docs.
+ */
 public class LuceneDocumentsReader {
     private static final Logger logger = LogManager.getLogger(LuceneDocumentsReader.class);
 
+    // The only stored fields we need to reindex a document; skipping the rest saves decoding them
+    public static final Set<String> FIELDS_TO_LOAD = Set.of("_id", "_source", "_routing");
+    public static final String SOFT_DELETES_FIELD = "__soft_deletes"; // Where ES records soft deletes
+
+    private final int segmentParallelism;
+
+    public LuceneDocumentsReader() {
+        this(1);
+    }
+
+    public LuceneDocumentsReader(int segmentParallelism) {
+        if (segmentParallelism < 1) {
+            throw new IllegalArgumentException("segmentParallelism must be at least 1, but was " + segmentParallelism);
+        }
+        this.segmentParallelism = segmentParallelism;
+    }
+
     public Flux<Document> readDocuments(Path luceneFilesBasePath, String indexName, int shardId) {
+        return readDocuments(luceneFilesBasePath, indexName, shardId, new ShardCheckpoint.Tracker(ShardCheckpoint.empty()))
+            .map(positioned -> positioned.document);
+    }
+
+    /*
+     * Reads the shard's Documents starting from the tracker's checkpoint, along with where each came from, reporting
+     * each Document to the tracker as it's read so that the tracker can work out a new checkpoint as they're indexed.
+     */
+    public Flux<ShardCheckpoint.PositionedDocument> readDocuments(Path luceneFilesBasePath, String indexName, int shardId, ShardCheckpoint.Tracker tracker) {
+        return readDocuments(luceneFilesBasePath, indexName, shardId, ShardSlice.WHOLE_SHARD, tracker);
+    }
+
+    /*
+     * As above, but only the Documents in the slice of the shard
+     */
+    public Flux<ShardCheckpoint.PositionedDocument> readDocuments(Path luceneFilesBasePath, String indexName, int shardId, ShardSlice slice, ShardCheckpoint.Tracker tracker) {
         Path indexDirectoryPath = luceneFilesBasePath.resolve(indexName).resolve(String.valueOf(shardId));
+        return readDocuments(() -> openIndexReader(indexDirectoryPath), slice, tracker);
+    }
+
+    /*
+     * Reads the shard's Documents in place from its snapshot blob files, rather than from an unpacked copy on disk
+     */
+    public Flux<Document> readDocuments(SourceRepo repo, ShardMetadata.Data shardMetadata) {
+        return readDocuments(repo, shardMetadata, ShardSlice.WHOLE_SHARD);
+    }
 
+    /*
+     * Reads only the Documents in the slice of the shard, in place from its snapshot blob files.  Nothing is
+     * checkpointed, so the slice is always read from its start.
+     */
+    public Flux<Document> readDocuments(SourceRepo repo, ShardMetadata.Data shardMetadata, ShardSlice slice) {
+        return readDocuments(() -> new SoftDeletesDirectoryReaderWrapper(DirectoryReader.open(new SnapshotDirectory(repo, shardMetadata)), SOFT_DELETES_FIELD),
+                slice, new ShardCheckpoint.Tracker(ShardCheckpoint.empty()))
+            .map(positioned -> positioned.document);
+    }
+
+    private Flux<ShardCheckpoint.PositionedDocument> readDocuments(Callable<IndexReader> readerSupplier, ShardSlice slice, ShardCheckpoint.Tracker tracker) {
         return Flux.using(
-            () -> openIndexReader(indexDirectoryPath),
+            readerSupplier,
             reader -> {
-                logger.info(reader.maxDoc() + " documents found in the current Lucene index");
-
-                return Flux.range(0, reader.maxDoc()) // Extract all the Documents in the IndexReader
-                .handle((i, sink) -> {
-                    Document doc = getDocument(reader, i);
-                    if (doc != null) { // Skip malformed docs
-                        sink.next(doc);
-                    }
-                }).cast(Document.class);
+                logger.info(reader.maxDoc() + " documents found in the current Lucene index across " + reader.leaves().size() + " segments"
+                    + (slice.isWholeShard() ? "" : "; reading slice " + slice));
+                int sliceStart = slice.getStartDoc(reader.maxDoc());
+                int sliceEnd = slice.getEndDoc(reader.maxDoc());
+
+                // Reading from disk is blocking, so each segment is read on the bounded elastic scheduler, keeping both
+                // the reads and all downstream requests for more documents off of the caller's thread (which is
+                // frequently a Netty event loop thread once bulk requests are in flight).  flatMap caps how many
+                // segments are being read at once, and only starts on the next one when an earlier one is exhausted.
+                return Flux.fromIterable(reader.leaves())
+                    // Only the segments overlapping the slice, and only the part of each that it covers
+                    .filter(leaf -> leaf.docBase < sliceEnd && leaf.docBase + leaf.reader().maxDoc() > sliceStart)
+                    .flatMap(leaf -> readSegment(leaf, tracker, Math.max(sliceStart - leaf.docBase, 0), Math.min(sliceEnd - leaf.docBase, leaf.reader().maxDoc()))
+                        .subscribeOn(Schedulers.boundedElastic()), segmentParallelism);
             },
             reader -> { // Close the IndexReader when done
                 try {
@@ -42,16 +120,65 @@ public class LuceneDocumentsReader {
                     throw Lombok.sneakyThrow(e);
                 }
             }
-        );
+        )
+        // Opening the IndexReader is blocking too
+        .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    protected Flux<ShardCheckpoint.PositionedDocument> readSegment(LeafReaderContext leaf, ShardCheckpoint.Tracker tracker) {
+        return readSegment(leaf, tracker, 0, leaf.reader().maxDoc());
+    }
+
+    /*
+     * Reads the segment's Documents with doc ids (within the segment) from startDoc up to, but not including, endDoc
+     */
+    protected Flux<ShardCheckpoint.PositionedDocument> readSegment(LeafReaderContext leaf, ShardCheckpoint.Tracker tracker, int startDoc, int endDoc) {
+        LeafReader segmentReader = leaf.reader();
+        String segmentName = getSegmentName(leaf);
+        int startDocId = Math.max(tracker.getResumePoint(segmentName), startDoc);
+        if (startDocId >= endDoc) {
+            logger.debug("Skipping segment " + segmentName + ", which the checkpoint shows is already done");
+            return Flux.empty();
+        }
+
+        Bits liveDocs = segmentReader.getLiveDocs(); // null when the segment has no deletions
+        logger.debug(segmentReader.maxDoc() + " documents found in segment " + segmentName + ", of which " + segmentReader.numDeletedDocs()
+            + " are deleted; starting from document " + startDocId + (endDoc < segmentReader.maxDoc() ? " and stopping before document " + endDoc : ""));
+
+        return Flux.range(startDocId, endDoc - startDocId) // Extract the remaining Documents in the segment (or our part of it)
+            .doOnSubscribe(subscription -> tracker.onSegmentStarted(segmentName, startDocId))
+            .filter(i -> liveDocs == null || liveDocs.get(i)) // Skip deleted docs without loading them
+            .<ShardCheckpoint.PositionedDocument>handle((i, sink) -> {
+                Document doc = getDocument(segmentReader, i);
+                if (doc != null) { // Skip malformed docs
+                    ShardCheckpoint.Position position = new ShardCheckpoint.Position(segmentName, i);
+                    tracker.onDocumentRead(position);
+                    sink.next(new ShardCheckpoint.PositionedDocument(doc, position));
+                }
+            })
+            .doOnComplete(() -> tracker.onSegmentExhausted(segmentName));
+    }
+
+    /*
+     * Segment names are stable across unpackings of the same snapshot, unlike the segment's position in the reader
+     */
+    protected static String getSegmentName(LeafReaderContext leaf) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(leaf.reader());
+        if (unwrapped instanceof SegmentReader) {
+            return ((SegmentReader) unwrapped).getSegmentName();
+        }
+        return "ord_" + leaf.ord;
     }
 
     protected IndexReader openIndexReader(Path indexDirectoryPath) throws IOException {
-        return DirectoryReader.open(FSDirectory.open(indexDirectoryPath));
+        return new SoftDeletesDirectoryReaderWrapper(DirectoryReader.open(FSDirectory.open(indexDirectoryPath)), SOFT_DELETES_FIELD);
     }
 
     protected Document getDocument(IndexReader reader, int docId) {
         try {
-            Document document = reader.document(docId);
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(FIELDS_TO_LOAD);
+            reader.document(docId, visitor);
+            Document document = visitor.getDocument();
             BytesRef source_bytes = document.getBinaryValue("_source");
             String id;
             try {
@@ -64,7 +191,7 @@ public class LuceneDocumentsReader {
                 return null; // Skip documents with missing id
             }
             if (source_bytes == null || source_bytes.bytes.length == 0) {
-                logger.warn("Document " + id + " is deleted or doesn't have the _source field enabled");
+                logger.warn("Document " + id + " doesn't have the _source field enabled");
                 return null;  // Skip these too
             }
 
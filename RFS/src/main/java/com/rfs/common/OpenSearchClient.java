@@ -2,15 +2,19 @@ package com.rfs.common;
 
 import java.net.HttpURLConnection;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.netty.buffer.ByteBuf;
 import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
 
@@ -22,66 +26,88 @@ public class OpenSearchClient {
     private final RestClient client;
 
     public OpenSearchClient(ConnectionDetails connectionDetails) {
+        this(connectionDetails, ConnectionPool.getDefault());
+    }
+
+    public OpenSearchClient(ConnectionDetails connectionDetails, ConnectionPool connectionPool) {
         this.connectionDetails = connectionDetails;
-        this.client = new RestClient(connectionDetails);
+        this.client = new RestClient(connectionDetails, connectionPool);
     }
 
     /*
      * Idempotently create a legacy template if it does not already exist; return true if created, false otherwise.
      */
     public boolean createLegacyTemplate(String templateName, ObjectNode settings){
+        return createLegacyTemplateAsync(templateName, settings).block();
+    }
+
+    public Mono<Boolean> createLegacyTemplateAsync(String templateName, ObjectNode settings){
         String targetPath = "_template/" + templateName;
-        return createObjectIdempotent(targetPath, settings);
+        return createObjectIdempotentAsync(targetPath, settings);
     }
 
     /*
      * Idempotently create a component template if it does not already exist; return true if created, false otherwise.
      */
     public boolean createComponentTemplate(String templateName, ObjectNode settings){
+        return createComponentTemplateAsync(templateName, settings).block();
+    }
+
+    public Mono<Boolean> createComponentTemplateAsync(String templateName, ObjectNode settings){
         String targetPath = "_component_template/" + templateName;
-        return createObjectIdempotent(targetPath, settings);
+        return createObjectIdempotentAsync(targetPath, settings);
     }
 
     /*
      * Idempotently create an index template if it does not already exist; return true if created, false otherwise.
      */
     public boolean createIndexTemplate(String templateName, ObjectNode settings){
+        return createIndexTemplateAsync(templateName, settings).block();
+    }
+
+    public Mono<Boolean> createIndexTemplateAsync(String templateName, ObjectNode settings){
         String targetPath = "_index_template/" + templateName;
-        return createObjectIdempotent(targetPath, settings);
+        return createObjectIdempotentAsync(targetPath, settings);
     }
 
     /*
      * Idempotently create an index if it does not already exist; return true if created, false otherwise.
      */
     public boolean createIndex(String indexName, ObjectNode settings){
-        String targetPath = indexName;
-        return createObjectIdempotent(targetPath, settings);
+        return createIndexAsync(indexName, settings).block();
     }
 
-    private boolean createObjectIdempotent(String objectPath, ObjectNode settings){
-        RestClient.Response response = client.getAsync(objectPath)
-        .flatMap(resp -> {
-            if (resp.code == HttpURLConnection.HTTP_NOT_FOUND || resp.code == HttpURLConnection.HTTP_OK) {
-                return Mono.just(resp);
-            } else {
-                String errorMessage = ("Could not create object: " + objectPath + ". Response Code: " + resp.code
-                    + ", Response Message: " + resp.message + ", Response Body: " + resp.body);
-                return Mono.error(new OperationFailed(errorMessage, resp));
-            }
-        })
-        .doOnError(e -> logger.error(e.getMessage()))
-        .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)))
-        .block();
+    public Mono<Boolean> createIndexAsync(String indexName, ObjectNode settings){
+        String targetPath = indexName;
+        return createObjectIdempotentAsync(targetPath, settings);
+    }
 
-        if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
-            client.put(objectPath, settings.toString());
-            return true;
-        } else if (response.code == HttpURLConnection.HTTP_OK) {
-            logger.info(objectPath + " already exists. Skipping creation.");
-        } else {
-            logger.warn("Could not confirm that " + objectPath + " does not already exist. Skipping creation.");
-        }
-        return false;
+    /*
+     * Nothing happens until the returned Mono is subscribed to, so callers can issue many of these concurrently
+     */
+    private Mono<Boolean> createObjectIdempotentAsync(String objectPath, ObjectNode settings){
+        return client.getAsync(objectPath)
+            .flatMap(resp -> {
+                if (resp.code == HttpURLConnection.HTTP_NOT_FOUND || resp.code == HttpURLConnection.HTTP_OK) {
+                    return Mono.just(resp);
+                } else {
+                    String errorMessage = ("Could not create object: " + objectPath + ". Response Code: " + resp.code
+                        + ", Response Message: " + resp.message + ", Response Body: " + resp.body);
+                    return Mono.error(new OperationFailed(errorMessage, resp));
+                }
+            })
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)))
+            .flatMap(response -> {
+                if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return client.putAsync(objectPath, settings.toString()).thenReturn(true);
+                } else if (response.code == HttpURLConnection.HTTP_OK) {
+                    logger.info(objectPath + " already exists. Skipping creation.");
+                } else {
+                    logger.warn("Could not confirm that " + objectPath + " does not already exist. Skipping creation.");
+                }
+                return Mono.just(false);
+            });
     }
 
     public RestClient.Response registerSnapshotRepo(String repoName, ObjectNode settings){
@@ -183,27 +209,41 @@ public class OpenSearchClient {
     public boolean updateDocument(String indexName, String documentId, ObjectNode body) {
         RestClient.Response getResponse = getDocument(indexName, documentId);
 
-        String currentSeqNum;
-        String currentPrimaryTerm;
+        long currentSeqNum;
+        long currentPrimaryTerm;
         try {
             ObjectNode document = (ObjectNode) objectMapper.readTree(getResponse.body);
-            currentSeqNum = document.get("_seq_no").asText();
-            currentPrimaryTerm = document.get("_primary_term").asText();
+            currentSeqNum = document.get("_seq_no").asLong();
+            currentPrimaryTerm = document.get("_primary_term").asLong();
         } catch (Exception e) {
             String errorMessage = "Could not update document: " + indexName + "/" + documentId + ". Response Code: " + getResponse.code;
             throw new OperationFailed(errorMessage, getResponse);
         }
 
-        ObjectNode upsertBody = new ObjectMapper().createObjectNode();
+        RestClient.Response response = updateDocument(indexName, documentId, body, currentSeqNum, currentPrimaryTerm);
+        if (response.code == HttpURLConnection.HTTP_OK) {
+            return true;
+        } else {
+            // The only response code that can end up here is HTTP_CONFLICT, as everything is an error above
+            return false;
+        }
+    }
+
+    /*
+     * Update a document only if it's still at the given sequence number and primary term, which the caller got when it
+     * last read the document.  The response has a 200 status code if the document was updated (and contains its new
+     * sequence number and primary term), and a 409 if something else updated it first.
+     */
+    public RestClient.Response updateDocument(String indexName, String documentId, ObjectNode body, long seqNo, long primaryTerm) {
+        ObjectNode upsertBody = objectMapper.createObjectNode();
         upsertBody.set("doc", body);
 
-        String targetPath = indexName + "/_update/" + documentId + "?if_seq_no=" + currentSeqNum + "&if_primary_term=" + currentPrimaryTerm;
-        RestClient.Response response = client.postAsync(targetPath, upsertBody.toString())
+        String targetPath = indexName + "/_update/" + documentId + "?if_seq_no=" + seqNo + "&if_primary_term=" + primaryTerm;
+        return client.postAsync(targetPath, upsertBody.toString())
             .flatMap(resp -> {
                 if (resp.code == HttpURLConnection.HTTP_OK || resp.code == HttpURLConnection.HTTP_CONFLICT) {
                     return Mono.just(resp);
                 } else {
-
                     String errorMessage = ("Could not update document: " + indexName + "/" + documentId + ". Response Code: " + resp.code
                         + ", Response Message: " + resp.message + ", Response Body: " + resp.body);
                     return Mono.error(new OperationFailed(errorMessage, resp));
@@ -212,21 +252,41 @@ public class OpenSearchClient {
             .doOnError(e -> logger.error(e.getMessage()))
             .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)))
             .block();
-        if (response.code == HttpURLConnection.HTTP_OK) {
-            return true;
-        } else {
-            // The only response code that can end up here is HTTP_CONFLICT, as everything is an error above
-            return false;
-        }
     }
 
-    public Mono<BulkResponse> sendBulkRequest(String indexName, String body) {
+    /*
+     * Run a search against an index; the body is the full search request body (query, size, etc).  Searching an index
+     * that doesn't exist yet gets a 404 rather than an error, so the caller can treat it as having no hits.
+     */
+    public RestClient.Response searchDocuments(String indexName, ObjectNode body) {
+        String targetPath = indexName + "/_search";
+        return client.postAsync(targetPath, body.toString())
+            .flatMap(resp -> {
+                if (resp.code == HttpURLConnection.HTTP_OK || resp.code == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return Mono.just(resp);
+                } else {
+                    String errorMessage = ("Could not search index: " + indexName + ". Response Code: " + resp.code
+                        + ", Response Message: " + resp.message + ", Response Body: " + resp.body);
+                    return Mono.error(new OperationFailed(errorMessage, resp));
+                }
+            })
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)))
+            .block();
+    }
+
+    /*
+     * The caller keeps ownership of the body and is responsible for releasing it once the returned Mono terminates.
+     */
+    public Mono<BulkResponse> sendBulkRequest(String indexName, ByteBuf body) {
         String targetPath = indexName + "/_bulk";
 
         return client.postAsync(targetPath, body)
             .map(response -> new BulkResponse(response.code, response.body, response.message))
             .flatMap(resp -> {
-                if (resp.hasBadStatusCode() || resp.hasFailedOperations()) {
+                // Only a failure of the request as a whole is retried here; failures of individual operations are
+                // left to the caller, which can resend just those operations
+                if (resp.hasBadStatusCode()) {
                     logger.error(resp.getFailureMessage());
                     return Mono.error(new OperationFailed(resp.getFailureMessage(), resp));
                 }
@@ -241,7 +301,83 @@ public class OpenSearchClient {
         return client.get(targetPath);
     }
 
+    public RestClient.Response refresh(String indexName) {
+        String targetPath = indexName + "/_refresh";
+
+        return client.get(targetPath);
+    }
+
+    /*
+     * Returns the parts of the cluster state needed to route documents to an index's shards: its metadata (including
+     * routing_num_shards) and its routing table (which node holds each shard copy)
+     */
+    public ObjectNode getIndexRoutingState(String indexName) {
+        String targetPath = "_cluster/state/metadata,routing_table/" + indexName;
+        return getJson(targetPath, "Could not get the cluster state of index: " + indexName);
+    }
+
+    /*
+     * Returns the HTTP addresses the cluster's nodes publish, keyed (under "nodes") by node id
+     */
+    public ObjectNode getNodesHttpInfo() {
+        return getJson("_nodes/http", "Could not get the HTTP info of the cluster's nodes");
+    }
+
+    private ObjectNode getJson(String targetPath, String failureMessage) {
+        RestClient.Response response = client.getAsync(targetPath)
+            .flatMap(resp -> checkOk(resp, failureMessage))
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)))
+            .block();
+        try {
+            return (ObjectNode) objectMapper.readTree(response.body);
+        } catch (Exception e) {
+            throw new OperationFailed(failureMessage + ". Could not parse the response body: " + response.body, response);
+        }
+    }
+
+    /*
+     * Updates the dynamic settings of an existing index; a setting given as null is reset to its default.
+     */
+    public Mono<RestClient.Response> updateIndexSettingsAsync(String indexName, ObjectNode settings) {
+        String targetPath = indexName + "/_settings";
+        return client.putAsync(targetPath, settings.toString())
+            .flatMap(resp -> checkOk(resp, "Could not update settings of index: " + indexName))
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)));
+    }
+
+    public Mono<RestClient.Response> refreshAsync(String indexName) {
+        String targetPath = indexName + "/_refresh";
+        return client.postAsync(targetPath, "")
+            .flatMap(resp -> checkOk(resp, "Could not refresh index: " + indexName))
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)));
+    }
+
+    /*
+     * Asks the target to merge the index's segments as its merge policy sees fit; completes once the merge has finished
+     */
+    public Mono<RestClient.Response> forceMergeAsync(String indexName) {
+        String targetPath = indexName + "/_forcemerge";
+        return client.postAsync(targetPath, "")
+            .flatMap(resp -> checkOk(resp, "Could not force merge index: " + indexName))
+            .doOnError(e -> logger.error(e.getMessage()))
+            .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(10)));
+    }
+
+    private static Mono<RestClient.Response> checkOk(RestClient.Response resp, String failureMessage) {
+        if (resp.code == HttpURLConnection.HTTP_OK) {
+            return Mono.just(resp);
+        }
+        String errorMessage = (failureMessage + ". Response Code: " + resp.code
+            + ", Response Message: " + resp.message + ", Response Body: " + resp.body);
+        return Mono.error(new OperationFailed(errorMessage, resp));
+    }
+
     public static class BulkResponse extends RestClient.Response {
+        static final int HTTP_TOO_MANY_REQUESTS = 429; // Not defined in HttpURLConnection
+
         public BulkResponse(int responseCode, String responseBody, String responseMessage) {
             super(responseCode, responseBody, responseMessage);
         }
@@ -261,6 +397,36 @@ public class OpenSearchClient {
             return matcher.find();
         }
 
+        public boolean isRejected() {
+            // The target signals that it's overloaded either by rejecting the whole request with a 429, or by rejecting
+            // some of the individual operations in it with a 429 status.
+            if (code == HTTP_TOO_MANY_REQUESTS) {
+                return true;
+            }
+
+            String regexPattern = "\"status\"\\s*:\\s*429";
+            Pattern pattern = Pattern.compile(regexPattern);
+            Matcher matcher = pattern.matcher(body);
+            return matcher.find();
+        }
+
+        /*
+         * The result of each operation in the request, in the order they were sent
+         */
+        public List<ItemResult> getItems() {
+            try {
+                List<ItemResult> items = new ArrayList<>();
+                for (JsonNode item : objectMapper.readTree(body).path("items")) {
+                    // Each item is keyed by its action, e.g. {"index": {"_id": "1", "status": 201, ...}}
+                    JsonNode result = item.elements().next();
+                    items.add(new ItemResult(result.path("_id").asText(null), result.path("status").asInt(0), result.get("error")));
+                }
+                return items;
+            } catch (Exception e) {
+                throw new OperationFailed("Couldn't parse the bulk response.  Response body: " + body, this);
+            }
+        }
+
         public String getFailureMessage() {
             String failureMessage;
             if (hasBadStatusCode()) {
@@ -273,6 +439,30 @@ public class OpenSearchClient {
         }
     }
 
+    public static class ItemResult {
+        public final String id;
+        public final int status;
+        public final JsonNode error; // Null if the operation succeeded
+
+        public ItemResult(String id, int status, JsonNode error) {
+            this.id = id;
+            this.status = status;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /*
+         * Whether the operation failed for reasons that may go away if it's sent again, i.e. the target was too busy
+         * to take it (429) or its shard wasn't available (503)
+         */
+        public boolean isRetryable() {
+            return !isSuccessful() && (status == BulkResponse.HTTP_TOO_MANY_REQUESTS || status == HttpURLConnection.HTTP_UNAVAILABLE);
+        }
+    }
+
     public static class OperationFailed extends RfsException {
         public final RestClient.Response response;
 
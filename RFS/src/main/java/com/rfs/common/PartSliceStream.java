@@ -2,8 +2,6 @@ package com.rfs.common;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 
 /**
  * Taken from Elasticsearch 6.8, combining the SlicedInputStream and PartSliceStream classes with our special sauce
@@ -28,8 +26,7 @@ public class PartSliceStream extends InputStream {
     }
 
     protected InputStream openSlice(long slice) throws IOException {
-        Path filePath = repo.getBlobFilePath(indexId, shardId, fileMetadata.partName(slice));
-        return Files.newInputStream(filePath);
+        return repo.openBlobFile(indexId, shardId, fileMetadata.partName(slice));
     }
 
     private InputStream nextStream() throws IOException {
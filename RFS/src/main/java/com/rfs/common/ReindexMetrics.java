@@ -0,0 +1,168 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+/*
+ * Tracks the progress of documents through the reindexing pipeline, so that we can see how far we are getting ahead
+ * of the target cluster (the queue depth) and how long the target is taking to respond to our bulk requests.  A single
+ * instance is intended to be shared between all the shards being reindexed concurrently.  Everything recorded is also
+ * passed on to the OpenTelemetry instruments, if any.
+ */
+public class ReindexMetrics {
+    private static final Logger logger = LogManager.getLogger(ReindexMetrics.class);
+    public static final Duration DEFAULT_REPORT_INTERVAL = Duration.ofSeconds(30); // Arbitrarily chosen
+
+    private final RfsTelemetry telemetry;
+    private final AtomicLong docsRead = new AtomicLong(0);
+    private final AtomicLong docsSucceeded = new AtomicLong(0);
+    private final AtomicLong docsFailed = new AtomicLong(0); // Including those dead-lettered
+    private final AtomicLong docsRetried = new AtomicLong(0);
+    private final AtomicLong docsDeadLettered = new AtomicLong(0);
+    private final AtomicInteger bulksInFlight = new AtomicInteger(0);
+    private final AtomicLong bulksSucceeded = new AtomicLong(0);
+    private final AtomicLong bulksFailed = new AtomicLong(0);
+
+    // Latency stats covering the bulk requests finished since the last report
+    private long windowBulkCount = 0;
+    private long windowTotalLatencyMs = 0;
+    private long windowMaxLatencyMs = 0;
+
+    public ReindexMetrics() {
+        this(RfsTelemetry.noop());
+    }
+
+    public ReindexMetrics(RfsTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    public void recordDocumentRead() {
+        docsRead.incrementAndGet();
+        telemetry.recordDocumentRead();
+    }
+
+    public void recordBulkStarted() {
+        bulksInFlight.incrementAndGet();
+    }
+
+    public void recordBulkSent(int numDocs, long numBytes) {
+        telemetry.recordBulkSent(numDocs, numBytes);
+    }
+
+    public void recordBulkSucceeded(int numDocs, Duration latency) {
+        bulksInFlight.decrementAndGet();
+        bulksSucceeded.incrementAndGet();
+        docsSucceeded.addAndGet(numDocs);
+        recordLatency(latency);
+        telemetry.recordBulkFinished(latency, true);
+    }
+
+    public void recordBulkFailed(int numDocs, Duration latency) {
+        bulksInFlight.decrementAndGet();
+        bulksFailed.incrementAndGet();
+        docsFailed.addAndGet(numDocs);
+        recordLatency(latency);
+        telemetry.recordBulkFinished(latency, false);
+    }
+
+    /*
+     * For a bulk request that went through but some of whose operations failed; the ones being retried stay in the
+     * queue, to be recorded again when their own bulk finishes
+     */
+    public void recordBulkPartiallySucceeded(int numSucceeded, int numRetried, int numDeadLettered, Duration latency) {
+        bulksInFlight.decrementAndGet();
+        bulksSucceeded.incrementAndGet();
+        docsSucceeded.addAndGet(numSucceeded);
+        docsRetried.addAndGet(numRetried);
+        docsFailed.addAndGet(numDeadLettered);
+        docsDeadLettered.addAndGet(numDeadLettered);
+        recordLatency(latency);
+        telemetry.recordBulkFinished(latency, true);
+        telemetry.recordDocsRetried(numRetried);
+        telemetry.recordDocsDeadLettered(numDeadLettered);
+    }
+
+    private synchronized void recordLatency(Duration latency) {
+        long latencyMs = latency.toMillis();
+        windowBulkCount++;
+        windowTotalLatencyMs += latencyMs;
+        windowMaxLatencyMs = Math.max(windowMaxLatencyMs, latencyMs);
+    }
+
+    public long getDocsRead() {
+        return docsRead.get();
+    }
+
+    public long getDocsSucceeded() {
+        return docsSucceeded.get();
+    }
+
+    public long getDocsFailed() {
+        return docsFailed.get();
+    }
+
+    public long getDocsRetried() {
+        return docsRetried.get();
+    }
+
+    public long getDocsDeadLettered() {
+        return docsDeadLettered.get();
+    }
+
+    public int getBulksInFlight() {
+        return bulksInFlight.get();
+    }
+
+    public long getBulksSucceeded() {
+        return bulksSucceeded.get();
+    }
+
+    public long getBulksFailed() {
+        return bulksFailed.get();
+    }
+
+    /*
+     * The number of documents that have been read from the source but whose bulk request has not yet finished; this
+     * includes documents still being batched up as well as those in bulk requests currently in flight.
+     */
+    public long getQueueDepth() {
+        return docsRead.get() - docsSucceeded.get() - docsFailed.get();
+    }
+
+    /*
+     * Returns a human-readable summary of the metrics, and resets the latency stats for the next reporting window
+     */
+    public synchronized String reportAndReset() {
+        long avgLatencyMs = windowBulkCount == 0 ? 0 : windowTotalLatencyMs / windowBulkCount;
+        String report = "Docs read: " + getDocsRead()
+            + ", Docs succeeded: " + getDocsSucceeded()
+            + ", Docs failed: " + getDocsFailed()
+            + ", Docs retried: " + getDocsRetried()
+            + ", Docs dead-lettered: " + getDocsDeadLettered()
+            + ", Queue depth (docs): " + getQueueDepth()
+            + ", Bulks in flight: " + getBulksInFlight()
+            + ", Bulks succeeded: " + getBulksSucceeded()
+            + ", Bulks failed: " + getBulksFailed()
+            + ", Bulk latency in window (count/avg/max ms): " + windowBulkCount + "/" + avgLatencyMs + "/" + windowMaxLatencyMs;
+
+        windowBulkCount = 0;
+        windowTotalLatencyMs = 0;
+        windowMaxLatencyMs = 0;
+        return report;
+    }
+
+    /*
+     * Periodically logs the metrics until the returned Disposable is disposed
+     */
+    public Disposable startReporting(Duration interval) {
+        return Flux.interval(interval, interval)
+            .subscribe(tick -> logger.info("Reindexing metrics - " + reportAndReset()));
+    }
+}
@@ -1,7 +1,15 @@
 package com.rfs.common;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.ReferenceCounted;
+import lombok.Lombok;
 import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.ByteBufMono;
@@ -23,10 +31,18 @@ public class RestClient {
     private final HttpClient client;
 
     public RestClient(ConnectionDetails connectionDetails) {
+        this(connectionDetails, ConnectionPool.getDefault());
+    }
+
+    public RestClient(ConnectionDetails connectionDetails, ConnectionPool connectionPool) {
         this.connectionDetails = connectionDetails;
 
-        this.client = HttpClient.create()
+        this.client = HttpClient.create(connectionPool.connectionProvider)
+            .runOn(connectionPool.loopResources)
+            .keepAlive(true)
             .baseUrl(connectionDetails.url)
+            // Asks for gzipped responses (and decompresses them) whenever we're compressing our requests
+            .compress(isCompressingRequests())
             .headers(h -> {
                 h.add("Content-Type", "application/json");
                 h.add("User-Agent", "RfsWorker-1.0");
@@ -57,6 +73,60 @@ public class RestClient {
                 .map(b -> new Response(response.status().code(), b, response.status().reasonPhrase())));
     }
 
+    /*
+     * Sends a retained duplicate of the body with each subscription, so the returned Mono can be retried.  The caller
+     * keeps ownership of the body and is responsible for releasing it once it's no longer needed.
+     *
+     * If the connection is configured for compression, the body is gzipped (afresh for each subscription, into a
+     * pooled buffer that's released once the request completes) and sent with a Content-Encoding header.
+     */
+    public Mono<Response> postAsync(String path, ByteBuf body) {
+        if (!isCompressingRequests()) {
+            return client.post()
+                .uri("/" + path)
+                .send(Mono.fromSupplier(body::retainedDuplicate))
+                .responseSingle((response, bytes) -> bytes.asString()
+                    .map(b -> new Response(response.status().code(), b, response.status().reasonPhrase())));
+        }
+
+        return Mono.using(
+            () -> gzip(body, connectionDetails.compressionLevel),
+            compressedBody -> client.headers(h -> h.add("Content-Encoding", "gzip"))
+                .post()
+                .uri("/" + path)
+                .send(Mono.fromSupplier(compressedBody::retainedDuplicate))
+                .responseSingle((response, bytes) -> bytes.asString()
+                    .map(b -> new Response(response.status().code(), b, response.status().reasonPhrase()))),
+            ReferenceCounted::release
+        );
+    }
+
+    private boolean isCompressingRequests() {
+        return connectionDetails.compressionLevel != ConnectionDetails.NO_COMPRESSION;
+    }
+
+    /*
+     * Streams the readable bytes of the body through a gzip encoder into a new pooled buffer, without touching the
+     * body's reader index
+     */
+    static ByteBuf gzip(ByteBuf body, int level) {
+        ByteBuf compressed = ByteBufAllocator.DEFAULT.buffer(Math.max(64, body.readableBytes() / 4));
+        try (OutputStream gzipStream = new LeveledGZIPOutputStream(new ByteBufOutputStream(compressed), level)) {
+            body.getBytes(body.readerIndex(), gzipStream, body.readableBytes());
+        } catch (IOException e) {
+            compressed.release();
+            throw Lombok.sneakyThrow(e);
+        }
+        return compressed;
+    }
+
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 64 * 1024);
+            def.setLevel(level);
+        }
+    }
+
     public Mono<Response> putAsync(String path, String body) {
         return client.put()
             .uri("/" + path)
@@ -0,0 +1,178 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.exporter.otlp.metrics.OtlpGrpcMetricExporter;
+import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.semconv.ResourceAttributes;
+
+/*
+ * The OpenTelemetry instruments for an RFS worker, so that its throughput can be watched on the same dashboards as the
+ * rest of the migration's components.  The SDK is set up the same way as the Traffic Capture/Replayer's, sending
+ * metrics and traces to an OTel Collector over OTLP/gRPC; with no collector endpoint, every instrument is a no-op.
+ *
+ * ReindexMetrics, UnpackMetrics, and ShardWorkScheduler feed these alongside their own stats, so the periodic log
+ * reports are unaffected by whether there's a collector.
+ */
+public class RfsTelemetry {
+    private static final Logger logger = LogManager.getLogger(RfsTelemetry.class);
+    public static final String SCOPE_NAME = "rfs";
+    public static final Duration METRIC_EXPORT_INTERVAL = Duration.ofSeconds(1); // Same as the Replayer's
+
+    public static final AttributeKey<String> INDEX_NAME = AttributeKey.stringKey("indexName");
+    public static final AttributeKey<Long> SHARD_ID = AttributeKey.longKey("shardId");
+    public static final AttributeKey<Boolean> SUCCEEDED = AttributeKey.booleanKey("succeeded");
+
+    private final Tracer tracer;
+    private final LongCounter docsRead;
+    private final LongCounter docsRetried;
+    private final LongCounter docsDeadLettered;
+    private final LongCounter bulksFailed;
+    private final LongHistogram bulkLatency;
+    private final LongHistogram bulkDocs;
+    private final LongHistogram bulkBytes;
+    private final LongCounter bytesPrepped;
+    private final LongCounter bytesUnpacked;
+    private final LongHistogram shardDuration;
+
+    public RfsTelemetry(OpenTelemetry openTelemetry) {
+        Meter meter = openTelemetry.getMeter(SCOPE_NAME);
+        this.tracer = openTelemetry.getTracer(SCOPE_NAME);
+        this.docsRead = meter.counterBuilder("docsRead")
+            .setDescription("Documents read from the source snapshot").setUnit("{document}").build();
+        this.docsRetried = meter.counterBuilder("docsRetried")
+            .setDescription("Documents resent after the target rejected them within a bulk").setUnit("{document}").build();
+        this.docsDeadLettered = meter.counterBuilder("docsDeadLettered")
+            .setDescription("Documents the target permanently refused").setUnit("{document}").build();
+        this.bulksFailed = meter.counterBuilder("bulksFailed")
+            .setDescription("Bulk requests that failed outright").setUnit("{request}").build();
+        this.bulkLatency = meter.histogramBuilder("bulkLatency").ofLongs()
+            .setDescription("Time for the target to respond to a bulk request").setUnit("ms").build();
+        this.bulkDocs = meter.histogramBuilder("bulkDocs").ofLongs()
+            .setDescription("Documents in each bulk request").setUnit("{document}").build();
+        this.bulkBytes = meter.histogramBuilder("bulkBytes").ofLongs()
+            .setDescription("Size of each bulk request's body, before any compression").setUnit("By").build();
+        this.bytesPrepped = meter.counterBuilder("bytesPrepped")
+            .setDescription("Bytes of snapshot blob files prepped (e.g. downloaded) for unpacking").setUnit("By").build();
+        this.bytesUnpacked = meter.counterBuilder("bytesUnpacked")
+            .setDescription("Bytes of Lucene files written to disk by unpacking").setUnit("By").build();
+        this.shardDuration = meter.histogramBuilder("shardDuration").ofLongs()
+            .setDescription("Time to unpack (if needed) and reindex a shard").setUnit("ms").build();
+    }
+
+    /*
+     * Every instrument does nothing; used when there's no collector to send to
+     */
+    public static RfsTelemetry noop() {
+        return new RfsTelemetry(OpenTelemetry.noop());
+    }
+
+    /*
+     * Sends to the collector at the endpoint (e.g. http://localhost:4317) if one is given, else does nothing
+     */
+    public static RfsTelemetry forCollectorOrNoop(String collectorEndpoint, String serviceName) {
+        if (collectorEndpoint == null) {
+            return noop();
+        }
+        logger.info("Sending metrics and traces to the OpenTelemetry Collector at " + collectorEndpoint);
+        return new RfsTelemetry(initializeOpenTelemetryForCollector(collectorEndpoint, serviceName));
+    }
+
+    public static OpenTelemetry initializeOpenTelemetryForCollector(String collectorEndpoint, String serviceName) {
+        Resource serviceResource = Resource.getDefault().toBuilder()
+            .put(ResourceAttributes.SERVICE_NAME, serviceName)
+            .build();
+
+        BatchSpanProcessor spanProcessor = BatchSpanProcessor.builder(OtlpGrpcSpanExporter.builder()
+                .setEndpoint(collectorEndpoint)
+                .setTimeout(2, TimeUnit.SECONDS)
+                .build())
+            .build();
+        PeriodicMetricReader metricReader = PeriodicMetricReader.builder(OtlpGrpcMetricExporter.builder()
+                .setEndpoint(collectorEndpoint)
+                .build())
+            .setInterval(METRIC_EXPORT_INTERVAL)
+            .build();
+
+        OpenTelemetrySdk openTelemetrySdk = OpenTelemetrySdk.builder()
+            .setTracerProvider(SdkTracerProvider.builder().setResource(serviceResource)
+                .addSpanProcessor(spanProcessor).build())
+            .setMeterProvider(SdkMeterProvider.builder().setResource(serviceResource)
+                .registerMetricReader(metricReader).build())
+            .build();
+
+        // Flushes whatever hasn't been exported yet when the worker exits
+        Runtime.getRuntime().addShutdownHook(new Thread(openTelemetrySdk::close));
+        return openTelemetrySdk;
+    }
+
+    public void recordDocumentRead() {
+        docsRead.add(1);
+    }
+
+    public void recordBulkSent(int numDocs, long numBytes) {
+        bulkDocs.record(numDocs);
+        bulkBytes.record(numBytes);
+    }
+
+    public void recordBulkFinished(Duration latency, boolean succeeded) {
+        bulkLatency.record(latency.toMillis(), Attributes.of(SUCCEEDED, succeeded));
+        if (!succeeded) {
+            bulksFailed.add(1);
+        }
+    }
+
+    public void recordDocsRetried(int numDocs) {
+        docsRetried.add(numDocs);
+    }
+
+    public void recordDocsDeadLettered(int numDocs) {
+        docsDeadLettered.add(numDocs);
+    }
+
+    public void recordBytesPrepped(long numBytes) {
+        bytesPrepped.add(numBytes);
+    }
+
+    public void recordBytesUnpacked(long numBytes) {
+        bytesUnpacked.add(numBytes);
+    }
+
+    /*
+     * The span covering all the work on a shard; ended by recordShardFinished
+     */
+    public Span startShardSpan(String indexName, int shardId) {
+        return tracer.spanBuilder("shardWork")
+            .setAttribute(INDEX_NAME, indexName)
+            .setAttribute(SHARD_ID, (long) shardId)
+            .startSpan();
+    }
+
+    public void recordShardFinished(Span span, String indexName, Duration duration, Throwable error) {
+        shardDuration.record(duration.toMillis(), Attributes.of(INDEX_NAME, indexName, SUCCEEDED, error == null));
+        if (error != null) {
+            span.recordException(error);
+            span.setStatus(StatusCode.ERROR);
+        }
+        span.end();
+    }
+}
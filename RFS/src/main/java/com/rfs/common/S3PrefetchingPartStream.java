@@ -0,0 +1,189 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/*
+ * Streams a Lucene file straight out of its blob parts in S3, fetching it as a series of fixed-size ranges with
+ * several ranged GETs in flight at once, so the caller can work through the start of the file while later ranges (and
+ * later parts) are still downloading.
+ *
+ * The range the caller needs next is always requested, but ranges beyond that are only requested ahead of time if
+ * there's room for them in the prefetch budget, which is shared between all the streams open against the same repo.
+ * This caps the memory used for read-ahead at the budget plus one range per open stream, and means a stream can never
+ * be starved by read-ahead held by the others.
+ */
+public class S3PrefetchingPartStream extends InputStream {
+    private static final Logger logger = LogManager.getLogger(S3PrefetchingPartStream.class);
+
+    private final S3AsyncClient s3Client;
+    private final List<Range> ranges;
+    private final Semaphore prefetchBudget; // One permit per range's worth of memory
+    private final int maxRangesInFlight;
+    private final Deque<PendingRange> inFlight = new ArrayDeque<>();
+    private int nextRangeToRequest = 0;
+    private PendingRange currentRange;
+    private ByteBuffer currentBytes;
+    private boolean closed = false;
+
+    static class Range {
+        final String bucket;
+        final String key;
+        final long start;
+        final long endInclusive;
+
+        Range(String bucket, String key, long start, long endInclusive) {
+            this.bucket = bucket;
+            this.key = key;
+            this.start = start;
+            this.endInclusive = endInclusive;
+        }
+    }
+
+    private static class PendingRange {
+        final CompletableFuture<ResponseBytes<GetObjectResponse>> response;
+        final boolean holdsPermit;
+
+        PendingRange(CompletableFuture<ResponseBytes<GetObjectResponse>> response, boolean holdsPermit) {
+            this.response = response;
+            this.holdsPermit = holdsPermit;
+        }
+    }
+
+    public S3PrefetchingPartStream(S3AsyncClient s3Client, String bucket, String partKeyPrefix, ShardMetadata.FileInfo fileMetadata,
+            long rangeSizeBytes, int maxRangesInFlight, Semaphore prefetchBudget) {
+        this.s3Client = s3Client;
+        this.ranges = splitIntoRanges(bucket, partKeyPrefix, fileMetadata, rangeSizeBytes);
+        this.maxRangesInFlight = maxRangesInFlight;
+        this.prefetchBudget = prefetchBudget;
+    }
+
+    static List<Range> splitIntoRanges(String bucket, String partKeyPrefix, ShardMetadata.FileInfo fileMetadata, long rangeSizeBytes) {
+        List<Range> ranges = new ArrayList<>();
+        long partSize = fileMetadata.getPartSize(); // Long.MAX_VALUE if the file wasn't split into parts
+        long remainingBytes = fileMetadata.getLength();
+        for (long part = 0; part < fileMetadata.getNumberOfParts(); part++) {
+            long partLength = Math.min(partSize, remainingBytes);
+            String key = partKeyPrefix + fileMetadata.partName(part);
+            for (long start = 0; start < partLength; start += rangeSizeBytes) {
+                ranges.add(new Range(bucket, key, start, Math.min(start + rangeSizeBytes, partLength) - 1));
+            }
+            remainingBytes -= partLength;
+        }
+        return ranges;
+    }
+
+    private void requestRange(boolean holdsPermit) {
+        Range range = ranges.get(nextRangeToRequest++);
+        logger.debug("Requesting bytes " + range.start + "-" + range.endInclusive + " of s3://" + range.bucket + "/" + range.key);
+        GetObjectRequest request = GetObjectRequest.builder()
+            .bucket(range.bucket)
+            .key(range.key)
+            .range("bytes=" + range.start + "-" + range.endInclusive)
+            .build();
+        inFlight.add(new PendingRange(s3Client.getObject(request, AsyncResponseTransformer.toBytes()), holdsPermit));
+    }
+
+    /*
+     * Makes sure the next range we'll need is on its way, then requests as many after it as the budget allows
+     */
+    private void fillReadAhead() {
+        if (inFlight.isEmpty() && nextRangeToRequest < ranges.size()) {
+            requestRange(false);
+        }
+        while (inFlight.size() < maxRangesInFlight && nextRangeToRequest < ranges.size() && prefetchBudget.tryAcquire()) {
+            requestRange(true);
+        }
+    }
+
+    private void releaseCurrentRange() {
+        if (currentRange != null && currentRange.holdsPermit) {
+            prefetchBudget.release();
+        }
+        currentRange = null;
+        currentBytes = null;
+    }
+
+    /*
+     * Moves on to the next range; returns false if there are no more
+     */
+    private boolean advance() throws IOException {
+        releaseCurrentRange();
+        fillReadAhead();
+        if (inFlight.isEmpty()) {
+            return false;
+        }
+
+        currentRange = inFlight.poll();
+        try {
+            currentBytes = currentRange.response.join().asByteBuffer();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to download a range of a blob file from S3", e.getCause());
+        }
+        fillReadAhead(); // Keep the pipeline full while the caller works through this range
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : (single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (currentBytes == null || !currentBytes.hasRemaining()) {
+            if (!advance()) {
+                return -1;
+            }
+        }
+        int toRead = Math.min(length, currentBytes.remaining());
+        currentBytes.get(buffer, offset, toRead);
+        return toRead;
+    }
+
+    @Override
+    public int available() {
+        return currentBytes == null ? 0 : currentBytes.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseCurrentRange();
+        for (PendingRange pending : inFlight) {
+            pending.response.cancel(true);
+            if (pending.holdsPermit) {
+                prefetchBudget.release();
+            }
+        }
+        inFlight.clear();
+    }
+}
@@ -1,17 +1,21 @@
 package com.rfs.common;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.S3Object;
@@ -21,18 +25,39 @@ import software.amazon.awssdk.transfer.s3.model.DirectoryDownload;
 import software.amazon.awssdk.transfer.s3.model.DownloadDirectoryRequest;
 
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Optional;
-
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/*
+ * By default, a shard's blob files are bulk downloaded to the local directory before being unpacked, which means each
+ * shard is written to disk twice (once as blob files, once as Lucene files).  In streaming mode the blob files are
+ * never downloaded; they are instead streamed straight from S3 as they're unpacked, so each shard only touches the
+ * disk once.
+ *
+ * When streaming, each file is fetched as a series of ranged GETs, several at a time, reading ahead across its blob
+ * parts up to a memory budget shared by all the files being unpacked at once.
+ */
 public class S3Repo implements SourceRepo {
     private static final Logger logger = LogManager.getLogger(S3Repo.class);
     private static final double S3_TARGET_THROUGHPUT_GIBPS = 8.0; // Arbitrarily chosen
     private static final long S3_MAX_MEMORY_BYTES = 1024L * 1024 * 1024; // Arbitrarily chosen
     private static final long S3_MINIMUM_PART_SIZE_BYTES = 8L * 1024 * 1024; // Default, but be explicit
+    public static final long DEFAULT_PREFETCH_MEMORY_BYTES = 256L * 1024 * 1024; // Arbitrarily chosen
+    private static final long PREFETCH_RANGE_SIZE_BYTES = 8L * 1024 * 1024; // Matches the CRT client's part size
+    private static final int MAX_RANGES_IN_FLIGHT_PER_FILE = 4; // Arbitrarily chosen
 
     private final Path s3LocalDir;
     private final S3Uri s3RepoUri;
     private final String s3Region;
     private final S3AsyncClient s3Client;
+    private final boolean streamBlobFiles;
+    private final Semaphore prefetchBudget;
+    private final Map<Path, CompletableFuture<Void>> downloadsInFlight = new ConcurrentHashMap<>();
 
     private static int extractVersion(String key) {
         try {
@@ -72,6 +97,10 @@ public class S3Repo implements SourceRepo {
         return Files.exists(localPath);
     }
 
+    protected void moveIntoPlace(Path tempPath, Path localPath) throws IOException {
+        Files.move(tempPath, localPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     private void ensureFileExistsLocally(S3Uri s3Uri, Path localPath) {
         ensureS3LocalDirectoryExists(localPath.getParent());
 
@@ -80,16 +109,62 @@ public class S3Repo implements SourceRepo {
             return;
         }
 
+        // Callers wanting the same file at the same time (e.g. the slices of a shard) share a single download
+        CompletableFuture<Void> download = new CompletableFuture<>();
+        CompletableFuture<Void> inFlightDownload = downloadsInFlight.putIfAbsent(localPath, download);
+        if (inFlightDownload != null) {
+            logger.debug("Waiting on the download already in progress to: " + localPath);
+            inFlightDownload.join();
+            return;
+        }
+
+        try {
+            // Another caller may have finished downloading it between our check and registering our download
+            if (!doesFileExistLocally(localPath)) {
+                downloadFile(s3Uri, localPath);
+            }
+            download.complete(null);
+        } catch (RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloadsInFlight.remove(localPath, download);
+        }
+    }
+
+    private void downloadFile(S3Uri s3Uri, Path localPath) {
         logger.info("Downloading file from S3: " + s3Uri.uri + " to " + localPath);
         GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                 .bucket(s3Uri.bucketName)
                 .key(s3Uri.key)
                 .build();
 
-        s3Client.getObject(getObjectRequest, AsyncResponseTransformer.toFile(localPath)).join();
+        // Downloaded next to where it belongs and then moved into place, so that it's never seen part written, even
+        // if we die part way through
+        Path tempPath = localPath.resolveSibling(localPath.getFileName() + ".download-" + UUID.randomUUID());
+        try {
+            s3Client.getObject(getObjectRequest, AsyncResponseTransformer.toFile(tempPath)).join();
+            moveIntoPlace(tempPath, localPath);
+        } catch (IOException e) {
+            throw new CantDownloadFile(s3Uri, localPath, e);
+        } finally {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                logger.warn("Failed to delete partial download " + tempPath, e);
+            }
+        }
     }
 
     public static S3Repo create(Path s3LocalDir, S3Uri s3Uri, String s3Region) {
+        return create(s3LocalDir, s3Uri, s3Region, false);
+    }
+
+    public static S3Repo create(Path s3LocalDir, S3Uri s3Uri, String s3Region, boolean streamBlobFiles) {
+        return create(s3LocalDir, s3Uri, s3Region, streamBlobFiles, DEFAULT_PREFETCH_MEMORY_BYTES);
+    }
+
+    public static S3Repo create(Path s3LocalDir, S3Uri s3Uri, String s3Region, boolean streamBlobFiles, long prefetchMemoryBytes) {
         S3AsyncClient s3Client = S3AsyncClient.crtBuilder()
                                                    .credentialsProvider(DefaultCredentialsProvider.create())
                                                    .region(Region.of(s3Region))
@@ -99,14 +174,24 @@ public class S3Repo implements SourceRepo {
                                                    .minimumPartSizeInBytes(S3_MINIMUM_PART_SIZE_BYTES)
                                                    .build();
 
-        return new S3Repo(s3LocalDir, s3Uri, s3Region, s3Client);
+        return new S3Repo(s3LocalDir, s3Uri, s3Region, s3Client, streamBlobFiles, prefetchMemoryBytes);
     }
 
     public S3Repo(Path s3LocalDir, S3Uri s3Uri, String s3Region, S3AsyncClient s3Client) {
+        this(s3LocalDir, s3Uri, s3Region, s3Client, false);
+    }
+
+    public S3Repo(Path s3LocalDir, S3Uri s3Uri, String s3Region, S3AsyncClient s3Client, boolean streamBlobFiles) {
+        this(s3LocalDir, s3Uri, s3Region, s3Client, streamBlobFiles, DEFAULT_PREFETCH_MEMORY_BYTES);
+    }
+
+    public S3Repo(Path s3LocalDir, S3Uri s3Uri, String s3Region, S3AsyncClient s3Client, boolean streamBlobFiles, long prefetchMemoryBytes) {
         this.s3LocalDir = s3LocalDir;
         this.s3RepoUri = s3Uri;        
         this.s3Region = s3Region;
         this.s3Client = s3Client;
+        this.streamBlobFiles = streamBlobFiles;
+        this.prefetchBudget = new Semaphore(Math.toIntExact(prefetchMemoryBytes / PREFETCH_RANGE_SIZE_BYTES));
     }
 
     @Override
@@ -178,8 +263,48 @@ public class S3Repo implements SourceRepo {
         return filePath;
     }
 
+    @Override
+    public InputStream openBlobFile(String indexId, int shardId, String blobName) throws IOException {
+        if (!streamBlobFiles) {
+            return SourceRepo.super.openBlobFile(indexId, shardId, blobName);
+        }
+
+        String suffix = "indices/" + indexId + "/" + shardId + "/" + blobName;
+        S3Uri fileUri = new S3Uri(s3RepoUri.uri + "/" + suffix);
+        logger.debug("Streaming blob file from S3: " + fileUri.uri);
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(fileUri.bucketName)
+                .key(fileUri.key)
+                .build();
+
+        try {
+            // Completes once the response starts arriving; the body is then pulled through the stream as it's read
+            ResponseInputStream<GetObjectResponse> stream = s3Client.getObject(getObjectRequest, AsyncResponseTransformer.<GetObjectResponse>toBlockingInputStream()).join();
+            return stream;
+        } catch (CompletionException e) {
+            throw new IOException("Failed to stream blob file from S3: " + fileUri.uri, e.getCause());
+        }
+    }
+
+    @Override
+    public InputStream openBlobFileParts(String indexId, int shardId, ShardMetadata.FileInfo fileMetadata) throws IOException {
+        if (!streamBlobFiles) {
+            return SourceRepo.super.openBlobFileParts(indexId, shardId, fileMetadata);
+        }
+
+        S3Uri shardDirUri = new S3Uri(s3RepoUri.uri + "/indices/" + indexId + "/" + shardId);
+        logger.debug("Streaming blob parts of " + fileMetadata.getName() + " from S3: " + shardDirUri.uri);
+        return new S3PrefetchingPartStream(s3Client, shardDirUri.bucketName, shardDirUri.key + "/", fileMetadata,
+            PREFETCH_RANGE_SIZE_BYTES, MAX_RANGES_IN_FLIGHT_PER_FILE, prefetchBudget);
+    }
+
     @Override
     public void prepBlobFiles(ShardMetadata.Data shardMetadata) {
+        if (streamBlobFiles) {
+            logger.info("Streaming blob files from S3 as they're unpacked, so there's nothing to download up front");
+            return;
+        }
+
         S3TransferManager transferManager = S3TransferManager.builder().s3Client(s3Client).build();
         
         Path shardDirPath = getShardDirPath(shardMetadata.getIndexId(), shardMetadata.getShardId());
@@ -205,12 +330,37 @@ public class S3Repo implements SourceRepo {
         completedDirectoryDownload.failedTransfers().forEach(logger::error);
     }
 
+    @Override
+    public void cleanUpBlobFiles(ShardMetadata.Data shardMetadata) {
+        // Only the blob parts are deleted, leaving the shard's metadata file in the local directory
+        Path shardDirPath = getShardDirPath(shardMetadata.getIndexId(), shardMetadata.getShardId());
+        for (ShardMetadata.FileInfo fileMetadata : shardMetadata.getFiles()) {
+            if (fileMetadata.getName().startsWith("v__")) {
+                continue; // These were never downloaded
+            }
+            for (long part = 0; part < fileMetadata.getNumberOfParts(); part++) {
+                Path partPath = shardDirPath.resolve(fileMetadata.partName(part));
+                try {
+                    Files.deleteIfExists(partPath);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete local blob file " + partPath, e);
+                }
+            }
+        }
+    }
+
     public static class CantCreateS3LocalDir extends RfsException {
         public CantCreateS3LocalDir(Path localPath, Throwable cause) {
             super("Failed to create the S3 local download directory: " + localPath, cause);
         }
     }
 
+    public static class CantDownloadFile extends RfsException {
+        public CantDownloadFile(S3Uri s3Uri, Path localPath, Throwable cause) {
+            super("Failed to download " + s3Uri.uri + " to " + localPath, cause);
+        }
+    }
+
     public static class CantExtractIndexFileVersion extends RfsException {
         public CantExtractIndexFileVersion(String key, Throwable cause) {
             super("Failed to extract the Index File version from S3 object key: " + key, cause);
@@ -0,0 +1,172 @@
+package com.rfs.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * How far through a shard's documents the migration has got, so that a shard whose migration was interrupted can
+ * resume from where it left off rather than from the start.  Progress is tracked per Lucene segment, as the point in
+ * the segment (by doc id) before which every document is known to have been acknowledged by the target; segments are
+ * identified by name, which is stable however many times the shard is unpacked from the same snapshot.
+ *
+ * The checkpoint is conservative: a document that was read but not (yet) successfully indexed holds back its segment's
+ * resume point, so resuming can redo some documents but never skips one.  Redoing a document just overwrites it, as it
+ * keeps its id.
+ */
+public class ShardCheckpoint {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    public static final int SEGMENT_COMPLETE = Integer.MAX_VALUE;
+
+    private final Map<String, Integer> resumePoints;
+
+    public ShardCheckpoint(Map<String, Integer> resumePoints) {
+        this.resumePoints = Collections.unmodifiableMap(new HashMap<>(resumePoints));
+    }
+
+    public static ShardCheckpoint empty() {
+        return new ShardCheckpoint(Map.of());
+    }
+
+    /*
+     * The doc id in the segment to resume reading from; SEGMENT_COMPLETE if the segment can be skipped entirely
+     */
+    public int getResumePoint(String segmentName) {
+        return resumePoints.getOrDefault(segmentName, 0);
+    }
+
+    public Map<String, Integer> getResumePoints() {
+        return resumePoints;
+    }
+
+    public String toJsonString() {
+        ObjectNode node = objectMapper.createObjectNode();
+        resumePoints.forEach(node::put);
+        return node.toString();
+    }
+
+    public static ShardCheckpoint fromJsonString(String json) {
+        try {
+            Map<String, Integer> resumePoints = new HashMap<>();
+            objectMapper.readTree(json).fields().forEachRemaining(entry -> resumePoints.put(entry.getKey(), entry.getValue().asInt()));
+            return new ShardCheckpoint(resumePoints);
+        } catch (Exception e) {
+            throw new CouldNotParseCheckpoint(json, e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ShardCheckpoint && resumePoints.equals(((ShardCheckpoint) other).resumePoints);
+    }
+
+    @Override
+    public int hashCode() {
+        return resumePoints.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toJsonString();
+    }
+
+    /*
+     * Where a document was read from in the shard
+     */
+    public static class Position {
+        public final String segmentName;
+        public final int docId;
+
+        public Position(String segmentName, int docId) {
+            this.segmentName = segmentName;
+            this.docId = docId;
+        }
+    }
+
+    public static class PositionedDocument {
+        public final Document document;
+        public final Position position;
+
+        public PositionedDocument(Document document, Position position) {
+            this.document = document;
+            this.position = position;
+        }
+    }
+
+    /*
+     * Follows the documents of a single shard from being read to being acknowledged by the target, and works out the
+     * resulting checkpoint on demand.  The reader and the reindexer call into it from many threads at once.
+     */
+    public static class Tracker {
+        private final ShardCheckpoint startingPoint;
+        private final Map<String, SegmentProgress> segments = new HashMap<>();
+
+        public Tracker(ShardCheckpoint startingPoint) {
+            this.startingPoint = startingPoint;
+        }
+
+        public int getResumePoint(String segmentName) {
+            return startingPoint.getResumePoint(segmentName);
+        }
+
+        public synchronized void onSegmentStarted(String segmentName, int startDocId) {
+            // A fresh start of the same segment (e.g. when the read is retried) replaces whatever we had for it
+            segments.put(segmentName, new SegmentProgress(startDocId));
+        }
+
+        public synchronized void onDocumentRead(Position position) {
+            SegmentProgress progress = segments.get(position.segmentName);
+            progress.pending.add(position.docId);
+            progress.lastRead = position.docId;
+        }
+
+        public synchronized void onSegmentExhausted(String segmentName) {
+            segments.get(segmentName).exhausted = true;
+        }
+
+        public synchronized void onDocumentsAcknowledged(List<Position> positions) {
+            for (Position position : positions) {
+                SegmentProgress progress = segments.get(position.segmentName);
+                if (progress != null) {
+                    progress.pending.remove(position.docId);
+                }
+            }
+        }
+
+        public synchronized ShardCheckpoint getCheckpoint() {
+            Map<String, Integer> resumePoints = new HashMap<>(startingPoint.getResumePoints());
+            segments.forEach((segmentName, progress) -> resumePoints.put(segmentName, progress.getResumePoint()));
+            return new ShardCheckpoint(resumePoints);
+        }
+
+        private static class SegmentProgress {
+            private final TreeSet<Integer> pending = new TreeSet<>(); // Read, but not yet acknowledged
+            private int lastRead;
+            private boolean exhausted = false;
+
+            SegmentProgress(int startDocId) {
+                this.lastRead = startDocId - 1;
+            }
+
+            int getResumePoint() {
+                if (!pending.isEmpty()) {
+                    return pending.first();
+                }
+                return exhausted ? SEGMENT_COMPLETE : lastRead + 1;
+            }
+        }
+    }
+
+    public static class CouldNotParseCheckpoint extends RfsException {
+        public CouldNotParseCheckpoint(String json, Throwable cause) {
+            super("Could not parse shard checkpoint from JSON: " + json, cause);
+        }
+    }
+}
@@ -8,12 +8,18 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
+import lombok.Lombok;
+
 public class ShardMetadata {
+    // Thread-safe once configured, so shared by every read rather than built per file
+    private static final ObjectMapper objectMapper = new ObjectMapper();
 
     /**
     * Defines the behavior required to read a snapshot's shard metadata as JSON and convert it into a Data object
@@ -32,8 +38,9 @@ public class ShardMetadata {
                 int filePointer = (int) indexInput.getFilePointer();
                 InputStream bis = new ByteArrayInputStream(bytes, filePointer, bytes.length - filePointer);
 
-                ObjectMapper smileMapper = new ObjectMapper(smileFactory);
-                return smileMapper.readTree(bis);
+                try (JsonParser parser = smileFactory.createParser(bis)) {
+                    return objectMapper.readTree(parser);
+                }
             }
         }
 
@@ -48,6 +55,41 @@ public class ShardMetadata {
         public SmileFactory getSmileFactory();
     }
 
+    /**
+    * Wraps another Factory so that each shard's metadata is only read and parsed from the repo once, however many
+    * times (and from however many threads) it's asked for.  Keyed by snapshot, index, and shard.
+    */
+    public static class CachingFactory implements Factory {
+        private final Factory delegate;
+        private final ConcurrentHashMap<String, Data> cache = new ConcurrentHashMap<>();
+
+        public CachingFactory(Factory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Data fromRepo(SourceRepo repo, SnapshotRepo.Provider repoDataProvider, String snapshotName, String indexName, int shardId) throws Exception {
+            String key = snapshotName + "/" + indexName + "/" + shardId;
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return delegate.fromRepo(repo, repoDataProvider, snapshotName, indexName, shardId);
+                } catch (Exception e) {
+                    throw Lombok.sneakyThrow(e);
+                }
+            });
+        }
+
+        @Override
+        public Data fromJsonNode(JsonNode root, String indexId, String indexName, int shardId) throws Exception {
+            return delegate.fromJsonNode(root, indexId, indexName, shardId);
+        }
+
+        @Override
+        public SmileFactory getSmileFactory() {
+            return delegate.getSmileFactory();
+        }
+    }
+
     /**
     * Defines the behavior expected of an object that will surface the metadata of an shard stored in a snapshot
     * See: https://github.com/elastic/elasticsearch/blob/7.10/server/src/main/java/org/elasticsearch/index/snapshots/blobstore/BlobStoreIndexShardSnapshot.java#L510
@@ -0,0 +1,81 @@
+package com.rfs.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * One of numSlices equal ranges of a shard's doc ids, so that a big shard can be split into independent pieces of work
+ * that are read and reindexed at the same time.  The ranges are over the doc ids of the shard as a whole (i.e. across
+ * all its segments, in order), and are only worked out once the shard is open and its size in docs is known; as the
+ * segments of a snapshotted shard never change, the same slice always covers the same documents.
+ *
+ * A slice may start or end part of the way through a segment.  When the workers coordinate through the CMS, each slice
+ * is a work item of its own, with its own lease and checkpoint, so that several workers can migrate the slices of a
+ * shard at once and an interrupted slice resumes from where it got to.  ReindexFromSnapshot's slices are only shared
+ * between its own slots and aren't checkpointed; one that fails is read again from its start, which overwrites rather
+ * than duplicates what it already sent, as the documents keep their ids.
+ */
+public class ShardSlice {
+    public static final ShardSlice WHOLE_SHARD = new ShardSlice(0, 1);
+
+    public final int sliceId;
+    public final int numSlices;
+
+    public ShardSlice(int sliceId, int numSlices) {
+        if (numSlices < 1 || sliceId < 0 || sliceId >= numSlices) {
+            throw new IllegalArgumentException("Invalid slice " + sliceId + " of " + numSlices);
+        }
+        this.sliceId = sliceId;
+        this.numSlices = numSlices;
+    }
+
+    /*
+     * Enough slices that each covers at most about maxSliceBytes of the shard; the bytes are spread across the docs
+     * roughly evenly, so the slices end up similar in size.  A maxSliceBytes below 1 means the shard isn't split.
+     */
+    public static List<ShardSlice> split(long shardSizeInBytes, long maxSliceBytes) {
+        int numSlices = 1;
+        if (maxSliceBytes > 0 && shardSizeInBytes > maxSliceBytes) {
+            numSlices = (int) Math.min(Integer.MAX_VALUE, (shardSizeInBytes + maxSliceBytes - 1) / maxSliceBytes);
+        }
+
+        List<ShardSlice> slices = new ArrayList<>(numSlices);
+        for (int sliceId = 0; sliceId < numSlices; sliceId++) {
+            slices.add(new ShardSlice(sliceId, numSlices));
+        }
+        return slices;
+    }
+
+    public boolean isWholeShard() {
+        return numSlices == 1;
+    }
+
+    /*
+     * The first doc id in the slice, of a shard with maxDoc docs
+     */
+    public int getStartDoc(int maxDoc) {
+        return (int) ((long) maxDoc * sliceId / numSlices);
+    }
+
+    /*
+     * The doc id after the last in the slice, of a shard with maxDoc docs
+     */
+    public int getEndDoc(int maxDoc) {
+        return (int) ((long) maxDoc * (sliceId + 1) / numSlices);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ShardSlice && sliceId == ((ShardSlice) other).sliceId && numSlices == ((ShardSlice) other).numSlices;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * sliceId + numSlices;
+    }
+
+    @Override
+    public String toString() {
+        return (sliceId + 1) + "/" + numSlices;
+    }
+}
@@ -0,0 +1,145 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.opentelemetry.api.trace.Span;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/*
+ * Runs a unit of work for each shard handed to it, with up to shardParallelism shards being worked on at any given
+ * time.  A failure while working on one shard is recorded in that shard's result, but does not stop or affect the work
+ * being done on any other shard.  Each shard's work is traced as a span, and its duration recorded, in OpenTelemetry.
+ */
+public class ShardWorkScheduler {
+    private static final Logger logger = LogManager.getLogger(ShardWorkScheduler.class);
+
+    public static class ShardWorkItem {
+        public final String indexName;
+        public final int shardId;
+        public final ShardSlice slice;
+
+        public ShardWorkItem(String indexName, int shardId) {
+            this(indexName, shardId, ShardSlice.WHOLE_SHARD);
+        }
+
+        public ShardWorkItem(String indexName, int shardId, ShardSlice slice) {
+            this.indexName = indexName;
+            this.shardId = shardId;
+            this.slice = slice;
+        }
+
+        @Override
+        public String toString() {
+            return "Index: " + indexName + ", Shard: " + shardId + (slice.isWholeShard() ? "" : ", Slice: " + slice);
+        }
+    }
+
+    public static class ShardResult {
+        public final ShardWorkItem workItem;
+        public final Duration duration;
+        public final Throwable error; // null if the work succeeded
+
+        public ShardResult(ShardWorkItem workItem, Duration duration, Throwable error) {
+            this.workItem = workItem;
+            this.duration = duration;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    private final int shardParallelism;
+    private final RfsTelemetry telemetry;
+
+    public ShardWorkScheduler(int shardParallelism) {
+        this(shardParallelism, RfsTelemetry.noop());
+    }
+
+    public ShardWorkScheduler(int shardParallelism, RfsTelemetry telemetry) {
+        if (shardParallelism < 1) {
+            throw new IllegalArgumentException("shardParallelism must be at least 1, but was " + shardParallelism);
+        }
+        this.shardParallelism = shardParallelism;
+        this.telemetry = telemetry;
+    }
+
+    public int getShardParallelism() {
+        return shardParallelism;
+    }
+
+    /*
+     * Orders the work items largest first (longest-processing-time-first), so that the biggest shards are started
+     * early and the smaller ones fill in the gaps around them, rather than a big shard starting near the end and
+     * running on alone long after the rest are done.  Items of the same size keep their relative order.
+     */
+    public static List<ShardWorkItem> largestFirst(List<ShardWorkItem> workItems, ToLongFunction<ShardWorkItem> sizeInBytes) {
+        return workItems.stream()
+            .sorted(Comparator.comparingLong(sizeInBytes).reversed())
+            .collect(Collectors.toList());
+    }
+
+    /*
+     * Performs the supplied work on each of the work items, blocking until all of them have either succeeded or
+     * failed.  The work items are started in the order given.  Returns the result for every work item, in the order they
+     * finished.
+     */
+    public List<ShardResult> run(List<ShardWorkItem> workItems, Function<ShardWorkItem, Mono<Void>> shardWork) {
+        int numTotal = workItems.size();
+        AtomicInteger numFinished = new AtomicInteger(0);
+        logger.info("Processing " + numTotal + " shard(s), up to " + shardParallelism + " at a time");
+
+        List<ShardResult> results = Flux.fromIterable(workItems)
+            .flatMap(workItem -> runOne(workItem, shardWork)
+                .doOnNext(result -> logResult(result, numFinished.incrementAndGet(), numTotal)),
+                shardParallelism)
+            .collectList()
+            .block();
+
+        long numFailed = results.stream().filter(result -> !result.isSuccessful()).count();
+        logger.info("Finished processing shards.  Succeeded: " + (numTotal - numFailed) + ", Failed: " + numFailed);
+        return results;
+    }
+
+    private Mono<ShardResult> runOne(ShardWorkItem workItem, Function<ShardWorkItem, Mono<Void>> shardWork) {
+        return Mono.defer(() -> {
+            Instant startTime = Instant.now();
+            Span span = telemetry.startShardSpan(workItem.indexName, workItem.shardId);
+            logger.info("Starting work on shard - " + workItem);
+
+            return Mono.defer(() -> shardWork.apply(workItem))
+                .then(Mono.fromCallable(() -> new ShardResult(workItem, Duration.between(startTime, Instant.now()), null)))
+                .onErrorResume(e -> Mono.just(new ShardResult(workItem, Duration.between(startTime, Instant.now()), e)))
+                .doOnNext(result -> telemetry.recordShardFinished(span, workItem.indexName, result.duration, result.error));
+        });
+    }
+
+    private void logResult(ShardResult result, int numFinished, int numTotal) {
+        String progress = "(" + numFinished + "/" + numTotal + " shards finished)";
+        if (result.isSuccessful()) {
+            logger.info("Work completed for shard - " + result.workItem + " in " + result.duration.toMillis() + " ms " + progress);
+        } else {
+            logger.error("Work failed for shard - " + result.workItem + " after " + result.duration.toMillis() + " ms " + progress, result.error);
+        }
+    }
+
+    public static class ShardWorkFailed extends RfsException {
+        public ShardWorkFailed(List<ShardResult> failedResults) {
+            super("Work failed for " + failedResults.size() + " shard(s): " + failedResults.stream()
+                .map(result -> "[" + result.workItem + "]")
+                .collect(Collectors.joining(", ")));
+        }
+    }
+}
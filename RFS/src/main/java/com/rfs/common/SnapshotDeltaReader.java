@@ -0,0 +1,193 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SoftDeletesDirectoryReaderWrapper;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import lombok.Lombok;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+/*
+ * Works out what changed in a shard between two snapshots of it, as the bulk sections that will bring a target that
+ * has the earlier snapshot's documents up to date with the later one's.
+ *
+ * Lucene segments are immutable apart from their deletions, so a segment in both snapshots (same name and unique id)
+ * has the same documents in each, and only documents in segments new to the later snapshot need to be indexed.  A
+ * document live in the earlier snapshot needs deleting if it's no longer live in the later one, whether because it was
+ * deleted in its segment or because its segment was merged away, unless it's in one of the new segments (as updated
+ * and merged documents will be).  Soft deletes count as deletes, since that's how ES 7 records updates and deletes.
+ *
+ * Finding the deletes means holding the ids of the documents in the new segments in memory, so a delta spanning a big
+ * merge costs memory in proportion to the merged segments' size.
+ */
+public class SnapshotDeltaReader {
+    private static final Logger logger = LogManager.getLogger(SnapshotDeltaReader.class);
+    public static final String SOFT_DELETES_FIELD = LuceneDocumentsReader.SOFT_DELETES_FIELD;
+    private static final Set<String> FIELDS_TO_LOAD_FOR_DELETE = Set.of("_id", "_routing");
+
+    private final LuceneDocumentsReader documentsReader;
+    private final int segmentParallelism;
+
+    public SnapshotDeltaReader(LuceneDocumentsReader documentsReader, int segmentParallelism) {
+        this.documentsReader = documentsReader;
+        this.segmentParallelism = segmentParallelism;
+    }
+
+    /*
+     * Reads the changes in place from the two snapshots' blob files; deletes come first, then the new documents
+     */
+    public Flux<BulkDocSection> readChanges(SourceRepo repo, ShardMetadata.Data previousShard, ShardMetadata.Data currentShard) {
+        return readChanges(
+            () -> DirectoryReader.open(new SnapshotDirectory(repo, previousShard)),
+            () -> DirectoryReader.open(new SnapshotDirectory(repo, currentShard))
+        );
+    }
+
+    protected Flux<BulkDocSection> readChanges(Callable<DirectoryReader> previousReaderSupplier, Callable<DirectoryReader> currentReaderSupplier) {
+        return Flux.using(
+            () -> {
+                DirectoryReader previous = new SoftDeletesDirectoryReaderWrapper(previousReaderSupplier.call(), SOFT_DELETES_FIELD);
+                try {
+                    return List.of(previous, new SoftDeletesDirectoryReaderWrapper(currentReaderSupplier.call(), SOFT_DELETES_FIELD));
+                } catch (Exception e) {
+                    previous.close();
+                    throw e;
+                }
+            },
+            readers -> {
+                try {
+                    return readChanges(readers.get(0), readers.get(1));
+                } catch (IOException e) {
+                    throw Lombok.sneakyThrow(e);
+                }
+            },
+            readers -> readers.forEach(reader -> {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.error("Failed to close IndexReader", e);
+                    throw Lombok.sneakyThrow(e);
+                }
+            })
+        )
+        // Opening the readers and working out the deletes are blocking
+        .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Flux<BulkDocSection> readChanges(DirectoryReader previous, DirectoryReader current) throws IOException {
+        Map<String, LeafReader> previousSegments = new HashMap<>();
+        for (LeafReaderContext leaf : previous.leaves()) {
+            previousSegments.put(getSegmentKey(leaf), leaf.reader());
+        }
+        Map<String, LeafReader> retainedSegments = new HashMap<>(); // Keyed as above; the current reader's copy
+        List<LeafReaderContext> newSegments = new ArrayList<>();
+        for (LeafReaderContext leaf : current.leaves()) {
+            String key = getSegmentKey(leaf);
+            if (previousSegments.containsKey(key)) {
+                retainedSegments.put(key, leaf.reader());
+            } else {
+                newSegments.add(leaf);
+            }
+        }
+
+        List<BulkDocSection> deletes = getDeletes(previousSegments, retainedSegments, getLiveIds(newSegments));
+        logger.info("Shard has " + newSegments.size() + " new segments of " + current.leaves().size() + ", and "
+            + deletes.size() + " documents to delete");
+
+        ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(ShardCheckpoint.empty());
+        Flux<BulkDocSection> additions = Flux.fromIterable(newSegments)
+            .flatMap(leaf -> documentsReader.readSegment(leaf, tracker).subscribeOn(Schedulers.boundedElastic()), segmentParallelism)
+            .map(positioned -> BulkDocSection.fromLuceneDocument(positioned.document));
+        return Flux.fromIterable(deletes).concatWith(additions);
+    }
+
+    private static List<BulkDocSection> getDeletes(Map<String, LeafReader> previousSegments, Map<String, LeafReader> retainedSegments, Set<String> newIds) throws IOException {
+        List<BulkDocSection> deletes = new ArrayList<>();
+        for (Map.Entry<String, LeafReader> entry : previousSegments.entrySet()) {
+            LeafReader previousSegment = entry.getValue();
+            LeafReader currentSegment = retainedSegments.get(entry.getKey()); // Null if the segment is gone
+            Bits previousLiveDocs = previousSegment.getLiveDocs();
+            Bits currentLiveDocs = (currentSegment == null) ? null : currentSegment.getLiveDocs();
+            if (currentSegment != null && currentLiveDocs == null) {
+                continue; // Nothing in the segment is deleted now, so nothing can have been deleted since
+            }
+
+            for (int i = 0; i < previousSegment.maxDoc(); i++) {
+                boolean wasLive = previousLiveDocs == null || previousLiveDocs.get(i);
+                boolean isLive = currentSegment != null && currentLiveDocs.get(i);
+                if (wasLive && !isLive) {
+                    Document doc = readIdFields(previousSegment, i);
+                    String id = getId(doc);
+                    if (id != null && !newIds.contains(id)) {
+                        deletes.add(BulkDocSection.forDelete(id, doc.get("_routing")));
+                    }
+                }
+            }
+        }
+        return deletes;
+    }
+
+    private static Set<String> getLiveIds(List<LeafReaderContext> segments) throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (LeafReaderContext leaf : segments) {
+            LeafReader segment = leaf.reader();
+            Bits liveDocs = segment.getLiveDocs();
+            for (int i = 0; i < segment.maxDoc(); i++) {
+                if (liveDocs == null || liveDocs.get(i)) {
+                    String id = getId(readIdFields(segment, i));
+                    if (id != null) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static Document readIdFields(LeafReader segment, int docId) throws IOException {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(FIELDS_TO_LOAD_FOR_DELETE);
+        segment.document(docId, visitor);
+        return visitor.getDocument();
+    }
+
+    private static String getId(Document doc) {
+        BytesRef id = doc.getBinaryValue("_id");
+        return (id == null) ? null : Uid.decodeId(id.bytes, id.offset, id.length); // Missing on ES's no-op tombstones
+    }
+
+    /*
+     * Segment names are reused if a shard is rebuilt (e.g. recovered from another copy), so the segment's unique id is
+     * what tells us it's really the same segment
+     */
+    protected static String getSegmentKey(LeafReaderContext leaf) {
+        String segmentName = LuceneDocumentsReader.getSegmentName(leaf);
+        LeafReader unwrapped = FilterLeafReader.unwrap(leaf.reader());
+        if (unwrapped instanceof SegmentReader) {
+            byte[] id = ((SegmentReader) unwrapped).getSegmentInfo().info.getId();
+            if (id != null) {
+                return segmentName + "/" + StringHelper.idToString(id);
+            }
+        }
+        return segmentName;
+    }
+}
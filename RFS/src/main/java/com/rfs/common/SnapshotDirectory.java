@@ -0,0 +1,245 @@
+package com.rfs.common;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.BaseDirectory;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoLockFactory;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ * A read-only Lucene Directory that serves a shard's Lucene files straight out of its snapshot blob files, so the
+ * shard can be read in place without first being unpacked by SnapshotShardUnpacker.
+ *
+ * Files whose contents were small enough to be stored inline in the shard metadata (the "v__" blobs) are served from
+ * memory.  All other files are read from their blob parts using positional reads, with each part only being opened
+ * (and, for repos like S3Repo, only being downloaded) the first time a read actually touches it.
+ */
+public class SnapshotDirectory extends BaseDirectory {
+    private static final Logger logger = LogManager.getLogger(SnapshotDirectory.class);
+
+    private final SourceRepo repo;
+    private final ShardMetadata.Data shardMetadata;
+    private final Map<String, ShardMetadata.FileInfo> filesByPhysicalName;
+
+    public SnapshotDirectory(SourceRepo repo, ShardMetadata.Data shardMetadata) {
+        super(NoLockFactory.INSTANCE); // Nothing writes to this directory, so there's nothing to lock
+        this.repo = repo;
+        this.shardMetadata = shardMetadata;
+        this.filesByPhysicalName = new LinkedHashMap<>();
+        for (ShardMetadata.FileInfo fileMetadata : shardMetadata.getFiles()) {
+            filesByPhysicalName.put(fileMetadata.getPhysicalName(), fileMetadata);
+        }
+    }
+
+    private ShardMetadata.FileInfo getFileMetadata(String name) throws IOException {
+        ShardMetadata.FileInfo fileMetadata = filesByPhysicalName.get(name);
+        if (fileMetadata == null) {
+            throw new FileNotFoundException("File " + name + " is not in the snapshot of shard " + shardMetadata.getShardId() + " of index " + shardMetadata.getIndexName());
+        }
+        return fileMetadata;
+    }
+
+    @Override
+    public String[] listAll() throws IOException {
+        ensureOpen();
+        return filesByPhysicalName.keySet().stream().sorted().toArray(String[]::new);
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ensureOpen();
+        return getFileMetadata(name).getLength();
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        ShardMetadata.FileInfo fileMetadata = getFileMetadata(name);
+        logger.debug("Opening - Blob Name: " + fileMetadata.getName() + ", Lucene Name: " + fileMetadata.getPhysicalName());
+
+        if (fileMetadata.getName().startsWith("v__")) {
+            BytesRef hash = BytesRef.deepCopyOf(fileMetadata.getMetaHash());
+            return new ByteArrayIndexInput(name, hash.bytes, 0, hash.length);
+        }
+        BlobParts parts = new BlobParts(repo, fileMetadata, shardMetadata.getIndexId(), shardMetadata.getShardId());
+        return new BlobPartsIndexInput("SnapshotDirectory(" + name + ")", parts, 0, fileMetadata.getLength(), BufferedIndexInput.bufferSize(context));
+    }
+
+    @Override
+    public Set<String> getPendingDeletions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    @Override
+    public void deleteFile(String name) {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    @Override
+    public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    @Override
+    public void sync(Collection<String> names) {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    @Override
+    public void syncMetaData() {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    @Override
+    public void rename(String source, String dest) {
+        throw new UnsupportedOperationException("SnapshotDirectory is read-only");
+    }
+
+    /*
+     * The blob parts making up a single Lucene file.  Each part is opened on first use and then shared between the
+     * IndexInput for the file and all of its clones and slices.
+     */
+    static class BlobParts {
+        private final SourceRepo repo;
+        private final ShardMetadata.FileInfo fileMetadata;
+        private final String indexId;
+        private final int shardId;
+        private final long partBytes;
+        private final FileChannel[] channels;
+
+        BlobParts(SourceRepo repo, ShardMetadata.FileInfo fileMetadata, String indexId, int shardId) {
+            this.repo = repo;
+            this.fileMetadata = fileMetadata;
+            this.indexId = indexId;
+            this.shardId = shardId;
+            this.partBytes = fileMetadata.getPartSize(); // Long.MAX_VALUE if the file wasn't split into parts
+            this.channels = new FileChannel[Math.toIntExact(fileMetadata.getNumberOfParts())];
+        }
+
+        private synchronized FileChannel channel(int part) throws IOException {
+            if (channels[part] == null) {
+                channels[part] = FileChannel.open(repo.getBlobFilePath(indexId, shardId, fileMetadata.partName(part)), StandardOpenOption.READ);
+            }
+            return channels[part];
+        }
+
+        /*
+         * Fills the buffer with the file's bytes starting at the given position, crossing part boundaries as needed
+         */
+        void read(long position, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int part = Math.toIntExact(position / partBytes);
+                long positionInPart = position % partBytes;
+                if (part >= channels.length) {
+                    throw new EOFException("Read past the end of " + fileMetadata.getPhysicalName());
+                }
+
+                // Don't let a single read run past the end of the current part
+                ByteBuffer partBuffer = buffer.slice();
+                partBuffer.limit((int) Math.min(partBuffer.remaining(), partBytes - positionInPart));
+                int bytesRead = channel(part).read(partBuffer, positionInPart);
+                if (bytesRead < 0) {
+                    throw new EOFException("Read past the end of part " + part + " of " + fileMetadata.getPhysicalName());
+                }
+                buffer.position(buffer.position() + bytesRead);
+                position += bytesRead;
+            }
+        }
+
+        synchronized void close() throws IOException {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] != null) {
+                    channels[i].close();
+                    channels[i] = null;
+                }
+            }
+        }
+    }
+
+    static class BlobPartsIndexInput extends BufferedIndexInput {
+        private final BlobParts parts;
+        private final long offset; // Where this input (which may be a slice) starts within the file
+        private final long length;
+        private boolean isClone = false;
+
+        BlobPartsIndexInput(String resourceDesc, BlobParts parts, long offset, long length, int bufferSize) {
+            super(resourceDesc, bufferSize);
+            this.parts = parts;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected void readInternal(ByteBuffer buffer) throws IOException {
+            long position = getFilePointer();
+            if (position + buffer.remaining() > length) {
+                throw new EOFException("Read past EOF: " + this);
+            }
+            parts.read(offset + position, buffer);
+        }
+
+        @Override
+        protected void seekInternal(long pos) throws IOException {
+            if (pos > length) {
+                throw new EOFException("Seek past EOF: " + this);
+            }
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public BlobPartsIndexInput clone() {
+            BlobPartsIndexInput clone = (BlobPartsIndexInput) super.clone();
+            clone.isClone = true;
+            return clone;
+        }
+
+        @Override
+        public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > this.length) {
+                throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset
+                        + ",length=" + length + ",fileLength=" + this.length + ": " + this);
+            }
+            BlobPartsIndexInput slice = new BlobPartsIndexInput(getFullSliceDescription(sliceDescription), parts, this.offset + offset, length, getBufferSize());
+            slice.isClone = true;
+            return slice;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Clones and slices share the parts with the original, which is the only one that should release them
+            if (!isClone) {
+                parts.close();
+            }
+        }
+    }
+}
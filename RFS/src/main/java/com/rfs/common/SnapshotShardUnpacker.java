@@ -1,9 +1,13 @@
 package com.rfs.common;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,40 +17,161 @@ import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.NativeFSLockFactory;
 import org.apache.lucene.util.BytesRef;
 
+import lombok.Lombok;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-public class SnapshotShardUnpacker {
+/*
+ * Unpacks shards from the snapshot's blob files into Lucene files on local disk.  Unpacking a shard happens in two
+ * stages: prepping its blob files (which, depending on the repo, may mean downloading them) and then writing each of
+ * its Lucene files.  Each stage runs on its own bounded pool of threads, so that the number of concurrent downloads and
+ * the number of concurrent file writes can be limited separately, and so that one shard's files can be written while
+ * the next shard's blobs are still downloading.  A single instance is intended to be shared between all the shards
+ * being unpacked concurrently.
+ */
+public class SnapshotShardUnpacker implements AutoCloseable {
     private static final Logger logger = LogManager.getLogger(SnapshotShardUnpacker.class);
+    private static final int SCHEDULER_THREAD_TTL_SECONDS = 60; // The Reactor default
 
-    public static void unpack(SourceRepo repo, ShardMetadata.Data shardMetadata, Path luceneFilesBasePath, int bufferSize) throws Exception {
-        // Some constants
-        NativeFSLockFactory lockFactory = NativeFSLockFactory.INSTANCE;
+    private final SourceRepo repo;
+    private final Path luceneFilesBasePath;
+    private final int bufferSize;
+    private final int maxConcurrentFileWrites;
+    private final UnpackMetrics metrics;
+    private final Scheduler downloadScheduler;
+    private final Scheduler writeScheduler;
+
+    public SnapshotShardUnpacker(SourceRepo repo, Path luceneFilesBasePath, int bufferSize, int maxConcurrentDownloads, int maxConcurrentFileWrites, UnpackMetrics metrics) {
+        if (maxConcurrentDownloads < 1) {
+            throw new IllegalArgumentException("maxConcurrentDownloads must be at least 1, but was " + maxConcurrentDownloads);
+        }
+        if (maxConcurrentFileWrites < 1) {
+            throw new IllegalArgumentException("maxConcurrentFileWrites must be at least 1, but was " + maxConcurrentFileWrites);
+        }
+        this.repo = repo;
+        this.luceneFilesBasePath = luceneFilesBasePath;
+        this.bufferSize = bufferSize;
+        this.maxConcurrentFileWrites = maxConcurrentFileWrites;
+        this.metrics = metrics;
+        this.downloadScheduler = Schedulers.newBoundedElastic(maxConcurrentDownloads, Integer.MAX_VALUE, "rfs-unpack-download", SCHEDULER_THREAD_TTL_SECONDS, true);
+        this.writeScheduler = Schedulers.newBoundedElastic(maxConcurrentFileWrites, Integer.MAX_VALUE, "rfs-unpack-write", SCHEDULER_THREAD_TTL_SECONDS, true);
+    }
+
+    /*
+     * Unpacks a single shard, one file at a time, blocking until it's done
+     */
+    public static void unpack(SourceRepo repo, ShardMetadata.Data shardMetadata, Path luceneFilesBasePath, int bufferSize) {
+        try (SnapshotShardUnpacker unpacker = new SnapshotShardUnpacker(repo, luceneFilesBasePath, bufferSize, 1, 1, new UnpackMetrics())) {
+            unpacker.unpack(shardMetadata).block();
+        }
+    }
+
+    public Mono<Void> unpack(ShardMetadata.Data shardMetadata) {
+        Path luceneIndexDir = Paths.get(luceneFilesBasePath + "/" + shardMetadata.getIndexName() + "/" + shardMetadata.getShardId());
 
         // Ensure the blob files are prepped, if they need to be
-        repo.prepBlobFiles(shardMetadata);
+        Mono<Void> prepBlobFiles = Mono.<Void>fromRunnable(() -> {
+                repo.prepBlobFiles(shardMetadata);
+                metrics.recordBytesPrepped(shardMetadata.getTotalSize());
+            })
+            .subscribeOn(downloadScheduler);
 
-        // Create the directory for the shard's lucene files
+        // Write the shard's Lucene files, up to maxConcurrentFileWrites at a time across all shards
+        Mono<Void> writeFiles = Flux.using(
+            () -> openShardDirectory(luceneIndexDir),
+            directory -> Flux.fromIterable(shardMetadata.getFiles())
+                .flatMap(fileMetadata -> Mono.<Void>fromRunnable(() -> unpackFile(directory, shardMetadata, fileMetadata))
+                    .subscribeOn(writeScheduler), maxConcurrentFileWrites),
+            directory -> {
+                try {
+                    directory.close();
+                } catch (IOException e) {
+                    logger.error("Failed to close FSDirectory", e);
+                    throw Lombok.sneakyThrow(e);
+                }
+            }
+        ).then();
+
+        return prepBlobFiles
+            .then(writeFiles)
+            .doOnSuccess(unused -> metrics.recordShardUnpacked());
+    }
+
+    /*
+     * Deletes the shard's unpacked Lucene files, along with any local copies of its blob files the repo made
+     */
+    public Mono<Void> cleanUp(ShardMetadata.Data shardMetadata) {
         Path luceneIndexDir = Paths.get(luceneFilesBasePath + "/" + shardMetadata.getIndexName() + "/" + shardMetadata.getShardId());
-        Files.createDirectories(luceneIndexDir);
-        final FSDirectory primaryDirectory = FSDirectory.open(luceneIndexDir, lockFactory);
 
-        for (ShardMetadata.FileInfo fileMetadata : shardMetadata.getFiles()) {
-            logger.info("Unpacking - Blob Name: " + fileMetadata.getName() + ", Lucene Name: " + fileMetadata.getPhysicalName());
-            IndexOutput indexOutput = primaryDirectory.createOutput(fileMetadata.getPhysicalName(), IOContext.DEFAULT);
+        return Mono.<Void>fromRunnable(() -> {
+                logger.info("Deleting the unpacked files of shard " + shardMetadata.getShardId() + " of index " + shardMetadata.getIndexName());
+                deleteDirectory(luceneIndexDir);
+                repo.cleanUpBlobFiles(shardMetadata);
+            })
+            .subscribeOn(writeScheduler);
+    }
 
+    private static void deleteDirectory(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            // Delete the contents before the directories containing them
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new CouldNotCleanUpShard(dir, e);
+        }
+    }
+
+    protected FSDirectory openShardDirectory(Path luceneIndexDir) throws IOException {
+        // Create the directory for the shard's lucene files
+        Files.createDirectories(luceneIndexDir);
+        return FSDirectory.open(luceneIndexDir, NativeFSLockFactory.INSTANCE);
+    }
+
+    protected void unpackFile(FSDirectory directory, ShardMetadata.Data shardMetadata, ShardMetadata.FileInfo fileMetadata) {
+        logger.info("Unpacking - Blob Name: " + fileMetadata.getName() + ", Lucene Name: " + fileMetadata.getPhysicalName());
+        try (IndexOutput indexOutput = directory.createOutput(fileMetadata.getPhysicalName(), IOContext.DEFAULT)) {
             if (fileMetadata.getName().startsWith("v__")) {
                 final BytesRef hash = fileMetadata.getMetaHash();
                 indexOutput.writeBytes(hash.bytes, hash.offset, hash.length);
+                metrics.recordBytesWritten(hash.length);
             } else {
-                try (InputStream stream = new PartSliceStream(repo, fileMetadata, shardMetadata.getIndexId(), shardMetadata.getShardId())) {
+                try (InputStream stream = repo.openBlobFileParts(shardMetadata.getIndexId(), shardMetadata.getShardId(), fileMetadata)) {
                     final byte[] buffer = new byte[Math.toIntExact(Math.min(bufferSize, fileMetadata.getLength()))];
                     int length;
                     while ((length = stream.read(buffer)) > 0) {
                         indexOutput.writeBytes(buffer, 0, length);
+                        metrics.recordBytesWritten(length);
                     }
                 }
             }
-            indexOutput.close();
-        }        
+        } catch (IOException e) {
+            throw new CouldNotUnpackFile(fileMetadata, shardMetadata, e);
+        }
+        metrics.recordFileWritten();
+    }
+
+    @Override
+    public void close() {
+        downloadScheduler.dispose();
+        writeScheduler.dispose();
+    }
+
+    public static class CouldNotCleanUpShard extends RfsException {
+        public CouldNotCleanUpShard(Path dir, Throwable cause) {
+            super("Could not delete the unpacked shard files in " + dir, cause);
+        }
+    }
+
+    public static class CouldNotUnpackFile extends RfsException {
+        public CouldNotUnpackFile(ShardMetadata.FileInfo fileMetadata, ShardMetadata.Data shardMetadata, Throwable cause) {
+            super("Could not unpack file " + fileMetadata.getPhysicalName() + " of shard " + shardMetadata.getShardId()
+                + " of index " + shardMetadata.getIndexName(), cause);
+        }
     }
-    
 }
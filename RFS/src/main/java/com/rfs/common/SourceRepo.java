@@ -1,5 +1,8 @@
 package com.rfs.common;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 public interface SourceRepo {
@@ -17,4 +20,28 @@ public interface SourceRepo {
     * may involve no work at all, bulk downloading objects from a remote source, or any other operations.
     */
     public void prepBlobFiles(ShardMetadata.Data shardMetadata);
+
+    /*
+    * Opens a stream over the contents of one of a shard's blob files.  By default this reads the local copy of the file,
+    * but implementations backed by a remote source may instead stream it directly from there.
+    */
+    public default InputStream openBlobFile(String indexId, int shardId, String blobName) throws IOException {
+        return Files.newInputStream(getBlobFilePath(indexId, shardId, blobName));
+    }
+
+    /*
+    * Opens a stream over the full contents of one of a shard's files, reading through each of its blob parts in turn.
+    * Implementations backed by a remote source may override this to fetch later parts while earlier ones are being read.
+    */
+    public default InputStream openBlobFileParts(String indexId, int shardId, ShardMetadata.FileInfo fileMetadata) throws IOException {
+        return new PartSliceStream(this, fileMetadata, indexId, shardId);
+    }
+
+    /*
+    * Releases any local resources that prepBlobFiles() or openBlobFile() set up for a given shard's blob files, such as
+    * downloaded copies of them, once they're no longer needed.  Must never delete the snapshot itself.
+    */
+    public default void cleanUpBlobFiles(ShardMetadata.Data shardMetadata) {
+        // By default there's nothing to clean up
+    }
 }
@@ -0,0 +1,191 @@
+package com.rfs.common;
+
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.StringHelper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * Works out which target node holds the primary of the shard each document will be routed to, so that bulks can be
+ * sent straight to that node instead of to a coordinating node that would forward each document on to its primary.
+ *
+ * The shard is computed the same way OpenSearch does it: murmur3 of the routing (the document's custom routing, else
+ * its id), scaled down from the index's routing_num_shards.  Routing is a matter of efficiency only; whichever node a
+ * bulk lands on will forward any document whose primary it doesn't hold, so if the allocation has moved on since we
+ * last looked, documents still end up in the right place.  If a node's address isn't reachable from here, the caller
+ * resends its bulk through the coordinator and tells us (onNodeUnreachable), and we stop routing to that node until
+ * the next refresh.  Indices we can't route for (e.g. with a routing_partition_size) simply aren't routed.
+ */
+public class TargetShardRouter {
+    private static final Logger logger = LogManager.getLogger(TargetShardRouter.class);
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofMinutes(1); // Arbitrarily chosen
+
+    private final OpenSearchClient coordinatorClient;
+    private final ConnectionPool connectionPool;
+    private final Duration refreshInterval;
+    private final Clock clock;
+    private final Map<String, IndexRouting> routingByIndex = new ConcurrentHashMap<>();
+    private final Map<String, OpenSearchClient> clientsByNodeUrl = new ConcurrentHashMap<>();
+    private final Map<String, Instant> unreachableUntilByNodeUrl = new ConcurrentHashMap<>();
+
+    public TargetShardRouter(OpenSearchClient coordinatorClient, ConnectionPool connectionPool) {
+        this(coordinatorClient, connectionPool, DEFAULT_REFRESH_INTERVAL, Clock.systemUTC());
+    }
+
+    public TargetShardRouter(OpenSearchClient coordinatorClient, ConnectionPool connectionPool, Duration refreshInterval, Clock clock) {
+        this.coordinatorClient = coordinatorClient;
+        this.connectionPool = connectionPool;
+        this.refreshInterval = refreshInterval;
+        this.clock = clock;
+    }
+
+    /*
+     * Same as OpenSearch's Murmur3HashFunction: each char of the routing is hashed as two little-endian bytes
+     */
+    public static int hash(String routing) {
+        byte[] bytesToHash = new byte[routing.length() * 2];
+        for (int i = 0; i < routing.length(); i++) {
+            char c = routing.charAt(i);
+            bytesToHash[i * 2] = (byte) c;
+            bytesToHash[i * 2 + 1] = (byte) (c >>> 8);
+        }
+        return StringHelper.murmurhash3_x86_32(bytesToHash, 0, bytesToHash.length, 0);
+    }
+
+    public static int getShardId(String routing, int routingNumShards, int numShards) {
+        int routingFactor = routingNumShards / numShards;
+        return Math.floorMod(hash(routing), routingNumShards) / routingFactor;
+    }
+
+    /*
+     * The client for the node holding the primary the document will be routed to, or the coordinator's client if we
+     * don't know where that is
+     */
+    public OpenSearchClient getClientFor(String indexName, BulkDocSection section) {
+        IndexRouting routing = getIndexRouting(indexName);
+        if (routing == null) {
+            return coordinatorClient;
+        }
+        int shardId = getShardId(section.routing != null ? section.routing : section.docId, routing.routingNumShards, routing.primaryNodeUrls.size());
+        String nodeUrl = routing.primaryNodeUrls.get(shardId);
+        if (nodeUrl == null || isUnreachable(nodeUrl)) {
+            return coordinatorClient;
+        }
+        return clientsByNodeUrl.computeIfAbsent(nodeUrl, url -> {
+            ConnectionDetails coordinator = coordinatorClient.connectionDetails;
+            logger.info("Opening a client to target node " + url);
+            return new OpenSearchClient(new ConnectionDetails(url, coordinator.username, coordinator.password, coordinator.compressionLevel), connectionPool);
+        });
+    }
+
+    /*
+     * Stops routing to the node the client is for, for one refresh interval, e.g. because we couldn't connect to it
+     */
+    public void onNodeUnreachable(OpenSearchClient nodeClient) {
+        String nodeUrl = nodeClient.connectionDetails.url;
+        if (nodeClient == coordinatorClient || !clientsByNodeUrl.containsKey(nodeUrl)) {
+            return;
+        }
+        logger.warn("Couldn't connect to target node " + nodeUrl + "; sending its documents through the coordinator for now");
+        unreachableUntilByNodeUrl.put(nodeUrl, clock.instant().plus(refreshInterval));
+    }
+
+    private boolean isUnreachable(String nodeUrl) {
+        Instant unreachableUntil = unreachableUntilByNodeUrl.get(nodeUrl);
+        return unreachableUntil != null && clock.instant().isBefore(unreachableUntil);
+    }
+
+    private IndexRouting getIndexRouting(String indexName) {
+        IndexRouting routing = routingByIndex.get(indexName);
+        Instant now = clock.instant();
+        if (routing == null || routing.discoveredAt.plus(refreshInterval).isBefore(now)) {
+            // Racing threads may both rediscover it, which is harmless
+            routing = discoverIndexRouting(indexName, now);
+            routingByIndex.put(indexName, routing);
+        }
+        return routing.primaryNodeUrls.isEmpty() ? null : routing;
+    }
+
+    private IndexRouting discoverIndexRouting(String indexName, Instant now) {
+        try {
+            ObjectNode state = coordinatorClient.getIndexRoutingState(indexName);
+            JsonNode indexMetadata = state.path("metadata").path("indices").path(indexName);
+            int routingPartitionSize = indexMetadata.path("settings").path("index").path("routing_partition_size").asInt(1);
+            if (routingPartitionSize > 1) {
+                logger.info("Index " + indexName + " has a routing partition size, so its documents won't be routed to their primaries");
+                return IndexRouting.unroutable(now);
+            }
+            int routingNumShards = indexMetadata.path("routing_num_shards").asInt(0);
+            int numShards = indexMetadata.path("settings").path("index").path("number_of_shards").asInt(0);
+            if (routingNumShards < 1 || numShards < 1) {
+                logger.warn("Couldn't determine the shard counts of index " + indexName + ", so its documents won't be routed to their primaries");
+                return IndexRouting.unroutable(now);
+            }
+
+            Map<String, String> nodeUrls = getNodeUrls();
+            List<String> primaryNodeUrls = new ArrayList<>();
+            JsonNode shards = state.path("routing_table").path("indices").path(indexName).path("shards");
+            for (int shardId = 0; shardId < numShards; shardId++) {
+                String primaryNodeUrl = null;
+                for (JsonNode copy : shards.path(String.valueOf(shardId))) {
+                    if (copy.path("primary").asBoolean(false) && "STARTED".equals(copy.path("state").asText())) {
+                        primaryNodeUrl = nodeUrls.get(copy.path("node").asText());
+                    }
+                }
+                primaryNodeUrls.add(primaryNodeUrl);
+            }
+            logger.debug("Primaries of index " + indexName + " are on: " + primaryNodeUrls);
+            return new IndexRouting(routingNumShards, primaryNodeUrls, now);
+        } catch (Exception e) {
+            logger.warn("Couldn't discover the shard allocation of index " + indexName + ", so its documents won't be routed to their primaries", e);
+            return IndexRouting.unroutable(now);
+        }
+    }
+
+    /*
+     * The URL of each node, by node id, built from the address the node publishes for HTTP and the protocol (and so
+     * port semantics) we use to reach the coordinator
+     */
+    private Map<String, String> getNodeUrls() {
+        String scheme = URI.create(coordinatorClient.connectionDetails.url).getScheme();
+        Map<String, String> nodeUrls = new HashMap<>();
+        coordinatorClient.getNodesHttpInfo().path("nodes").fields().forEachRemaining(node -> {
+            String publishAddress = node.getValue().path("http").path("publish_address").asText("");
+            if (publishAddress.isEmpty()) {
+                return;
+            }
+            // The address may be given as "<host name>/<ip>:<port>"
+            int slash = publishAddress.lastIndexOf('/');
+            nodeUrls.put(node.getKey(), scheme + "://" + publishAddress.substring(slash + 1));
+        });
+        return nodeUrls;
+    }
+
+    private static class IndexRouting {
+        final int routingNumShards;
+        final List<String> primaryNodeUrls; // By shard id; null where unknown.  Empty if the index can't be routed
+        final Instant discoveredAt;
+
+        IndexRouting(int routingNumShards, List<String> primaryNodeUrls, Instant discoveredAt) {
+            this.routingNumShards = routingNumShards;
+            this.primaryNodeUrls = primaryNodeUrls;
+            this.discoveredAt = discoveredAt;
+        }
+
+        static IndexRouting unroutable(Instant discoveredAt) {
+            return new IndexRouting(0, List.of(), discoveredAt);
+        }
+    }
+}
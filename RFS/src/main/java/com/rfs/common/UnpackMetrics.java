@@ -0,0 +1,108 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+/*
+ * Tracks the throughput of each stage of unpacking the snapshot's shards: prepping the blob files (e.g. downloading
+ * them from S3) and writing the Lucene files to disk.  A single instance is intended to be shared between all the shards
+ * being unpacked concurrently.  Everything recorded is also passed on to the OpenTelemetry instruments, if any.
+ */
+public class UnpackMetrics {
+    private static final Logger logger = LogManager.getLogger(UnpackMetrics.class);
+    public static final Duration DEFAULT_REPORT_INTERVAL = Duration.ofSeconds(30); // Arbitrarily chosen
+    private static final double BYTES_PER_MIB = 1024.0 * 1024.0;
+
+    private final RfsTelemetry telemetry;
+    private final AtomicLong bytesPrepped = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong filesWritten = new AtomicLong(0);
+    private final AtomicLong shardsUnpacked = new AtomicLong(0);
+
+    // The totals as of the last report, so that we can work out the rates over the window since then
+    private Instant windowStart = Instant.now();
+    private long windowStartBytesPrepped = 0;
+    private long windowStartBytesWritten = 0;
+
+    public UnpackMetrics() {
+        this(RfsTelemetry.noop());
+    }
+
+    public UnpackMetrics(RfsTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    public void recordBytesPrepped(long numBytes) {
+        bytesPrepped.addAndGet(numBytes);
+        telemetry.recordBytesPrepped(numBytes);
+    }
+
+    public void recordBytesWritten(long numBytes) {
+        bytesWritten.addAndGet(numBytes);
+        telemetry.recordBytesUnpacked(numBytes);
+    }
+
+    public void recordFileWritten() {
+        filesWritten.incrementAndGet();
+    }
+
+    public void recordShardUnpacked() {
+        shardsUnpacked.incrementAndGet();
+    }
+
+    public long getBytesPrepped() {
+        return bytesPrepped.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    public long getShardsUnpacked() {
+        return shardsUnpacked.get();
+    }
+
+    private static String mibPerSec(long numBytes, Duration elapsed) {
+        double seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+        return String.format("%.1f MiB/s", numBytes / BYTES_PER_MIB / seconds);
+    }
+
+    /*
+     * Returns a human-readable summary of the metrics, with each stage's rate covering the window since the last report
+     */
+    public synchronized String reportAndReset() {
+        Instant now = Instant.now();
+        Duration elapsed = Duration.between(windowStart, now);
+        long currentBytesPrepped = getBytesPrepped();
+        long currentBytesWritten = getBytesWritten();
+
+        String report = "Shards unpacked: " + getShardsUnpacked()
+            + ", Files written: " + getFilesWritten()
+            + ", Blob bytes prepped: " + currentBytesPrepped + " (" + mibPerSec(currentBytesPrepped - windowStartBytesPrepped, elapsed) + ")"
+            + ", Lucene bytes written: " + currentBytesWritten + " (" + mibPerSec(currentBytesWritten - windowStartBytesWritten, elapsed) + ")";
+
+        windowStart = now;
+        windowStartBytesPrepped = currentBytesPrepped;
+        windowStartBytesWritten = currentBytesWritten;
+        return report;
+    }
+
+    /*
+     * Periodically logs the metrics until the returned Disposable is disposed
+     */
+    public Disposable startReporting(Duration interval) {
+        return Flux.interval(interval, interval)
+            .subscribe(tick -> logger.info("Unpacking metrics - " + reportAndReset()));
+    }
+}
@@ -8,14 +8,17 @@ import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.rfs.common.ShardMetadata;
 
 public class ShardMetadataFactory_ES_6_8 implements ShardMetadata.Factory {
+    private static final ObjectMapper objectMapper;
 
-    @Override
-    public ShardMetadata.Data fromJsonNode(JsonNode root, String indexId, String indexName, int shardId) throws Exception {
-        ObjectMapper objectMapper = new ObjectMapper();
+    static {
         SimpleModule module = new SimpleModule();
         module.addDeserializer(ShardMetadataData_ES_6_8.FileInfoRaw.class, new ShardMetadataData_ES_6_8.FileInfoRawDeserializer());
+        objectMapper = new ObjectMapper();
         objectMapper.registerModule(module);
+    }
 
+    @Override
+    public ShardMetadata.Data fromJsonNode(JsonNode root, String indexId, String indexName, int shardId) throws Exception {
         ObjectNode objectNodeRoot = (ObjectNode) root;
         ShardMetadataData_ES_6_8.DataRaw shardMetadataRaw = objectMapper.treeToValue(objectNodeRoot, ShardMetadataData_ES_6_8.DataRaw.class);
         return new ShardMetadataData_ES_6_8(
@@ -8,14 +8,17 @@ import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.rfs.common.ShardMetadata;
 
 public class ShardMetadataFactory_ES_7_10 implements ShardMetadata.Factory {
-    
-    @Override
-    public ShardMetadata.Data fromJsonNode(JsonNode root, String indexId, String indexName, int shardId) throws Exception {
-        ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectMapper objectMapper;
+
+    static {
         SimpleModule module = new SimpleModule();
         module.addDeserializer(ShardMetadataData_ES_7_10.FileInfoRaw.class, new ShardMetadataData_ES_7_10.FileInfoRawDeserializer());
+        objectMapper = new ObjectMapper();
         objectMapper.registerModule(module);
-
+    }
+    
+    @Override
+    public ShardMetadata.Data fromJsonNode(JsonNode root, String indexId, String indexName, int shardId) throws Exception {
         ObjectNode objectNodeRoot = (ObjectNode) root;
         ShardMetadataData_ES_7_10.DataRaw shardMetadataRaw = objectMapper.treeToValue(objectNodeRoot, ShardMetadataData_ES_7_10.DataRaw.class);
         return new ShardMetadataData_ES_7_10(
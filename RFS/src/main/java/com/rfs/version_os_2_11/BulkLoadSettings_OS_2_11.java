@@ -0,0 +1,67 @@
+package com.rfs.version_os_2_11;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.rfs.common.OpenSearchClient;
+
+import reactor.core.publisher.Mono;
+
+/*
+ * While an index is being bulk loaded, the target does far less work per document if it isn't also replicating it,
+ * refreshing every second, and fsyncing the translog on every request.  So in bulk-load mode indices are created without
+ * replicas, refreshes, or a synchronous translog; once their documents are in, the settings the index should really
+ * have are put back, and it's refreshed and merged so that it's ready to serve.
+ *
+ * The settings are in the tree form produced by the transformers, i.e. {"number_of_replicas":"1","translog":{...}}.
+ */
+public class BulkLoadSettings_OS_2_11 {
+    private static final Logger logger = LogManager.getLogger(BulkLoadSettings_OS_2_11.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static final String BULK_LOAD_NUMBER_OF_REPLICAS = "0";
+    public static final String BULK_LOAD_REFRESH_INTERVAL = "-1";
+    public static final String BULK_LOAD_TRANSLOG_DURABILITY = "async";
+
+    /*
+     * Overrides the index settings in place with their bulk-load values
+     */
+    public static void applyBulkLoadSettings(ObjectNode settings) {
+        settings.put("number_of_replicas", BULK_LOAD_NUMBER_OF_REPLICAS);
+        settings.put("refresh_interval", BULK_LOAD_REFRESH_INTERVAL);
+        JsonNode translog = settings.get("translog");
+        ObjectNode translogSettings = (translog instanceof ObjectNode) ? (ObjectNode) translog : settings.putObject("translog");
+        translogSettings.put("durability", BULK_LOAD_TRANSLOG_DURABILITY);
+    }
+
+    /*
+     * Returns the body of a settings update that undoes applyBulkLoadSettings(), given the settings the index should
+     * have; any setting those don't specify is reset to the target's default
+     */
+    public static ObjectNode getIntendedSettings(ObjectNode settings) {
+        ObjectNode intended = mapper.createObjectNode();
+        intended.set("index.number_of_replicas", valueOrNull(settings.path("number_of_replicas")));
+        intended.set("index.refresh_interval", valueOrNull(settings.path("refresh_interval")));
+        intended.set("index.translog.durability", valueOrNull(settings.path("translog").path("durability")));
+        return intended;
+    }
+
+    public static Mono<Void> restoreIntendedSettings(String indexName, ObjectNode intendedSettings, OpenSearchClient client) {
+        return Mono.defer(() -> {
+                logger.info("Restoring the intended settings of index " + indexName + ": " + intendedSettings);
+                return client.updateIndexSettingsAsync(indexName, intendedSettings);
+            })
+            .then(Mono.defer(() -> client.refreshAsync(indexName)))
+            .then(Mono.defer(() -> client.forceMergeAsync(indexName)))
+            .doOnSuccess(unused -> logger.info("Index " + indexName + " is refreshed and merged"))
+            .then();
+    }
+
+    private static JsonNode valueOrNull(JsonNode value) {
+        return value.isMissingNode() || value.isNull() ? NullNode.getInstance() : value;
+    }
+}
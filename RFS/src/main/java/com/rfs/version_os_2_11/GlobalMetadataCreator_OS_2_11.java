@@ -2,6 +2,7 @@ package com.rfs.version_os_2_11;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiFunction;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,138 +10,119 @@ import org.apache.logging.log4j.Logger;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.rfs.common.OpenSearchClient;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/*
+ * Templates of each kind are created concurrently, up to maxConcurrentRequests at once across all kinds.  Component
+ * templates are all created before any index template, as index templates can be composed of them; legacy templates
+ * don't depend on either, so are created alongside them.
+ *
+ * A template that fails to be created doesn't stop the others; every template is attempted before the failures are
+ * surfaced.  That includes the index templates when a component template fails, since most won't be composed of it
+ * (and those that are will fail on their own).
+ */
 public class GlobalMetadataCreator_OS_2_11 {
     private static final Logger logger = LogManager.getLogger(GlobalMetadataCreator_OS_2_11.class);
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8; // Arbitrarily chosen
 
     private final OpenSearchClient client;
     private final List<String> legacyTemplateWhitelist;
     private final List<String> componentTemplateWhitelist;
     private final List<String> indexTemplateWhitelist;
+    private final int maxConcurrentRequests;
 
     public GlobalMetadataCreator_OS_2_11(OpenSearchClient client, List<String> legacyTemplateWhitelist, List<String> componentTemplateWhitelist, List<String> indexTemplateWhitelist) {
+        this(client, legacyTemplateWhitelist, componentTemplateWhitelist, indexTemplateWhitelist, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    public GlobalMetadataCreator_OS_2_11(OpenSearchClient client, List<String> legacyTemplateWhitelist, List<String> componentTemplateWhitelist,
+            List<String> indexTemplateWhitelist, int maxConcurrentRequests) {
         this.client = client;
         this.legacyTemplateWhitelist = legacyTemplateWhitelist;
         this.componentTemplateWhitelist = componentTemplateWhitelist;
         this.indexTemplateWhitelist = indexTemplateWhitelist;
+        this.maxConcurrentRequests = maxConcurrentRequests;
     }
 
     public void create(ObjectNode root) {
         logger.info("Setting Global Metadata");
 
         GlobalMetadataData_OS_2_11 globalMetadata = new GlobalMetadataData_OS_2_11(root);
-        createLegacyTemplates(globalMetadata, client, legacyTemplateWhitelist);
-        createComponentTemplates(globalMetadata, client, componentTemplateWhitelist);
-        createIndexTemplates(globalMetadata, client, indexTemplateWhitelist);
+        Mono<Void> indexTemplates = createIndexTemplates(globalMetadata, client, indexTemplateWhitelist);
+        Mono.whenDelayError(
+            createLegacyTemplates(globalMetadata, client, legacyTemplateWhitelist),
+            createComponentTemplates(globalMetadata, client, componentTemplateWhitelist)
+                .onErrorResume(error -> Mono.whenDelayError(Mono.error(error), indexTemplates))
+                .then(indexTemplates)
+        ).block();
     }
 
-    protected void createLegacyTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
-        logger.info("Setting Legacy Templates...");
-        ObjectNode templates = globalMetadata.getTemplates();
-
-        if (templates == null){
-            logger.info("No Legacy Templates in Snapshot");
-            return;
-        }
-
-        if (templateWhitelist != null && templateWhitelist.size() == 0) {
-            logger.info("No Legacy Templates in specified whitelist");
-            return;
-        } else if (templateWhitelist != null) {
-            for (String templateName : templateWhitelist) {
-                if (!templates.has(templateName) || templates.get(templateName) == null) {
-                    logger.warn("Legacy Template not found: " + templateName);
-                    continue;
-                }
-
-                logger.info("Setting Legacy Template: " + templateName);
-                ObjectNode settings = (ObjectNode) globalMetadata.getTemplates().get(templateName);
-                client.createLegacyTemplate(templateName, settings);
-            }
-        } else {
-            // Get the template names
-            List<String> templateKeys = new ArrayList<>();
-            templates.fieldNames().forEachRemaining(templateKeys::add);
+    protected Mono<Void> createLegacyTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
+        return Mono.defer(() -> {
+            logger.info("Setting Legacy Templates...");
+            return createTemplates("Legacy Template", globalMetadata.getTemplates(), templateWhitelist, client::createLegacyTemplateAsync);
+        });
+    }
 
-            // Create each template
-            for (String templateName : templateKeys) {
-                logger.info("Setting Legacy Template: " + templateName);
-                ObjectNode settings = (ObjectNode) templates.get(templateName);
-                client.createLegacyTemplate(templateName, settings);
-            }
-        }
+    protected Mono<Void> createComponentTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
+        return Mono.defer(() -> {
+            logger.info("Setting Component Templates...");
+            return createTemplates("Component Template", globalMetadata.getComponentTemplates(), templateWhitelist, client::createComponentTemplateAsync);
+        });
     }
 
-    protected void createComponentTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
-        logger.info("Setting Component Templates...");
-        ObjectNode templates = globalMetadata.getComponentTemplates();
+    protected Mono<Void> createIndexTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
+        return Mono.defer(() -> {
+            logger.info("Setting Index Templates...");
+            return createTemplates("Index Template", globalMetadata.getIndexTemplates(), templateWhitelist, client::createIndexTemplateAsync);
+        });
+    }
 
-        if (templates == null){
-            logger.info("No Component Templates in Snapshot");
-            return;
+    /*
+     * Creates the templates concurrently; a failure to create one doesn't stop the others from being attempted, but
+     * is surfaced once they've all finished
+     */
+    private Mono<Void> createTemplates(String templateType, ObjectNode templates, List<String> templateWhitelist,
+            BiFunction<String, ObjectNode, Mono<Boolean>> createTemplate) {
+        List<String> templateNames = getTemplatesToCreate(templateType, templates, templateWhitelist);
+        if (templateNames.isEmpty()) {
+            return Mono.empty();
         }
 
-        if (templateWhitelist != null && templateWhitelist.size() == 0) {
-            logger.info("No Component Templates in specified whitelist");
-            return;
-        } else if (templateWhitelist != null) {            
-            for (String templateName : templateWhitelist) {
-                if (!templates.has(templateName) || templates.get(templateName) == null) {
-                    logger.warn("Component Template not found: " + templateName);
-                    continue;
-                }
-
-                logger.info("Setting Component Template: " + templateName);
-                ObjectNode settings = (ObjectNode) templates.get(templateName);
-                client.createComponentTemplate(templateName, settings);
-            }
-        } else {
-            // Get the template names
-            List<String> templateKeys = new ArrayList<>();
-            templates.fieldNames().forEachRemaining(templateKeys::add);
-
-            // Create each template
-            for (String templateName : templateKeys) {
-                logger.info("Setting Component Template: " + templateName);
+        return Flux.fromIterable(templateNames)
+            .flatMapDelayError(templateName -> {
+                logger.info("Setting " + templateType + ": " + templateName);
                 ObjectNode settings = (ObjectNode) templates.get(templateName);
-                client.createComponentTemplate(templateName, settings);
-            }
-        }
+                return createTemplate.apply(templateName, settings);
+            }, maxConcurrentRequests, 1)
+            .filter(created -> created)
+            .count()
+            .doOnNext(numCreated -> logger.info("Created " + numCreated + " of " + templateNames.size() + " " + templateType + "s; the rest already existed"))
+            .then();
     }
 
-    protected void createIndexTemplates(GlobalMetadataData_OS_2_11 globalMetadata, OpenSearchClient client, List<String> templateWhitelist) {
-        logger.info("Setting Index Templates...");
-        ObjectNode templates = globalMetadata.getIndexTemplates();
+    private List<String> getTemplatesToCreate(String templateType, ObjectNode templates, List<String> templateWhitelist) {
+        List<String> templateNames = new ArrayList<>();
 
         if (templates == null){
-            logger.info("No Index Templates in Snapshot");
-            return;
+            logger.info("No " + templateType + "s in Snapshot");
+            return templateNames;
         }
 
         if (templateWhitelist != null && templateWhitelist.size() == 0) {
-            logger.info("No Index Templates in specified whitelist");
-            return;
+            logger.info("No " + templateType + "s in specified whitelist");
         } else if (templateWhitelist != null) {
             for (String templateName : templateWhitelist) {
                 if (!templates.has(templateName) || templates.get(templateName) == null) {
-                    logger.warn("Index Template not found: " + templateName);
+                    logger.warn(templateType + " not found: " + templateName);
                     continue;
                 }
-
-                logger.info("Setting Index Template: " + templateName);
-                ObjectNode settings = (ObjectNode) globalMetadata.getIndexTemplates().get(templateName);
-                client.createIndexTemplate(templateName, settings);
+                templateNames.add(templateName);
             }
         } else {
-            // Get the template names
-            List<String> templateKeys = new ArrayList<>();
-            templates.fieldNames().forEachRemaining(templateKeys::add);
-
-            // Create each template
-            for (String templateName : templateKeys) {
-                logger.info("Setting Index Template: " + templateName);
-                ObjectNode settings = (ObjectNode) templates.get(templateName);
-                client.createIndexTemplate(templateName, settings);
-            }
+            templates.fieldNames().forEachRemaining(templateNames::add);
         }
+        return templateNames;
     }
 }
@@ -5,10 +5,19 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.rfs.common.IndexMetadata;
 import com.rfs.common.OpenSearchClient;
 
+import reactor.core.publisher.Mono;
+
 public class IndexCreator_OS_2_11 {
     private static final ObjectMapper mapper = new ObjectMapper();
 
     public static void create(String indexName, IndexMetadata.Data indexMetadata, OpenSearchClient client) throws Exception {
+        createAsync(indexName, indexMetadata, client).block();
+    }
+
+    /*
+     * Returns a Mono that idempotently creates the index when subscribed to, so that many indices can be created at once
+     */
+    public static Mono<Boolean> createAsync(String indexName, IndexMetadata.Data indexMetadata, OpenSearchClient client) {
         // Remove some settings which will cause errors if you try to pass them to the API
         ObjectNode settings = indexMetadata.getSettings();
 
@@ -24,6 +33,6 @@ public class IndexCreator_OS_2_11 {
         body.set("settings", settings);
 
         // Idempotently create the index
-        client.createIndex(indexName, body);
+        return client.createIndexAsync(indexName, body);
     }
 }
@@ -0,0 +1,76 @@
+package com.rfs.worker;
+
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import com.rfs.cms.CmsClient;
+import com.rfs.cms.CmsEntry.Documents;
+import com.rfs.cms.CmsEntry.DocumentsStatus;
+import com.rfs.common.DocumentReindexer;
+import com.rfs.common.IndexMetadata;
+import com.rfs.common.LuceneDocumentsReader;
+import com.rfs.common.ShardMetadata;
+import com.rfs.common.SnapshotRepo;
+import com.rfs.common.SnapshotShardUnpacker;
+
+public class DocumentsRunner {
+    private static final Logger logger = LogManager.getLogger(DocumentsRunner.class);
+    private final GlobalState globalState;
+    private final CmsClient cmsClient;
+    private final String snapshotName;
+    private final SnapshotRepo.Provider repoDataProvider;
+    private final IndexMetadata.Factory indexMetadataFactory;
+    private final ShardMetadata.Factory shardMetadataFactory;
+    private final SnapshotShardUnpacker unpacker;
+    private final LuceneDocumentsReader reader;
+    private final DocumentReindexer reindexer;
+    private final Path luceneDirPath;
+    private final long maxShardSliceBytes;
+
+    public DocumentsRunner(GlobalState globalState, CmsClient cmsClient, String snapshotName, SnapshotRepo.Provider repoDataProvider,
+            IndexMetadata.Factory indexMetadataFactory, ShardMetadata.Factory shardMetadataFactory, SnapshotShardUnpacker unpacker,
+            LuceneDocumentsReader reader, DocumentReindexer reindexer, Path luceneDirPath, long maxShardSliceBytes) {
+        this.globalState = globalState;
+        this.cmsClient = cmsClient;
+        this.snapshotName = snapshotName;
+        this.repoDataProvider = repoDataProvider;
+        this.indexMetadataFactory = indexMetadataFactory;
+        this.shardMetadataFactory = shardMetadataFactory;
+        this.unpacker = unpacker;
+        this.reader = reader;
+        this.reindexer = reindexer;
+        this.luceneDirPath = luceneDirPath;
+        this.maxShardSliceBytes = maxShardSliceBytes;
+    }
+
+    public void run() throws Exception {
+        logger.info("Checking if work remains in the Documents Phase...");
+        Documents documentsEntry = cmsClient.getDocumentsEntry();
+
+        if (documentsEntry == null || documentsEntry.status != DocumentsStatus.COMPLETED) {
+            DocumentsStep.SharedMembers members = new DocumentsStep.SharedMembers(
+                globalState,
+                cmsClient,
+                snapshotName,
+                repoDataProvider,
+                indexMetadataFactory,
+                shardMetadataFactory,
+                unpacker,
+                reader,
+                reindexer,
+                luceneDirPath,
+                maxShardSliceBytes
+            );
+            WorkerStep nextState = new DocumentsStep.EnterPhase(members);
+
+            while (nextState != null) {
+                nextState.run();
+                nextState = nextState.nextStep();
+            }
+        }
+
+        logger.info("Documents Phase is complete");
+    }
+}
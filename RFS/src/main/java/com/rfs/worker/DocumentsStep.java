@@ -0,0 +1,739 @@
+package com.rfs.worker;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rfs.cms.CmsClient;
+import com.rfs.cms.CmsEntry;
+import com.rfs.cms.OpenSearchCmsClient;
+import com.rfs.cms.OpenSearchCmsEntry;
+import com.rfs.common.DocumentReindexer;
+import com.rfs.common.IndexMetadata;
+import com.rfs.common.LuceneDocumentsReader;
+import com.rfs.common.RfsException;
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardMetadata;
+import com.rfs.common.ShardSlice;
+import com.rfs.common.SnapshotRepo;
+import com.rfs.common.SnapshotShardUnpacker;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+
+/*
+ * Migrates the documents in the snapshot, one shard at a time, in a way that lets any number of workers share the
+ * load.  The first worker to arrive creates a work item in the CMS for every shard in the snapshot, or for every slice
+ * of the shards big enough to be split up; after that, each worker repeatedly leases an available work item, migrates
+ * that shard or slice, and marks the work item completed.  If a worker dies while holding a lease, the lease eventually
+ * expires and another worker picks the work item back up.
+ */
+public class DocumentsStep {
+    public static final int WORK_ITEMS_PER_LOOKUP = 25; // arbitrarily chosen
+
+    public static class SharedMembers {
+        protected final GlobalState globalState;
+        protected final CmsClient cmsClient;
+        protected final String snapshotName;
+        protected final SnapshotRepo.Provider repoDataProvider;
+        protected final IndexMetadata.Factory indexMetadataFactory;
+        protected final ShardMetadata.Factory shardMetadataFactory;
+        protected final SnapshotShardUnpacker unpacker;
+        protected final LuceneDocumentsReader reader;
+        protected final DocumentReindexer reindexer;
+        protected final Path luceneDirPath;
+        protected final long maxShardSliceBytes; // Shards bigger than this are split into slices; 0 means they aren't
+
+        public SharedMembers(GlobalState globalState, CmsClient cmsClient, String snapshotName, SnapshotRepo.Provider repoDataProvider,
+                IndexMetadata.Factory indexMetadataFactory, ShardMetadata.Factory shardMetadataFactory, SnapshotShardUnpacker unpacker,
+                LuceneDocumentsReader reader, DocumentReindexer reindexer, Path luceneDirPath, long maxShardSliceBytes) {
+            this.globalState = globalState;
+            this.cmsClient = cmsClient;
+            this.snapshotName = snapshotName;
+            this.repoDataProvider = repoDataProvider;
+            this.indexMetadataFactory = indexMetadataFactory;
+            this.shardMetadataFactory = shardMetadataFactory;
+            this.unpacker = unpacker;
+            this.reader = reader;
+            this.reindexer = reindexer;
+            this.luceneDirPath = luceneDirPath;
+            this.maxShardSliceBytes = maxShardSliceBytes;
+        }
+    }
+
+    public static abstract class Base implements WorkerStep {
+        protected final Logger logger = LogManager.getLogger(getClass());
+        protected final SharedMembers members;
+
+        public Base(SharedMembers members) {
+            this.members = members;
+        }
+
+        @Override
+        public abstract void run();
+
+        @Override
+        public abstract WorkerStep nextStep();
+    }
+
+    // TODO: This uses the client-side clock to evaluate the lease expiration, when we should ideally be using the
+    // server-side clock.  Consider this a temporary solution until we find out how to use the server-side clock.
+    private static boolean isLeaseExpired(String leaseExpiry) {
+        Instant leaseExpiryInstant = Instant.ofEpochMilli(Long.parseLong(leaseExpiry));
+        return leaseExpiryInstant.isBefore(Instant.now());
+    }
+
+    /*
+     * Updates the Worker's phase to indicate we're doing work on a Documents Migration
+     */
+    public static class EnterPhase extends Base {
+        public EnterPhase(SharedMembers members) {
+            super(members);
+        }
+
+        @Override
+        public void run() {
+            logger.info("Documents Migration not yet completed, entering Documents Phase...");
+            members.globalState.updatePhase(GlobalState.Phase.DOCUMENTS_IN_PROGRESS);
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            return new GetEntry(members);
+        }
+    }
+
+    /*
+     * Gets the current Documents Migration entry from the CMS, if it exists
+     */
+    public static class GetEntry extends Base {
+        private CmsEntry.Documents documentsEntry;
+
+        public GetEntry(SharedMembers members) {
+            super(members);
+        }
+
+        @Override
+        public void run() {
+            logger.info("Pulling the Documents Migration entry from the CMS, if it exists...");
+            this.documentsEntry = members.cmsClient.getDocumentsEntry();
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (documentsEntry == null) {
+                return new CreateEntry(members);
+            } else {
+                switch (documentsEntry.status) {
+                    case SETUP:
+                        boolean leaseExpired = isLeaseExpired(documentsEntry.leaseExpiry);
+
+                        // Don't try to acquire the lease if we're already at the max number of attempts
+                        if (documentsEntry.numAttempts >= CmsEntry.Documents.MAX_ATTEMPTS && leaseExpired) {
+                            return new ExitPhaseFailed(members, new MaxAttemptsExceeded());
+                        }
+
+                        if (leaseExpired) {
+                            return new AcquireLease(members, documentsEntry);
+                        }
+
+                        logger.info("Documents Migration entry found, but there's already a valid work lease on its setup");
+                        return new RandomWait(members, new GetEntry(members));
+                    case IN_PROGRESS:
+                        return new GetShardWorkItem(members);
+                    case COMPLETED:
+                        return new ExitPhaseSuccess(members);
+                    case FAILED:
+                        return new ExitPhaseFailed(members, new FoundFailedDocumentsMigration());
+                    default:
+                        throw new IllegalStateException("Unexpected documents migration status: " + documentsEntry.status);
+                }
+            }
+        }
+    }
+
+    public static class CreateEntry extends Base {
+        private boolean createdEntry;
+        private CmsEntry.Documents leasedEntry;
+
+        public CreateEntry(SharedMembers members) {
+            super(members);
+        }
+
+        @Override
+        public void run() {
+            logger.info("Documents Migration CMS Entry not found, attempting to create it...");
+            this.createdEntry = members.cmsClient.createDocumentsEntry();
+            if (createdEntry) {
+                logger.info("Documents Migration CMS Entry created");
+                // The new entry starts out leased to us; we need its current version to renew the lease and update it
+                this.leasedEntry = members.cmsClient.getDocumentsEntry();
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (createdEntry && leasedEntry != null) {
+                return new SetupWorkItems(members, leasedEntry);
+            } else {
+                return new GetEntry(members);
+            }
+        }
+    }
+
+    public static class AcquireLease extends Base {
+        private final CmsEntry.Documents existingEntry;
+        private CmsEntry.Documents leasedEntry;
+
+        public AcquireLease(SharedMembers members, CmsEntry.Documents existingEntry) {
+            super(members);
+            this.existingEntry = existingEntry;
+        }
+
+        protected long getNowMs() {
+            return Instant.now().toEpochMilli();
+        }
+
+        @Override
+        public void run() {
+            logger.info("Current Documents Migration setup lease appears to have expired; attempting to acquire it...");
+
+            // TODO: Should be using the server-side clock here
+            this.leasedEntry = members.cmsClient.updateDocumentsEntry(
+                existingEntry,
+                CmsEntry.DocumentsStatus.SETUP,
+                CmsEntry.Documents.getLeaseExpiry(getNowMs(), existingEntry.numAttempts + 1),
+                existingEntry.numAttempts + 1
+            );
+
+            if (leasedEntry != null) {
+                logger.info("Lease acquired");
+            } else {
+                logger.info("Failed to acquire lease");
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (leasedEntry != null) {
+                return new SetupWorkItems(members, leasedEntry);
+            } else {
+                return new RandomWait(members, new GetEntry(members));
+            }
+        }
+    }
+
+    /*
+     * Creates a work item for every shard of every index in the snapshot, or one for each slice of a shard bigger than
+     * maxShardSliceBytes.  Creating a work item is idempotent, so if a previous worker died part of the way through, we
+     * just pick up where it left off.  The setup lease is renewed every LEASE_RENEWAL_INTERVAL while we work, and the
+     * entry is only moved on to IN_PROGRESS if nothing else has touched it since we last did, so a worker that lost its
+     * lease can't overwrite what the new lease holder wrote.
+     */
+    public static class SetupWorkItems extends Base {
+        public static final Duration LEASE_RENEWAL_INTERVAL = Duration.ofMillis(CmsEntry.Documents.SETUP_LEASE_MS / 4); // arbitrarily chosen
+
+        // The latest version of the entry, which changes every time we renew our lease on it
+        private CmsEntry.Documents currentEntry;
+        private boolean leaseLost = false;
+        private boolean updatedEntry = false;
+
+        public SetupWorkItems(SharedMembers members, CmsEntry.Documents leasedEntry) {
+            super(members);
+            this.currentEntry = leasedEntry;
+        }
+
+        @Override
+        public void run() {
+            logger.info("Setting the worker's current work item to be the Documents Migration setup...");
+            members.globalState.updateWorkItem(new OpenSearchWorkItem(OpenSearchCmsClient.CMS_INDEX_NAME, OpenSearchCmsClient.CMS_DOCUMENTS_DOC_ID));
+            logger.info("Work item set");
+
+            // Renewing the lease blocks on the CMS, so mustn't happen on one of Reactor's non-blocking threads
+            Disposable renewer = Flux.interval(getLeaseRenewalInterval(), getLeaseRenewalInterval(), Schedulers.boundedElastic())
+                .subscribe(tick -> renewLease());
+            try {
+                createWorkItems();
+            } finally {
+                renewer.dispose();
+            }
+
+            synchronized (this) {
+                if (!leaseLost) {
+                    logger.info("Updating the Documents Migration entry to indicate the work items are available...");
+                    CmsEntry.Documents updated = members.cmsClient.updateDocumentsEntry(
+                        currentEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, currentEntry.leaseExpiry, currentEntry.numAttempts);
+                    updatedEntry = (updated != null);
+                    currentEntry = updatedEntry ? updated : currentEntry;
+                    logger.info(updatedEntry ? "Documents Migration entry updated" : "Documents Migration entry was updated by someone else");
+                }
+            }
+
+            logger.info("Clearing the worker's current work item...");
+            members.globalState.updateWorkItem(null);
+            logger.info("Work item cleared");
+        }
+
+        private void createWorkItems() {
+            logger.info("Creating a work item for each shard in the snapshot...");
+            List<SnapshotRepo.Index> indices = members.repoDataProvider.getIndicesInSnapshot(members.snapshotName);
+            for (SnapshotRepo.Index index : indices) {
+                IndexMetadata.Data indexMetadata;
+                try {
+                    indexMetadata = members.indexMetadataFactory.fromRepo(members.repoDataProvider.getRepo(), members.repoDataProvider,
+                        members.snapshotName, index.getName());
+                } catch (Exception e) {
+                    throw new CouldNotSetUpWorkItems("Could not read the metadata of index " + index.getName(), e);
+                }
+
+                // Each work item records its (share of its) shard's size, so that workers can pick up the biggest first
+                for (int shardId = 0; shardId < indexMetadata.getNumberOfShards(); shardId++) {
+                    if (hasLostLease()) {
+                        logger.error("Lost the Documents Migration setup lease; stopping work on the setup");
+                        return;
+                    }
+
+                    ShardMetadata.Data shardMetadata;
+                    try {
+                        shardMetadata = members.shardMetadataFactory.fromRepo(members.repoDataProvider.getRepo(), members.repoDataProvider,
+                            members.snapshotName, index.getName(), shardId);
+                    } catch (Exception e) {
+                        throw new CouldNotSetUpWorkItems("Could not read the metadata of shard " + shardId + " of index " + index.getName(), e);
+                    }
+                    List<ShardSlice> slices = ShardSlice.split(shardMetadata.getTotalSize(), members.maxShardSliceBytes);
+                    for (ShardSlice slice : slices) {
+                        members.cmsClient.createShardWorkItem(index.getName(), shardId, slice, shardMetadata.getTotalSize() / slices.size());
+                    }
+                }
+                logger.info("Created work items for the " + indexMetadata.getNumberOfShards() + " shards of index " + index.getName());
+            }
+            logger.info("Work items created");
+        }
+
+        protected Duration getLeaseRenewalInterval() {
+            return LEASE_RENEWAL_INTERVAL;
+        }
+
+        protected long getNowMs() {
+            return Instant.now().toEpochMilli();
+        }
+
+        private synchronized boolean hasLostLease() {
+            return leaseLost;
+        }
+
+        /*
+         * Extends our lease on the entry by another full lease duration.  If the entry can't be updated, someone else
+         * must have taken over the setup, so we stop working on it.
+         */
+        protected synchronized void renewLease() {
+            // A renewal can still fire after we've finished with the setup, which it mustn't undo
+            if (leaseLost || currentEntry.status != CmsEntry.DocumentsStatus.SETUP) {
+                return;
+            }
+
+            CmsEntry.Documents updated;
+            try {
+                updated = members.cmsClient.updateDocumentsEntry(currentEntry, CmsEntry.DocumentsStatus.SETUP,
+                    CmsEntry.Documents.getLeaseExpiry(getNowMs(), currentEntry.numAttempts), currentEntry.numAttempts);
+            } catch (Exception e) {
+                logger.error("Failed to renew the Documents Migration setup lease", e);
+                updated = null;
+            }
+
+            if (updated != null) {
+                logger.info("Renewed the Documents Migration setup lease");
+                currentEntry = updated;
+            } else {
+                logger.error("Failed to renew the Documents Migration setup lease; another worker may have taken it over");
+                leaseLost = true;
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (!updatedEntry) {
+                // As with the Metadata Migration, we circle back around to see where things stand; if the setup still
+                // needs doing, re-creating work items that already exist is a no-op, and the entry's retry limit still
+                // applies.
+                logger.warn("Could not finish setting up the work items under our lease; checking the CMS again...");
+                return new GetEntry(members);
+            }
+            return new GetShardWorkItem(members);
+        }
+    }
+
+    /*
+     * Looks for a work item that isn't finished and isn't currently leased by another worker
+     */
+    public static class GetShardWorkItem extends Base {
+        private List<CmsEntry.ShardWorkItem> availableItems;
+        private boolean foundFailedItems = false;
+
+        public GetShardWorkItem(SharedMembers members) {
+            super(members);
+        }
+
+        @Override
+        public void run() {
+            logger.info("Looking for a shard work item that isn't yet finished...");
+            this.availableItems = members.cmsClient.getAvailableShardWorkItems(WORK_ITEMS_PER_LOOKUP);
+            if (availableItems.isEmpty()) {
+                // Every item is either completed or failed; the phase only succeeds if none of them failed
+                this.foundFailedItems = members.cmsClient.hasFailedShardWorkItems();
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (availableItems.isEmpty() && foundFailedItems) {
+                logger.error("No shard work items remain to be done, but some of them failed");
+                return new ExitPhaseFailed(members, new FoundFailedShardWorkItems());
+            } else if (availableItems.isEmpty()) {
+                logger.info("No shard work items remain to be done");
+                return new ExitPhaseSuccess(members);
+            }
+
+            for (CmsEntry.ShardWorkItem workItem : availableItems) {
+                if (!isLeaseExpired(workItem.leaseExpiry)) {
+                    continue;
+                }
+
+                // Don't try to acquire the lease if we're already at the max number of attempts
+                if (workItem.numAttempts >= CmsEntry.ShardWorkItem.MAX_ATTEMPTS) {
+                    return new MarkShardFailed(members, workItem);
+                }
+                return new AcquireShardLease(members, workItem);
+            }
+
+            logger.info("All the unfinished shard work items we found have a valid work lease on them");
+            return new RandomWait(members, new GetShardWorkItem(members));
+        }
+    }
+
+    public static class AcquireShardLease extends Base {
+        private final CmsEntry.ShardWorkItem existingItem;
+        private CmsEntry.ShardWorkItem leasedItem;
+
+        public AcquireShardLease(SharedMembers members, CmsEntry.ShardWorkItem existingItem) {
+            super(members);
+            this.existingItem = existingItem;
+        }
+
+        protected long getNowMs() {
+            return Instant.now().toEpochMilli();
+        }
+
+        @Override
+        public void run() {
+            logger.info("Attempting to acquire the work lease on " + existingItem + "...");
+
+            // TODO: Should be using the server-side clock here
+            this.leasedItem = members.cmsClient.updateShardWorkItem(
+                existingItem,
+                CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+                CmsEntry.ShardWorkItem.getLeaseExpiry(getNowMs(), existingItem.numAttempts + 1),
+                existingItem.numAttempts + 1
+            );
+
+            if (leasedItem != null) {
+                logger.info("Lease acquired");
+            } else {
+                logger.info("Failed to acquire lease");
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            if (leasedItem != null) {
+                return new MigrateShard(members, leasedItem);
+            } else {
+                // Someone else got there first; there are likely other work items to try
+                return new GetShardWorkItem(members);
+            }
+        }
+    }
+
+    /*
+     * Unpacks the leased shard, reindexes its documents (or just those in the work item's slice), and deletes the
+     * unpacked files.  Progress through the shard or slice is checkpointed to its work item every CHECKPOINT_INTERVAL,
+     * and reading resumes from the work item's checkpoint if an earlier attempt left one, so an interrupted shard doesn't
+     * have to be reindexed from the start.  The whole shard is unpacked even for a slice, into the worker's own Lucene
+     * directory, so workers sharing a host must each have their own.
+     */
+    public static class MigrateShard extends Base {
+        public static final Duration CHECKPOINT_INTERVAL = Duration.ofMinutes(1); // arbitrarily chosen
+
+        private final CmsEntry.ShardWorkItem leasedItem;
+        // The latest version of the work item, which changes every time we save a checkpoint to it
+        private CmsEntry.ShardWorkItem currentItem;
+        private ShardCheckpoint lastSavedCheckpoint;
+        // Errors with a LeaseLost if we fail to renew our lease, which stops the migration of the shard
+        private final Sinks.Empty<Void> leaseLost = Sinks.empty();
+
+        public MigrateShard(SharedMembers members, CmsEntry.ShardWorkItem leasedItem) {
+            super(members);
+            this.leasedItem = leasedItem;
+            this.currentItem = leasedItem;
+            this.lastSavedCheckpoint = leasedItem.checkpoint != null ? leasedItem.checkpoint : ShardCheckpoint.empty();
+        }
+
+        @Override
+        public void run() {
+            String indexName = leasedItem.indexName;
+            int shardId = leasedItem.shardId;
+
+            logger.info("Setting the worker's current work item to be " + leasedItem + "...");
+            members.globalState.updateWorkItem(new OpenSearchWorkItem(
+                OpenSearchCmsClient.CMS_INDEX_NAME, OpenSearchCmsEntry.ShardWorkItem.getDocId(indexName, shardId, leasedItem.slice)));
+            logger.info("Work item set");
+
+            ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(lastSavedCheckpoint);
+            if (leasedItem.checkpoint != null) {
+                logger.info("Resuming " + leasedItem + " from checkpoint " + leasedItem.checkpoint);
+            }
+
+            // Saving a checkpoint also renews our lease, so that a long-running shard isn't handed to another worker
+            // while we're still working on it.  It blocks on the CMS, so mustn't happen on one of Reactor's non-blocking
+            // threads.
+            Disposable checkpointer = Flux.interval(getCheckpointInterval(), getCheckpointInterval(), Schedulers.boundedElastic())
+                .subscribe(tick -> saveCheckpoint(tracker, true));
+            try {
+                logger.info("Migrating the documents of " + leasedItem + "...");
+                ShardMetadata.Data shardMetadata = members.shardMetadataFactory.fromRepo(members.repoDataProvider.getRepo(),
+                    members.repoDataProvider, members.snapshotName, indexName, shardId);
+                Mono<Void> reindexShard = members.unpacker.unpack(shardMetadata)
+                    .then(Mono.defer(() -> members.reindexer.reindex(indexName,
+                        members.reader.readDocuments(members.luceneDirPath, indexName, shardId, leasedItem.slice, tracker), tracker)));
+                // Clear out anything left behind by an earlier attempt on this host before unpacking the shard afresh,
+                // and clean up after ourselves however the migration ends, including when losing the lease cancels it
+                Mono<Void> migration = members.unpacker.cleanUp(shardMetadata)
+                    .then(Mono.usingWhen(Mono.just(shardMetadata),
+                        shard -> reindexShard,
+                        members.unpacker::cleanUp,
+                        (shard, error) -> members.unpacker.cleanUp(shard),
+                        members.unpacker::cleanUp));
+                // Whichever finishes first wins; losing the lease cancels the migration
+                Mono.firstWithSignal(migration, leaseLost.asMono()).block();
+                checkpointer.dispose();
+                logger.info("Documents migration of " + leasedItem + " complete");
+
+                logger.info("Updating the shard work item to indicate completion...");
+                CmsEntry.ShardWorkItem updatedItem;
+                synchronized (this) {
+                    updatedItem = members.cmsClient.updateShardWorkItem(
+                        currentItem, CmsEntry.ShardWorkItemStatus.COMPLETED, currentItem.leaseExpiry, currentItem.numAttempts);
+                    currentItem = (updatedItem != null) ? updatedItem : currentItem;
+                }
+                if (updatedItem != null) {
+                    logger.info("Shard work item updated");
+                } else {
+                    // Our lease must have expired and been taken by another worker, which will redo the shard.  As the
+                    // documents keep their IDs, doing so will overwrite what we wrote rather than duplicating it.
+                    logger.warn("Completed migrating the shard but failed to update its work item; another worker will redo it");
+                }
+            } catch (LeaseLost e) {
+                // Another worker has the work item now, so there's nothing of ours left to record
+                checkpointer.dispose();
+                logger.error("Stopped migrating the documents of " + leasedItem, e);
+            } catch (Exception e) {
+                // Leave the work item as it is, so the shard is retried once our lease expires, but record how far we
+                // got so that the retry doesn't need to start over
+                checkpointer.dispose();
+                logger.error("Failed to migrate the documents of " + leasedItem, e);
+                saveCheckpoint(tracker, false);
+            }
+
+            logger.info("Clearing the worker's current work item...");
+            members.globalState.updateWorkItem(null);
+            logger.info("Work item cleared");
+        }
+
+        protected Duration getCheckpointInterval() {
+            return CHECKPOINT_INTERVAL;
+        }
+
+        protected long getNowMs() {
+            return Instant.now().toEpochMilli();
+        }
+
+        /*
+         * Saves the tracker's checkpoint to the work item, and if renewLease is set, extends our lease on it by another
+         * full lease duration (which is done even if there's no new progress to save).  If the work item can't be
+         * updated while renewing, the lease is lost and the migration of the shard is stopped.
+         */
+        protected synchronized void saveCheckpoint(ShardCheckpoint.Tracker tracker, boolean renewLease) {
+            ShardCheckpoint checkpoint = tracker.getCheckpoint();
+            if (!renewLease && checkpoint.equals(lastSavedCheckpoint)) {
+                return;
+            }
+
+            String leaseExpiry = renewLease
+                ? CmsEntry.ShardWorkItem.getLeaseExpiry(getNowMs(), currentItem.numAttempts)
+                : currentItem.leaseExpiry;
+            CmsEntry.ShardWorkItem updatedItem;
+            try {
+                updatedItem = members.cmsClient.updateShardCheckpoint(currentItem, checkpoint, leaseExpiry);
+            } catch (Exception e) {
+                logger.error("Failed to save checkpoint for " + leasedItem, e);
+                updatedItem = null;
+            }
+
+            if (updatedItem != null) {
+                logger.info("Saved checkpoint for " + leasedItem + ": " + checkpoint);
+                currentItem = updatedItem;
+                lastSavedCheckpoint = checkpoint;
+            } else if (renewLease) {
+                // We can't tell whether another worker has taken over the work item, so we stop rather than risk two of
+                // us working on the shard
+                logger.error("Failed to renew the lease on " + leasedItem + "; stopping work on it");
+                leaseLost.tryEmitError(new LeaseLost(leasedItem));
+            } else {
+                logger.warn("Failed to save checkpoint for " + leasedItem + "; another worker appears to have taken over the work item");
+            }
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            return new GetShardWorkItem(members);
+        }
+    }
+
+    /*
+     * Gives up on a shard that has run out of attempts
+     */
+    public static class MarkShardFailed extends Base {
+        private final CmsEntry.ShardWorkItem existingItem;
+
+        public MarkShardFailed(SharedMembers members, CmsEntry.ShardWorkItem existingItem) {
+            super(members);
+            this.existingItem = existingItem;
+        }
+
+        @Override
+        public void run() {
+            logger.error("The work item for " + existingItem + " reached the limit of "
+                + CmsEntry.ShardWorkItem.MAX_ATTEMPTS + " attempts; marking it as failed...");
+            members.cmsClient.updateShardWorkItem(
+                existingItem, CmsEntry.ShardWorkItemStatus.FAILED, existingItem.leaseExpiry, existingItem.numAttempts);
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            return new GetShardWorkItem(members);
+        }
+    }
+
+    public static class RandomWait extends Base {
+        private final static int WAIT_TIME_MS = 5 * 1000; // arbitrarily chosen
+        private final WorkerStep next;
+
+        public RandomWait(SharedMembers members, WorkerStep next) {
+            super(members);
+            this.next = next;
+        }
+
+        protected void waitABit() {
+            try {
+                Thread.sleep(WAIT_TIME_MS);
+            } catch (InterruptedException e) {
+                logger.error("Interrupted while performing a wait", e);
+                throw new DocumentsMigrationFailed("Interrupted");
+            }
+        }
+
+        @Override
+        public void run() {
+            logger.info("Backing off for " + WAIT_TIME_MS + " milliseconds before checking the CMS again...");
+            waitABit();
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            return next;
+        }
+    }
+
+    public static class ExitPhaseSuccess extends Base {
+        public ExitPhaseSuccess(SharedMembers members) {
+            super(members);
+        }
+
+        @Override
+        public void run() {
+            members.cmsClient.setDocumentsMigrationStatus(CmsEntry.DocumentsStatus.COMPLETED);
+            members.globalState.updatePhase(GlobalState.Phase.DOCUMENTS_COMPLETED);
+            logger.info("Documents Migration completed, exiting Documents Phase...");
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            return null;
+        }
+    }
+
+    public static class ExitPhaseFailed extends Base {
+        private final DocumentsMigrationFailed e;
+
+        public ExitPhaseFailed(SharedMembers members, DocumentsMigrationFailed e) {
+            super(members);
+            this.e = e;
+        }
+
+        @Override
+        public void run() {
+            logger.error("Documents Migration failed");
+            members.cmsClient.setDocumentsMigrationStatus(CmsEntry.DocumentsStatus.FAILED);
+            members.globalState.updatePhase(GlobalState.Phase.DOCUMENTS_FAILED);
+        }
+
+        @Override
+        public WorkerStep nextStep() {
+            throw e;
+        }
+    }
+
+    public static class CouldNotSetUpWorkItems extends RfsException {
+        public CouldNotSetUpWorkItems(String message, Throwable cause) {
+            super("Could not set up the shard work items.  Reason: " + message, cause);
+        }
+    }
+
+    public static class DocumentsMigrationFailed extends RfsException {
+        public DocumentsMigrationFailed(String message) {
+            super("The Documents Migration has failed.  Reason: " + message);
+        }
+    }
+
+    public static class FoundFailedDocumentsMigration extends DocumentsMigrationFailed {
+        public FoundFailedDocumentsMigration() {
+            super("We checked the status in the CMS and found it had failed.  Aborting.");
+        }
+    }
+
+    public static class FoundFailedShardWorkItems extends DocumentsMigrationFailed {
+        public FoundFailedShardWorkItems() {
+            super("The documents of some shards could not be migrated; their work items are marked as failed in the CMS");
+        }
+    }
+
+    public static class LeaseLost extends RfsException {
+        public LeaseLost(CmsEntry.ShardWorkItem workItem) {
+            super("Could not renew the work lease on " + workItem);
+        }
+    }
+
+    public static class MaxAttemptsExceeded extends DocumentsMigrationFailed {
+        public MaxAttemptsExceeded() {
+            super("We reached the limit of " + CmsEntry.Documents.MAX_ATTEMPTS + " attempts to set up the Documents Migration");
+        }
+    }
+}
@@ -15,7 +15,10 @@ public class GlobalState {
         SNAPSHOT_FAILED,
         METADATA_IN_PROGRESS,
         METADATA_COMPLETED,
-        METADATA_FAILED
+        METADATA_FAILED,
+        DOCUMENTS_IN_PROGRESS,
+        DOCUMENTS_COMPLETED,
+        DOCUMENTS_FAILED
     }    
 
     private AtomicReference<Phase> phase = new AtomicReference<>(Phase.UNSET);
@@ -0,0 +1,128 @@
+package com.rfs;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.beust.jcommander.JCommander;
+import com.rfs.common.ShardWorkScheduler;
+
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+public class ReindexFromSnapshotTest {
+    // Both snapshots include posts_2024_01_01, unchanged between them; only the first includes posts_2023_02_25
+    private static final Path TWO_SNAPSHOT_REPO = Path.of("test-resources/snapshots/ES_7_10_Double").toAbsolutePath();
+    private static final Path ONE_SNAPSHOT_REPO = Path.of("test-resources/snapshots/ES_7_10_Single").toAbsolutePath();
+
+    @TempDir
+    Path luceneDir;
+
+    private DisposableServer target;
+    private final List<String> targetRequests = new CopyOnWriteArrayList<>(); // "<method> <uri>\n<body>"
+    private volatile boolean failBulks = false;
+
+    @BeforeEach
+    void startTarget() {
+        target = HttpServer.create()
+            .port(0)
+            .handle((request, response) -> request.receive().aggregate().asString().defaultIfEmpty("")
+                .flatMap(body -> {
+                    targetRequests.add(request.method() + " " + request.uri() + "\n" + body);
+                    if (failBulks && request.uri().contains("/_bulk")) {
+                        return response.status(500).sendString(Mono.just("{\"error\":\"Whoops\"}")).then();
+                    }
+                    return response.sendString(Mono.just("{\"errors\":false,\"items\":[]}")).then();
+                }))
+            .bindNow();
+    }
+
+    @AfterEach
+    void stopTarget() {
+        target.disposeNow();
+    }
+
+    private ReindexFromSnapshot.Args getArgs(String snapshotName, String previousSnapshotName) {
+        return getArgs(TWO_SNAPSHOT_REPO, snapshotName, previousSnapshotName);
+    }
+
+    private ReindexFromSnapshot.Args getArgs(Path snapshotDir, String snapshotName, String previousSnapshotName) {
+        ReindexFromSnapshot.Args arguments = new ReindexFromSnapshot.Args();
+        List<String> args = List.of(
+            "-n", snapshotName,
+            "--snapshot-dir", snapshotDir.toString(),
+            "-l", luceneDir.toString(),
+            "--target-host", "http://localhost:" + target.port(),
+            "-s", "es_7_10",
+            "-t", "os_2_11",
+            "--movement-type", "data",
+            "--min-replicas", "0"
+        );
+        if (previousSnapshotName != null) {
+            args = new ArrayList<>(args);
+            args.addAll(List.of("--previous-snapshot-name", previousSnapshotName));
+        }
+        JCommander.newBuilder().addObject(arguments).build().parse(args.toArray(new String[0]));
+        return arguments;
+    }
+
+    private List<String> getBulkRequests() {
+        return targetRequests.stream().filter(request -> request.contains("/_bulk")).collect(Collectors.toList());
+    }
+
+    @Test
+    void Run_DeltaBetweenSnapshotsInSameRepo_OnlyChangesSent() throws Exception {
+        // Run the test
+        ReindexFromSnapshot.run(getArgs("global_state_snapshot_2", "global_state_snapshot"));
+
+        // Check the results
+        // Nothing changed in the one index between the snapshots, so there's nothing to send but the final refresh
+        assertEquals(List.of(), getBulkRequests());
+        assertTrue(targetRequests.stream().anyMatch(request -> request.startsWith("GET /_refresh")), targetRequests.toString());
+    }
+
+    @Test
+    void Run_DeltaWithIndexMissingFromPreviousSnapshot_IndexMigratedInFull() throws Exception {
+        // Run the test
+        // Treating the earlier snapshot as the newer one makes posts_2023_02_25 an index added since the "previous" one
+        ReindexFromSnapshot.run(getArgs("global_state_snapshot", "global_state_snapshot_2"));
+
+        // Check the results
+        List<String> bulkRequests = getBulkRequests();
+        assertEquals(1, bulkRequests.size(), bulkRequests.toString());
+        assertTrue(bulkRequests.get(0).startsWith("POST /posts_2023_02_25/_bulk\n{\"index\": {\"_id\": "), bulkRequests.get(0));
+    }
+
+    @Test
+    void Run_RepoWithTwoSnapshotsWithoutPreviousSnapshot_Throws() {
+        assertThrows(IllegalArgumentException.class, () -> ReindexFromSnapshot.run(getArgs("global_state_snapshot_2", null)));
+    }
+
+    @Test
+    void Run_ShardFailsWhileUnpacked_UnpackedFilesStillDeleted() {
+        // Set up the test
+        failBulks = true;
+
+        // Run the test
+        assertThrows(ShardWorkScheduler.ShardWorkFailed.class, () -> ReindexFromSnapshot.run(getArgs(ONE_SNAPSHOT_REPO, "global_state_snapshot", null)));
+
+        // Check the results
+        assertFalse(getBulkRequests().isEmpty());
+        assertFalse(Files.exists(luceneDir.resolve("posts_2023_02_25").resolve("0")));
+        assertFalse(Files.exists(luceneDir.resolve("posts_2024_01_01").resolve("0")));
+    }
+}
@@ -44,5 +44,40 @@ public class CmsEntryTest {
         assertThrows(CmsEntry.CouldNotFindNextLeaseDuration.class, () -> {
             CmsEntry.Metadata.getLeaseExpiry(0, numAttempts);
         });
-    }    
+    }
+
+    static Stream<Arguments> provide_ShardWorkItem_getLeaseExpiry_HappyPath_args() {
+        // Generate an argument for each possible number of attempts
+        Stream<Arguments> argStream = Stream.of();
+        for (int i = 1; i <= CmsEntry.ShardWorkItem.MAX_ATTEMPTS; i++) {
+            argStream = Stream.concat(argStream, Stream.of(Arguments.of(i)));
+        }
+        return argStream;
+    }
+
+    @ParameterizedTest
+    @MethodSource("provide_ShardWorkItem_getLeaseExpiry_HappyPath_args")
+    void ShardWorkItem_getLeaseExpiry_HappyPath(int numAttempts) {
+        // Run the test
+        String result = CmsEntry.ShardWorkItem.getLeaseExpiry(0, numAttempts);
+
+        // Check the results
+        assertEquals(Long.toString(CmsEntry.ShardWorkItem.SHARD_LEASE_MS * numAttempts), result);
+    }
+
+    static Stream<Arguments> provide_ShardWorkItem_getLeaseExpiry_UnhappyPath_args() {
+        return Stream.of(
+            Arguments.of(0),
+            Arguments.of(CmsEntry.ShardWorkItem.MAX_ATTEMPTS + 1)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("provide_ShardWorkItem_getLeaseExpiry_UnhappyPath_args")
+    void ShardWorkItem_getLeaseExpiry_UnhappyPath(int numAttempts) {
+        // Run the test
+        assertThrows(CmsEntry.CouldNotFindNextLeaseDuration.class, () -> {
+            CmsEntry.ShardWorkItem.getLeaseExpiry(0, numAttempts);
+        });
+    }
 }
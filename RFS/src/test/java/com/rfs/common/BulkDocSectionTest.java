@@ -0,0 +1,76 @@
+package com.rfs.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+public class BulkDocSectionTest {
+
+    @Test
+    void toBulkRequestBody_AsExpected() {
+        // Set up the test
+        byte[] sourceBytes = "xx{\"a\":1}yy".getBytes(StandardCharsets.UTF_8);
+        List<BulkDocSection> sections = List.of(
+            new BulkDocSection("id1", new BytesRef(sourceBytes, 2, 7)), // Source is a slice of a larger array
+            new BulkDocSection("id\"2", new BytesRef("{\"b\":2}"))
+        );
+
+        // Run the test
+        ByteBuf body = BulkDocSection.toBulkRequestBody(sections, ByteBufAllocator.DEFAULT);
+
+        // Check the results
+        String expected = "{\"index\": {\"_id\": \"id1\"}}\n{\"a\":1}\n"
+            + "{\"index\": {\"_id\": \"id\\\"2\"}}\n{\"b\":2}\n";
+        try {
+            assertEquals(expected, body.toString(StandardCharsets.UTF_8));
+            assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, sections.get(0).sizeInBytes + sections.get(1).sizeInBytes);
+        } finally {
+            body.release();
+        }
+    }
+
+    @Test
+    void toBulkRequestBody_IncludesRouting() {
+        // Set up the test
+        List<BulkDocSection> sections = List.of(new BulkDocSection("id1", "route\"1", new BytesRef("{}")));
+
+        // Run the test
+        ByteBuf body = BulkDocSection.toBulkRequestBody(sections, ByteBufAllocator.DEFAULT);
+
+        // Check the results
+        try {
+            assertEquals("{\"index\": {\"_id\": \"id1\", \"routing\": \"route\\\"1\"}}\n{}\n", body.toString(StandardCharsets.UTF_8));
+        } finally {
+            body.release();
+        }
+    }
+
+    @Test
+    void toBulkRequestBody_DeleteHasNoSource() {
+        // Set up the test
+        List<BulkDocSection> sections = List.of(
+            BulkDocSection.forDelete("id1", "route1"),
+            new BulkDocSection("id2", new BytesRef("{}"))
+        );
+
+        // Run the test
+        ByteBuf body = BulkDocSection.toBulkRequestBody(sections, ByteBufAllocator.DEFAULT);
+
+        // Check the results
+        String expected = "{\"delete\": {\"_id\": \"id1\", \"routing\": \"route1\"}}\n"
+            + "{\"index\": {\"_id\": \"id2\"}}\n{}\n";
+        try {
+            assertEquals(expected, body.toString(StandardCharsets.UTF_8));
+            assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, sections.get(0).sizeInBytes + sections.get(1).sizeInBytes);
+        } finally {
+            body.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.rfs.common;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+public class BulkSizeControllerTest {
+
+    // Creates a section whose total size (action line plus source) is exactly sizeInBytes
+    private static BulkDocSection section(String id, long sizeInBytes) {
+        long overhead = new BulkDocSection(id, new BytesRef(new byte[0])).sizeInBytes;
+        return new BulkDocSection(id, new BytesRef(new byte[(int) (sizeInBytes - overhead)]));
+    }
+
+    @Test
+    void toBatches_CutsOnDocCount() {
+        // Set up the test
+        BulkSizeController testController = BulkSizeController.fixed(2, 100000);
+        Flux<BulkDocSection> sections = Flux.just(section("1", 100), section("2", 100), section("3", 100));
+
+        // Run the test / Check the results
+        StepVerifier.create(testController.toBatches(sections))
+            .expectNextMatches(batch -> batch.size() == 2 && "1".equals(batch.get(0).docId) && "2".equals(batch.get(1).docId))
+            .expectNextMatches(batch -> batch.size() == 1 && "3".equals(batch.get(0).docId))
+            .expectComplete()
+            .verify();
+    }
+
+    @Test
+    void toBatches_CutsOnBytes() {
+        // Set up the test
+        BulkSizeController testController = BulkSizeController.fixed(1000, 1000);
+        Flux<BulkDocSection> sections = Flux.just(section("1", 600), section("2", 400), section("3", 30), section("4", 5000), section("5", 30));
+
+        // Run the test / Check the results
+        StepVerifier.create(testController.toBatches(sections))
+            .expectNextMatches(batch -> batch.size() == 2 && "1".equals(batch.get(0).docId) && "2".equals(batch.get(1).docId))
+            .expectNextMatches(batch -> batch.size() == 1 && "3".equals(batch.get(0).docId))
+            .expectNextMatches(batch -> batch.size() == 1 && "4".equals(batch.get(0).docId)) // Too big, so on its own
+            .expectNextMatches(batch -> batch.size() == 1 && "5".equals(batch.get(0).docId))
+            .expectComplete()
+            .verify();
+    }
+
+    @Test
+    void fixed_IgnoresFeedback() {
+        // Set up the test
+        BulkSizeController testController = BulkSizeController.fixed(1000, 1024 * 1024);
+
+        // Run the test
+        testController.onBulkRejected();
+        testController.onBulkSucceeded(Duration.ofMillis(1));
+
+        // Check the results
+        assertEquals(1024 * 1024, testController.getMaxBytes());
+    }
+
+    @Test
+    void adaptive_GrowsWhenFastAndShrinksWhenRejected() {
+        // Set up the test
+        long maxBytes = 16L * 1024 * 1024;
+        BulkSizeController testController = BulkSizeController.adaptive(1000, maxBytes, Duration.ofSeconds(1));
+        long initialBytes = testController.getMaxBytes();
+
+        // Run the test / Check the results
+        testController.onBulkSucceeded(Duration.ofMillis(100));
+        long grownBytes = testController.getMaxBytes();
+        assertTrue(grownBytes > initialBytes);
+
+        testController.onBulkRejected();
+        assertEquals(grownBytes / 2, testController.getMaxBytes());
+
+        testController.onBulkSucceeded(Duration.ofSeconds(5));
+        assertTrue(testController.getMaxBytes() < grownBytes / 2);
+    }
+
+    @Test
+    void adaptive_StaysWithinBounds() {
+        // Set up the test
+        long maxBytes = 16L * 1024 * 1024;
+        BulkSizeController testController = BulkSizeController.adaptive(1000, maxBytes, Duration.ofSeconds(1));
+
+        // Run the test / Check the results
+        for (int i = 0; i < 100; i++) {
+            testController.onBulkSucceeded(Duration.ofMillis(1));
+        }
+        assertEquals(maxBytes, testController.getMaxBytes());
+
+        for (int i = 0; i < 100; i++) {
+            testController.onBulkRejected();
+        }
+        assertEquals(BulkSizeController.MIN_ADAPTIVE_BYTES, testController.getMaxBytes());
+    }
+}
@@ -8,6 +8,7 @@ import java.util.stream.Stream;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 
 public class ConnectionDetailsTest {
@@ -51,4 +52,10 @@ public class ConnectionDetailsTest {
             Class<Exception> expectedException) {
         assertThrows(expectedException, () -> new ConnectionDetails(url, username, password));
     }
+
+    @ParameterizedTest
+    @ValueSource(ints = {-1, 10})
+    void ConnectionDetails_InvalidCompressionLevel_Throws(int compressionLevel) {
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionDetails("http://localhost:9200", null, null, compressionLevel));
+    }
 }
@@ -0,0 +1,48 @@
+package com.rfs.common;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+public class ConnectionPoolTest {
+
+    @Test
+    void ConnectionPool_InvalidLimits_Throws() {
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionPool(0, 10, Duration.ofSeconds(1), 1));
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionPool(10, 10, Duration.ofSeconds(1), 0));
+    }
+
+    @Test
+    void Report_AsExpected_ConnectionsReusedAcrossClients() {
+        // Set up the test
+        DisposableServer server = HttpServer.create()
+            .port(0)
+            .route(routes -> routes.get("/", (request, response) -> response.sendString(Mono.just("{}"))))
+            .bindNow();
+
+        try (ConnectionPool connectionPool = new ConnectionPool(4, 16, Duration.ofSeconds(30), 1)) {
+            ConnectionDetails connectionDetails = new ConnectionDetails("http://localhost:" + server.port(), null, null);
+            assertEquals("No connections opened", connectionPool.report());
+
+            // Run the test
+            for (int i = 0; i < 3; i++) {
+                RestClient client = new RestClient(connectionDetails, connectionPool);
+                assertEquals(200, client.get("").code);
+            }
+
+            // Check the results
+            // A connection is released just after its response completes, so the next request may race it and open one more
+            String report = connectionPool.report();
+            assertTrue(report.matches(".*: [12]/4 connections .*, 0 acquires pending"), report);
+        } finally {
+            server.disposeNow();
+        }
+    }
+}
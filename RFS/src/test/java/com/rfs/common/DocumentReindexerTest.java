@@ -0,0 +1,213 @@
+package com.rfs.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.netty.buffer.ByteBuf;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public class DocumentReindexerTest {
+
+    @Test
+    void reindexSections_SomeOperationsFail_ResendsOnlyRetryableOnes() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        List<String> sentBodies = new ArrayList<>();
+        List<OpenSearchClient.BulkResponse> responses = new ArrayList<>(List.of(
+            new OpenSearchClient.BulkResponse(200, "{\"errors\": true, \"items\": ["
+                + "{\"index\": {\"_id\": \"id1\", \"status\": 201}},"
+                + "{\"index\": {\"_id\": \"id2\", \"status\": 429, \"error\": {\"type\": \"es_rejected_execution_exception\"}}},"
+                + "{\"index\": {\"_id\": \"id3\", \"status\": 400, \"error\": {\"type\": \"mapper_parsing_exception\"}}}"
+                + "]}", "OK"),
+            new OpenSearchClient.BulkResponse(200, "{\"errors\": false, \"items\": [{\"index\": {\"_id\": \"id2\", \"status\": 201}}]}", "OK")
+        ));
+        when(client.sendBulkRequest(eq("idx"), any())).thenAnswer(invocation -> {
+            sentBodies.add(invocation.<ByteBuf>getArgument(1).toString(StandardCharsets.UTF_8));
+            return Mono.just(responses.remove(0));
+        });
+        DeadLetterSink deadLetterSink = mock(DeadLetterSink.class);
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(client, 1, BulkSizeController.fixed(10, 1024 * 1024), metrics, null, deadLetterSink);
+
+        // Run the test
+        reindexer.reindexSections("idx", Flux.just(
+            new BulkDocSection("id1", new BytesRef("{}")),
+            new BulkDocSection("id2", new BytesRef("{}")),
+            new BulkDocSection("id3", new BytesRef("{}"))
+        )).block();
+
+        // Check the results
+        assertEquals(2, sentBodies.size());
+        assertEquals("{\"index\": {\"_id\": \"id2\"}}\n{}\n", sentBodies.get(1));
+
+        ArgumentCaptor<BulkDocSection> deadLettered = ArgumentCaptor.forClass(BulkDocSection.class);
+        ArgumentCaptor<OpenSearchClient.ItemResult> deadLetteredResult = ArgumentCaptor.forClass(OpenSearchClient.ItemResult.class);
+        verify(deadLetterSink).accept(eq("idx"), deadLettered.capture(), deadLetteredResult.capture());
+        verifyNoMoreInteractions(deadLetterSink);
+        assertEquals("id3", deadLettered.getValue().docId);
+        assertEquals(400, deadLetteredResult.getValue().status);
+
+        assertEquals(2, metrics.getDocsSucceeded());
+        assertEquals(1, metrics.getDocsRetried());
+        assertEquals(1, metrics.getDocsDeadLettered());
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    void reindexSections_WholeBulkFails_ErrorPropagatedAndNothingAcknowledged() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        when(client.sendBulkRequest(eq("idx"), any())).thenReturn(Mono.error(new RfsException("Whoops")));
+        DeadLetterSink deadLetterSink = mock(DeadLetterSink.class);
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(client, 1, BulkSizeController.fixed(10, 1024 * 1024), metrics, null, deadLetterSink);
+        ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(ShardCheckpoint.empty());
+        tracker.onSegmentStarted("_0", 0);
+        ShardCheckpoint.Position position = new ShardCheckpoint.Position("_0", 0);
+        tracker.onDocumentRead(position);
+
+        // Run the test
+        Mono<Void> result = reindexer.reindex("idx", Flux.just(new ShardCheckpoint.PositionedDocument(testDoc("id1"), position)), tracker);
+
+        // Check the results
+        DocumentReindexer.BulkFailed error = assertThrows(DocumentReindexer.BulkFailed.class, result::block);
+        assertEquals("Whoops", error.getCause().getMessage());
+        verifyNoInteractions(deadLetterSink);
+        assertEquals(1, metrics.getDocsFailed());
+        assertEquals(0, metrics.getBulksInFlight());
+        assertEquals(Map.of("_0", 0), tracker.getCheckpoint().getResumePoints());
+    }
+
+    private static Document testDoc(String id) {
+        Document doc = new Document();
+        doc.add(new StoredField("_id", new BytesRef(LuceneDocumentsReaderTest.encodeUtf8Id(id))));
+        doc.add(new StoredField("_source", new BytesRef("{}")));
+        return doc;
+    }
+
+    @Test
+    void reindexSections_RoutedNodeUnreachable_ResentThroughCoordinator() {
+        // Set up the test
+        OpenSearchClient coordinator = mock(OpenSearchClient.class);
+        OpenSearchClient nodeClient = mock(OpenSearchClient.class);
+        TargetShardRouter router = mock(TargetShardRouter.class);
+        when(router.getClientFor(eq("idx"), any())).thenReturn(nodeClient);
+        when(nodeClient.sendBulkRequest(eq("idx"), any())).thenReturn(Mono.error(new ConnectException("Connection refused")));
+        when(coordinator.sendBulkRequest(eq("idx"), any())).thenReturn(Mono.just(
+            new OpenSearchClient.BulkResponse(200, "{\"errors\": false, \"items\": [{\"index\": {\"_id\": \"id1\", \"status\": 201}}]}", "OK")));
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(coordinator, 1, BulkSizeController.fixed(10, 1024 * 1024), metrics, router);
+
+        // Run the test
+        reindexer.reindexSections("idx", Flux.just(new BulkDocSection("id1", new BytesRef("{}")))).block();
+
+        // Check the results
+        verify(router).onNodeUnreachable(nodeClient);
+        verify(coordinator).sendBulkRequest(eq("idx"), any());
+        assertEquals(1, metrics.getDocsSucceeded());
+    }
+
+    @Test
+    void reindexSections_RoutedToSeveralNodes_InFlightBulksCapped() {
+        // Set up the test
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<OpenSearchClient> nodeClients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            OpenSearchClient nodeClient = mock(OpenSearchClient.class);
+            when(nodeClient.sendBulkRequest(eq("idx"), any())).thenAnswer(invocation -> Mono.fromRunnable(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                .then(Mono.delay(Duration.ofMillis(20)))
+                .then(Mono.fromCallable(() -> {
+                    inFlight.decrementAndGet();
+                    return new OpenSearchClient.BulkResponse(200, "{\"errors\": false, \"items\": [{\"index\": {\"status\": 201}}]}", "OK");
+                })));
+            nodeClients.add(nodeClient);
+        }
+        TargetShardRouter router = mock(TargetShardRouter.class);
+        when(router.getClientFor(eq("idx"), any())).thenAnswer(invocation -> nodeClients.get(Integer.parseInt(invocation.<BulkDocSection>getArgument(1).docId) % 3));
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(mock(OpenSearchClient.class), 2, BulkSizeController.fixed(3, 1024 * 1024), metrics, router);
+
+        // Run the test
+        reindexer.reindexSections("idx", Flux.range(0, 12).map(i -> new BulkDocSection(String.valueOf(i), new BytesRef("{}")))).block();
+
+        // Check the results
+        // Each batch of 3 documents is split into a bulk per node; those share the 2 slots
+        assertEquals(12, metrics.getDocsSucceeded());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    void reindexSections_ConcurrentShards_ShareInFlightBulks() {
+        // Set up the test
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        when(client.sendBulkRequest(eq("idx"), any())).thenAnswer(invocation -> Mono.fromRunnable(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+            .then(Mono.delay(Duration.ofMillis(20)))
+            .then(Mono.fromCallable(() -> {
+                inFlight.decrementAndGet();
+                return new OpenSearchClient.BulkResponse(200, "{\"errors\": false, \"items\": [{\"index\": {\"status\": 201}}]}", "OK");
+            })));
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(client, 3, BulkSizeController.fixed(1, 1024 * 1024), metrics);
+        Flux<BulkDocSection> shard1 = Flux.range(0, 12).map(i -> new BulkDocSection("a" + i, new BytesRef("{}")));
+        Flux<BulkDocSection> shard2 = Flux.range(0, 12).map(i -> new BulkDocSection("b" + i, new BytesRef("{}")));
+        Flux<BulkDocSection> tailShard = Flux.range(0, 12).map(i -> new BulkDocSection("c" + i, new BytesRef("{}")));
+
+        // Run the test
+        Mono.when(reindexer.reindexSections("idx", shard1), reindexer.reindexSections("idx", shard2)).block();
+        int maxInFlightTogether = maxInFlight.getAndSet(0);
+        reindexer.reindexSections("idx", tailShard).block();
+
+        // Check the results
+        // The two shards share the 3 slots between them, and a shard on its own gets all of them
+        assertEquals(36, metrics.getDocsSucceeded());
+        assertEquals(3, maxInFlightTogether);
+        assertEquals(3, maxInFlight.get());
+    }
+
+    @Test
+    void reindexSections_ReadFails_FailsWithoutRereadingTheShard() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        when(client.sendBulkRequest(eq("idx"), any())).thenReturn(Mono.just(
+            new OpenSearchClient.BulkResponse(200, "{\"errors\": false, \"items\": [{\"index\": {\"status\": 201}}]}", "OK")));
+        AtomicInteger reads = new AtomicInteger();
+        Flux<BulkDocSection> sections = Flux.defer(() -> {
+            reads.incrementAndGet();
+            return Flux.concat(Flux.just(new BulkDocSection("1", new BytesRef("{}"))), Flux.error(new RuntimeException("Whoops")));
+        });
+        ReindexMetrics metrics = new ReindexMetrics();
+        DocumentReindexer reindexer = new DocumentReindexer(client, 1, BulkSizeController.fixed(1, 1024 * 1024), metrics);
+
+        // Run the test
+        RuntimeException e = assertThrows(RuntimeException.class, () -> reindexer.reindexSections("idx", sections).block());
+
+        // Check the results
+        assertEquals("Whoops", e.getMessage());
+        assertEquals(1, reads.get());
+    }
+}
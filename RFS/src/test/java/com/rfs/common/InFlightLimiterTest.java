@@ -0,0 +1,93 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public class InFlightLimiterTest {
+
+    @Test
+    void withSlot_CapsConcurrentWork() {
+        // Set up the test
+        InFlightLimiter testLimiter = new InFlightLimiter(3);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Mono<Void> work = Mono.fromRunnable(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+            .then(Mono.delay(Duration.ofMillis(10)))
+            .then(Mono.fromRunnable(inFlight::decrementAndGet));
+
+        // Run the test
+        Flux.range(0, 20)
+            .flatMap(i -> testLimiter.withSlot(work), 20)
+            .blockLast();
+
+        // Check the results
+        assertEquals(3, maxInFlight.get());
+        assertEquals(3, testLimiter.getAvailable());
+    }
+
+    @Test
+    void withSlot_FailedWork_FreesItsSlot() {
+        // Set up the test
+        InFlightLimiter testLimiter = new InFlightLimiter(1);
+
+        // Run the test
+        assertThrows(RuntimeException.class, () -> testLimiter.withSlot(Mono.error(new RuntimeException("Whoops"))).block());
+
+        // Check the results
+        assertEquals(1, testLimiter.getAvailable());
+        assertEquals(42, testLimiter.withSlot(Mono.just(42)).block(Duration.ofSeconds(1)));
+    }
+
+    @Test
+    void withSlot_Cancelled_FreesOrGivesUpItsSlot() {
+        // Set up the test
+        InFlightLimiter testLimiter = new InFlightLimiter(1);
+        AtomicInteger started = new AtomicInteger();
+        Mono<Void> work = Mono.fromRunnable(started::incrementAndGet).then(Mono.never());
+
+        // Run the test
+        Disposable holding = testLimiter.withSlot(work).subscribe();
+        Disposable waiting = testLimiter.withSlot(work).subscribe();
+        waiting.dispose(); // Never got the slot, so mustn't be given it later
+        holding.dispose(); // Had the slot, so must hand it back
+
+        // Check the results
+        assertEquals(1, started.get());
+        assertEquals(1, testLimiter.getAvailable());
+        assertEquals(42, testLimiter.withSlot(Mono.just(42)).block(Duration.ofSeconds(1)));
+    }
+
+    @Test
+    void withSlot_FreedSlot_GoesToLongestWaiting() {
+        // Set up the test
+        InFlightLimiter testLimiter = new InFlightLimiter(1);
+        AtomicInteger firstWaiterRan = new AtomicInteger();
+        AtomicInteger secondWaiterRan = new AtomicInteger();
+
+        // Run the test
+        Disposable holding = testLimiter.withSlot(Mono.never()).subscribe();
+        testLimiter.withSlot(Mono.fromRunnable(firstWaiterRan::incrementAndGet).then(Mono.never())).subscribe();
+        testLimiter.withSlot(Mono.fromRunnable(secondWaiterRan::incrementAndGet)).subscribe();
+        holding.dispose();
+
+        // Check the results
+        assertEquals(1, firstWaiterRan.get());
+        assertEquals(0, secondWaiterRan.get());
+        assertEquals(0, testLimiter.getAvailable());
+    }
+
+    @Test
+    void constructor_NoSlots_Throws() {
+        // Run the test / Check the results
+        assertThrows(IllegalArgumentException.class, () -> new InFlightLimiter(0));
+    }
+}
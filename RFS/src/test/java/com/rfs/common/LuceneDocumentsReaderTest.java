@@ -1,23 +1,35 @@
 package com.rfs.common;
 
-import static org.mockito.Mockito.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
-import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
-class TestLuceneDocumentsReader extends LuceneDocumentsReader {
+public class LuceneDocumentsReaderTest {
     // Helper method to correctly encode the Document IDs for test
     public static byte[] encodeUtf8Id(String id) {
         byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
@@ -27,69 +39,197 @@ class TestLuceneDocumentsReader extends LuceneDocumentsReader {
         return encoded;
     }
 
-    // Override to return a mocked IndexReader
-    @Override
-    protected IndexReader openIndexReader(Path indexDirectoryPath) throws IOException {
-        // Set up our test docs
-        Document doc1 = new Document();
-        doc1.add(new StringField("_id", new BytesRef(encodeUtf8Id("id1")), Field.Store.YES));
-        doc1.add(new StoredField("_source", new BytesRef("source1")));
-
-        Document doc2 = new Document();
-        doc2.add(new StringField("_id", new BytesRef(encodeUtf8Id("id2")), Field.Store.YES));
-        doc2.add(new StoredField("_source", new BytesRef("source2")));
-
-        Document doc3 = new Document();
-        doc3.add(new StringField("_id", new BytesRef(encodeUtf8Id("id3")), Field.Store.YES));
-        doc3.add(new StoredField("_source", new BytesRef("source3")));
-
-        Document doc4 = new Document(); // Doc w/ no fields
-        
-        Document doc5 = new Document(); // Doc w/ missing _source
-        doc5.add(new StringField("_id", new BytesRef(encodeUtf8Id("id5")), Field.Store.YES));
-
-        // Set up our mock reader
-        IndexReader mockReader = mock(IndexReader.class);
-        when(mockReader.maxDoc()).thenReturn(5);
-        when(mockReader.document(0)).thenReturn(doc1);
-        when(mockReader.document(1)).thenReturn(doc2);
-        when(mockReader.document(2)).thenReturn(doc3);
-        when(mockReader.document(3)).thenReturn(doc4);
-        when(mockReader.document(4)).thenReturn(doc5);
-
-        return mockReader;
+    private static Document testDoc(String id, String source) {
+        Document doc = new Document();
+        if (id != null) {
+            doc.add(new StringField("_id", new BytesRef(encodeUtf8Id(id)), Field.Store.YES));
+        }
+        if (source != null) {
+            doc.add(new StoredField("_source", new BytesRef(source)));
+        }
+        return doc;
     }
-}
 
-public class LuceneDocumentsReaderTest {
-    @Test
-    void ReadDocuments_AsExpected() {
-        // Use the TestLuceneDocumentsReader to get the mocked documents
-        Flux<Document> documents = new TestLuceneDocumentsReader().readDocuments(Paths.get("/fake/path"), "testIndex", 1);
+    // Writes the test docs to a Lucene index with each group of docs in its own segment
+    private static void writeTestIndex(Path indexDirectoryPath, List<List<Document>> segments) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+            .setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectoryPath), config)) {
+            for (List<Document> segment : segments) {
+                for (Document doc : segment) {
+                    writer.addDocument(doc);
+                }
+                writer.commit();
+            }
+        }
+    }
+
+    private static Term idTerm(String id) {
+        return new Term("_id", new BytesRef(encodeUtf8Id(id)));
+    }
 
-        // Verify that the results are as expected
+    private static String idOf(Document doc) {
+        return Uid.decodeId(doc.getBinaryValue("_id").bytes);
+    }
+
+    @Test
+    void ReadDocuments_AsExpected(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        writeTestIndex(luceneDir.resolve("testIndex").resolve("1"), List.of(List.of(
+            testDoc("id1", "source1"),
+            testDoc("id2", "source2"),
+            testDoc("id3", "source3"),
+            testDoc(null, null), // Doc w/ no fields
+            testDoc("id5", null) // Doc w/ missing _source
+        )));
+
+        // Run the test
+        Flux<Document> documents = new LuceneDocumentsReader().readDocuments(luceneDir, "testIndex", 1);
+
+        // Check the results
         StepVerifier.create(documents)
-            .expectNextMatches(doc -> {
-                String testId = Uid.decodeId(doc.getBinaryValue("_id").bytes);
-                String testSource = doc.getBinaryValue("_source").utf8ToString();
-                return "id1".equals(testId) && "source1".equals(testSource);
-            })
-            .expectNextMatches(doc -> {
-                String testId = Uid.decodeId(doc.getBinaryValue("_id").bytes);
-                String testSource = doc.getBinaryValue("_source").utf8ToString();
-                return "id2".equals(testId) && "source2".equals(testSource);
-            })
-            .expectNextMatches(doc -> {
-                String testId = Uid.decodeId(doc.getBinaryValue("_id").bytes);
-                String testSource = doc.getBinaryValue("_source").utf8ToString();
-                return "id3".equals(testId) && "source3".equals(testSource);
-            })
+            .expectNextMatches(doc -> "id1".equals(idOf(doc)) && "source1".equals(doc.getBinaryValue("_source").utf8ToString()))
+            .expectNextMatches(doc -> "id2".equals(idOf(doc)) && "source2".equals(doc.getBinaryValue("_source").utf8ToString()))
+            .expectNextMatches(doc -> "id3".equals(idOf(doc)) && "source3".equals(doc.getBinaryValue("_source").utf8ToString()))
             .expectComplete()
             .verify();
     }
-}
 
+    @Test
+    void ReadDocuments_ReadsAllSegmentsInParallel(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        writeTestIndex(luceneDir.resolve("testIndex").resolve("0"), List.of(
+            List.of(testDoc("id1", "source1"), testDoc("id2", "source2")),
+            List.of(testDoc("id3", "source3"), testDoc("id4", null)),
+            List.of(testDoc("id5", "source5")),
+            List.of(testDoc("id6", "source6"), testDoc("id7", "source7"))
+        ));
+
+        // Run the test
+        List<Document> documents = new LuceneDocumentsReader(3).readDocuments(luceneDir, "testIndex", 0)
+            .collectList()
+            .block();
+
+        // Check the results
+        Set<String> actualIds = documents.stream().map(LuceneDocumentsReaderTest::idOf).collect(Collectors.toSet());
+        assertEquals(6, documents.size());
+        assertEquals(Set.of("id1", "id2", "id3", "id5", "id6", "id7"), actualIds);
+    }
 
+    @Test
+    void ReadDocuments_SkipsDeletedDocsAndUnneededFields(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        Path indexDirectoryPath = luceneDir.resolve("testIndex").resolve("0");
+        Document routedDoc = testDoc("id3", "source3");
+        routedDoc.add(new StoredField("_routing", "route3"));
+        routedDoc.add(new StoredField("_unneeded", "value"));
+        writeTestIndex(indexDirectoryPath, List.of(List.of(testDoc("id1", "source1"), testDoc("id2", "source2"), routedDoc)));
+
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectoryPath), config)) {
+            writer.deleteDocuments(idTerm("id2"));
+        }
+
+        // Run the test
+        Flux<Document> documents = new LuceneDocumentsReader().readDocuments(luceneDir, "testIndex", 0);
+
+        // Check the results
+        StepVerifier.create(documents)
+            .expectNextMatches(doc -> "id1".equals(idOf(doc)) && doc.get("_routing") == null)
+            .assertNext(doc -> {
+                assertEquals("id3", idOf(doc));
+                assertEquals("route3", doc.get("_routing"));
+                assertNull(doc.get("_unneeded"));
+            })
+            .expectComplete()
+            .verify();
+    }
 
+    @Test
+    void ReadDocuments_SkipsSoftDeletedDocs(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        // Elasticsearch 7 updates a doc by soft-deleting the old copy, leaving it in the segment's live docs
+        Path indexDirectoryPath = luceneDir.resolve("testIndex").resolve("0");
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+            .setMergePolicy(NoMergePolicy.INSTANCE)
+            .setSoftDeletesField(LuceneDocumentsReader.SOFT_DELETES_FIELD);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectoryPath), config)) {
+            writer.addDocument(testDoc("id1", "source1"));
+            writer.addDocument(testDoc("id2", "source2"));
+            writer.commit();
+            writer.softUpdateDocument(idTerm("id2"), testDoc("id2", "source2-updated"),
+                new NumericDocValuesField(LuceneDocumentsReader.SOFT_DELETES_FIELD, 1));
+        }
+
+        // Run the test
+        List<Document> documents = new LuceneDocumentsReader().readDocuments(luceneDir, "testIndex", 0).collectList().block();
+
+        // Check the results
+        Map<String, String> sourcesById = documents.stream()
+            .collect(Collectors.toMap(LuceneDocumentsReaderTest::idOf, doc -> doc.getBinaryValue("_source").utf8ToString()));
+        assertEquals(2, documents.size());
+        assertEquals(Map.of("id1", "source1", "id2", "source2-updated"), sourcesById);
+    }
 
+    @Test
+    void ReadDocuments_ResumesFromCheckpoint(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        writeTestIndex(luceneDir.resolve("testIndex").resolve("0"), List.of(
+            List.of(testDoc("id1", "source1"), testDoc("id2", "source2")),
+            List.of(testDoc("id3", "source3"), testDoc("id4", "source4"), testDoc("id5", "source5"))
+        ));
+        // The first segment is done, and the first document of the second segment has been acknowledged
+        ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(new ShardCheckpoint(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", 1)));
+
+        // Run the test
+        List<ShardCheckpoint.PositionedDocument> documents = new LuceneDocumentsReader(2).readDocuments(luceneDir, "testIndex", 0, tracker)
+            .collectList()
+            .block();
+
+        // Check the results
+        assertEquals(List.of("id4", "id5"), documents.stream().map(doc -> idOf(doc.document)).collect(Collectors.toList()));
+        assertEquals(List.of(1, 2), documents.stream().map(doc -> doc.position.docId).collect(Collectors.toList()));
+
+        // Nothing has been acknowledged yet, so the checkpoint hasn't moved on
+        assertEquals(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", 1), tracker.getCheckpoint().getResumePoints());
+        tracker.onDocumentsAcknowledged(documents.stream().map(doc -> doc.position).collect(Collectors.toList()));
+        assertEquals(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", ShardCheckpoint.SEGMENT_COMPLETE), tracker.getCheckpoint().getResumePoints());
+    }
 
+    @Test
+    void ReadDocuments_Slices_CoverShardOnceBetweenThem(@TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        writeTestIndex(luceneDir.resolve("testIndex").resolve("0"), List.of(
+            List.of(testDoc("id1", "source1"), testDoc("id2", "source2")),
+            List.of(testDoc("id3", "source3"), testDoc("id4", "source4"), testDoc("id5", "source5"))
+        ));
+        LuceneDocumentsReader testReader = new LuceneDocumentsReader(2);
+
+        // Run the test
+        List<List<String>> idsBySlice = new ArrayList<>();
+        List<ShardCheckpoint.Tracker> trackers = new ArrayList<>();
+        for (ShardSlice slice : ShardSlice.split(300, 100)) {
+            ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(ShardCheckpoint.empty());
+            List<ShardCheckpoint.PositionedDocument> documents = testReader.readDocuments(luceneDir, "testIndex", 0, slice, tracker)
+                .collectList()
+                .block();
+            tracker.onDocumentsAcknowledged(documents.stream().map(doc -> doc.position).collect(Collectors.toList()));
+            idsBySlice.add(documents.stream().map(doc -> idOf(doc.document)).sorted().collect(Collectors.toList()));
+            trackers.add(tracker);
+        }
+
+        // Check the results
+        // The middle slice straddles the two segments
+        assertEquals(List.of(List.of("id1"), List.of("id2", "id3"), List.of("id4", "id5")), idsBySlice);
+        assertEquals(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE), trackers.get(0).getCheckpoint().getResumePoints());
+        assertEquals(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", ShardCheckpoint.SEGMENT_COMPLETE), trackers.get(1).getCheckpoint().getResumePoints());
+
+        // Resuming the last slice from partway through its part of the second segment skips what it had done
+        ShardCheckpoint.Tracker resumed = new ShardCheckpoint.Tracker(new ShardCheckpoint(Map.of("_1", 2)));
+        List<String> resumedIds = testReader.readDocuments(luceneDir, "testIndex", 0, new ShardSlice(2, 3), resumed)
+            .map(doc -> idOf(doc.document))
+            .collectList()
+            .block();
+        assertEquals(List.of("id5"), resumedIds);
+    }
+}
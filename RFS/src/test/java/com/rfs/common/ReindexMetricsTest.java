@@ -0,0 +1,54 @@
+package com.rfs.common;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ReindexMetricsTest {
+
+    @Test
+    void QueueDepth_AsExpected() {
+        // Set up the test
+        ReindexMetrics testMetrics = new ReindexMetrics();
+        for (int i = 0; i < 10; i++) {
+            testMetrics.recordDocumentRead();
+        }
+
+        // Run the test
+        testMetrics.recordBulkStarted();
+        testMetrics.recordBulkStarted();
+        testMetrics.recordBulkSucceeded(4, Duration.ofMillis(10));
+        testMetrics.recordBulkFailed(2, Duration.ofMillis(30));
+
+        // Check the results
+        assertEquals(10, testMetrics.getDocsRead());
+        assertEquals(4, testMetrics.getDocsSucceeded());
+        assertEquals(2, testMetrics.getDocsFailed());
+        assertEquals(4, testMetrics.getQueueDepth());
+        assertEquals(0, testMetrics.getBulksInFlight());
+        assertEquals(1, testMetrics.getBulksSucceeded());
+        assertEquals(1, testMetrics.getBulksFailed());
+    }
+
+    @Test
+    void ReportAndReset_ResetsLatencyWindow() {
+        // Set up the test
+        ReindexMetrics testMetrics = new ReindexMetrics();
+        testMetrics.recordBulkStarted();
+        testMetrics.recordBulkSucceeded(1, Duration.ofMillis(10));
+        testMetrics.recordBulkStarted();
+        testMetrics.recordBulkSucceeded(1, Duration.ofMillis(30));
+
+        // Run the test
+        String firstReport = testMetrics.reportAndReset();
+        String secondReport = testMetrics.reportAndReset();
+
+        // Check the results
+        assertTrue(firstReport.contains("(count/avg/max ms): 2/20/30"));
+        assertTrue(secondReport.contains("(count/avg/max ms): 0/0/0"));
+        assertTrue(secondReport.contains("Bulks succeeded: 2"));
+    }
+}
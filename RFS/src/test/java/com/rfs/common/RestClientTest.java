@@ -0,0 +1,42 @@
+package com.rfs.common;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+public class RestClientTest {
+
+    @Test
+    void Gzip_AsExpected_RoundTripsWithoutConsumingTheBody() throws Exception {
+        // Set up the test
+        StringBuilder bulkBody = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            bulkBody.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n{\"title\":\"The same old document\"}\n");
+        }
+        ByteBuf body = Unpooled.copiedBuffer(bulkBody.toString(), StandardCharsets.UTF_8);
+        int readerIndexBefore = body.readerIndex();
+
+        // Run the test
+        ByteBuf compressed = RestClient.gzip(body, 6);
+
+        // Check the results
+        try {
+            assertEquals(readerIndexBefore, body.readerIndex());
+            assertTrue(compressed.readableBytes() < body.readableBytes() / 5);
+            try (GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(ByteBufUtil.getBytes(compressed)))) {
+                assertEquals(bulkBody.toString(), new String(gzipStream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            compressed.release();
+            body.release();
+        }
+    }
+}
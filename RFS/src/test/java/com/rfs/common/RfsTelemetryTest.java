@@ -0,0 +1,121 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import reactor.core.publisher.Mono;
+
+public class RfsTelemetryTest {
+
+    private static long getCounterTotal(Collection<MetricData> metrics, String name) {
+        return metrics.stream()
+            .filter(metric -> metric.getName().equals(name))
+            .flatMap(metric -> metric.getLongSumData().getPoints().stream())
+            .mapToLong(LongPointData::getValue)
+            .sum();
+    }
+
+    private static long getHistogramCount(Collection<MetricData> metrics, String name) {
+        return metrics.stream()
+            .filter(metric -> metric.getName().equals(name))
+            .flatMap(metric -> metric.getHistogramData().getPoints().stream())
+            .mapToLong(HistogramPointData::getCount)
+            .sum();
+    }
+
+    @Test
+    void Metrics_AsExpected_RecordedToOtel() {
+        // Set up the test
+        InMemoryMetricReader metricReader = InMemoryMetricReader.create();
+        OpenTelemetrySdk otel = OpenTelemetrySdk.builder()
+            .setMeterProvider(SdkMeterProvider.builder().registerMetricReader(metricReader).build())
+            .build();
+        RfsTelemetry telemetry = new RfsTelemetry(otel);
+        ReindexMetrics reindexMetrics = new ReindexMetrics(telemetry);
+        UnpackMetrics unpackMetrics = new UnpackMetrics(telemetry);
+
+        // Run the test
+        for (int i = 0; i < 5; i++) {
+            reindexMetrics.recordDocumentRead();
+        }
+        reindexMetrics.recordBulkStarted();
+        reindexMetrics.recordBulkSent(3, 300);
+        reindexMetrics.recordBulkSucceeded(3, Duration.ofMillis(10));
+        reindexMetrics.recordBulkStarted();
+        reindexMetrics.recordBulkSent(2, 200);
+        reindexMetrics.recordBulkPartiallySucceeded(0, 1, 1, Duration.ofMillis(20));
+        unpackMetrics.recordBytesPrepped(1000);
+        unpackMetrics.recordBytesWritten(400);
+        unpackMetrics.recordBytesWritten(600);
+
+        // Check the results
+        Collection<MetricData> metrics = metricReader.collectAllMetrics();
+        assertEquals(5, getCounterTotal(metrics, "docsRead"));
+        assertEquals(1, getCounterTotal(metrics, "docsRetried"));
+        assertEquals(1, getCounterTotal(metrics, "docsDeadLettered"));
+        assertEquals(1000, getCounterTotal(metrics, "bytesPrepped"));
+        assertEquals(1000, getCounterTotal(metrics, "bytesUnpacked"));
+        assertEquals(2, getHistogramCount(metrics, "bulkLatency"));
+        assertEquals(2, getHistogramCount(metrics, "bulkDocs"));
+        assertEquals(2, getHistogramCount(metrics, "bulkBytes"));
+    }
+
+    @Test
+    void ShardWorkScheduler_AsExpected_ShardsTraced() {
+        // Set up the test
+        InMemoryMetricReader metricReader = InMemoryMetricReader.create();
+        InMemorySpanExporter spanExporter = InMemorySpanExporter.create();
+        OpenTelemetrySdk otel = OpenTelemetrySdk.builder()
+            .setMeterProvider(SdkMeterProvider.builder().registerMetricReader(metricReader).build())
+            .setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(spanExporter)).build())
+            .build();
+        ShardWorkScheduler testScheduler = new ShardWorkScheduler(2, new RfsTelemetry(otel));
+        List<ShardWorkScheduler.ShardWorkItem> workItems = List.of(
+            new ShardWorkScheduler.ShardWorkItem("index1", 0),
+            new ShardWorkScheduler.ShardWorkItem("index1", 1)
+        );
+
+        // Run the test
+        testScheduler.run(workItems, workItem -> workItem.shardId == 1 ? Mono.error(new RfsException("Whoops")) : Mono.empty());
+
+        // Check the results
+        List<SpanData> spans = spanExporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        for (SpanData span : spans) {
+            assertEquals("index1", span.getAttributes().get(RfsTelemetry.INDEX_NAME));
+            boolean failed = span.getAttributes().get(RfsTelemetry.SHARD_ID) == 1;
+            assertEquals(failed ? StatusCode.ERROR : StatusCode.UNSET, span.getStatus().getStatusCode());
+        }
+        assertEquals(2, getHistogramCount(metricReader.collectAllMetrics(), "shardDuration"));
+    }
+
+    @Test
+    void ForCollectorOrNoop_NoEndpoint_AsExpected() {
+        // Run the test
+        RfsTelemetry telemetry = RfsTelemetry.forCollectorOrNoop(null, "test");
+
+        // Check the results
+        // Every instrument should be safe to use, and do nothing
+        telemetry.recordDocumentRead();
+        telemetry.recordBulkSent(1, 1);
+        telemetry.recordShardFinished(telemetry.startShardSpan("index1", 0), "index1", Duration.ZERO, null);
+        assertTrue(true);
+    }
+}
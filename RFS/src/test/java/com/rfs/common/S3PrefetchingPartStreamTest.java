@@ -0,0 +1,102 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.Test;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class S3PrefetchingPartStreamTest {
+    @Mock
+    private S3AsyncClient mockS3Client;
+
+    @Test
+    void Read_AsExpected_ReassemblesRangesAcrossParts() throws IOException {
+        // Set up the test
+        Map<String, String> parts = Map.of(
+            "dir/__blob.part0", "The quick brown ",
+            "dir/__blob.part1", "fox jumps"
+        );
+        ShardMetadata.FileInfo fileMetadata = mock(ShardMetadata.FileInfo.class);
+        when(fileMetadata.getLength()).thenReturn(25L);
+        when(fileMetadata.getPartSize()).thenReturn(16L);
+        when(fileMetadata.getNumberOfParts()).thenReturn(2L);
+        when(fileMetadata.partName(anyLong())).thenAnswer(invocation -> "__blob.part" + invocation.getArgument(0));
+
+        when(mockS3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            String[] range = request.range().substring("bytes=".length()).split("-");
+            String contents = parts.get(request.key()).substring(Integer.parseInt(range[0]), Integer.parseInt(range[1]) + 1);
+            return CompletableFuture.completedFuture(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), contents.getBytes(StandardCharsets.UTF_8)));
+        });
+        Semaphore prefetchBudget = new Semaphore(2);
+
+        // Run the test
+        String contents;
+        try (InputStream stream = new S3PrefetchingPartStream(mockS3Client, "bucket", "dir/", fileMetadata, 5, 3, prefetchBudget)) {
+            contents = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        // Check the results
+        assertEquals("The quick brown fox jumps", contents);
+        assertEquals(2, prefetchBudget.availablePermits()); // All the read-ahead memory was handed back
+
+        ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockS3Client, times(6)).getObject(requests.capture(), any(AsyncResponseTransformer.class));
+        assertEquals(
+            List.of("bytes=0-4", "bytes=5-9", "bytes=10-14", "bytes=15-15", "bytes=0-4", "bytes=5-8"),
+            requests.getAllValues().stream().map(GetObjectRequest::range).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    void Close_AsExpected_CancelsReadAheadAndReleasesBudget() throws IOException {
+        // Set up the test
+        ShardMetadata.FileInfo fileMetadata = mock(ShardMetadata.FileInfo.class);
+        when(fileMetadata.getLength()).thenReturn(100L);
+        when(fileMetadata.getPartSize()).thenReturn(Long.MAX_VALUE);
+        when(fileMetadata.getNumberOfParts()).thenReturn(1L);
+        when(fileMetadata.partName(0L)).thenReturn("__blob");
+
+        CompletableFuture<ResponseBytes<GetObjectResponse>> firstRange = CompletableFuture.completedFuture(
+            ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), new byte[10]));
+        CompletableFuture<ResponseBytes<GetObjectResponse>> laterRanges = new CompletableFuture<>();
+        when(mockS3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+            .thenReturn(firstRange)
+            .thenReturn(laterRanges);
+        Semaphore prefetchBudget = new Semaphore(2);
+
+        // Run the test
+        InputStream stream = new S3PrefetchingPartStream(mockS3Client, "bucket", "dir/", fileMetadata, 10, 3, prefetchBudget);
+        stream.read(new byte[4]);
+        int permitsWhileReading = prefetchBudget.availablePermits();
+        stream.close();
+
+        // Check the results
+        assertEquals(0, permitsWhileReading); // The budget capped the read-ahead
+        assertEquals(2, prefetchBudget.availablePermits());
+        assertEquals(true, laterRanges.isCancelled());
+        verify(mockS3Client, times(3)).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+    }
+}
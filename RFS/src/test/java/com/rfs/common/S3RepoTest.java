@@ -1,6 +1,9 @@
 package com.rfs.common;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.CompletableFuture;
@@ -14,6 +17,7 @@ import org.mockito.Mockito;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
@@ -41,6 +45,10 @@ public class S3RepoTest {
             super(s3LocalDir, s3RepoUri, s3Region, s3Client);
         }
 
+        public TestableS3Repo(Path s3LocalDir, S3Uri s3RepoUri, String s3Region, S3AsyncClient s3Client, boolean streamBlobFiles) {
+            super(s3LocalDir, s3RepoUri, s3Region, s3Client, streamBlobFiles);
+        }
+
         @Override
         protected void ensureS3LocalDirectoryExists(Path path) {
             // Do nothing
@@ -51,6 +59,11 @@ public class S3RepoTest {
             return false;
         }
 
+        @Override
+        protected void moveIntoPlace(Path tempPath, Path localPath) {
+            // Do nothing
+        }
+
         @Override
         protected S3Uri findRepoFileUri() {
             return testRepoFileUri;
@@ -247,4 +260,65 @@ public class S3RepoTest {
 
         verify(mockS3Client).getObject(eq(expectedRequest), any(AsyncResponseTransformer.class));
     }
+
+    @Test
+    void GetBlobFilePath_ConcurrentCallers_DownloadedOnce() throws Exception {
+        // Set up the test
+        CompletableFuture<GetObjectResponse> pendingDownload = new CompletableFuture<>();
+        when(mockS3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class))).thenReturn(pendingDownload);
+        TestableS3Repo repo = spy(new TestableS3Repo(testDir, testRepoUri, testRegion, mockS3Client) {
+            @Override
+            protected boolean doesFileExistLocally(Path path) {
+                return pendingDownload.isDone();
+            }
+        });
+        Path expectedPath = testDir.resolve("indices/123abc/7/bobloblaw");
+
+        // Run the test
+        CompletableFuture<Path> first = CompletableFuture.supplyAsync(() -> repo.getBlobFilePath("123abc", 7, "bobloblaw"));
+        verify(mockS3Client, timeout(1000)).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+        CompletableFuture<Path> second = CompletableFuture.supplyAsync(() -> repo.getBlobFilePath("123abc", 7, "bobloblaw"));
+        verify(repo, timeout(1000).times(2)).ensureS3LocalDirectoryExists(expectedPath.getParent());
+        pendingDownload.complete(GetObjectResponse.builder().build());
+
+        // Check the results
+        assertEquals(expectedPath, first.get());
+        assertEquals(expectedPath, second.get());
+        verify(mockS3Client, times(1)).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+    }
+
+    @Test
+    void OpenBlobFile_StreamingMode_StreamsFromS3() throws IOException {
+        // Set up the test
+        String blobName = "bobloblaw";
+        String indexId = "123abc";
+        int shardId = 7;
+        String expectedKey = testRepoUri.key + "/indices/" + indexId + "/" + shardId + "/" + blobName;
+
+        ResponseInputStream<GetObjectResponse> responseStream = new ResponseInputStream<>(
+            GetObjectResponse.builder().build(),
+            new ByteArrayInputStream("blob contents".getBytes(StandardCharsets.UTF_8))
+        );
+        doReturn(CompletableFuture.completedFuture(responseStream))
+            .when(mockS3Client).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+        S3Repo streamingRepo = new TestableS3Repo(testDir, testRepoUri, testRegion, mockS3Client, true);
+
+        // Run the test
+        streamingRepo.prepBlobFiles(mock(ShardMetadata.Data.class));
+        String contents;
+        try (InputStream stream = streamingRepo.openBlobFile(indexId, shardId, blobName)) {
+            contents = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        // Check the results
+        assertEquals("blob contents", contents);
+
+        GetObjectRequest expectedRequest = GetObjectRequest.builder()
+            .bucket(testRepoUri.bucketName)
+            .key(expectedKey)
+            .build();
+
+        verify(mockS3Client, times(1)).getObject(eq(expectedRequest), any(AsyncResponseTransformer.class));
+        verifyNoMoreInteractions(mockS3Client); // Nothing was downloaded up front
+    }
 }
@@ -0,0 +1,54 @@
+package com.rfs.common;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardCheckpointTest {
+
+    @Test
+    void Tracker_OnlyAdvancesPastAcknowledgedDocuments() {
+        // Set up the test
+        ShardCheckpoint.Tracker tracker = new ShardCheckpoint.Tracker(new ShardCheckpoint(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE)));
+        tracker.onSegmentStarted("_1", 0);
+        tracker.onSegmentStarted("_2", 5);
+        for (int docId : List.of(0, 1, 3, 4)) { // Doc 2 was deleted
+            tracker.onDocumentRead(new ShardCheckpoint.Position("_1", docId));
+        }
+        tracker.onSegmentExhausted("_1");
+        tracker.onDocumentRead(new ShardCheckpoint.Position("_2", 5));
+        tracker.onDocumentRead(new ShardCheckpoint.Position("_2", 6));
+
+        // Run the test / Check the results
+        // Bulks complete out of order, so the later documents of _1 are acknowledged before the earlier ones
+        tracker.onDocumentsAcknowledged(List.of(new ShardCheckpoint.Position("_1", 3), new ShardCheckpoint.Position("_1", 4)));
+        assertEquals(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", 0, "_2", 5), tracker.getCheckpoint().getResumePoints());
+
+        tracker.onDocumentsAcknowledged(List.of(new ShardCheckpoint.Position("_1", 0)));
+        assertEquals(1, tracker.getCheckpoint().getResumePoint("_1"));
+
+        tracker.onDocumentsAcknowledged(List.of(new ShardCheckpoint.Position("_1", 1), new ShardCheckpoint.Position("_2", 5)));
+        assertEquals(ShardCheckpoint.SEGMENT_COMPLETE, tracker.getCheckpoint().getResumePoint("_1"));
+        assertEquals(6, tracker.getCheckpoint().getResumePoint("_2"));
+
+        // _2 hasn't been read to the end, so even with everything read so far acknowledged, it isn't complete
+        tracker.onDocumentsAcknowledged(List.of(new ShardCheckpoint.Position("_2", 6)));
+        assertEquals(7, tracker.getCheckpoint().getResumePoint("_2"));
+    }
+
+    @Test
+    void JsonString_RoundTrips() {
+        // Set up the test
+        ShardCheckpoint checkpoint = new ShardCheckpoint(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1a", 1234));
+
+        // Run the test
+        ShardCheckpoint result = ShardCheckpoint.fromJsonString(checkpoint.toJsonString());
+
+        // Check the results
+        assertEquals(checkpoint, result);
+        assertEquals(0, result.getResumePoint("_2"));
+    }
+}
@@ -0,0 +1,59 @@
+package com.rfs.common;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import static org.mockito.Mockito.*;
+
+public class ShardMetadataTest {
+
+    @Test
+    void CachingFactory_FromRepo_OnlyReadsEachShardOnce() throws Exception {
+        // Set up the test
+        SourceRepo repo = mock(SourceRepo.class);
+        SnapshotRepo.Provider repoDataProvider = mock(SnapshotRepo.Provider.class);
+        ShardMetadata.Factory delegate = mock(ShardMetadata.Factory.class);
+        ShardMetadata.Data shard0 = mock(ShardMetadata.Data.class);
+        ShardMetadata.Data shard1 = mock(ShardMetadata.Data.class);
+        when(delegate.fromRepo(repo, repoDataProvider, "snap", "index1", 0)).thenReturn(shard0);
+        when(delegate.fromRepo(repo, repoDataProvider, "snap", "index1", 1)).thenReturn(shard1);
+
+        ShardMetadata.Factory cachingFactory = new ShardMetadata.CachingFactory(delegate);
+
+        // Run the test
+        ShardMetadata.Data first = cachingFactory.fromRepo(repo, repoDataProvider, "snap", "index1", 0);
+        ShardMetadata.Data second = cachingFactory.fromRepo(repo, repoDataProvider, "snap", "index1", 0);
+        ShardMetadata.Data other = cachingFactory.fromRepo(repo, repoDataProvider, "snap", "index1", 1);
+
+        // Check the results
+        assertSame(shard0, first);
+        assertSame(shard0, second);
+        assertNotSame(first, other);
+        verify(delegate, times(1)).fromRepo(repo, repoDataProvider, "snap", "index1", 0);
+        verify(delegate, times(1)).fromRepo(repo, repoDataProvider, "snap", "index1", 1);
+    }
+
+    @Test
+    void CachingFactory_FromRepo_DoesNotCacheFailures() throws Exception {
+        // Set up the test
+        SourceRepo repo = mock(SourceRepo.class);
+        SnapshotRepo.Provider repoDataProvider = mock(SnapshotRepo.Provider.class);
+        ShardMetadata.Factory delegate = mock(ShardMetadata.Factory.class);
+        ShardMetadata.Data shard0 = mock(ShardMetadata.Data.class);
+        when(delegate.fromRepo(repo, repoDataProvider, "snap", "index1", 0))
+            .thenThrow(new RfsException("Whoops"))
+            .thenReturn(shard0);
+
+        ShardMetadata.Factory cachingFactory = new ShardMetadata.CachingFactory(delegate);
+
+        // Run the test
+        assertThrows(RfsException.class, () -> cachingFactory.fromRepo(repo, repoDataProvider, "snap", "index1", 0));
+        ShardMetadata.Data result = cachingFactory.fromRepo(repo, repoDataProvider, "snap", "index1", 0);
+
+        // Check the results
+        assertSame(shard0, result);
+        verify(delegate, times(2)).fromRepo(repo, repoDataProvider, "snap", "index1", 0);
+    }
+}
@@ -0,0 +1,39 @@
+package com.rfs.common;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardSliceTest {
+
+    @Test
+    void split_AsExpected() {
+        assertEquals(List.of(ShardSlice.WHOLE_SHARD), ShardSlice.split(1000, 0));
+        assertEquals(List.of(ShardSlice.WHOLE_SHARD), ShardSlice.split(1000, 1000));
+        assertEquals(List.of(new ShardSlice(0, 3), new ShardSlice(1, 3), new ShardSlice(2, 3)), ShardSlice.split(1001, 500));
+    }
+
+    @Test
+    void getDocRange_SlicesCoverAllDocs() {
+        // Set up the test
+        int maxDoc = 10;
+        List<ShardSlice> slices = ShardSlice.split(4, 1);
+
+        // Run the test & Check the results
+        int expectedStart = 0;
+        for (ShardSlice slice : slices) {
+            assertEquals(expectedStart, slice.getStartDoc(maxDoc));
+            expectedStart = slice.getEndDoc(maxDoc);
+        }
+        assertEquals(maxDoc, expectedStart);
+    }
+
+    @Test
+    void constructor_InvalidSlice_Throws() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardSlice(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ShardSlice(2, 2));
+    }
+}
@@ -0,0 +1,120 @@
+package com.rfs.common;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Mono;
+
+public class ShardWorkSchedulerTest {
+
+    @Test
+    void run_AllShardsSucceed_AsExpected() {
+        // Set up the test
+        List<ShardWorkScheduler.ShardWorkItem> workItems = List.of(
+            new ShardWorkScheduler.ShardWorkItem("index1", 0),
+            new ShardWorkScheduler.ShardWorkItem("index1", 1),
+            new ShardWorkScheduler.ShardWorkItem("index2", 0)
+        );
+        ShardWorkScheduler testScheduler = new ShardWorkScheduler(2);
+
+        // Run the test
+        List<ShardWorkScheduler.ShardResult> results = testScheduler.run(workItems, workItem -> Mono.empty());
+
+        // Check the results
+        assertEquals(3, results.size());
+        assertTrue(results.stream().allMatch(ShardWorkScheduler.ShardResult::isSuccessful));
+    }
+
+    @Test
+    void run_OneShardFails_OthersUnaffected() {
+        // Set up the test
+        List<ShardWorkScheduler.ShardWorkItem> workItems = List.of(
+            new ShardWorkScheduler.ShardWorkItem("index1", 0),
+            new ShardWorkScheduler.ShardWorkItem("index1", 1),
+            new ShardWorkScheduler.ShardWorkItem("index1", 2)
+        );
+        ShardWorkScheduler testScheduler = new ShardWorkScheduler(3);
+
+        // Run the test
+        List<ShardWorkScheduler.ShardResult> results = testScheduler.run(workItems, workItem -> {
+            if (workItem.shardId == 1) {
+                throw new RfsException("Whoops");
+            }
+            return Mono.empty();
+        });
+
+        // Check the results
+        List<ShardWorkScheduler.ShardResult> failed = results.stream()
+            .filter(result -> !result.isSuccessful())
+            .collect(Collectors.toList());
+        assertEquals(3, results.size());
+        assertEquals(1, failed.size());
+        assertEquals(1, failed.get(0).workItem.shardId);
+        assertEquals("Whoops", failed.get(0).error.getMessage());
+    }
+
+    @Test
+    void run_ParallelismIsBounded() {
+        // Set up the test
+        List<ShardWorkScheduler.ShardWorkItem> workItems = List.of(
+            new ShardWorkScheduler.ShardWorkItem("index1", 0),
+            new ShardWorkScheduler.ShardWorkItem("index1", 1),
+            new ShardWorkScheduler.ShardWorkItem("index1", 2),
+            new ShardWorkScheduler.ShardWorkItem("index1", 3),
+            new ShardWorkScheduler.ShardWorkItem("index1", 4)
+        );
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxInFlight = new AtomicInteger(0);
+        ShardWorkScheduler testScheduler = new ShardWorkScheduler(2);
+
+        // Run the test
+        List<ShardWorkScheduler.ShardResult> results = testScheduler.run(workItems, workItem -> Mono.delay(Duration.ofMillis(50))
+            .doOnSubscribe(s -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+            .doOnTerminate(inFlight::decrementAndGet)
+            .then());
+
+        // Check the results
+        assertEquals(5, results.size());
+        assertEquals(2, maxInFlight.get());
+        assertFalse(results.stream().anyMatch(result -> !result.isSuccessful()));
+    }
+
+    @Test
+    void largestFirst_AsExpected() {
+        // Set up the test
+        Map<String, Long> sizes = Map.of("index1/0", 10L, "index1/1", 500L, "index2/0", 10L, "index2/1", 2000L);
+        List<ShardWorkScheduler.ShardWorkItem> workItems = List.of(
+            new ShardWorkScheduler.ShardWorkItem("index1", 0),
+            new ShardWorkScheduler.ShardWorkItem("index1", 1),
+            new ShardWorkScheduler.ShardWorkItem("index2", 0),
+            new ShardWorkScheduler.ShardWorkItem("index2", 1)
+        );
+        List<String> started = new CopyOnWriteArrayList<>();
+        ShardWorkScheduler testScheduler = new ShardWorkScheduler(1);
+
+        // Run the test
+        List<ShardWorkScheduler.ShardWorkItem> ordered = ShardWorkScheduler.largestFirst(workItems,
+            workItem -> sizes.get(workItem.indexName + "/" + workItem.shardId));
+        testScheduler.run(ordered, workItem -> Mono.fromRunnable(() -> started.add(workItem.indexName + "/" + workItem.shardId)));
+
+        // Check the results
+        // Shards of the same size keep their original order
+        assertEquals(List.of("index2/1", "index1/1", "index1/0", "index2/0"), started);
+    }
+
+    @Test
+    void constructor_InvalidParallelism_Throws() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardWorkScheduler(0));
+    }
+}
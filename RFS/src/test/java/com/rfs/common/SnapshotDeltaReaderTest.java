@@ -0,0 +1,139 @@
+package com.rfs.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoDeletionPolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+public class SnapshotDeltaReaderTest {
+
+    private static Document testDoc(String id, String routing) {
+        Document doc = new Document();
+        doc.add(new StringField("_id", new BytesRef(LuceneDocumentsReaderTest.encodeUtf8Id(id)), Field.Store.YES));
+        doc.add(new StoredField("_source", new BytesRef("{\"id\":\"" + id + "\"}")));
+        if (routing != null) {
+            doc.add(new StringField("_routing", routing, Field.Store.YES));
+        }
+        return doc;
+    }
+
+    private static Term idTerm(String id) {
+        return new Term("_id", new BytesRef(LuceneDocumentsReaderTest.encodeUtf8Id(id)));
+    }
+
+    // Each commit stands in for a snapshot of the shard
+    private static IndexWriter openWriter(Directory directory, boolean merging) throws Exception {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+            .setIndexDeletionPolicy(NoDeletionPolicy.INSTANCE)
+            .setMergePolicy(merging ? new TieredMergePolicy() : NoMergePolicy.INSTANCE);
+        return new IndexWriter(directory, config);
+    }
+
+    private static Set<String> readChanges(Directory directory) {
+        SnapshotDeltaReader deltaReader = new SnapshotDeltaReader(new LuceneDocumentsReader(), 1);
+        return deltaReader.readChanges(
+                () -> DirectoryReader.open(getCommit(directory, -2)),
+                () -> DirectoryReader.open(getCommit(directory, -1))
+            )
+            .map(section -> {
+                ByteBuf body = BulkDocSection.toBulkRequestBody(List.of(section), ByteBufAllocator.DEFAULT);
+                try {
+                    return body.toString(StandardCharsets.UTF_8).split("\n")[0]; // Just the action line
+                } finally {
+                    body.release();
+                }
+            })
+            .collect(Collectors.toSet())
+            .block();
+    }
+
+    // Counting back from the latest commit
+    private static IndexCommit getCommit(Directory directory, int fromEnd) throws Exception {
+        List<IndexCommit> commits = DirectoryReader.listCommits(directory);
+        return commits.get(commits.size() + fromEnd);
+    }
+
+    @Test
+    void readChanges_AsExpected_NewSegmentsAndDeletes(@TempDir Path tempDir) throws Exception {
+        // Set up the test
+        try (Directory directory = FSDirectory.open(tempDir)) {
+            try (IndexWriter writer = openWriter(directory, false)) {
+                writer.addDocument(testDoc("id1", null));
+                writer.addDocument(testDoc("id2", null));
+                writer.addDocument(testDoc("id3", "route3"));
+                writer.addDocument(testDoc("id4", null));
+                writer.commit();
+
+                writer.updateDocument(idTerm("id1"), testDoc("id1", null)); // Updated
+                writer.deleteDocuments(idTerm("id2"));
+                writer.deleteDocuments(idTerm("id3"));
+                writer.addDocument(testDoc("id5", null));
+                writer.commit();
+            }
+
+            // Run the test
+            Set<String> changes = readChanges(directory);
+
+            // Check the results
+            assertEquals(Set.of(
+                "{\"delete\": {\"_id\": \"id2\"}}",
+                "{\"delete\": {\"_id\": \"id3\", \"routing\": \"route3\"}}",
+                "{\"index\": {\"_id\": \"id1\"}}",
+                "{\"index\": {\"_id\": \"id5\"}}"
+            ), changes);
+        }
+    }
+
+    @Test
+    void readChanges_SegmentsMerged_OnlyDeletesWhatsGone(@TempDir Path tempDir) throws Exception {
+        // Set up the test
+        try (Directory directory = FSDirectory.open(tempDir)) {
+            try (IndexWriter writer = openWriter(directory, true)) {
+                writer.addDocument(testDoc("id1", null));
+                writer.addDocument(testDoc("id2", null));
+                writer.commit();
+                writer.addDocument(testDoc("id3", null));
+                writer.commit();
+
+                writer.deleteDocuments(idTerm("id2"));
+                writer.forceMerge(1);
+                writer.commit();
+            }
+
+            // Run the test
+            Set<String> changes = readChanges(directory);
+
+            // Check the results
+            assertEquals(Set.of(
+                "{\"delete\": {\"_id\": \"id2\"}}",
+                "{\"index\": {\"_id\": \"id1\"}}",
+                "{\"index\": {\"_id\": \"id3\"}}"
+            ), changes);
+        }
+    }
+}
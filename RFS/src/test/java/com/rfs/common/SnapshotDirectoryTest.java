@@ -0,0 +1,158 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotDirectoryTest {
+    private static final String INDEX_ID = "indexId";
+    private static final int SHARD_ID = 0;
+    private static final long PART_SIZE = 100; // Small, so that most files are split across several parts
+
+    private static Document testDoc(String id, String source) {
+        Document doc = new Document();
+        doc.add(new StringField("_id", new BytesRef(LuceneDocumentsReaderTest.encodeUtf8Id(id)), Field.Store.YES));
+        doc.add(new StoredField("_source", new BytesRef(source)));
+        return doc;
+    }
+
+    /*
+     * Writes a Lucene index, then "snapshots" it into a file system repo the same way Elasticsearch would: each Lucene
+     * file is chopped into parts, except for the segments file, whose contents are stored in the metadata instead.
+     * One of the docs is updated the way Elasticsearch 7 does it, leaving a soft-deleted copy behind.
+     */
+    private static ShardMetadata.Data snapshotTestIndex(Path luceneDir, Path repoDir) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+            .setMergePolicy(NoMergePolicy.INSTANCE)
+            .setSoftDeletesField(LuceneDocumentsReader.SOFT_DELETES_FIELD);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(luceneDir), config)) {
+            for (int i = 0; i < 20; i++) {
+                writer.addDocument(testDoc("id" + i, "{\"field\":\"value" + i + "\"}"));
+                if (i % 7 == 6) {
+                    writer.commit();
+                }
+            }
+            writer.softUpdateDocument(new Term("_id", new BytesRef(LuceneDocumentsReaderTest.encodeUtf8Id("id3"))),
+                testDoc("id3", "{\"field\":\"updated\"}"), new NumericDocValuesField(LuceneDocumentsReader.SOFT_DELETES_FIELD, 1));
+        }
+
+        Path shardDir = repoDir.resolve("indices").resolve(INDEX_ID).resolve(String.valueOf(SHARD_ID));
+        Files.createDirectories(shardDir);
+
+        List<ShardMetadata.FileInfo> files = new ArrayList<>();
+        int blobNum = 0;
+        for (String physicalName : FSDirectory.open(luceneDir).listAll()) {
+            if (physicalName.equals("write.lock")) {
+                continue;
+            }
+            byte[] contents = Files.readAllBytes(luceneDir.resolve(physicalName));
+            ShardMetadata.FileInfo fileInfo = mock(ShardMetadata.FileInfo.class);
+            when(fileInfo.getPhysicalName()).thenReturn(physicalName);
+            when(fileInfo.getLength()).thenReturn((long) contents.length);
+
+            if (physicalName.startsWith("segments_")) {
+                when(fileInfo.getName()).thenReturn("v__" + blobNum++);
+                when(fileInfo.getMetaHash()).thenReturn(new BytesRef(contents));
+            } else {
+                String blobName = "__" + blobNum++;
+                long numberOfParts = (contents.length + PART_SIZE - 1) / PART_SIZE;
+                when(fileInfo.getName()).thenReturn(blobName);
+                when(fileInfo.getPartSize()).thenReturn(PART_SIZE);
+                when(fileInfo.getNumberOfParts()).thenReturn(numberOfParts);
+                for (int part = 0; part < numberOfParts; part++) {
+                    String partName = blobName + ".part" + part;
+                    when(fileInfo.partName(part)).thenReturn(partName);
+                    int start = (int) (part * PART_SIZE);
+                    int end = (int) Math.min(contents.length, start + PART_SIZE);
+                    Files.write(shardDir.resolve(partName), Arrays.copyOfRange(contents, start, end));
+                }
+            }
+            files.add(fileInfo);
+        }
+
+        ShardMetadata.Data shardMetadata = mock(ShardMetadata.Data.class);
+        when(shardMetadata.getIndexId()).thenReturn(INDEX_ID);
+        when(shardMetadata.getIndexName()).thenReturn("testIndex");
+        when(shardMetadata.getShardId()).thenReturn(SHARD_ID);
+        when(shardMetadata.getFiles()).thenReturn(files);
+        return shardMetadata;
+    }
+
+    @Test
+    void OpenInput_MatchesOriginalFiles(@TempDir Path luceneDir, @TempDir Path repoDir) throws IOException {
+        // Set up the test
+        ShardMetadata.Data shardMetadata = snapshotTestIndex(luceneDir, repoDir);
+        SnapshotDirectory testDirectory = new SnapshotDirectory(new FileSystemRepo(repoDir), shardMetadata);
+
+        // Run the test / Check the results
+        for (String name : testDirectory.listAll()) {
+            byte[] expected = Files.readAllBytes(luceneDir.resolve(name));
+            assertEquals(expected.length, testDirectory.fileLength(name));
+
+            try (IndexInput input = testDirectory.openInput(name, IOContext.READONCE)) {
+                byte[] actual = new byte[expected.length];
+                input.readBytes(actual, 0, actual.length);
+                assertArrayEquals(expected, actual, "Contents of " + name);
+
+                // Slices that straddle a part boundary read the right bytes too
+                if (expected.length > PART_SIZE + 10) {
+                    IndexInput slice = input.slice("test slice", PART_SIZE - 10, 20);
+                    byte[] sliceBytes = new byte[20];
+                    slice.readBytes(sliceBytes, 0, sliceBytes.length);
+                    assertArrayEquals(Arrays.copyOfRange(expected, (int) PART_SIZE - 10, (int) PART_SIZE + 10), sliceBytes);
+                }
+            }
+        }
+        assertThrows(UnsupportedOperationException.class, () -> testDirectory.deleteFile(testDirectory.listAll()[0]));
+    }
+
+    @Test
+    void ReadDocuments_InPlaceFromSnapshot(@TempDir Path luceneDir, @TempDir Path repoDir) throws IOException {
+        // Set up the test
+        ShardMetadata.Data shardMetadata = snapshotTestIndex(luceneDir, repoDir);
+
+        // Run the test
+        List<Document> documents = new LuceneDocumentsReader(2).readDocuments(new FileSystemRepo(repoDir), shardMetadata)
+            .collectList()
+            .block();
+
+        // Check the results
+        Set<String> actualIds = documents.stream()
+            .map(doc -> Uid.decodeId(doc.getBinaryValue("_id").bytes))
+            .collect(Collectors.toSet());
+        Set<String> expectedIds = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            expectedIds.add("id" + i);
+        }
+        assertEquals(expectedIds, actualIds);
+        assertEquals(20, documents.size()); // Not the soft-deleted copy of id3
+    }
+}
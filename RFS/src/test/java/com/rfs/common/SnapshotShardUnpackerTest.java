@@ -0,0 +1,107 @@
+package com.rfs.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotShardUnpackerTest {
+
+    private static ShardMetadata.FileInfo inlineFile(String blobName, String physicalName, String contents) {
+        ShardMetadata.FileInfo fileInfo = mock(ShardMetadata.FileInfo.class);
+        when(fileInfo.getName()).thenReturn(blobName);
+        when(fileInfo.getPhysicalName()).thenReturn(physicalName);
+        when(fileInfo.getLength()).thenReturn((long) contents.length());
+        when(fileInfo.getMetaHash()).thenReturn(new BytesRef(contents));
+        return fileInfo;
+    }
+
+    private static ShardMetadata.FileInfo blobFile(Path shardDir, String blobName, String physicalName, String... parts) throws IOException {
+        ShardMetadata.FileInfo fileInfo = mock(ShardMetadata.FileInfo.class);
+        when(fileInfo.getName()).thenReturn(blobName);
+        when(fileInfo.getPhysicalName()).thenReturn(physicalName);
+        when(fileInfo.getLength()).thenReturn((long) String.join("", parts).length());
+        when(fileInfo.getNumberOfParts()).thenReturn((long) parts.length);
+        for (int i = 0; i < parts.length; i++) {
+            when(fileInfo.partName(i)).thenReturn(blobName + ".part" + i);
+            Files.writeString(shardDir.resolve(blobName + ".part" + i), parts[i]);
+        }
+        return fileInfo;
+    }
+
+    @Test
+    void Unpack_AsExpected(@TempDir Path repoDir, @TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        Path shardDir = repoDir.resolve("indices").resolve("indexId").resolve("1");
+        Files.createDirectories(shardDir);
+        List<ShardMetadata.FileInfo> files = List.of(
+            inlineFile("v__0", "segments_1", "inline contents"),
+            blobFile(shardDir, "__1", "_0.cfs", "part one, ", "part two"),
+            blobFile(shardDir, "__2", "_0.cfe", "single part")
+        );
+        ShardMetadata.Data shardMetadata = mock(ShardMetadata.Data.class);
+        when(shardMetadata.getIndexId()).thenReturn("indexId");
+        when(shardMetadata.getIndexName()).thenReturn("testIndex");
+        when(shardMetadata.getShardId()).thenReturn(1);
+        when(shardMetadata.getFiles()).thenReturn(files);
+        when(shardMetadata.getTotalSize()).thenReturn(44L);
+
+        SourceRepo testRepo = spy(new FileSystemRepo(repoDir));
+        UnpackMetrics testMetrics = new UnpackMetrics();
+
+        // Run the test
+        try (SnapshotShardUnpacker testUnpacker = new SnapshotShardUnpacker(testRepo, luceneDir, 4, 1, 2, testMetrics)) {
+            testUnpacker.unpack(shardMetadata).block();
+        }
+
+        // Check the results
+        Path unpackedDir = luceneDir.resolve("testIndex").resolve("1");
+        assertEquals("inline contents", Files.readString(unpackedDir.resolve("segments_1"), StandardCharsets.UTF_8));
+        assertEquals("part one, part two", Files.readString(unpackedDir.resolve("_0.cfs"), StandardCharsets.UTF_8));
+        assertEquals("single part", Files.readString(unpackedDir.resolve("_0.cfe"), StandardCharsets.UTF_8));
+
+        verify(testRepo, times(1)).prepBlobFiles(shardMetadata);
+        assertEquals(1, testMetrics.getShardsUnpacked());
+        assertEquals(3, testMetrics.getFilesWritten());
+        assertEquals(44, testMetrics.getBytesPrepped());
+        assertEquals(44, testMetrics.getBytesWritten());
+    }
+
+    @Test
+    void CleanUp_DeletesUnpackedFilesOnly(@TempDir Path repoDir, @TempDir Path luceneDir) throws IOException {
+        // Set up the test
+        Path shardDir = repoDir.resolve("indices").resolve("indexId").resolve("0");
+        Files.createDirectories(shardDir);
+        List<ShardMetadata.FileInfo> files = List.of(blobFile(shardDir, "__1", "_0.cfs", "contents"));
+        ShardMetadata.Data shardMetadata = mock(ShardMetadata.Data.class);
+        when(shardMetadata.getIndexId()).thenReturn("indexId");
+        when(shardMetadata.getIndexName()).thenReturn("testIndex");
+        when(shardMetadata.getShardId()).thenReturn(0);
+        when(shardMetadata.getFiles()).thenReturn(files);
+
+        SourceRepo testRepo = spy(new FileSystemRepo(repoDir));
+
+        // Run the test
+        try (SnapshotShardUnpacker testUnpacker = new SnapshotShardUnpacker(testRepo, luceneDir, 4, 1, 1, new UnpackMetrics())) {
+            testUnpacker.unpack(shardMetadata).block();
+            assertTrue(Files.exists(luceneDir.resolve("testIndex").resolve("0").resolve("_0.cfs")));
+
+            testUnpacker.cleanUp(shardMetadata).block();
+        }
+
+        // Check the results
+        assertFalse(Files.exists(luceneDir.resolve("testIndex").resolve("0")));
+        assertTrue(Files.exists(shardDir.resolve("__1.part0"))); // The snapshot itself is left alone
+        verify(testRepo, times(1)).cleanUpBlobFiles(shardMetadata);
+    }
+}
@@ -0,0 +1,110 @@
+package com.rfs.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TargetShardRouterTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void hash_AsExpected_MatchesOpenSearch() {
+        // Check the results
+        // Values from OpenSearch's own tests of its Murmur3HashFunction
+        assertEquals(0x5a0cb7c3, TargetShardRouter.hash("hell"));
+        assertEquals(0xd7c31989, TargetShardRouter.hash("hello"));
+        assertEquals(0x22ab2984, TargetShardRouter.hash("hello w"));
+        assertEquals(0xdf0ca123, TargetShardRouter.hash("hello wo"));
+        assertEquals(0xe7744d61, TargetShardRouter.hash("hello wor"));
+        assertEquals(0xe07db09c, TargetShardRouter.hash("The quick brown fox jumps over the lazy dog"));
+    }
+
+    @Test
+    void getClientFor_AsExpected_RoutesToPrimaryNode() throws Exception {
+        // Set up the test
+        OpenSearchClient coordinator = spy(new OpenSearchClient(new ConnectionDetails("https://coordinator:9200", "user", "pass")));
+        doReturn(mapper.readTree(
+            "{\"metadata\": {\"indices\": {\"idx\": {\"routing_num_shards\": 1024, \"settings\": {\"index\": {\"number_of_shards\": \"2\"}}}}},"
+            + " \"routing_table\": {\"indices\": {\"idx\": {\"shards\": {"
+            + "  \"0\": [{\"primary\": true, \"state\": \"STARTED\", \"node\": \"n1\"}, {\"primary\": false, \"state\": \"STARTED\", \"node\": \"n2\"}],"
+            + "  \"1\": [{\"primary\": false, \"state\": \"STARTED\", \"node\": \"n1\"}, {\"primary\": true, \"state\": \"STARTED\", \"node\": \"n2\"}]"
+            + "}}}}}")).when(coordinator).getIndexRoutingState("idx");
+        doReturn(mapper.readTree(
+            "{\"nodes\": {\"n1\": {\"http\": {\"publish_address\": \"node1/10.0.0.1:9200\"}}, \"n2\": {\"http\": {\"publish_address\": \"10.0.0.2:9200\"}}}}"
+        )).when(coordinator).getNodesHttpInfo();
+
+        try (ConnectionPool connectionPool = new ConnectionPool()) {
+            TargetShardRouter router = new TargetShardRouter(coordinator, connectionPool);
+
+            // Run the test & Check the results
+            for (int i = 0; i < 20; i++) {
+                BulkDocSection section = (i % 2 == 0)
+                    ? new BulkDocSection("doc" + i, new BytesRef("{}"))
+                    : new BulkDocSection("doc" + i, "group" + i, new BytesRef("{}"));
+                String routing = (section.routing != null) ? section.routing : section.docId;
+                String expectedUrl = TargetShardRouter.getShardId(routing, 1024, 2) == 0 ? "https://10.0.0.1:9200" : "https://10.0.0.2:9200";
+
+                OpenSearchClient client = router.getClientFor("idx", section);
+                assertEquals(expectedUrl, client.connectionDetails.url);
+                assertEquals("user", client.connectionDetails.username);
+                assertSame(client, router.getClientFor("idx", section));
+            }
+
+            // The allocation is only discovered once per refresh interval
+            verify(coordinator, times(1)).getIndexRoutingState("idx");
+        }
+    }
+
+    @Test
+    void getClientFor_RoutingPartitioned_UsesCoordinator() throws Exception {
+        // Set up the test
+        OpenSearchClient coordinator = spy(new OpenSearchClient(new ConnectionDetails("http://coordinator:9200", null, null)));
+        doReturn(mapper.readTree(
+            "{\"metadata\": {\"indices\": {\"idx\": {\"routing_num_shards\": 1024, \"settings\": {\"index\": {\"number_of_shards\": \"2\", \"routing_partition_size\": \"2\"}}}}}}"
+        )).when(coordinator).getIndexRoutingState("idx");
+
+        try (ConnectionPool connectionPool = new ConnectionPool()) {
+            TargetShardRouter router = new TargetShardRouter(coordinator, connectionPool);
+
+            // Run the test
+            OpenSearchClient client = router.getClientFor("idx", new BulkDocSection("doc1", new BytesRef("{}")));
+
+            // Check the results
+            assertSame(coordinator, client);
+        }
+    }
+
+    @Test
+    void getClientFor_NodeUnreachable_UsesCoordinator() throws Exception {
+        // Set up the test
+        OpenSearchClient coordinator = spy(new OpenSearchClient(new ConnectionDetails("http://coordinator:9200", null, null)));
+        doReturn(mapper.readTree(
+            "{\"metadata\": {\"indices\": {\"idx\": {\"routing_num_shards\": 1, \"settings\": {\"index\": {\"number_of_shards\": \"1\"}}}}},"
+            + " \"routing_table\": {\"indices\": {\"idx\": {\"shards\": {\"0\": [{\"primary\": true, \"state\": \"STARTED\", \"node\": \"n1\"}]}}}}}"
+        )).when(coordinator).getIndexRoutingState("idx");
+        doReturn(mapper.readTree(
+            "{\"nodes\": {\"n1\": {\"http\": {\"publish_address\": \"10.0.0.1:9200\"}}}}"
+        )).when(coordinator).getNodesHttpInfo();
+        BulkDocSection section = new BulkDocSection("doc1", new BytesRef("{}"));
+
+        try (ConnectionPool connectionPool = new ConnectionPool()) {
+            TargetShardRouter router = new TargetShardRouter(coordinator, connectionPool);
+            OpenSearchClient nodeClient = router.getClientFor("idx", section);
+            assertEquals("http://10.0.0.1:9200", nodeClient.connectionDetails.url);
+
+            // Run the test
+            router.onNodeUnreachable(nodeClient);
+
+            // Check the results
+            assertSame(coordinator, router.getClientFor("idx", section));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.rfs.version_os_2_11;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+import org.mockito.InOrder;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.rfs.common.OpenSearchClient;
+import com.rfs.common.RestClient;
+
+import reactor.core.publisher.Mono;
+
+public class BulkLoadSettings_OS_2_11Test {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void ApplyBulkLoadSettings_AsExpected() throws Exception {
+        // Set up the test
+        ObjectNode settings = (ObjectNode) objectMapper.readTree(
+            "{\"number_of_shards\":\"5\",\"number_of_replicas\":\"2\",\"translog\":{\"flush_threshold_size\":\"1gb\"}}");
+        ObjectNode expectedIntended = (ObjectNode) objectMapper.readTree(
+            "{\"index.number_of_replicas\":\"2\",\"index.refresh_interval\":null,\"index.translog.durability\":null}");
+        ObjectNode expectedBulkLoad = (ObjectNode) objectMapper.readTree(
+            "{\"number_of_shards\":\"5\",\"number_of_replicas\":\"0\",\"translog\":{\"flush_threshold_size\":\"1gb\",\"durability\":\"async\"},\"refresh_interval\":\"-1\"}");
+
+        // Run the test
+        ObjectNode intended = BulkLoadSettings_OS_2_11.getIntendedSettings(settings);
+        BulkLoadSettings_OS_2_11.applyBulkLoadSettings(settings);
+
+        // Check the results
+        assertEquals(expectedIntended, intended);
+        assertEquals(expectedBulkLoad, settings);
+    }
+
+    @Test
+    void RestoreIntendedSettings_AsExpected() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        RestClient.Response okResponse = new RestClient.Response(200, "{}", "OK");
+        when(client.updateIndexSettingsAsync(eq("index1"), any(ObjectNode.class))).thenReturn(Mono.just(okResponse));
+        when(client.refreshAsync("index1")).thenReturn(Mono.just(okResponse));
+        when(client.forceMergeAsync("index1")).thenReturn(Mono.just(okResponse));
+        ObjectNode intended = objectMapper.createObjectNode().put("index.number_of_replicas", "1");
+
+        // Run the test
+        BulkLoadSettings_OS_2_11.restoreIntendedSettings("index1", intended, client).block();
+
+        // Check the results
+        InOrder inOrder = inOrder(client);
+        inOrder.verify(client).updateIndexSettingsAsync("index1", intended);
+        inOrder.verify(client).refreshAsync("index1");
+        inOrder.verify(client).forceMergeAsync("index1");
+    }
+}
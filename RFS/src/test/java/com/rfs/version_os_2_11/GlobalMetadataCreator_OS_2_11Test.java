@@ -0,0 +1,106 @@
+package com.rfs.version_os_2_11;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.rfs.common.OpenSearchClient;
+import com.rfs.common.RfsException;
+
+import reactor.core.publisher.Mono;
+
+public class GlobalMetadataCreator_OS_2_11Test {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private ObjectNode buildRoot() {
+        ObjectNode root = objectMapper.createObjectNode();
+        root.putObject("templates").putObject("legacy1");
+        ObjectNode componentTemplates = root.putObject("component_template").putObject("component_template");
+        componentTemplates.putObject("component1");
+        componentTemplates.putObject("component2");
+        root.putObject("index_template").putObject("index_template").putObject("index1");
+        return root;
+    }
+
+    @Test
+    void Create_AsExpected_ComponentTemplatesFinishBeforeIndexTemplatesStart() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        AtomicInteger componentTemplatesCreated = new AtomicInteger(0);
+        AtomicInteger componentTemplatesCreatedBeforeIndexTemplate = new AtomicInteger(-1);
+
+        when(client.createLegacyTemplateAsync(anyString(), any(ObjectNode.class))).thenReturn(Mono.just(true));
+        when(client.createComponentTemplateAsync(anyString(), any(ObjectNode.class))).thenAnswer(invocation ->
+            Mono.delay(Duration.ofMillis(50)).then(Mono.fromCallable(() -> {
+                componentTemplatesCreated.incrementAndGet();
+                return true;
+            }))
+        );
+        when(client.createIndexTemplateAsync(anyString(), any(ObjectNode.class))).thenAnswer(invocation -> {
+            componentTemplatesCreatedBeforeIndexTemplate.set(componentTemplatesCreated.get());
+            return Mono.just(false);
+        });
+
+        GlobalMetadataCreator_OS_2_11 creator = new GlobalMetadataCreator_OS_2_11(client, null, null, null, 4);
+
+        // Run the test
+        creator.create(buildRoot());
+
+        // Check the results
+        assertEquals(2, componentTemplatesCreatedBeforeIndexTemplate.get());
+        verify(client, times(1)).createLegacyTemplateAsync(eq("legacy1"), any(ObjectNode.class));
+        verify(client, times(1)).createComponentTemplateAsync(eq("component1"), any(ObjectNode.class));
+        verify(client, times(1)).createComponentTemplateAsync(eq("component2"), any(ObjectNode.class));
+        verify(client, times(1)).createIndexTemplateAsync(eq("index1"), any(ObjectNode.class));
+    }
+
+    @Test
+    void Create_OneTemplateFails_OthersAttemptedAndErrorSurfaced() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        when(client.createComponentTemplateAsync(eq("component1"), any(ObjectNode.class))).thenReturn(Mono.error(new RfsException("Whoops")));
+        when(client.createComponentTemplateAsync(eq("component2"), any(ObjectNode.class))).thenReturn(Mono.just(true));
+        when(client.createIndexTemplateAsync(anyString(), any(ObjectNode.class))).thenReturn(Mono.just(true));
+
+        GlobalMetadataCreator_OS_2_11 creator = new GlobalMetadataCreator_OS_2_11(client, List.of(), null, null, 4);
+
+        // Run the test
+        assertThrows(RfsException.class, () -> creator.create(buildRoot()));
+
+        // Check the results
+        // The index template may not be composed of the component template that failed, so it's still attempted
+        verify(client, times(1)).createComponentTemplateAsync(eq("component2"), any(ObjectNode.class));
+        verify(client, times(1)).createIndexTemplateAsync(eq("index1"), any(ObjectNode.class));
+        verify(client, never()).createLegacyTemplateAsync(anyString(), any(ObjectNode.class));
+    }
+
+    @Test
+    void Create_LegacyTemplateFails_OtherKindsStillFinish() {
+        // Set up the test
+        OpenSearchClient client = mock(OpenSearchClient.class);
+        when(client.createLegacyTemplateAsync(anyString(), any(ObjectNode.class))).thenReturn(Mono.error(new RfsException("Whoops")));
+        when(client.createComponentTemplateAsync(anyString(), any(ObjectNode.class))).thenReturn(Mono.delay(Duration.ofMillis(50)).thenReturn(true));
+        when(client.createIndexTemplateAsync(anyString(), any(ObjectNode.class))).thenReturn(Mono.just(true));
+
+        GlobalMetadataCreator_OS_2_11 creator = new GlobalMetadataCreator_OS_2_11(client, null, null, null, 4);
+
+        // Run the test
+        assertThrows(RfsException.class, () -> creator.create(buildRoot()));
+
+        // Check the results
+        // The legacy template fails straight away, but the component and index templates aren't cut short by it
+        verify(client, times(2)).createComponentTemplateAsync(anyString(), any(ObjectNode.class));
+        verify(client, times(1)).createIndexTemplateAsync(eq("index1"), any(ObjectNode.class));
+    }
+}
@@ -0,0 +1,678 @@
+package com.rfs.worker;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.rfs.cms.CmsClient;
+import com.rfs.cms.CmsEntry;
+import com.rfs.cms.OpenSearchCmsClient;
+import com.rfs.common.DocumentReindexer;
+import com.rfs.common.IndexMetadata;
+import com.rfs.common.LuceneDocumentsReader;
+import com.rfs.common.ShardCheckpoint;
+import com.rfs.common.ShardMetadata;
+import com.rfs.common.ShardSlice;
+import com.rfs.common.SnapshotRepo;
+import com.rfs.common.SnapshotShardUnpacker;
+import com.rfs.common.SourceRepo;
+import com.rfs.worker.DocumentsStep.SharedMembers;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+
+@ExtendWith(MockitoExtension.class)
+public class DocumentsStepTest {
+    private SharedMembers testMembers;
+
+    @BeforeEach
+    void setUp() {
+        GlobalState globalState = Mockito.mock(GlobalState.class);
+        CmsClient cmsClient = Mockito.mock(CmsClient.class);
+        String snapshotName = "test";
+        SnapshotRepo.Provider repoDataProvider = Mockito.mock(SnapshotRepo.Provider.class);
+        IndexMetadata.Factory indexMetadataFactory = Mockito.mock(IndexMetadata.Factory.class);
+        ShardMetadata.Factory shardMetadataFactory = Mockito.mock(ShardMetadata.Factory.class);
+        SnapshotShardUnpacker unpacker = Mockito.mock(SnapshotShardUnpacker.class);
+        LuceneDocumentsReader reader = Mockito.mock(LuceneDocumentsReader.class);
+        DocumentReindexer reindexer = Mockito.mock(DocumentReindexer.class);
+        Path luceneDirPath = Paths.get("/tmp/lucene");
+        testMembers = new SharedMembers(globalState, cmsClient, snapshotName, repoDataProvider, indexMetadataFactory,
+            shardMetadataFactory, unpacker, reader, reindexer, luceneDirPath, 0);
+    }
+
+    private static String expiredLease() {
+        return String.valueOf(Instant.now().minus(Duration.ofDays(1)).toEpochMilli());
+    }
+
+    private static String validLease() {
+        return String.valueOf(Instant.now().plus(Duration.ofDays(1)).toEpochMilli());
+    }
+
+    @Test
+    void EnterPhase_AsExpected() {
+        // Run the test
+        DocumentsStep.EnterPhase testStep = new DocumentsStep.EnterPhase(testMembers);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.globalState, times(1)).updatePhase(GlobalState.Phase.DOCUMENTS_IN_PROGRESS);
+        assertEquals(DocumentsStep.GetEntry.class, nextStep.getClass());
+    }
+
+    static Stream<Arguments> provideGetEntryArgs() {
+        return Stream.of(
+            // There is no CMS entry, so we need to create one
+            Arguments.of(null, DocumentsStep.CreateEntry.class),
+
+            // The setup lease has expired and is under the retry limit, so we try to acquire it
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, expiredLease(), CmsEntry.Documents.MAX_ATTEMPTS - 1),
+                DocumentsStep.AcquireLease.class
+            ),
+
+            // The setup lease has expired and is at the retry limit, so we exit as failed
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, expiredLease(), CmsEntry.Documents.MAX_ATTEMPTS),
+                DocumentsStep.ExitPhaseFailed.class
+            ),
+
+            // Someone else holds a valid setup lease, so we back off a bit
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), CmsEntry.Documents.MAX_ATTEMPTS - 1),
+                DocumentsStep.RandomWait.class
+            ),
+
+            // The work items have been set up, so we go looking for one
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.IN_PROGRESS, validLease(), 1),
+                DocumentsStep.GetShardWorkItem.class
+            ),
+
+            // The CMS entry is marked as completed, so we exit as success
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.COMPLETED, validLease(), 1),
+                DocumentsStep.ExitPhaseSuccess.class
+            ),
+
+            // The CMS entry is marked as failed, so we exit as failed
+            Arguments.of(
+                new CmsEntry.Documents(CmsEntry.DocumentsStatus.FAILED, validLease(), 1),
+                DocumentsStep.ExitPhaseFailed.class
+            )
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideGetEntryArgs")
+    void GetEntry_AsExpected(CmsEntry.Documents documents, Class<?> nextStepClass) {
+        // Set up the test
+        Mockito.when(testMembers.cmsClient.getDocumentsEntry()).thenReturn(documents);
+
+        // Run the test
+        DocumentsStep.GetEntry testStep = new DocumentsStep.GetEntry(testMembers);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).getDocumentsEntry();
+        assertEquals(nextStepClass, nextStep.getClass());
+    }
+
+    private void setUpSnapshotWithShards(String indexName, int numShards) throws Exception {
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        SnapshotRepo.Index testIndex = Mockito.mock(SnapshotRepo.Index.class);
+        IndexMetadata.Data testIndexMetadata = Mockito.mock(IndexMetadata.Data.class);
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.repoDataProvider.getIndicesInSnapshot(testMembers.snapshotName)).thenReturn(List.of(testIndex));
+        Mockito.when(testIndex.getName()).thenReturn(indexName);
+        Mockito.when(testMembers.indexMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, indexName))
+            .thenReturn(testIndexMetadata);
+        Mockito.when(testIndexMetadata.getNumberOfShards()).thenReturn(numShards);
+        for (int shardId = 0; shardId < numShards; shardId++) {
+            // Not every test gets through all the shards
+            ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+            Mockito.lenient().when(testShardMetadata.getTotalSize()).thenReturn(100L * (shardId + 1));
+            Mockito.lenient().when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, indexName, shardId))
+                .thenReturn(testShardMetadata);
+        }
+    }
+
+    @Test
+    void SetupWorkItems_AsExpected() throws Exception {
+        // Set up the test
+        CmsEntry.Documents leasedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), 1);
+        CmsEntry.Documents updatedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1);
+        setUpSnapshotWithShards("index1", 3);
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(leasedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1))
+            .thenReturn(updatedEntry);
+
+        // Run the test
+        DocumentsStep.SetupWorkItems testStep = new DocumentsStep.SetupWorkItems(testMembers, leasedEntry);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 0, ShardSlice.WHOLE_SHARD, 100L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 1, ShardSlice.WHOLE_SHARD, 200L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 2, ShardSlice.WHOLE_SHARD, 300L);
+        Mockito.verify(testMembers.cmsClient, times(1)).updateDocumentsEntry(leasedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1);
+        Mockito.verify(testMembers.cmsClient, never()).setDocumentsMigrationStatus(any());
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+
+    @Test
+    void SetupWorkItems_BigShards_SplitIntoSlices() throws Exception {
+        // Set up the test
+        SharedMembers slicingMembers = new SharedMembers(testMembers.globalState, testMembers.cmsClient, testMembers.snapshotName,
+            testMembers.repoDataProvider, testMembers.indexMetadataFactory, testMembers.shardMetadataFactory, testMembers.unpacker,
+            testMembers.reader, testMembers.reindexer, testMembers.luceneDirPath, 150);
+        CmsEntry.Documents leasedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), 1);
+        setUpSnapshotWithShards("index1", 3);
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(leasedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1))
+            .thenReturn(new CmsEntry.Documents(CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1));
+
+        // Run the test
+        DocumentsStep.SetupWorkItems testStep = new DocumentsStep.SetupWorkItems(slicingMembers, leasedEntry);
+        testStep.run();
+
+        // Check the results
+        // Each slice gets its own work item, carrying its share of the shard's size
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 0, ShardSlice.WHOLE_SHARD, 100L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 1, new ShardSlice(0, 2), 100L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 1, new ShardSlice(1, 2), 100L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 2, new ShardSlice(0, 2), 150L);
+        Mockito.verify(testMembers.cmsClient, times(1)).createShardWorkItem("index1", 2, new ShardSlice(1, 2), 150L);
+        Mockito.verify(testMembers.cmsClient, times(5)).createShardWorkItem(anyString(), anyInt(), any(), anyLong());
+    }
+
+    @Test
+    void SetupWorkItems_EntryChangedUnderneath_DoesNotOverwriteIt() throws Exception {
+        // Set up the test
+        CmsEntry.Documents leasedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), 1);
+        setUpSnapshotWithShards("index1", 1);
+        // e.g. our lease expired and the migration has since been marked as FAILED
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(leasedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, leasedEntry.leaseExpiry, 1))
+            .thenReturn(null);
+
+        // Run the test
+        DocumentsStep.SetupWorkItems testStep = new DocumentsStep.SetupWorkItems(testMembers, leasedEntry);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, never()).setDocumentsMigrationStatus(any());
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetEntry.class, nextStep.getClass());
+    }
+
+    public static class TestSetupWorkItems extends DocumentsStep.SetupWorkItems {
+        public static final int milliSinceEpoch = 42; // Arbitrarily chosen, but predictable
+
+        public TestSetupWorkItems(SharedMembers members, CmsEntry.Documents leasedEntry) {
+            super(members, leasedEntry);
+        }
+
+        @Override
+        protected Duration getLeaseRenewalInterval() {
+            return Duration.ofMillis(10);
+        }
+
+        @Override
+        protected long getNowMs() {
+            return milliSinceEpoch;
+        }
+    }
+
+    @Test
+    void SetupWorkItems_LeaseRenewedWhileWorking() throws Exception {
+        // Set up the test
+        CmsEntry.Documents leasedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), 2);
+        String renewedExpiry = CmsEntry.Documents.getLeaseExpiry(TestSetupWorkItems.milliSinceEpoch, 2);
+        CmsEntry.Documents renewedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, renewedExpiry, 2);
+        CmsEntry.Documents updatedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.IN_PROGRESS, renewedExpiry, 2);
+        setUpSnapshotWithShards("index1", 3);
+        // Creating the work items takes long enough for the lease to need renewing
+        Mockito.when(testMembers.cmsClient.createShardWorkItem(eq("index1"), anyInt(), any(), anyLong())).thenAnswer(invocation -> {
+            Thread.sleep(50);
+            return true;
+        });
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(any(), eq(CmsEntry.DocumentsStatus.SETUP), eq(renewedExpiry), eq(2)))
+            .thenReturn(renewedEntry);
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(renewedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, renewedExpiry, 2))
+            .thenReturn(updatedEntry);
+
+        // Run the test
+        DocumentsStep.SetupWorkItems testStep = new TestSetupWorkItems(testMembers, leasedEntry);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, atLeastOnce()).updateDocumentsEntry(leasedEntry, CmsEntry.DocumentsStatus.SETUP, renewedExpiry, 2);
+        Mockito.verify(testMembers.cmsClient, times(1)).updateDocumentsEntry(renewedEntry, CmsEntry.DocumentsStatus.IN_PROGRESS, renewedExpiry, 2);
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+
+    @Test
+    void SetupWorkItems_LeaseLost_StopsWork() throws Exception {
+        // Set up the test
+        CmsEntry.Documents leasedEntry = new CmsEntry.Documents(CmsEntry.DocumentsStatus.SETUP, validLease(), 1);
+        setUpSnapshotWithShards("index1", 3);
+        Mockito.when(testMembers.cmsClient.createShardWorkItem(eq("index1"), anyInt(), any(), anyLong())).thenAnswer(invocation -> {
+            Thread.sleep(100);
+            return true;
+        });
+        Mockito.when(testMembers.cmsClient.updateDocumentsEntry(any(), eq(CmsEntry.DocumentsStatus.SETUP), anyString(), anyInt()))
+            .thenReturn(null);
+
+        // Run the test
+        DocumentsStep.SetupWorkItems testStep = new TestSetupWorkItems(testMembers, leasedEntry);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, never()).createShardWorkItem(eq("index1"), eq(2), any(), anyLong());
+        Mockito.verify(testMembers.cmsClient, never()).updateDocumentsEntry(any(), eq(CmsEntry.DocumentsStatus.IN_PROGRESS), any(), any());
+        Mockito.verify(testMembers.cmsClient, never()).setDocumentsMigrationStatus(any());
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetEntry.class, nextStep.getClass());
+    }
+
+    static Stream<Arguments> provideGetShardWorkItemArgs() {
+        return Stream.of(
+            // Nothing is left to do, so we exit as success
+            Arguments.of(List.of(), DocumentsStep.ExitPhaseSuccess.class),
+
+            // Every item is leased by someone else, so we back off a bit
+            Arguments.of(
+                List.of(new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 1)),
+                DocumentsStep.RandomWait.class
+            ),
+
+            // An item's lease has expired and it's under the retry limit, so we try to acquire it
+            Arguments.of(
+                List.of(
+                    new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 1),
+                    new CmsEntry.ShardWorkItem("index1", 1, CmsEntry.ShardWorkItemStatus.NOT_STARTED, "0", 0)
+                ),
+                DocumentsStep.AcquireShardLease.class
+            ),
+
+            // An item's lease has expired and it's at the retry limit, so we mark it as failed
+            Arguments.of(
+                List.of(new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED, expiredLease(), CmsEntry.ShardWorkItem.MAX_ATTEMPTS)),
+                DocumentsStep.MarkShardFailed.class
+            )
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideGetShardWorkItemArgs")
+    void GetShardWorkItem_AsExpected(List<CmsEntry.ShardWorkItem> availableItems, Class<?> nextStepClass) {
+        // Set up the test
+        Mockito.when(testMembers.cmsClient.getAvailableShardWorkItems(anyInt())).thenReturn(availableItems);
+
+        // Run the test
+        DocumentsStep.GetShardWorkItem testStep = new DocumentsStep.GetShardWorkItem(testMembers);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).getAvailableShardWorkItems(DocumentsStep.WORK_ITEMS_PER_LOOKUP);
+        assertEquals(nextStepClass, nextStep.getClass());
+    }
+
+    @Test
+    void GetShardWorkItem_NoneLeftButSomeFailed_ExitsAsFailed() {
+        // Set up the test
+        Mockito.when(testMembers.cmsClient.getAvailableShardWorkItems(anyInt())).thenReturn(List.of());
+        Mockito.when(testMembers.cmsClient.hasFailedShardWorkItems()).thenReturn(true);
+
+        // Run the test
+        DocumentsStep.GetShardWorkItem testStep = new DocumentsStep.GetShardWorkItem(testMembers);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).hasFailedShardWorkItems();
+        assertEquals(DocumentsStep.ExitPhaseFailed.class, nextStep.getClass());
+    }
+
+    public static class TestAcquireShardLease extends DocumentsStep.AcquireShardLease {
+        public static final int milliSinceEpoch = 42; // Arbitrarily chosen, but predictable
+
+        public TestAcquireShardLease(SharedMembers members, CmsEntry.ShardWorkItem existingItem) {
+            super(members, existingItem);
+        }
+
+        @Override
+        protected long getNowMs() {
+            return milliSinceEpoch;
+        }
+    }
+
+    static Stream<Arguments> provideAcquireShardLeaseArgs() {
+        return Stream.of(
+            // We were able to acquire the lease
+            Arguments.of(true, DocumentsStep.MigrateShard.class),
+
+            // We were unable to acquire the lease
+            Arguments.of(false, DocumentsStep.GetShardWorkItem.class)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideAcquireShardLeaseArgs")
+    void AcquireShardLease_AsExpected(boolean acquiredLease, Class<?> nextStepClass) {
+        // Set up the test
+        CmsEntry.ShardWorkItem existingItem = new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED, "0", 0);
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            CmsEntry.ShardWorkItem.getLeaseExpiry(TestAcquireShardLease.milliSinceEpoch, 1), 1);
+        Mockito.when(testMembers.cmsClient.updateShardWorkItem(
+            any(CmsEntry.ShardWorkItem.class), any(CmsEntry.ShardWorkItemStatus.class), anyString(), anyInt()
+        )).thenReturn(acquiredLease ? leasedItem : null);
+
+        // Run the test
+        DocumentsStep.AcquireShardLease testStep = new TestAcquireShardLease(testMembers, existingItem);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardWorkItem(
+            existingItem,
+            CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            CmsEntry.ShardWorkItem.getLeaseExpiry(TestAcquireShardLease.milliSinceEpoch, 1),
+            1
+        );
+        assertEquals(nextStepClass, nextStep.getClass());
+    }
+
+    @Test
+    void MigrateShard_AsExpected() throws Exception {
+        // Set up the test
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 1);
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Flux<ShardCheckpoint.PositionedDocument> testDocuments = Flux.empty();
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.reader.readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(ShardSlice.WHOLE_SHARD), any(ShardCheckpoint.Tracker.class)))
+            .thenReturn(testDocuments);
+        Mockito.when(testMembers.reindexer.reindex(eq("index1"), eq(testDocuments), any(ShardCheckpoint.Tracker.class))).thenReturn(Mono.empty());
+        Mockito.when(testMembers.cmsClient.updateShardWorkItem(
+            eq(leasedItem), eq(CmsEntry.ShardWorkItemStatus.COMPLETED), anyString(), anyInt()
+        )).thenReturn(leasedItem);
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new DocumentsStep.MigrateShard(testMembers, leasedItem);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(
+            argThat(argument -> {
+                if (!(argument instanceof OpenSearchWorkItem)) {
+                    return false;
+                }
+                OpenSearchWorkItem workItem = (OpenSearchWorkItem) argument;
+                return workItem.indexName.equals(OpenSearchCmsClient.CMS_INDEX_NAME) &&
+                    workItem.documentId.equals("shard_work_item_index1_2");
+            })
+        );
+        Mockito.verify(testMembers.unpacker, times(1)).unpack(testShardMetadata);
+        Mockito.verify(testMembers.reindexer, times(1)).reindex(eq("index1"), eq(testDocuments), any(ShardCheckpoint.Tracker.class));
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardWorkItem(
+            leasedItem, CmsEntry.ShardWorkItemStatus.COMPLETED, leasedItem.leaseExpiry, leasedItem.numAttempts
+        );
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+
+    @Test
+    void MigrateShard_Slice_MigratesOnlyItsSlice() throws Exception {
+        // Set up the test
+        ShardSlice slice = new ShardSlice(1, 2);
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, slice, CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            validLease(), 1, null);
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Flux<ShardCheckpoint.PositionedDocument> testDocuments = Flux.empty();
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.reader.readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(slice), any(ShardCheckpoint.Tracker.class)))
+            .thenReturn(testDocuments);
+        Mockito.when(testMembers.reindexer.reindex(eq("index1"), eq(testDocuments), any(ShardCheckpoint.Tracker.class))).thenReturn(Mono.empty());
+        Mockito.when(testMembers.cmsClient.updateShardWorkItem(
+            eq(leasedItem), eq(CmsEntry.ShardWorkItemStatus.COMPLETED), anyString(), anyInt()
+        )).thenReturn(leasedItem);
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new DocumentsStep.MigrateShard(testMembers, leasedItem);
+        testStep.run();
+
+        // Check the results
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(
+            argThat(argument -> argument instanceof OpenSearchWorkItem
+                && ((OpenSearchWorkItem) argument).documentId.equals("shard_work_item_index1_2_slice_1_of_2"))
+        );
+        Mockito.verify(testMembers.reader, times(1)).readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(slice),
+            any(ShardCheckpoint.Tracker.class));
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardWorkItem(
+            leasedItem, CmsEntry.ShardWorkItemStatus.COMPLETED, leasedItem.leaseExpiry, leasedItem.numAttempts
+        );
+    }
+
+    @Test
+    void MigrateShard_FailureLeavesWorkItemLeased() throws Exception {
+        // Set up the test
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 1);
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        AtomicInteger cleanUps = new AtomicInteger();
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenAnswer(invocation -> Mono.fromRunnable(cleanUps::incrementAndGet));
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.error(new RuntimeException("Whoops")));
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new DocumentsStep.MigrateShard(testMembers, leasedItem);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        assertEquals(2, cleanUps.get()); // Once before unpacking, and once after the failure
+        Mockito.verify(testMembers.cmsClient, never()).updateShardWorkItem(any(), any(), any(), any());
+        Mockito.verify(testMembers.cmsClient, never()).updateShardCheckpoint(any(), any(), any()); // Nothing was read, so no progress to save
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+
+    @Test
+    void MarkShardFailed_AsExpected() {
+        // Set up the test
+        CmsEntry.ShardWorkItem existingItem = new CmsEntry.ShardWorkItem("index1", 0, CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            expiredLease(), CmsEntry.ShardWorkItem.MAX_ATTEMPTS);
+
+        // Run the test
+        DocumentsStep.MarkShardFailed testStep = new DocumentsStep.MarkShardFailed(testMembers, existingItem);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardWorkItem(
+            existingItem, CmsEntry.ShardWorkItemStatus.FAILED, existingItem.leaseExpiry, existingItem.numAttempts
+        );
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+
+    @Test
+    void ExitPhaseSuccess_AsExpected() {
+        // Run the test
+        DocumentsStep.ExitPhaseSuccess testStep = new DocumentsStep.ExitPhaseSuccess(testMembers);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).setDocumentsMigrationStatus(CmsEntry.DocumentsStatus.COMPLETED);
+        Mockito.verify(testMembers.globalState, times(1)).updatePhase(GlobalState.Phase.DOCUMENTS_COMPLETED);
+        assertEquals(null, nextStep);
+    }
+
+    @Test
+    void MigrateShard_ResumesFromAndSavesCheckpoint() throws Exception {
+        // Set up the test
+        ShardCheckpoint startingCheckpoint = new ShardCheckpoint(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", 10));
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            validLease(), 2, startingCheckpoint);
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.empty());
+
+        // The reader resumes from the work item's checkpoint; the reindexer gets part way through before failing
+        Mockito.when(testMembers.reader.readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(ShardSlice.WHOLE_SHARD), any(ShardCheckpoint.Tracker.class)))
+            .thenAnswer(invocation -> {
+                ShardCheckpoint.Tracker tracker = invocation.getArgument(4);
+                assertEquals(10, tracker.getResumePoint("_1"));
+                return Flux.empty();
+            });
+        Mockito.when(testMembers.reindexer.reindex(eq("index1"), any(), any(ShardCheckpoint.Tracker.class)))
+            .thenAnswer(invocation -> {
+                ShardCheckpoint.Tracker tracker = invocation.getArgument(2);
+                tracker.onSegmentStarted("_1", 10);
+                for (int docId = 10; docId < 15; docId++) {
+                    tracker.onDocumentRead(new ShardCheckpoint.Position("_1", docId));
+                }
+                tracker.onDocumentsAcknowledged(List.of(new ShardCheckpoint.Position("_1", 10), new ShardCheckpoint.Position("_1", 11)));
+                return Mono.error(new RuntimeException("Whoops"));
+            });
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new DocumentsStep.MigrateShard(testMembers, leasedItem);
+        testStep.run();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardCheckpoint(
+            leasedItem, new ShardCheckpoint(Map.of("_0", ShardCheckpoint.SEGMENT_COMPLETE, "_1", 12)), leasedItem.leaseExpiry
+        );
+    }
+
+    public static class TestMigrateShard extends DocumentsStep.MigrateShard {
+        public static final int milliSinceEpoch = 42; // Arbitrarily chosen, but predictable
+
+        public TestMigrateShard(SharedMembers members, CmsEntry.ShardWorkItem leasedItem) {
+            super(members, leasedItem);
+        }
+
+        @Override
+        protected Duration getCheckpointInterval() {
+            return Duration.ofMillis(10);
+        }
+
+        @Override
+        protected long getNowMs() {
+            return milliSinceEpoch;
+        }
+    }
+
+    @Test
+    void MigrateShard_LeaseRenewedWhileWorking() throws Exception {
+        // Set up the test
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 2);
+        CmsEntry.ShardWorkItem renewedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED,
+            CmsEntry.ShardWorkItem.getLeaseExpiry(TestMigrateShard.milliSinceEpoch, 2), 2, ShardCheckpoint.empty());
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.reader.readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(ShardSlice.WHOLE_SHARD), any(ShardCheckpoint.Tracker.class)))
+            .thenReturn(Flux.empty());
+        // Takes long enough for the lease to be renewed a few times
+        Mockito.when(testMembers.reindexer.reindex(eq("index1"), any(), any(ShardCheckpoint.Tracker.class)))
+            .thenReturn(Mono.delay(Duration.ofMillis(200)).then());
+        Mockito.when(testMembers.cmsClient.updateShardCheckpoint(any(), any(), anyString())).thenReturn(renewedItem);
+        Mockito.when(testMembers.cmsClient.updateShardWorkItem(any(), any(), anyString(), anyInt())).thenReturn(renewedItem);
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new TestMigrateShard(testMembers, leasedItem);
+        testStep.run();
+
+        // Check the results
+        Mockito.verify(testMembers.cmsClient, atLeastOnce()).updateShardCheckpoint(leasedItem, ShardCheckpoint.empty(), renewedItem.leaseExpiry);
+        Mockito.verify(testMembers.cmsClient, times(1)).updateShardWorkItem(
+            renewedItem, CmsEntry.ShardWorkItemStatus.COMPLETED, renewedItem.leaseExpiry, 2
+        );
+    }
+
+    @Test
+    void MigrateShard_LeaseLost_StopsWork() throws Exception {
+        // Set up the test
+        CmsEntry.ShardWorkItem leasedItem = new CmsEntry.ShardWorkItem("index1", 2, CmsEntry.ShardWorkItemStatus.NOT_STARTED, validLease(), 1);
+        SourceRepo testRepo = Mockito.mock(SourceRepo.class);
+        ShardMetadata.Data testShardMetadata = Mockito.mock(ShardMetadata.Data.class);
+        Mockito.when(testMembers.repoDataProvider.getRepo()).thenReturn(testRepo);
+        Mockito.when(testMembers.shardMetadataFactory.fromRepo(testRepo, testMembers.repoDataProvider, testMembers.snapshotName, "index1", 2))
+            .thenReturn(testShardMetadata);
+        AtomicInteger cleanUps = new AtomicInteger();
+        Mockito.when(testMembers.unpacker.cleanUp(testShardMetadata)).thenAnswer(invocation -> Mono.fromRunnable(cleanUps::incrementAndGet));
+        Mockito.when(testMembers.unpacker.unpack(testShardMetadata)).thenReturn(Mono.empty());
+        Mockito.when(testMembers.reader.readDocuments(eq(testMembers.luceneDirPath), eq("index1"), eq(2), eq(ShardSlice.WHOLE_SHARD), any(ShardCheckpoint.Tracker.class)))
+            .thenReturn(Flux.empty());
+        // Would never finish on its own
+        Mockito.when(testMembers.reindexer.reindex(eq("index1"), any(), any(ShardCheckpoint.Tracker.class))).thenReturn(Mono.never());
+        Mockito.when(testMembers.cmsClient.updateShardCheckpoint(any(), any(), anyString())).thenReturn(null);
+
+        // Run the test
+        DocumentsStep.MigrateShard testStep = new TestMigrateShard(testMembers, leasedItem);
+        testStep.run();
+        WorkerStep nextStep = testStep.nextStep();
+
+        // Check the results
+        assertEquals(2, cleanUps.get()); // Once before unpacking, and once when the migration was cancelled
+        Mockito.verify(testMembers.cmsClient, atLeastOnce()).updateShardCheckpoint(any(), any(), anyString());
+        Mockito.verify(testMembers.cmsClient, never()).updateShardWorkItem(any(), any(), any(), any());
+        Mockito.verify(testMembers.globalState, times(1)).updateWorkItem(null);
+        assertEquals(DocumentsStep.GetShardWorkItem.class, nextStep.getClass());
+    }
+}